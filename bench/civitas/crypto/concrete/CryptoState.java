@@ -0,0 +1,53 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.crypto.concrete;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import jif.lang.Label;
+import jif.lang.LabelUtil;
+import civitas.crypto.*;
+
+/**
+ * Parameters, keys and a ciphertext shared by the benchmarks, generated
+ * once per trial.
+ */
+@State(Scope.Benchmark)
+public class CryptoState {
+    final Label lbl = LabelUtil.singleton().noComponents();
+    final CryptoFactoryC f = CryptoFactoryC.singleton();
+
+    ElGamalParametersC ps;
+    ElGamalPublicKey K;
+    ElGamalPrivateKey k;
+    ElGamalPublicKey verifierK;
+    ElGamalPrivateKey verifierk;
+
+    ElGamalMsg msg;
+    ElGamalReencryptFactor r;
+    ElGamalCiphertext c;
+    ElGamalSignedCiphertext sc;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ps = ElGamalParametersC.getDefaultParams();
+        ElGamalKeyPair pair = f.generateElGamalKeyPair(ps);
+        K = pair.publicKey();
+        k = pair.privateKey();
+        ElGamalKeyPair verifierPair = f.generateElGamalKeyPair(ps);
+        verifierK = verifierPair.publicKey();
+        verifierk = verifierPair.privateKey();
+
+        msg = f.generateVoteCapabilityShare(ps);
+        r = f.generateElGamalReencryptFactor(ps);
+        c = f.elGamalEncrypt(K, msg, r);
+        sc = f.elGamalSignedEncrypt(K, msg);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.crypto.concrete;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import civitas.crypto.*;
+
+/**
+ * El Gamal encryption, re-encryption and signed ciphertexts, one at a time
+ * and in batches.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ElGamalBench {
+    @State(Scope.Benchmark)
+    public static class Batch {
+        @Param({"16", "256"})
+        public int batch;
+
+        ElGamalMsg[] msgs;
+        ElGamalReencryptFactor[] factors;
+        ElGamalCiphertext[] cs;
+        ElGamalSignedCiphertext[] scs;
+
+        @Setup(Level.Trial)
+        public void setup(CryptoState s) {
+            msgs = new ElGamalMsg[batch];
+            factors = new ElGamalReencryptFactor[batch];
+            scs = new ElGamalSignedCiphertext[batch];
+            for (int i = 0; i < batch; i++) {
+                msgs[i] = s.f.generateVoteCapabilityShare(s.ps);
+                factors[i] = s.f.generateElGamalReencryptFactor(s.ps);
+                scs[i] = s.f.elGamalSignedEncrypt(s.K, msgs[i]);
+            }
+            cs = s.f.encryptAll(s.lbl, s.K, msgs, factors);
+        }
+    }
+
+    @Benchmark
+    public ElGamalCiphertext encrypt(CryptoState s) {
+        return s.f.elGamalEncrypt(s.K, s.msg, s.r);
+    }
+
+    @Benchmark
+    public ElGamalCiphertext reencrypt(CryptoState s) {
+        return s.f.elGamalReencrypt(s.K, s.c, s.r);
+    }
+
+    @Benchmark
+    public ElGamalSignedCiphertext signedEncrypt(CryptoState s) {
+        return s.f.elGamalSignedEncrypt(s.K, s.msg, s.r);
+    }
+
+    @Benchmark
+    public boolean verify(CryptoState s) {
+        return s.f.elGamalVerify(s.ps, s.sc);
+    }
+
+    @Benchmark
+    public ElGamalCiphertext[] encryptAll(CryptoState s, Batch b) {
+        return s.f.encryptAll(s.lbl, s.K, b.msgs, b.factors);
+    }
+
+    @Benchmark
+    public ElGamalCiphertext[] reencryptAll(CryptoState s, Batch b) {
+        return s.f.reencryptAll(s.lbl, s.K, b.cs, b.factors);
+    }
+
+    @Benchmark
+    public boolean[] verifyAll(CryptoState s, Batch b) {
+        return s.f.verifyAll(s.lbl, s.ps, b.scs, null);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.crypto.concrete;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import civitas.common.CiphertextList;
+import civitas.crypto.*;
+
+/**
+ * Construction and verification of the proofs in a vote: the 1-out-of-L
+ * re-encryption proof of the choice, the proof of the vote, and the
+ * designated verifier re-encryption proof of the registration tellers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProofBench {
+    static final String CONTEXT = "benchmark";
+
+    /**
+     * A ballot with L candidates, and a vote for one of them.
+     */
+    @State(Scope.Benchmark)
+    public static class Ballot {
+        @Param({"3", "10", "50"})
+        public int L;
+
+        ElGamalCiphertext[] ciphertexts;
+        CiphertextList cipherList;
+        int choice;
+        ElGamalReencryptFactor factorChoice;
+        ElGamal1OfLReencryption encChoice;
+        ElGamalReencryptFactor factorCap;
+        ElGamalCiphertext encCapability;
+        ProofVote proofVote;
+
+        @Setup(Level.Trial)
+        public void setup(CryptoState s) {
+            ciphertexts = s.f.constructWellKnownCiphertexts(s.lbl, s.K, L);
+            cipherList = new CiphertextList().civitas$common$CiphertextList$(s.lbl, ciphertexts);
+            choice = L / 2;
+            factorChoice = s.f.generateElGamalReencryptFactor(s.ps);
+            encChoice = s.f.elGamal1OfLReencrypt(s.lbl, s.K, ciphertexts, L, choice, factorChoice);
+            factorCap = s.f.generateElGamalReencryptFactor(s.ps);
+            encCapability = s.f.elGamalEncrypt(s.K, s.msg, factorCap);
+            proofVote = s.f.constructProofVote(s.ps, encCapability, encChoice, CONTEXT, factorCap, factorChoice);
+        }
+    }
+
+    /**
+     * A batch of votes on a ballot with three candidates.
+     */
+    @State(Scope.Benchmark)
+    public static class Votes {
+        static final int L = 3;
+
+        @Param({"16", "256"})
+        public int batch;
+
+        CiphertextList cipherList;
+        ElGamal1OfLReencryption[] encChoices;
+        ElGamalCiphertext[] encCaps;
+        ProofVote[] proofs;
+        String[] contexts;
+
+        @Setup(Level.Trial)
+        public void setup(CryptoState s) {
+            ElGamalCiphertext[] ciphertexts = s.f.constructWellKnownCiphertexts(s.lbl, s.K, L);
+            cipherList = new CiphertextList().civitas$common$CiphertextList$(s.lbl, ciphertexts);
+            encChoices = new ElGamal1OfLReencryption[batch];
+            encCaps = new ElGamalCiphertext[batch];
+            proofs = new ProofVote[batch];
+            contexts = new String[batch];
+            for (int i = 0; i < batch; i++) {
+                ElGamalReencryptFactor factorChoice = s.f.generateElGamalReencryptFactor(s.ps);
+                ElGamalReencryptFactor factorCap = s.f.generateElGamalReencryptFactor(s.ps);
+                encChoices[i] = s.f.elGamal1OfLReencrypt(s.lbl, s.K, ciphertexts, L, i % L, factorChoice);
+                encCaps[i] = s.f.elGamalEncrypt(s.K, s.f.generateVoteCapabilityShare(s.ps), factorCap);
+                proofs[i] = s.f.constructProofVote(s.ps, encCaps[i], encChoices[i], CONTEXT, factorCap, factorChoice);
+                contexts[i] = CONTEXT;
+            }
+        }
+    }
+
+    /**
+     * Two encryptions of the same message, as a registration teller sends
+     * a voter.
+     */
+    @State(Scope.Benchmark)
+    public static class Reencryption {
+        ElGamalReencryptFactor r;
+        ElGamalReencryptFactor rp;
+        ElGamalCiphertext e;
+        ElGamalCiphertext ep;
+        ElGamalProofDVR proof;
+
+        @Setup(Level.Trial)
+        public void setup(CryptoState s) {
+            r = s.f.generateElGamalReencryptFactor(s.ps);
+            rp = s.f.generateElGamalReencryptFactor(s.ps);
+            e = s.f.elGamalEncrypt(s.K, s.msg, r);
+            ep = s.f.elGamalEncrypt(s.K, s.msg, rp);
+            proof = s.f.constructElGamalProofDVR(s.K, s.verifierK, e, ep, r, rp);
+        }
+    }
+
+    @Benchmark
+    public ElGamal1OfLReencryption construct1OfL(CryptoState s, Ballot b) {
+        return s.f.elGamal1OfLReencrypt(s.lbl, s.K, b.ciphertexts, b.L, b.choice, b.factorChoice);
+    }
+
+    @Benchmark
+    public boolean verify1OfL(CryptoState s, Ballot b) {
+        return b.encChoice.verify(s.K, b.cipherList, b.L);
+    }
+
+    @Benchmark
+    public ProofVote constructProofVote(CryptoState s, Ballot b) {
+        return s.f.constructProofVote(s.ps, b.encCapability, b.encChoice, CONTEXT, b.factorCap, b.factorChoice);
+    }
+
+    @Benchmark
+    public boolean verifyProofVote(CryptoState s, Ballot b) {
+        return b.proofVote.verify(s.ps, b.encCapability, b.encChoice.getCiphertext(), CONTEXT);
+    }
+
+    @Benchmark
+    public boolean[] verifyVotes(CryptoState s, Votes v) {
+        return s.f.verifyVotes(s.lbl, s.K, v.cipherList, Votes.L, v.encChoices, v.encCaps, v.proofs, v.contexts);
+    }
+
+    @Benchmark
+    public ElGamalProofDVR constructDVR(CryptoState s, Reencryption d) {
+        return s.f.constructElGamalProofDVR(s.K, s.verifierK, d.e, d.ep, d.r, d.rp);
+    }
+
+    @Benchmark
+    public boolean verifyDVR(CryptoState s, Reencryption d) {
+        return d.proof.verify(s.K, s.verifierK);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.crypto.concrete;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.math.ec.ECPoint;
+import org.openjdk.jmh.annotations.*;
+
+import civitas.crypto.*;
+
+/**
+ * The work of the tabulation tellers: plaintext equivalence tests,
+ * distributed decryption, and decoding of the tally.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TabulationBench {
+    /**
+     * A fresh PET share for every invocation, since a share computes its
+     * points only once.
+     */
+    @State(Scope.Thread)
+    public static class FreshShare {
+        ElGamalCiphertext c2;
+        PETShare share;
+
+        @Setup(Level.Trial)
+        public void setup(CryptoState s) {
+            c2 = s.f.elGamalReencrypt(s.K, s.c);
+        }
+
+        @Setup(Level.Invocation)
+        public void share(CryptoState s) {
+            share = s.f.constructPETShare(s.ps, s.c, c2);
+        }
+    }
+
+    /**
+     * A PET share whose commitment has been computed, as it has when the
+     * teller decommits.
+     */
+    @State(Scope.Thread)
+    public static class CommittedShare {
+        ElGamalCiphertext c2;
+        PETShare share;
+
+        @Setup(Level.Trial)
+        public void setup(CryptoState s) {
+            c2 = s.f.elGamalReencrypt(s.K, s.c);
+        }
+
+        @Setup(Level.Invocation)
+        public void share(CryptoState s) {
+            share = s.f.constructPETShare(s.ps, s.c, c2);
+            share.commitment(s.ps);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Shares {
+        @Param({"16", "256"})
+        public int batch;
+
+        ElGamalCiphertext[] cs;
+
+        @Setup(Level.Trial)
+        public void setup(CryptoState s) {
+            cs = new ElGamalCiphertext[batch];
+            for (int i = 0; i < batch; i++) {
+                cs[i] = s.f.elGamalReencrypt(s.K, s.c);
+            }
+        }
+    }
+
+    /**
+     * A ciphertext under a key shared by the tellers, and a decryption
+     * share from each.
+     */
+    @State(Scope.Benchmark)
+    public static class Tellers {
+        @Param({"3", "5"})
+        public int tellers;
+
+        ElGamalKeyPairShare[] keyShares;
+        ElGamalCiphertext c;
+        ElGamalDecryptionShare[] decShares;
+
+        @Setup(Level.Trial)
+        public void setup(CryptoState s) throws CryptoException {
+            keyShares = new ElGamalKeyPairShare[tellers];
+            ElGamalKeyShare[] pubShares = new ElGamalKeyShare[tellers];
+            for (int i = 0; i < tellers; i++) {
+                keyShares[i] = s.f.generateKeyPairShare(s.ps);
+                pubShares[i] = s.f.constructKeyShare(keyShares[i]);
+            }
+            ElGamalPublicKey key = s.f.combineKeyShares(s.lbl, pubShares);
+            c = s.f.elGamalEncrypt(key, s.msg);
+            decShares = new ElGamalDecryptionShare[tellers];
+            for (int i = 0; i < tellers; i++) {
+                decShares[i] = s.f.constructDecryptionShare(s.lbl, s.lbl, c, keyShares[i]);
+            }
+        }
+    }
+
+    /**
+     * The encoding of the last of a number of candidates, the slowest to
+     * decode.
+     */
+    @State(Scope.Benchmark)
+    public static class Tally {
+        @Param({"3", "10", "50"})
+        public int candidates;
+
+        ECPoint m;
+
+        @Setup(Level.Trial)
+        public void setup(CryptoState s) throws CryptoException {
+            m = s.ps.encodePlaintext(BigInteger.valueOf(candidates));
+        }
+    }
+
+    @Benchmark
+    public PETCommitment petCommitment(CryptoState s, FreshShare p) {
+        return p.share.commitment(s.ps);
+    }
+
+    @Benchmark
+    public PETDecommitment petDecommitment(CryptoState s, CommittedShare p) {
+        return p.share.decommitment(s.ps);
+    }
+
+    @Benchmark
+    public PETShare[] constructPETSharesAll(CryptoState s, Shares b) {
+        return s.f.constructPETSharesAll(s.lbl, s.ps, s.c, b.cs);
+    }
+
+    @Benchmark
+    public ElGamalDecryptionShare constructDecryptionShare(CryptoState s, Tellers t) {
+        return s.f.constructDecryptionShare(s.lbl, s.lbl, t.c, t.keyShares[0]);
+    }
+
+    @Benchmark
+    public ElGamalMsg combineDecryptionShares(CryptoState s, Tellers t) throws CryptoException {
+        return s.f.combineDecryptionShares(s.lbl, t.c, t.decShares, s.ps);
+    }
+
+    @Benchmark
+    public int bruteForceDecode(CryptoState s, Tally t) throws CryptoException {
+        return s.ps.bruteForceDecode(t.m, t.candidates);
+    }
+}
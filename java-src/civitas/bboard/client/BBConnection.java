@@ -0,0 +1,455 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.bboard.client;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connection to a bulletin board service, for a single request and its
+ * response.
+ *
+ * By default, each connection is a socket of its own, which is closed with
+ * the connection. If the system property
+ * <code>civitas.bboard.client.keepalive</code> is true, requests are
+ * instead sent framed over sockets that are pooled by service, and carry
+ * many requests. The request written to the writer is sent when the reader
+ * is first read from; it must have been flushed by then. Up to
+ * <code>civitas.bboard.client.pipeline</code> (by default 4) requests may
+ * be outstanding on a socket at once; the service responds to them in
+ * order. A new socket is opened while all are that busy, up to
+ * <code>civitas.bboard.client.maxconnections</code>
+ * (by default 8) per service. A socket that has not been used for
+ * <code>civitas.bboard.client.idletime</code> milliseconds (by default
+ * 30000) is closed; this should be less than the time the service allows
+ * for a request.
+ */
+public class BBConnection {
+    static final boolean KEEP_ALIVE = Boolean.getBoolean("civitas.bboard.client.keepalive");
+    static final int PIPELINE = Math.max(1, Integer.getInteger("civitas.bboard.client.pipeline", 4).intValue());
+    static final int MAX_CONNECTIONS = Math.max(1,
+            Integer.getInteger("civitas.bboard.client.maxconnections", 8).intValue());
+    static final long IDLE_TIME = Math.max(1, Integer.getInteger("civitas.bboard.client.idletime", 30000).intValue());
+
+    /**
+     * Map from services to their pooled sockets.
+     */
+    private static final Map<String, List<Pooled>> pool = new HashMap<String, List<Pooled>>();
+
+    /**
+     * Map from services to the number of sockets being opened to them;
+     * guarded by the pool.
+     */
+    private static final Map<String, Integer> opening = new HashMap<String, Integer>();
+    private static ScheduledExecutorService evictor = null;
+
+    private final Socket socket;
+    private final String host;
+    private final int port;
+    private final StringWriter request;
+    private final Reader reader;
+    private final Writer writer;
+
+    /**
+     * The pooled socket the request was sent on, and its place in the
+     * order of responses; null until the request is sent.
+     */
+    private Pooled pooled = null;
+    private long ticket;
+
+    /**
+     * The number of characters of the response not yet read, or -1 before
+     * its length is read.
+     */
+    private int remaining;
+
+    /**
+     * Whether the response has been read, so that the next response on the
+     * pooled socket can be.
+     */
+    private boolean finished = false;
+    private boolean closed = false;
+
+    /**
+     * Open a connection to the bulletin board service at host and port.
+     */
+    public BBConnection(String host, int port) throws IOException {
+        this.host = host;
+        this.port = port;
+        if (KEEP_ALIVE) {
+            this.socket = null;
+            this.request = new StringWriter();
+            this.reader = new ResponseReader();
+            this.writer = request;
+        }
+        else {
+            this.socket = new Socket(host, port);
+            this.request = null;
+            this.reader = new InputStreamReader(socket.getInputStream());
+            this.writer = new OutputStreamWriter(socket.getOutputStream());
+        }
+    }
+
+    /**
+     * @return the reader of the response.
+     */
+    public Reader getReader() {
+        return reader;
+    }
+
+    /**
+     * @return the writer of the request.
+     */
+    public Writer getWriter() {
+        return writer;
+    }
+
+    /**
+     * Close the connection. A pooled socket is returned to the pool once
+     * the rest of the response has been skipped.
+     */
+    public void close() throws IOException {
+        if (socket != null) {
+            socket.close();
+            return;
+        }
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        if (pooled == null) return;
+        try {
+            if (finished || !pooled.awaitTurn(ticket)) return;
+            // the response was not read, or not all of it.
+            if (remaining < 0) remaining = pooled.readLength();
+            while (remaining > 0) {
+                long n = pooled.in.skip(remaining);
+                if (n <= 0) throw new EOFException("Unexpected end of stream");
+                remaining -= n;
+            }
+            finish();
+        }
+        catch (IOException e) {
+            pooled.fail();
+        }
+        finally {
+            release(pooled);
+        }
+    }
+
+    private void finish() {
+        finished = true;
+        pooled.done(ticket);
+    }
+
+    /**
+     * Send the request, on a pooled socket.
+     */
+    private void send() throws IOException {
+        String req = request.toString();
+        for (int attempt = 0; ; attempt++) {
+            Pooled p = acquire(host, port);
+            try {
+                ticket = p.send(req);
+                pooled = p;
+                remaining = -1;
+                return;
+            }
+            catch (IOException e) {
+                // the service may have closed the socket; try another one,
+                // once.
+                release(p);
+                if (attempt > 0) throw e;
+            }
+        }
+    }
+
+    /**
+     * Reads the response to the request, sending the request first.
+     */
+    private class ResponseReader extends Reader {
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (closed) throw new IOException("Connection closed");
+            if (pooled == null) send();
+            if (finished) return -1;
+            if (!pooled.awaitTurn(ticket)) throw new IOException("Connection to bulletin board failed");
+            try {
+                if (remaining < 0) remaining = pooled.readLength();
+                if (remaining == 0) {
+                    finish();
+                    return -1;
+                }
+                if (len == 0) return 0;
+                int n = pooled.in.read(cbuf, off, Math.min(len, remaining));
+                if (n < 0) throw new EOFException("Unexpected end of stream");
+                remaining -= n;
+                if (remaining == 0) finish();
+                return n;
+            }
+            catch (IOException e) {
+                pooled.fail();
+                throw e;
+            }
+        }
+
+        public boolean ready() throws IOException {
+            return pooled != null && remaining > 0 && pooled.in.ready();
+        }
+
+        public void close() throws IOException {
+            BBConnection.this.close();
+        }
+    }
+
+    /**
+     * A pooled socket, on which requests are sent in turn, and their
+     * responses read in the same order.
+     */
+    private static class Pooled {
+        final String key;
+        final Socket s;
+        final BufferedReader in;
+        final Writer out;
+
+        /**
+         * The number of requests sent or about to be sent, and not yet
+         * done with; guarded by the pool.
+         */
+        int requests = 0;
+        long lastUsed = System.currentTimeMillis();
+
+        /**
+         * The ticket of the next request to send, and of the one whose
+         * response is next.
+         */
+        private long nextTicket = 0;
+        private long serving = 0;
+        private boolean failed = false;
+
+        Pooled(String key, Socket s) throws IOException {
+            this.key = key;
+            this.s = s;
+            this.in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+            this.out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()));
+        }
+
+        /**
+         * Send a request.
+         * @return its ticket.
+         */
+        long send(String request) throws IOException {
+            synchronized (out) {
+                long t;
+                synchronized (this) {
+                    if (failed) throw new IOException("Connection to bulletin board failed");
+                    t = nextTicket++;
+                }
+                try {
+                    out.write("KEEPALIVE\n");
+                    out.write(request.length() + "\n");
+                    out.write(request);
+                    out.flush();
+                }
+                catch (IOException e) {
+                    fail();
+                    throw e;
+                }
+                return t;
+            }
+        }
+
+        /**
+         * Wait until the response to the request with ticket t is next.
+         * @return false if the socket has failed meanwhile.
+         */
+        synchronized boolean awaitTurn(long t) throws InterruptedIOException {
+            while (!failed && serving != t) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            return !failed;
+        }
+
+        int readLength() throws IOException {
+            String line = in.readLine();
+            if (line == null) throw new EOFException("Unexpected end of stream");
+            try {
+                return Integer.parseInt(line);
+            }
+            catch (NumberFormatException e) {
+                throw new IOException("Bad response length: " + line);
+            }
+        }
+
+        /**
+         * The response to the request with ticket t has been read.
+         */
+        synchronized void done(long t) {
+            serving = t + 1;
+            notifyAll();
+        }
+
+        /**
+         * Give up on the socket, and on the requests outstanding on it.
+         */
+        void fail() {
+            synchronized (this) {
+                if (failed) return;
+                failed = true;
+                notifyAll();
+            }
+            try {
+                s.close();
+            }
+            catch (IOException ignore) { }
+        }
+
+        synchronized boolean failed() {
+            return failed;
+        }
+    }
+
+    /**
+     * @return a pooled socket to the service at host and port, with the
+     * fewest outstanding requests, or a new one if all have PIPELINE of
+     * them and there are fewer than MAX_CONNECTIONS.
+     */
+    private static Pooled acquire(String host, int port) throws IOException {
+        String key = host + ':' + port;
+        synchronized (pool) {
+            for (;;) {
+                List<Pooled> l = pool.get(key);
+                Pooled best = null;
+                if (l != null) {
+                    for (Iterator<Pooled> it = l.iterator(); it.hasNext(); ) {
+                        Pooled p = it.next();
+                        if (p.failed()) {
+                            it.remove();
+                        }
+                        else if (best == null || p.requests < best.requests) {
+                            best = p;
+                        }
+                    }
+                }
+                int n = (l == null ? 0 : l.size()) + opening(key);
+                if (best != null && (best.requests < PIPELINE || n >= MAX_CONNECTIONS)) {
+                    best.requests++;
+                    return best;
+                }
+                if (n < MAX_CONNECTIONS) {
+                    opening.put(key, Integer.valueOf(opening(key) + 1));
+                    break;
+                }
+                // all sockets are still being opened.
+                try {
+                    pool.wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+        Pooled p = null;
+        try {
+            p = new Pooled(key, new Socket(host, port));
+            p.requests++;
+            return p;
+        }
+        finally {
+            synchronized (pool) {
+                int n = opening(key) - 1;
+                if (n > 0) opening.put(key, Integer.valueOf(n));
+                else opening.remove(key);
+                if (p != null) {
+                    List<Pooled> l = pool.get(key);
+                    if (l == null) {
+                        l = new ArrayList<Pooled>();
+                        pool.put(key, l);
+                    }
+                    l.add(p);
+                    startEvictor();
+                }
+                pool.notifyAll();
+            }
+        }
+    }
+
+    private static int opening(String key) {
+        Integer n = opening.get(key);
+        return n == null ? 0 : n.intValue();
+    }
+
+    private static void release(Pooled p) {
+        synchronized (pool) {
+            p.requests--;
+            p.lastUsed = System.currentTimeMillis();
+            if (p.failed()) {
+                List<Pooled> l = pool.get(p.key);
+                if (l != null) {
+                    l.remove(p);
+                    if (l.isEmpty()) pool.remove(p.key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Close the pooled sockets that have been idle for IDLE_TIME.
+     */
+    private static void evictIdle() {
+        List<Pooled> idle = new ArrayList<Pooled>();
+        synchronized (pool) {
+            long now = System.currentTimeMillis();
+            for (Iterator<List<Pooled>> lit = pool.values().iterator(); lit.hasNext(); ) {
+                List<Pooled> l = lit.next();
+                for (Iterator<Pooled> it = l.iterator(); it.hasNext(); ) {
+                    Pooled p = it.next();
+                    if (p.failed() || (p.requests == 0 && now - p.lastUsed >= IDLE_TIME)) {
+                        it.remove();
+                        idle.add(p);
+                    }
+                }
+                if (l.isEmpty()) lit.remove();
+            }
+        }
+        for (Pooled p : idle) {
+            p.fail();
+        }
+    }
+
+    private static void startEvictor() {
+        if (evictor != null) return;
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "bbs-connection-evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(1, IDLE_TIME / 2);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                evictIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+}
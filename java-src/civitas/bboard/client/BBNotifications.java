@@ -0,0 +1,278 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.bboard.client;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Waiting for posts to bulletin boards.
+ *
+ * A client that waits for posts subscribes to the board: the board service
+ * keeps the connection open, and sends the sequence number of each post to
+ * the board with a meta that starts with a given prefix. A subscription is
+ * kept by a thread of its own, which subscribes again when the service
+ * closes the connection, and is shared by all threads that wait for the
+ * same posts. It is dropped once no thread has waited on it for a while.
+ */
+public class BBNotifications {
+    /**
+     * How long, in milliseconds, a subscription is kept while no thread
+     * waits on it.
+     */
+    private static final int IDLE_TIME = 10 * 60 * 1000;
+
+    /**
+     * How long, in milliseconds, to wait before subscribing again after a
+     * subscription failed; doubled after each failure in a row, up to
+     * MAX_RETRY_DELAY.
+     */
+    private static final long RETRY_DELAY = 1000;
+    private static final long MAX_RETRY_DELAY = 60 * 1000;
+
+    /**
+     * How long, in milliseconds, a new subscription may take to be set up.
+     */
+    private static final long SETUP_TIME = 5000;
+
+    private static final Map<String, Subscription> subscriptions = new HashMap<String, Subscription>();
+
+    /**
+     * For each thread, the number of notifications of each subscription
+     * when it last returned from await, and when that was.
+     */
+    private static final ThreadLocal<Map<String, Mark>> marks = new ThreadLocal<Map<String, Mark>>() {
+        protected Map<String, Mark> initialValue() {
+            return new HashMap<String, Mark>();
+        }
+    };
+
+    private static class Mark {
+        final Subscription sub;
+        final long count;
+        final long time;
+        Mark(Subscription sub, long count, long time) {
+            this.sub = sub;
+            this.count = count;
+            this.time = time;
+        }
+    }
+
+    private BBNotifications() { }
+
+    /**
+     * Wait until a post with a meta that starts with metaPrefix has been
+     * made to board bbid since the calling thread last returned from await
+     * for the same posts, but at least until minWait milliseconds after
+     * that. Return in any case after timeout milliseconds, or if the thread
+     * is interrupted.
+     *
+     * The first time a thread waits for some posts, it only waits for those
+     * made after the call; earlier posts are up to the caller to check.
+     */
+    public static void await(String host, int port, String bbid, String metaPrefix, int minWait, int timeout) {
+        String prefix = metaPrefix == null ? "" : metaPrefix;
+        String key = host + ':' + port + '/' + bbid + '\n' + prefix;
+        Subscription sub = subscription(key, host, port, bbid, prefix);
+
+        long now = System.currentTimeMillis();
+        Mark m = marks.get().get(key);
+        long mark, earliest;
+        if (m != null && m.sub == sub) {
+            mark = m.count;
+            earliest = m.time + minWait;
+        }
+        else {
+            mark = sub.count();
+            earliest = now;
+        }
+        try {
+            sub.await(mark, earliest, now + timeout);
+        }
+        catch (InterruptedException e) {
+            // a hint that there may be something to check.
+        }
+        marks.get().put(key, new Mark(sub, sub.count(), System.currentTimeMillis()));
+    }
+
+    private static Subscription subscription(String key, String host, int port, String bbid, String prefix) {
+        Subscription sub;
+        synchronized (subscriptions) {
+            sub = subscriptions.get(key);
+            if (sub != null) return sub;
+            sub = new Subscription(key, host, port, bbid, prefix);
+            subscriptions.put(key, sub);
+        }
+        Thread t = new Thread(sub, "bbs-subscription-" + bbid);
+        t.setDaemon(true);
+        t.start();
+        sub.awaitSetup();
+        return sub;
+    }
+
+    private static class Subscription implements Runnable {
+        final String key;
+        final String host;
+        final int port;
+        final String bbid;
+        final String prefix;
+
+        /**
+         * The number of notifications received.
+         */
+        private long count = 0;
+
+        /**
+         * The last sequence number the service has sent, or -1.
+         */
+        private long seq = -1;
+        private long lastUsed = System.currentTimeMillis();
+        private boolean setup = false;
+
+        Subscription(String key, String host, int port, String bbid, String prefix) {
+            this.key = key;
+            this.host = host;
+            this.port = port;
+            this.bbid = bbid;
+            this.prefix = prefix;
+        }
+
+        synchronized long count() {
+            return count;
+        }
+
+        synchronized void await(long mark, long earliest, long deadline) throws InterruptedException {
+            for (;;) {
+                long now = System.currentTimeMillis();
+                lastUsed = now;
+                if (now >= deadline) return;
+                if (count > mark) {
+                    if (now >= earliest) return;
+                    wait(Math.min(earliest, deadline) - now);
+                }
+                else {
+                    wait(deadline - now);
+                }
+            }
+        }
+
+        /**
+         * Wait until the first attempt to subscribe has succeeded or
+         * failed, for a bounded time.
+         */
+        synchronized void awaitSetup() {
+            long deadline = System.currentTimeMillis() + SETUP_TIME;
+            try {
+                for (long now = System.currentTimeMillis(); !setup && now < deadline; now = System.currentTimeMillis()) {
+                    wait(deadline - now);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private synchronized void setupDone() {
+            setup = true;
+            notifyAll();
+        }
+
+        private synchronized void notified(long newSeq) {
+            // the first sequence number of a connection is that of the last
+            // post to the board, which may be one made while the service was
+            // not connected.
+            if (seq != newSeq && seq >= 0) {
+                count++;
+                notifyAll();
+            }
+            seq = newSeq;
+        }
+
+        private synchronized boolean idle() {
+            return System.currentTimeMillis() - lastUsed > IDLE_TIME;
+        }
+
+        public void run() {
+            try {
+                long delay = RETRY_DELAY;
+                while (!idle()) {
+                    try {
+                        if (listen()) delay = RETRY_DELAY;
+                    }
+                    catch (IOException e) {
+                        // the service is down, or has closed the connection.
+                    }
+                    finally {
+                        setupDone();
+                    }
+                    try {
+                        Thread.sleep(delay);
+                        delay = Math.min(2 * delay, MAX_RETRY_DELAY);
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            finally {
+                synchronized (subscriptions) {
+                    if (subscriptions.get(key) == this) subscriptions.remove(key);
+                }
+            }
+        }
+
+        /**
+         * Subscribe, and count the notifications until the connection is
+         * closed.
+         * @return whether the subscription was accepted.
+         */
+        private boolean listen() throws IOException {
+            Socket s = new Socket(host, port);
+            try {
+                // wake up now and then while the service is quiet, to
+                // notice that the subscription is no longer used.
+                s.setSoTimeout(IDLE_TIME);
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                PrintWriter out = new PrintWriter(s.getOutputStream());
+                out.println("SUBSCRIBE");
+                out.println(bbid);
+                out.println(prefix.length());
+                out.print(prefix);
+                out.flush();
+
+                boolean first = true;
+                for (;;) {
+                    String line;
+                    try {
+                        line = in.readLine();
+                    }
+                    catch (SocketTimeoutException e) {
+                        if (idle()) return !first;
+                        continue;
+                    }
+                    if (line == null) return !first;
+                    try {
+                        notified(Long.parseLong(line));
+                    }
+                    catch (NumberFormatException e) {
+                        throw new IOException("Bad notification: " + line);
+                    }
+                    if (first) {
+                        setupDone();
+                        first = false;
+                    }
+                }
+            }
+            finally {
+                s.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.bboard.client;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jif.lang.JifObject;
+import jif.lang.LabelUtil;
+import jif.util.List;
+
+/**
+ * The posts that a client has retrieved from bulletin boards, decoded, by
+ * board and meta, with the cursor of the board service after the last
+ * retrieval. A client that polls a board for the posts with a meta then
+ * only retrieves and decodes the posts made since its previous poll.
+ *
+ * The cache is shared by all clients in the VM. It holds the posts of at
+ * most civitas.bboard.client.cacheentries (by default 256) pairs of board
+ * and meta, dropping those used least recently.
+ */
+public class BBPostCache {
+    static final int MAX_ENTRIES = Math.max(1,
+            Integer.getInteger("civitas.bboard.client.cacheentries", 256).intValue());
+
+    private static final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private static class Entry {
+        long cursor = -1;
+        final ArrayList<JifObject> posts = new ArrayList<JifObject>();
+    }
+
+    private BBPostCache() { }
+
+    /**
+     * @return the cursor to retrieve the posts with meta on board bbid
+     * since those in the cache, or -1 if none are cached.
+     */
+    public static long cursor(String host, int port, String bbid, String meta) {
+        synchronized (entries) {
+            Entry e = entries.get(key(host, port, bbid, meta));
+            return e == null ? -1 : e.cursor;
+        }
+    }
+
+    /**
+     * Add the posts retrieved from board bbid since cursor, up to
+     * newCursor, to those cached.
+     * @return a new list of all the posts with meta on board bbid, up to
+     * newCursor, or null if the cache has meanwhile been updated past
+     * cursor, so that the posts must be retrieved again.
+     */
+    public static List update(String host, int port, String bbid, String meta, long cursor, long newCursor, List newPosts) {
+        String key = key(host, port, bbid, meta);
+        synchronized (entries) {
+            Entry e = entries.get(key);
+            if (e == null) {
+                if (cursor != -1) return null;
+                e = new Entry();
+                entries.put(key, e);
+            }
+            if (e.cursor != cursor) return null;
+            if (newCursor < cursor) {
+                // the service had fewer posts than the cursor said, and
+                // sent them all.
+                e.posts.clear();
+            }
+            for (int i = 0; newPosts != null && i < newPosts.size(); i++) {
+                e.posts.add(newPosts.get(i));
+            }
+            e.cursor = newCursor;
+
+            List l = new jif.util.ArrayList(LabelUtil.singleton().noComponents()).jif$util$ArrayList$();
+            for (JifObject p : e.posts) {
+                l.add(p);
+            }
+            return l;
+        }
+    }
+
+    private static String key(String host, int port, String bbid, String meta) {
+        return host + ':' + port + '/' + bbid + '\n' + (meta == null ? "" : meta);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.bboard.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jif.lang.LabelUtil;
+import civitas.crypto.CryptoUtil;
+import civitas.crypto.MessageDigest;
+
+/**
+ * An append-only Merkle tree over a sequence of bulletin board posts,
+ * hashed as in RFC 6962 (Certificate Transparency): a leaf is
+ * hash(0 || post), and an inner node hash(1 || left || right). The tree
+ * over n leaves has as left subtree the complete tree over the first k
+ * leaves, where k is the largest power of two less than n, and as right
+ * subtree the tree over the remaining n - k.
+ *
+ * The tree keeps the hashes of all its complete subtrees, so that the root
+ * of the tree over any prefix of the leaves, and the proof that a leaf is
+ * included in it, take O(log n) hashes. A client that has retrieved some of
+ * the posts of a board and a signed root can check that each post is in
+ * the board with verifyInclusion, without retrieving the others.
+ */
+public class MerkleTree {
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    /**
+     * levels.get(h) holds the hashes of the complete subtrees of 2^h
+     * leaves, from left to right.
+     */
+    private final List<List<byte[]>> levels = new ArrayList<List<byte[]>>();
+    private final MessageDigest md = digest();
+
+    public MerkleTree() {
+        levels.add(new ArrayList<byte[]>());
+    }
+
+    /**
+     * @return the number of leaves.
+     */
+    public synchronized int size() {
+        return levels.get(0).size();
+    }
+
+    /**
+     * Append a leaf, as computed by leafHash.
+     */
+    public synchronized void append(byte[] leafHash) {
+        levels.get(0).add(leafHash);
+        // complete the subtrees that the leaf completes.
+        for (int h = 0; levels.get(h).size() % 2 == 0; h++) {
+            List<byte[]> level = levels.get(h);
+            if (levels.size() == h + 1) {
+                levels.add(new ArrayList<byte[]>());
+            }
+            levels.get(h + 1).add(node(md, level.get(level.size() - 2), level.get(level.size() - 1)));
+        }
+    }
+
+    /**
+     * @return the root of the tree over all leaves.
+     */
+    public synchronized byte[] root() {
+        return root(size());
+    }
+
+    /**
+     * @return the root of the tree over the first n leaves.
+     */
+    public synchronized byte[] root(int n) {
+        if (n < 0 || n > size()) {
+            throw new IllegalArgumentException("No tree of size " + n);
+        }
+        if (n == 0) return md.digest();
+        return subtreeHash(0, n);
+    }
+
+    /**
+     * @return the hashes that prove that leaf index is in the tree over the
+     * first n leaves, from the bottom of the tree up.
+     */
+    public synchronized byte[][] inclusionProof(int index, int n) {
+        if (n < 0 || n > size() || index < 0 || index >= n) {
+            throw new IllegalArgumentException("No leaf " + index + " in a tree of size " + n);
+        }
+        List<byte[]> path = new ArrayList<byte[]>();
+        path(index, 0, n, path);
+        return path.toArray(new byte[path.size()][]);
+    }
+
+    /**
+     * The hash of the leaves start .. start + len - 1. In the recursion
+     * from the root, start is always a multiple of the smallest power of
+     * two that is at least len; in particular, a complete subtree is
+     * aligned, and its hash is stored.
+     */
+    private byte[] subtreeHash(int start, int len) {
+        if ((len & (len - 1)) == 0) {
+            return levels.get(Integer.numberOfTrailingZeros(len)).get(start / len);
+        }
+        int k = Integer.highestOneBit(len - 1);
+        return node(md, subtreeHash(start, k), subtreeHash(start + k, len - k));
+    }
+
+    private void path(int index, int start, int len, List<byte[]> path) {
+        if (len == 1) return;
+        int k = Integer.highestOneBit(len - 1);
+        if (index < k) {
+            path(index, start, k, path);
+            path.add(subtreeHash(start + k, len - k));
+        }
+        else {
+            path(index - k, start + k, len - k, path);
+            path.add(subtreeHash(start, k));
+        }
+    }
+
+    /**
+     * @return the leaf hash of a post. The post is digested as the signed
+     * hashes of a bulletin board digest it.
+     */
+    public static byte[] leafHash(long timestamp, String meta, String msg, String sig) {
+        MessageDigest md = digest();
+        md.update(LEAF_PREFIX);
+        md.update(timestamp);
+        md.update(meta);
+        md.update(msg);
+        md.update(sig);
+        return md.digest();
+    }
+
+    /**
+     * Check that leafHash is the leaf index of the tree of size n with the
+     * given root, using a proof from inclusionProof.
+     */
+    public static boolean verifyInclusion(byte[] leafHash, int index, int n, byte[][] proof, byte[] root) {
+        if (leafHash == null || proof == null || root == null || index < 0 || index >= n) return false;
+        MessageDigest md = digest();
+        int fn = index;
+        int sn = n - 1;
+        byte[] r = leafHash;
+        for (int i = 0; i < proof.length; i++) {
+            if (sn == 0 || proof[i] == null) return false;
+            if ((fn & 1) == 1 || fn == sn) {
+                r = node(md, proof[i], r);
+                while ((fn & 1) == 0 && fn != 0) {
+                    fn >>= 1;
+                    sn >>= 1;
+                }
+            }
+            else {
+                r = node(md, r, proof[i]);
+            }
+            fn >>= 1;
+            sn >>= 1;
+        }
+        return sn == 0 && Arrays.equals(r, root);
+    }
+
+    /**
+     * @return the message that a bulletin board signs to vouch for root,
+     * the root of the tree of size n over the posts with meta on board
+     * bbid.
+     */
+    public static String rootStatement(String bbid, String meta, int n, String root) {
+        return bbid + "\n" + (meta == null ? "" : meta) + "\n" + n + "\n" + root;
+    }
+
+    private static byte[] node(MessageDigest md, byte[] left, byte[] right) {
+        md.update(NODE_PREFIX);
+        md.update(left);
+        md.update(right);
+        return md.digest();
+    }
+
+    private static MessageDigest digest() {
+        return CryptoUtil.factory().messageDigest(LabelUtil.singleton().noComponents());
+    }
+}
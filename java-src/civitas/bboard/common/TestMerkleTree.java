@@ -0,0 +1,198 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.bboard.common;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Checks MerkleTree against the test vectors of RFC 6962, as used by
+ * Certificate Transparency, and checks its inclusion proofs.
+ */
+public class TestMerkleTree {
+    /**
+     * The leaves of the test vectors.
+     */
+    private static final String[] LEAVES = {
+        "", "00", "10", "2021", "3031", "40414243", "5051525354555657", "606162636465666768696a6b6c6d6e6f"
+    };
+
+    /**
+     * ROOTS[n] is the root of the tree over the first n leaves.
+     */
+    private static final String[] ROOTS = {
+        "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855",
+        "6e340b9cffb37a989ca544e6bb780a2c78901d3fb33738768511a30617afa01d",
+        "fac54203e7cc696cf0dfcb42c92a1d9dbaf70ad9e621f4bd8d98662f00e3c125",
+        "aeb6bcfe274b70a14fb067a5e5578264db0fa9b51af5e0ba159158f329e06e77",
+        "d37ee418976dd95753c1c73862b9398fa2a2cf9b4ff0fdfe8b30cd95209614b7",
+        "4e3bbb1f7b478dcfe71fb631631519a3bca12c9aefca1612bfce4c13a86264d4",
+        "76e67dadbcdf1e10e1b74ddc608abd2f98dfb16fbce75277b5232a127f2087ef",
+        "ddb89be403809e325750d3d263cd78929c2942b7942a34b77e122c9594a74c8c",
+        "5dc9da79a70659a9ad559cb701ded9a2ab9d823aad2f4960cfe370eff4604328",
+    };
+
+    public static void test(String s, boolean b) {
+        System.out.println(s + " ? " + (b ? "ok" : "oops !!!!!!!!!!!!!!!!!!!!!!!!!!!!"));
+    }
+
+    public static void main(String[] args) {
+        System.out.println("= rootTest =");
+        rootTest();
+        System.out.println("= inclusionTest =");
+        inclusionTest();
+        System.out.println("= leafHashTest =");
+        leafHashTest();
+    }
+
+    private static MerkleTree tree() {
+        MerkleTree t = new MerkleTree();
+        for (int i = 0; i < LEAVES.length; i++) {
+            t.append(leaf(fromHex(LEAVES[i])));
+        }
+        return t;
+    }
+
+    static void rootTest() {
+        MerkleTree t = new MerkleTree();
+        test("empty root", toHex(t.root()).equals(ROOTS[0]));
+        boolean ok = true;
+        for (int i = 0; i < LEAVES.length; i++) {
+            t.append(leaf(fromHex(LEAVES[i])));
+            ok &= toHex(t.root()).equals(ROOTS[i + 1]);
+        }
+        test("roots while appending", ok);
+
+        ok = true;
+        for (int n = 0; n <= LEAVES.length; n++) {
+            ok &= toHex(t.root(n)).equals(ROOTS[n]);
+        }
+        test("roots of prefixes", ok);
+
+        try {
+            t.root(LEAVES.length + 1);
+            test("root of a tree too large", false);
+        }
+        catch (IllegalArgumentException e) {
+            test("root of a tree too large", true);
+        }
+    }
+
+    static void inclusionTest() {
+        MerkleTree t = tree();
+        test("inclusion proof of leaf 0 in 8", Arrays.equals(hexes(t.inclusionProof(0, 8)), new String[] {
+            "96a296d224f285c67bee93c30f8a309157f0daa35dc5b87e410b78630a09cfc7",
+            "5f083f0a1a33ca076a95279832580db3e0ef4584bdff1f54c8a360f50de3031e",
+            "6b47aaf29ee3c2af9af889bc1fb9254dabd31177f16232dd6aab035ca39bf6e4" }));
+        test("inclusion proof of leaf 5 in 8", Arrays.equals(hexes(t.inclusionProof(5, 8)), new String[] {
+            "bc1a0643b12e4d2d7c77918f44e0f4f79a838b6cf9ec5b5c283e1f4d88599e6b",
+            "ca854ea128ed050b41b35ffc1b87b8eb2bde461e9e3b5596ece6b9d5975a0ae0",
+            "d37ee418976dd95753c1c73862b9398fa2a2cf9b4ff0fdfe8b30cd95209614b7" }));
+        test("inclusion proof of leaf 2 in 3", Arrays.equals(hexes(t.inclusionProof(2, 3)), new String[] {
+            "fac54203e7cc696cf0dfcb42c92a1d9dbaf70ad9e621f4bd8d98662f00e3c125" }));
+        test("inclusion proof of leaf 0 in 1", t.inclusionProof(0, 1).length == 0);
+
+        // every leaf of every prefix verifies, and not as another leaf, or
+        // with a damaged proof.
+        boolean ok = true;
+        boolean wrongIndex = false;
+        boolean damaged = false;
+        for (int n = 1; n <= LEAVES.length; n++) {
+            byte[] root = t.root(n);
+            for (int i = 0; i < n; i++) {
+                byte[] leaf = leaf(fromHex(LEAVES[i]));
+                byte[][] proof = t.inclusionProof(i, n);
+                ok &= MerkleTree.verifyInclusion(leaf, i, n, proof, root);
+                for (int j = 0; j < n; j++) {
+                    if (j != i) wrongIndex |= MerkleTree.verifyInclusion(leaf, j, n, proof, root);
+                }
+                for (int k = 0; k < proof.length; k++) {
+                    byte[][] bad = proof.clone();
+                    bad[k] = bad[k].clone();
+                    bad[k][0] ^= 1;
+                    damaged |= MerkleTree.verifyInclusion(leaf, i, n, bad, root);
+                }
+                if (proof.length > 0) {
+                    damaged |= MerkleTree.verifyInclusion(leaf, i, n, Arrays.copyOf(proof, proof.length - 1), root);
+                }
+                damaged |= MerkleTree.verifyInclusion(leaf, i, n, Arrays.copyOf(proof, proof.length + 1), root);
+            }
+        }
+        test("inclusion proofs verify", ok);
+        test("inclusion proofs fail for another leaf", !wrongIndex);
+        test("damaged inclusion proofs fail", !damaged);
+
+        try {
+            t.inclusionProof(3, 3);
+            test("inclusion proof of a leaf outside the tree", false);
+        }
+        catch (IllegalArgumentException e) {
+            test("inclusion proof of a leaf outside the tree", true);
+        }
+    }
+
+    static void leafHashTest() {
+        byte[] h = MerkleTree.leafHash(1234, "meta", "msg", "sig");
+        test("leaf hash is deterministic", Arrays.equals(h, MerkleTree.leafHash(1234, "meta", "msg", "sig")));
+        test("leaf hash covers the timestamp", !Arrays.equals(h, MerkleTree.leafHash(1235, "meta", "msg", "sig")));
+        test("leaf hash covers the meta", !Arrays.equals(h, MerkleTree.leafHash(1234, "metb", "msg", "sig")));
+        test("leaf hash covers the message", !Arrays.equals(h, MerkleTree.leafHash(1234, "meta", "msh", "sig")));
+        test("leaf hash covers the signature", !Arrays.equals(h, MerkleTree.leafHash(1234, "meta", "msg", "sih")));
+
+        // posts hashed as leaves are proved like any other.
+        MerkleTree t = new MerkleTree();
+        for (int i = 0; i < 5; i++) {
+            t.append(MerkleTree.leafHash(i, "meta", "msg" + i, "sig"));
+        }
+        test("post inclusion", MerkleTree.verifyInclusion(MerkleTree.leafHash(3, "meta", "msg3", "sig"), 3, 5,
+                                                          t.inclusionProof(3, 5), t.root()));
+        test("forged post inclusion", !MerkleTree.verifyInclusion(MerkleTree.leafHash(3, "meta", "msgX", "sig"), 3, 5,
+                                                                  t.inclusionProof(3, 5), t.root()));
+    }
+
+    /**
+     * @return the RFC 6962 leaf hash of data, computed independently of
+     * MerkleTree.
+     */
+    private static byte[] leaf(byte[] data) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update((byte)0);
+            md.update(data);
+            return md.digest();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String[] hexes(byte[][] bs) {
+        String[] ret = new String[bs.length];
+        for (int i = 0; i < bs.length; i++) {
+            ret[i] = toHex(bs[i]);
+        }
+        return ret;
+    }
+
+    private static String toHex(byte[] bs) {
+        StringBuffer sb = new StringBuffer(bs.length * 2);
+        for (int i = 0; i < bs.length; i++) {
+            sb.append(Character.forDigit((bs[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(bs[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] fromHex(String s) {
+        byte[] ret = new byte[s.length() / 2];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = (byte)Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return ret;
+    }
+}
@@ -7,6 +7,7 @@
 package civitas.bboard.server;
 
 import java.io.IOException;
+import java.util.List;
 
 import civitas.crypto.PublicKey;
 
@@ -73,7 +74,8 @@ interface BBStorage {
     PublicKey retrieveOwnerPublicKey(String bbid) throws IOException;
 
     /**
-     * Post a message to bulletin board bbid.
+     * Post a message to bulletin board bbid. The post is given the sequence
+     * number after that of the last post to the board, starting from 1.
      * @param bbid bulletin board to post to
      * @param meta metadata for searching
      * @param mesg message to post
@@ -84,6 +86,21 @@ interface BBStorage {
     long post(String bbid, String meta, String mesg, String sign)
             throws IOException;
 
+    /**
+     * Post messages to bulletin board bbid, all of them or none. The posts
+     * are given consecutive sequence numbers, in the order of the list, and
+     * are stored with a single write to disk where the storage syncs.
+     * Storage that does not sync, such as file storage, may keep only some
+     * of the posts if the service crashes while they are made.
+     * @param bbid bulletin board to post to
+     * @param posts the meta, message and signature of each post; their
+     * other fields are ignored
+     * @return timestamps of the messages, in the order of the list
+     * @throws IOException
+     */
+    long[] postAll(String bbid, List<BBStoragePost> posts)
+            throws IOException;
+
     /**
      * Is bulletin board bbid closed (no longer accepting posts)?
      * @param bbid
@@ -105,4 +122,35 @@ interface BBStorage {
     void processPosts(PostProcessor pp, String bbid, String meta,
             String fromTime, String toTime) throws IOException;
 
+    /**
+     * Query bulletin board bbid for the posts with sequence numbers
+     * greater than since, and call PostProcessor pp on them, in order of
+     * their sequence numbers. If since is negative, all posts are returned,
+     * including any that were stored without a sequence number.
+     * @param pp
+     * @param bbid
+     * @param meta if non null and non empty, only posts where the metadata equals meta are returned
+     * @param since
+     * @throws IOException
+     */
+    void processPostsSince(PostProcessor pp, String bbid, String meta,
+            long since) throws IOException;
+
+    /**
+     * Return the sequence number of the last post to bulletin board bbid,
+     * or 0 if no post has been given one.
+     * @param bbid
+     * @return
+     * @throws IOException
+     */
+    long lastSequence(String bbid) throws IOException;
+
+    /**
+     * Does processPosts return posts in the order they were posted?
+     * Otherwise it returns them in order of their timestamps, and posts with
+     * the same timestamp may be returned in any order.
+     * @return
+     */
+    boolean keepsPostingOrder();
+
 }
@@ -0,0 +1,335 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.bboard.server;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jif.lang.Label;
+import jif.lang.LabelUtil;
+import civitas.bboard.common.MerkleTree;
+import civitas.common.Util;
+import civitas.crypto.CryptoUtil;
+import civitas.crypto.MessageDigest;
+
+/**
+ * Hashes of the posts on the bulletin boards of a service.
+ *
+ * The signed hashes that RETRIEVE_HASH returns, and that closing a board
+ * posts in a BoardClosedContentCommitment, are digests of all matching
+ * posts in sequence, which clients recompute over the posts they retrieve.
+ * Such a hash is computed from the storage once, and then kept, along with
+ * the signature of the service on it, until the next post to the board.
+ * Once a board is closed, its hashes and signatures are kept for good, so
+ * that the tellers, which retrieve the same contents of closed boards over
+ * and over, do not make the service hash and sign them each time.
+ *
+ * In addition, each board has a Merkle tree over all its posts, and one
+ * over the posts with each meta, in the order a query returns them. The
+ * trees are built from the storage when a board is first asked for a root
+ * or a proof, and then extended as posts are made. The root over the
+ * posts made before some time is the root over a prefix of the leaves.
+ *
+ * Posts to a board go through post, so that they are added to the trees in
+ * the order of the storage.
+ */
+class BoardHashes {
+    private final BBStorage store;
+
+    private final Map<String, Board> boards = new HashMap<String, Board>();
+
+    BoardHashes(BBStorage store) {
+        this.store = store;
+    }
+
+    /**
+     * A Merkle tree with the timestamps of its leaves.
+     */
+    private static class Tree {
+        final MerkleTree tree = new MerkleTree();
+        long[] times = new long[64];
+
+        void append(BBStoragePost p) {
+            int n = tree.size();
+            if (n == times.length) {
+                times = Arrays.copyOf(times, 2 * n);
+            }
+            times[n] = p.timestamp;
+            tree.append(MerkleTree.leafHash(p.timestamp, p.meta, p.msg, p.sig));
+        }
+
+        /**
+         * @return the number of leaves with timestamps before toTime.
+         */
+        int sizeBefore(long toTime) {
+            int lo = 0, hi = tree.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (times[mid] < toTime) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    private static class Board {
+        /**
+         * Incremented by every post, to tell whether a hash computed
+         * meanwhile is still current.
+         */
+        int version = 0;
+        final Map<String, Signed> hashes = new HashMap<String, Signed>();
+
+        /**
+         * The tree over all posts, or null if the trees have not been
+         * built.
+         */
+        Tree all = null;
+        final Map<String, Tree> byMeta = new HashMap<String, Tree>();
+    }
+
+    /**
+     * The hash of the posts that match a query, and the XML of the
+     * signature of the service on it, if it has been signed.
+     */
+    static class Signed {
+        final String hash;
+        final String signature;
+        Signed(String hash, String signature) {
+            this.hash = hash;
+            this.signature = signature;
+        }
+    }
+
+    /**
+     * The root of a tree, and the number of its leaves.
+     */
+    static class Root {
+        final int size;
+        final byte[] hash;
+        Root(int size, byte[] hash) {
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+
+    private Board board(String bbid) {
+        synchronized (boards) {
+            Board b = boards.get(bbid);
+            if (b == null) {
+                b = new Board();
+                boards.put(bbid, b);
+            }
+            return b;
+        }
+    }
+
+    /**
+     * Post a message to board bbid of the storage.
+     * @return the timestamp of the post.
+     */
+    long post(String bbid, String meta, String mesg, String sign) throws IOException {
+        Board b = board(bbid);
+        synchronized (b) {
+            long t = store.post(bbid, meta, mesg, sign);
+            b.version++;
+            b.hashes.clear();
+            posted(b, new BBStoragePost(t, meta, mesg, sign));
+            return t;
+        }
+    }
+
+    /**
+     * Post messages to board bbid of the storage, all of them or none.
+     * @return the timestamps of the posts.
+     */
+    long[] postAll(String bbid, List<BBStoragePost> posts) throws IOException {
+        Board b = board(bbid);
+        synchronized (b) {
+            long[] ts = store.postAll(bbid, posts);
+            b.version++;
+            b.hashes.clear();
+            for (int i = 0; i < ts.length; i++) {
+                BBStoragePost p = posts.get(i);
+                posted(b, new BBStoragePost(ts[i], p.meta, p.msg, p.sig));
+            }
+            return ts;
+        }
+    }
+
+    /**
+     * Add post p, just stored, to the trees of board b.
+     */
+    private void posted(Board b, BBStoragePost p) {
+        if (b.all == null) return;
+        if (!store.keepsPostingOrder() && b.all.tree.size() > 0 && p.timestamp <= b.all.times[b.all.tree.size() - 1]) {
+            // the storage may order this post before an earlier one with
+            // the same timestamp: rebuild the trees when next needed.
+            b.all = null;
+            b.byMeta.clear();
+        }
+        else {
+            b.all.append(p);
+            tree(b, p.meta).append(p);
+        }
+    }
+
+    /**
+     * @return the digest of the posts on board bbid that match meta,
+     * fromTime and toTime, as BBStorage.processPosts matches them.
+     */
+    String hash(String bbid, String meta, String fromTime, String toTime) throws IOException {
+        Board b = board(bbid);
+        String key = key(meta, fromTime, toTime);
+        int version;
+        synchronized (b) {
+            Signed s = b.hashes.get(key);
+            if (s != null) return s.hash;
+            version = b.version;
+        }
+
+        // hash without holding the lock, so as not to hold up posts.
+        Label lbl = LabelUtil.singleton().noComponents();
+        final MessageDigest md = CryptoUtil.factory().messageDigest(lbl);
+        store.processPosts(new BBStorage.PostProcessor() {
+            public void processPost(BBStoragePost post) {
+                md.update(post.timestamp);
+                md.update(post.meta);
+                md.update(post.msg);
+                md.update(post.sig);
+            }
+        }, bbid, meta, fromTime, toTime);
+        String h = Util.constBytesToString(lbl, md.digest());
+
+        synchronized (b) {
+            if (b.version == version && !b.hashes.containsKey(key)) {
+                b.hashes.put(key, new Signed(h, null));
+            }
+        }
+        return h;
+    }
+
+    /**
+     * @return the number of posts made to board bbid so far, to be passed
+     * to putSigned.
+     */
+    int version(String bbid) {
+        Board b = board(bbid);
+        synchronized (b) {
+            return b.version;
+        }
+    }
+
+    /**
+     * @return the sequence number of the last post to board bbid. Posts up
+     * to it have been stored in full, since posts to a board are stored
+     * while holding its lock.
+     */
+    long sequence(String bbid) throws IOException {
+        Board b = board(bbid);
+        synchronized (b) {
+            return store.lastSequence(bbid);
+        }
+    }
+
+    /**
+     * @return the signed hash of the posts on board bbid that match meta,
+     * fromTime and toTime, if it is cached, and null otherwise.
+     */
+    Signed signed(String bbid, String meta, String fromTime, String toTime) {
+        Board b = board(bbid);
+        synchronized (b) {
+            Signed s = b.hashes.get(key(meta, fromTime, toTime));
+            return s == null || s.signature == null ? null : s;
+        }
+    }
+
+    /**
+     * Cache the signed hash s of the posts on board bbid that match meta,
+     * fromTime and toTime, if no posts have been made since version, when
+     * the hash was started.
+     */
+    void putSigned(String bbid, String meta, String fromTime, String toTime, int version, Signed s) {
+        Board b = board(bbid);
+        synchronized (b) {
+            if (b.version == version) {
+                b.hashes.put(key(meta, fromTime, toTime), s);
+            }
+        }
+    }
+
+    private static String key(String meta, String fromTime, String toTime) {
+        return meta + '\n' + fromTime + '\n' + toTime;
+    }
+
+    /**
+     * @return the root of the tree over the posts on board bbid with meta
+     * (all posts if meta is null or empty), made before toTime if it is
+     * not null.
+     */
+    Root root(String bbid, String meta, Long toTime) throws IOException {
+        Board b = board(bbid);
+        synchronized (b) {
+            Tree t = built(bbid, b, meta);
+            int n = toTime == null ? t.tree.size() : t.sizeBefore(toTime.longValue());
+            return new Root(n, t.tree.root(n));
+        }
+    }
+
+    /**
+     * @return the proof that post index of those on board bbid with meta is
+     * in the tree of size n, or null if there is no such post or tree.
+     */
+    byte[][] inclusionProof(String bbid, String meta, int index, int n) throws IOException {
+        Board b = board(bbid);
+        synchronized (b) {
+            Tree t = built(bbid, b, meta);
+            if (n < 0 || n > t.tree.size() || index < 0 || index >= n) return null;
+            return t.tree.inclusionProof(index, n);
+        }
+    }
+
+    /**
+     * @return the tree of board b for meta, building the trees of b from
+     * the storage if need be.
+     */
+    private Tree built(String bbid, final Board b, String meta) throws IOException {
+        if (b.all == null) {
+            b.all = new Tree();
+            b.byMeta.clear();
+            try {
+                store.processPosts(new BBStorage.PostProcessor() {
+                    public void processPost(BBStoragePost p) {
+                        b.all.append(p);
+                        tree(b, p.meta).append(p);
+                    }
+                }, bbid, null, null, null);
+            }
+            catch (IOException e) {
+                b.all = null;
+                b.byMeta.clear();
+                throw e;
+            }
+        }
+        if (meta == null || meta.length() == 0) return b.all;
+        Tree t = b.byMeta.get(meta);
+        // no posts with meta yet: an empty tree.
+        return t == null ? tree(b, meta) : t;
+    }
+
+    private static Tree tree(Board b, String meta) {
+        Tree t = b.byMeta.get(meta);
+        if (t == null) {
+            t = new Tree();
+            b.byMeta.put(meta, t);
+        }
+        return t;
+    }
+}
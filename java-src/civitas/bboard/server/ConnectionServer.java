@@ -0,0 +1,374 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.bboard.server;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/**
+ * Accepts connections to a service, and runs a handler for each of them
+ * with a bounded number of threads.
+ *
+ * Two modes are available, chosen with the system property
+ * <code>civitas.bboard.server.mode</code>:
+ * <ul>
+ * <li><code>nio</code> (the default): a selector thread accepts
+ * connections and waits until a client has sent its request. Only then is
+ * the connection handed to one of a fixed pool of worker threads, which
+ * runs the handler on it with blocking I/O. Connections that are open but
+ * quiet, including those that wait for a further request, do not hold a
+ * worker.</li>
+ * <li><code>virtual</code>: each connection is handled on a virtual
+ * thread of its own. Virtual threads need Java 21; on older VMs this mode
+ * falls back to <code>nio</code>.</li>
+ * </ul>
+ *
+ * In both modes the following system properties apply:
+ * <ul>
+ * <li><code>civitas.bboard.server.maxconnections</code>: the number of
+ * connections open at once. Further clients wait in the accept backlog
+ * until a connection is closed. Defaults to 1024.</li>
+ * <li><code>civitas.bboard.server.backlog</code>: the length of the accept
+ * backlog. Defaults to 256.</li>
+ * <li><code>civitas.bboard.server.timeout</code>: the time in milliseconds
+ * a client has to send its request, and the handler has to process it,
+ * after which the connection is closed; 0 means no limit. A connection
+ * that carries several requests has this time for each of them. Defaults
+ * to 120000.</li>
+ * <li><code>civitas.bboard.server.workers</code>: the number of worker
+ * threads in <code>nio</code> mode. Defaults to four per available
+ * processor.</li>
+ * </ul>
+ */
+class ConnectionServer {
+    static final String MODE = System.getProperty("civitas.bboard.server.mode", "nio");
+    static final int MAX_CONNECTIONS = Math.max(1,
+            Integer.getInteger("civitas.bboard.server.maxconnections", 1024).intValue());
+    static final int BACKLOG = Math.max(1, Integer.getInteger("civitas.bboard.server.backlog", 256).intValue());
+    static final long TIMEOUT = Math.max(0, Integer.getInteger("civitas.bboard.server.timeout", 120000).intValue());
+    static final int WORKERS = Math.max(1,
+            Integer.getInteger("civitas.bboard.server.workers", 4 * Runtime.getRuntime().availableProcessors()).intValue());
+
+    /**
+     * How often, in milliseconds, the selector looks for connections that
+     * have not sent a request in time.
+     */
+    private static final long SWEEP_INTERVAL = 1000;
+
+    /**
+     * What becomes of a connection once its handler returns: it is closed,
+     * kept open by the handler, to be closed by the handler later, or
+     * reused, to wait for the client's next request. A kept connection no
+     * longer counts against the connections open at once, and has no time
+     * limit.
+     */
+    static final int CLOSE = 0;
+    static final int KEEP = 1;
+    static final int REUSE = 2;
+
+    /**
+     * Handles a single connection. The handler may close the socket; it is
+     * closed in any case once the handler returns CLOSE.
+     */
+    interface Handler {
+        /**
+         * @return CLOSE, KEEP or REUSE. A handler may only return REUSE if
+         * it has not read past its request.
+         */
+        int handle(Socket s);
+    }
+
+    private final int port;
+    private final Handler handler;
+    private final Semaphore permits = new Semaphore(MAX_CONNECTIONS);
+
+    /**
+     * Closes connections whose time is up.
+     */
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * The selector of the nio mode, woken up when a connection is closed
+     * while accepting is suspended.
+     */
+    private Selector selector;
+    private volatile boolean acceptSuspended = false;
+
+    /**
+     * Connections handed back to the selector, to wait for their next
+     * request.
+     */
+    private final Queue<SocketChannel> reused = new ConcurrentLinkedQueue<SocketChannel>();
+
+    ConnectionServer(int port, Handler handler) {
+        this.port = port;
+        this.handler = handler;
+        this.timer = new ScheduledThreadPoolExecutor(1, threadFactory("bbs-timer"));
+        this.timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Accept and handle connections, until accepting fails.
+     */
+    void serve() throws IOException {
+        if ("virtual".equals(MODE)) {
+            ExecutorService virtual = virtualThreadExecutor();
+            if (virtual != null) {
+                serveBlocking(virtual);
+                return;
+            }
+            System.err.println("Virtual threads are not available; using nio mode");
+        }
+        else if (!"nio".equals(MODE)) {
+            System.err.println("Unknown mode " + MODE + "; using nio mode");
+        }
+        serveSelector();
+    }
+
+    private void serveBlocking(ExecutorService executor) throws IOException {
+        ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port), BACKLOG);
+        for (;;) {
+            permits.acquireUninterruptibly();
+            Socket s;
+            try {
+                s = server.accept();
+            }
+            catch (IOException e) {
+                permits.release();
+                if (server.isClosed()) throw e;
+                e.printStackTrace();
+                continue;
+            }
+            executor.execute(task(s));
+        }
+    }
+
+    private void serveSelector() throws IOException {
+        ExecutorService workers = new ThreadPoolExecutor(WORKERS, WORKERS, 0L, TimeUnit.MILLISECONDS,
+                                                         new LinkedBlockingQueue<Runnable>(),
+                                                         threadFactory("bbs-worker"));
+        selector = Selector.open();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(port), BACKLOG);
+        server.configureBlocking(false);
+        SelectionKey acceptKey = server.register(selector, SelectionKey.OP_ACCEPT);
+
+        List<SocketChannel> ready = new ArrayList<SocketChannel>();
+        long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL;
+        for (;;) {
+            // Accept only while there are connections to spare; the others
+            // wait in the backlog. A connection closed meanwhile wakes the
+            // selector up.
+            acceptSuspended = permits.availablePermits() == 0;
+            acceptKey.interestOps(acceptSuspended ? 0 : SelectionKey.OP_ACCEPT);
+            if (selector.selectedKeys().isEmpty()) {
+                selector.select(TIMEOUT > 0 ? SWEEP_INTERVAL : 0);
+            }
+
+            for (SocketChannel c = reused.poll(); c != null; c = reused.poll()) {
+                try {
+                    c.configureBlocking(false);
+                    c.register(selector, SelectionKey.OP_READ, Long.valueOf(System.currentTimeMillis() + TIMEOUT));
+                }
+                catch (IOException e) {
+                    close(c.socket());
+                }
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey k = it.next();
+                it.remove();
+                if (!k.isValid()) continue;
+                if (k.isAcceptable()) {
+                    accept(server);
+                }
+                else if (k.isReadable()) {
+                    // the request has arrived: hand the connection over.
+                    k.cancel();
+                    ready.add((SocketChannel)k.channel());
+                }
+            }
+
+            if (!ready.isEmpty()) {
+                // deregister the cancelled keys, so that the channels can
+                // be put back in blocking mode.
+                selector.selectNow();
+                for (SocketChannel c : ready) {
+                    try {
+                        c.configureBlocking(true);
+                        workers.execute(task(c.socket()));
+                    }
+                    catch (IOException e) {
+                        close(c.socket());
+                    }
+                }
+                ready.clear();
+            }
+
+            long now = System.currentTimeMillis();
+            if (TIMEOUT > 0 && now >= nextSweep) {
+                closeExpired(now);
+                nextSweep = now + SWEEP_INTERVAL;
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel server) {
+        while (permits.tryAcquire()) {
+            SocketChannel c = null;
+            try {
+                c = server.accept();
+                if (c == null) {
+                    permits.release();
+                    return;
+                }
+                c.configureBlocking(false);
+                c.register(selector, SelectionKey.OP_READ, Long.valueOf(System.currentTimeMillis() + TIMEOUT));
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                if (c != null) close(c.socket());
+                else permits.release();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Close the connections that have not sent a request before their
+     * deadline.
+     */
+    private void closeExpired(long now) {
+        for (SelectionKey k : selector.keys()) {
+            Object deadline = k.attachment();
+            if (deadline instanceof Long && ((Long)deadline).longValue() <= now) {
+                k.cancel();
+                close(((SocketChannel)k.channel()).socket());
+            }
+        }
+    }
+
+    /**
+     * @return the task that handles connection s, closes it if the handler
+     * takes too long, and releases its permit when done. In nio mode, a
+     * connection to reuse is handed back to the selector; otherwise the
+     * task waits for the next request itself.
+     */
+    private Runnable task(final Socket s) {
+        return new Runnable() {
+            public void run() {
+                int result = CLOSE;
+                try {
+                    do {
+                        result = CLOSE;
+                        ScheduledFuture<?> deadline = null;
+                        if (TIMEOUT > 0) {
+                            deadline = timer.schedule(new Runnable() {
+                                public void run() {
+                                    try {
+                                        // unblocks the handler, which fails
+                                        // with an IOException.
+                                        s.close();
+                                    }
+                                    catch (IOException ignore) { }
+                                }
+                            }, TIMEOUT, TimeUnit.MILLISECONDS);
+                        }
+                        try {
+                            result = handler.handle(s);
+                        }
+                        finally {
+                            if (deadline != null) deadline.cancel(false);
+                        }
+                    } while (result == REUSE && selector == null && !s.isClosed());
+                }
+                finally {
+                    if (result == KEEP) release();
+                    else if (result == REUSE && selector != null && !s.isClosed()) reuse(s);
+                    else close(s);
+                }
+            }
+        };
+    }
+
+    /**
+     * Hand connection s back to the selector, to wait for its next request.
+     */
+    private void reuse(Socket s) {
+        reused.add(s.getChannel());
+        selector.wakeup();
+    }
+
+    /**
+     * Close connection s, and make room for another one.
+     */
+    private void close(Socket s) {
+        try {
+            s.close();
+        }
+        catch (IOException ignore) { }
+        release();
+    }
+
+    /**
+     * Make room for another connection.
+     */
+    private void release() {
+        permits.release();
+        if (acceptSuspended) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * @return an executor that runs each task on a new virtual thread, or
+     * null if this VM has no virtual threads.
+     */
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            // by reflection, so that the sources still compile for older VMs
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+        catch (IllegalAccessException e) {
+            return null;
+        }
+        catch (InvocationTargetException e) {
+            // a preview feature that is not enabled
+            return null;
+        }
+    }
+
+    private static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            private int count = 0;
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + (count++));
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
@@ -7,9 +7,7 @@
 package civitas.bboard.server;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.*;
 
 import jif.lang.LabelUtil;
 import civitas.common.Protocol;
@@ -32,6 +30,7 @@ class FileBBStorage extends Protocol implements BBStorage {
     private static final String INDEX_FILENAME = "bboardIndex";
     private static final String OWNER_PK_FILENAME = "ownerPublicKey.xml";
     private static final String BOARD_CLOSED_FILENAME = "board_closed";
+    private static final String SEQUENCE_FILENAME = "sequence";
     private static final String TEMP_FILE_PREFIX = "tmp_";
 
     /**
@@ -44,6 +43,17 @@ class FileBBStorage extends Protocol implements BBStorage {
      */
     private final GenericBBS bbs;
 
+    /**
+     * Map from bulletin board ids to the sequence numbers of their last
+     * posts, as far as they have been read from the sequence files.
+     */
+    private final Map<String, Long> sequences = new HashMap<String, Long>();
+
+    /**
+     * The last timestamp given to a post; guarded by the storage.
+     */
+    private long lastTimestamp = 0;
+
     FileBBStorage(File root, GenericBBS bbs) {
         this.root = root;
         this.bbs = bbs;
@@ -131,6 +141,110 @@ class FileBBStorage extends Protocol implements BBStorage {
         }
     }
 
+    public void processPostsSince(PostProcessor pp, String bbName, String meta, long since) throws IOException {
+        File bboardRoot = new File(root,bbName);
+
+        // the sequence numbers are not in the file names: read all posts
+        // with meta, and sort those after since.
+        File[] posts = getPostsMatchingCriteria(bboardRoot, meta, null, null);
+        List<BBStoragePost> l = new ArrayList<BBStoragePost>();
+        for(File m : posts) {
+            BBStoragePost post = readPostFromFile(bbName, m);
+            if (post == null) continue;
+            if (metaMatches(meta, post.meta) && (since < 0 || post.seq > since)) {
+                l.add(post);
+            }
+        }
+        Collections.sort(l, seqComparator);
+        for (BBStoragePost post : l) {
+            pp.processPost(post);
+        }
+    }
+
+    private static final Comparator<BBStoragePost> seqComparator = new Comparator<BBStoragePost>() {
+        public int compare(BBStoragePost o1, BBStoragePost o2) {
+            return o1.seq < o2.seq ? -1 : (o1.seq == o2.seq ? 0 : 1);
+        }
+    };
+
+    public long lastSequence(String bbName) throws IOException {
+        synchronized (sequences) {
+            Long seq = sequences.get(bbName);
+            if (seq == null) {
+                seq = Long.valueOf(0);
+                File seqFile = new File(new File(root,bbName), SEQUENCE_FILENAME);
+                if (seqFile.exists()) {
+                    BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(seqFile)));
+                    try {
+                        seq = Long.valueOf(r.readLine());
+                    }
+                    catch (NumberFormatException e) {
+                        throw new IOException("Bad sequence file for " + bbName);
+                    }
+                    finally {
+                        r.close();
+                    }
+                }
+                sequences.put(bbName, seq);
+            }
+            return seq.longValue();
+        }
+    }
+
+    /**
+     * Record the sequence number of a new post to board bbName.
+     * @return the sequence number.
+     */
+    private long nextSequence(String bbName) throws IOException {
+        return nextSequences(bbName, 1);
+    }
+
+    /**
+     * Record the sequence numbers of n new posts to board bbName.
+     * @return the last of the sequence numbers.
+     */
+    private long nextSequences(String bbName, int n) throws IOException {
+        synchronized (sequences) {
+            long seq = lastSequence(bbName) + n;
+            storeSequence(bbName, seq);
+            return seq;
+        }
+    }
+
+    /**
+     * Record seq as the sequence number of the last post to board bbName.
+     */
+    private void storeSequence(String bbName, long seq) throws IOException {
+        synchronized (sequences) {
+            File bboardRoot = new File(root,bbName);
+            File seqFile = new File(bboardRoot, SEQUENCE_FILENAME);
+            File tempFile = new File(bboardRoot, TEMP_FILE_PREFIX + SEQUENCE_FILENAME);
+            PrintStream out = new PrintStream(new FileOutputStream(tempFile));
+            out.println(seq);
+            out.close();
+            tempFile.renameTo(seqFile);
+            sequences.put(bbName, Long.valueOf(seq));
+        }
+    }
+
+    /**
+     * Give timestamps to n new posts, from the current time, and later than
+     * those of the posts made before.
+     * @return the first of the timestamps; the others follow it.
+     */
+    private synchronized long nextTimestamps(int n) {
+        long t = Math.max(System.currentTimeMillis(), lastTimestamp + 1);
+        lastTimestamp = t + n - 1;
+        return t;
+    }
+
+    public boolean keepsPostingOrder() {
+        // posts are ordered by their timestamps, which increase as long as
+        // the service runs. Posts with the same timestamp, made before a
+        // restart, are ordered by a hash of their contents.
+        return false;
+    }
+
     public long post(String bbName, String meta, String mesg, String sign) throws IOException {
         // get the directory for the meta
         File bboardRoot = new File(root,bbName);
@@ -141,7 +255,7 @@ class FileBBStorage extends Protocol implements BBStorage {
 
         // create file at path board/meta
         // make sure that we have a unique file name by taking a hash of the meta and msg.
-        long t = System.currentTimeMillis();
+        long t = nextTimestamps(1);
         int unique = (meta==null?0:meta.hashCode()) ^
                      (mesg==null?0:mesg.hashCode()) ^
                      (sign==null?0:sign.hashCode());
@@ -149,14 +263,93 @@ class FileBBStorage extends Protocol implements BBStorage {
         File f = new File(metaDir, filename);
         File tempFile = new File(metaDir, TEMP_FILE_PREFIX + filename);
 
-        writePostToFile(bbName, f, tempFile, t, meta, mesg, sign);
+        long seq = nextSequence(bbName);
+        writePostToFile(bbName, f, tempFile, seq, t, meta, mesg, sign);
         return t;
     }
 
+    /**
+     * Write the posts to temporary files first, and then rename them all,
+     * so that a failure leaves none of them. The sequence file is written
+     * once for all the posts, and the sequence numbers are held until the
+     * posts are made, so that a failure gives them back. Readers may see
+     * some of the posts before the others, while the files are renamed. The
+     * files are not synced, so a crash while the posts are made may leave
+     * only some of them.
+     *
+     * The posts are given consecutive timestamps, which order them as they
+     * are listed.
+     */
+    public long[] postAll(String bbName, List<BBStoragePost> posts) throws IOException {
+        File bboardRoot = new File(root,bbName);
+        int n = posts.size();
+        long[] ts = new long[n];
+        if (n == 0) return ts;
+
+        long t = nextTimestamps(n);
+        File[] files = new File[n];
+        File[] tempFiles = new File[n];
+        synchronized (sequences) {
+            long last = lastSequence(bbName);
+            storeSequence(bbName, last + n);
+            long seq = last;
+            int renamed = 0;
+            try {
+                for (int i = 0; i < n; i++) {
+                    BBStoragePost p = posts.get(i);
+                    File metaDir = getMetaDir(bboardRoot, p.meta);
+                    while (!metaDir.exists()) {
+                        metaDir.mkdirs();
+                    }
+                    int unique = (p.meta==null?0:p.meta.hashCode()) ^
+                                 (p.msg==null?0:p.msg.hashCode()) ^
+                                 (p.sig==null?0:p.sig.hashCode());
+                    ts[i] = t + i;
+                    String filename = filenameForPost(ts[i], unique);
+                    files[i] = new File(metaDir, filename);
+                    tempFiles[i] = new File(metaDir, TEMP_FILE_PREFIX + filename);
+                    writePost(tempFiles[i], ++seq, ts[i], p.meta, p.msg, p.sig);
+                }
+                for (; renamed < n; renamed++) {
+                    if (!tempFiles[renamed].renameTo(files[renamed])) {
+                        throw new IOException("Unable to rename " + tempFiles[renamed]);
+                    }
+                }
+            }
+            finally {
+                if (renamed < n) {
+                    // take back the posts made so far.
+                    for (int i = 0; i < renamed; i++) {
+                        files[i].delete();
+                    }
+                    for (int i = renamed; i < n && tempFiles[i] != null; i++) {
+                        tempFiles[i].delete();
+                    }
+                    // and their sequence numbers, which no other post has
+                    // taken meanwhile.
+                    storeSequence(bbName, last);
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            files[i].setReadOnly();
+        }
+        return ts;
+    }
+
     /**
      * Output a post to a file
      */
-    private void writePostToFile(String bbid, File f, File tempFile, long t, String meta, String mesg, String sign) throws IOException {
+    private void writePostToFile(String bbid, File f, File tempFile, long seq, long t, String meta, String mesg, String sign) throws IOException {
+        writePost(tempFile, seq, t, meta, mesg, sign);
+        tempFile.renameTo(f);
+        f.setReadOnly();
+    }
+
+    /**
+     * Output a post to a temporary file
+     */
+    private void writePost(File tempFile, long seq, long t, String meta, String mesg, String sign) throws IOException {
         FileOutputStream fos = new FileOutputStream(tempFile);
         PrintStream fout = new PrintStream(fos);
         fout.println(t);
@@ -164,11 +357,9 @@ class FileBBStorage extends Protocol implements BBStorage {
         protocolOutputString(fout, mesg);
         protocolOutputString(fout, sign);
         fout.println();
+        fout.println(seq);
         fout.flush();
         fout.close();
-
-        tempFile.renameTo(f);
-        f.setReadOnly();
     }
     /**
      * Input a post from a file
@@ -182,8 +373,12 @@ class FileBBStorage extends Protocol implements BBStorage {
             String meta = protocolInputString(fin);
             String mesg = protocolInputString(fin);
             String sig = protocolInputString(fin);
+            // posts stored before sequence numbers were introduced end
+            // with the signature.
+            fin.readLine();
+            String seq = fin.readLine();
             fin.close();
-            return new BBStoragePost(Long.parseLong(stamp), meta, mesg, sig);
+            return new BBStoragePost(seq == null ? 0 : Long.parseLong(seq), Long.parseLong(stamp), meta, mesg, sig);
         }
         catch (IOException e) {
             e.printStackTrace();
@@ -321,7 +516,14 @@ class FileBBStorage extends Protocol implements BBStorage {
             if (name.startsWith(TEMP_FILE_PREFIX)) return false;
             String[] parts = name.split("_");
             String filenameTimestamp = parts[0];
-            long timestamp = Long.parseLong(filenameTimestamp, TIME_STAMP_RADIX);
+            long timestamp;
+            try {
+                timestamp = Long.parseLong(filenameTimestamp, TIME_STAMP_RADIX);
+            }
+            catch (NumberFormatException e) {
+                // not a post, e.g. a file of LogBBStorage
+                return false;
+            }
             return fromCriteria<timestamp && timestamp<toCriteria;
         }
     }
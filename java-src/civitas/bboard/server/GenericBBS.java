@@ -8,16 +8,19 @@ package civitas.bboard.server;
 
 import java.io.*;
 import java.math.BigInteger;
-import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import jif.lang.Label;
 import jif.lang.LabelUtil;
 import civitas.bboard.client.BBClientUtil;
+import civitas.bboard.common.MerkleTree;
 import civitas.common.*;
 import civitas.crypto.*;
 
@@ -45,6 +48,8 @@ public class GenericBBS extends Protocol {
     PrintWriter logoutput = null;
 
     private final BBStorage store;
+    private final BoardHashes hashes;
+    private final Subscriptions subscriptions = new Subscriptions();
 
 
     public static void main(String[] args) {
@@ -84,13 +89,14 @@ public class GenericBBS extends Protocol {
         try {
             PublicKey pubKey = CryptoUtil.factory().publicKeyFromFile(pubKeyFile);
             PrivateKey privKey = CryptoUtil.factory().privateKeyFromFile(privKeyFile);
-            GenericBBS f = new GenericBBS(root, port, pubKey, privKey, logoutput, logfilename);
-            ServerSocket v = new ServerSocket(f.port);
-            for(;;) {
-                try {
-                    new Thread(f.new ServiceHandle(v.accept())).start();
-                } catch (IOException e) { e.printStackTrace(); }
-            }
+            final GenericBBS f = new GenericBBS(root, port, pubKey, privKey, logoutput, logfilename);
+            new ConnectionServer(f.port, new ConnectionServer.Handler() {
+                public int handle(Socket s) {
+                    ServiceHandle h = f.new ServiceHandle(s);
+                    h.run();
+                    return h.kept ? ConnectionServer.KEEP : h.reuse ? ConnectionServer.REUSE : ConnectionServer.CLOSE;
+                }
+            }).serve();
         }
         catch (IOException e) {
             e.printStackTrace();
@@ -121,8 +127,8 @@ public class GenericBBS extends Protocol {
 
     }
     public GenericBBS(File root, short port, PublicKey pubKey, PrivateKey privKey, PrintWriter log, String logfilename) throws IOException {
-        this.store = new FileBBStorage(root, this);
-//        this.store = new TransientBBStorage();
+        this.store = newStorage(root);
+        this.hashes = new BoardHashes(store);
         this.port = port;
         this.bbPublicKey = pubKey;
         this.bbPrivateKey = privKey;
@@ -131,6 +137,26 @@ public class GenericBBS extends Protocol {
         this.log = (log != null);
     }
 
+    /**
+     * @return the storage for the bulletin boards under root, as selected by
+     * the system property civitas.bboard.server.storage: "file" (the
+     * default) for FileBBStorage, "log" for LogBBStorage, or "transient"
+     * for TransientBBStorage.
+     */
+    private BBStorage newStorage(File root) {
+        String kind = System.getProperty("civitas.bboard.server.storage", "file");
+        if ("log".equals(kind)) {
+            return new LogBBStorage(root, this);
+        }
+        if ("transient".equals(kind)) {
+            return new TransientBBStorage();
+        }
+        if (!"file".equals(kind)) {
+            System.err.println("Unknown storage " + kind + "; using file storage");
+        }
+        return new FileBBStorage(root, this);
+    }
+
     void addBoardName(String bbid) {
         this.boardNames.add(bbid);
     }
@@ -240,7 +266,8 @@ public class GenericBBS extends Protocol {
 
         long t = -1;
         if (!store.isBoardClosed(bbName)) {
-            t = store.post(bbName, meta, mesg, sign);
+            t = hashes.post(bbName, meta, mesg, sign);
+            subscriptions.posted(bbName, meta, hashes.sequence(bbName));
             // log the meta that was posted
             if (log) {
                 logoutput.println("post: " + t + ' '+ meta);
@@ -258,6 +285,63 @@ public class GenericBBS extends Protocol {
         out.println(t);
         out.flush();
     }
+
+    /**
+     * Post a batch of messages to a board: the board name, the number of
+     * posts, and then the meta, message and signature of each, as for post.
+     * The posts are stored all or none, and the timestamp of each is sent
+     * back, a line each.
+     */
+    private void postBatch(BufferedReader in, PrintWriter out) throws IOException {
+        String bbName = in.readLine();
+        int n;
+        try {
+            n = Integer.parseInt(in.readLine());
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("Bad batch size");
+        }
+        List<BBStoragePost> posts = new ArrayList<BBStoragePost>(Math.max(0, Math.min(n, 1024)));
+        for (int i = 0; i < n; i++) {
+            String meta = protocolInputString(in);
+            StringWriter sw = new StringWriter();
+            protocolInputToSentinal(in, new PrintWriter(sw));
+            String mesg = sw.toString();
+            sw = new StringWriter();
+            protocolInputToSentinal(in, new PrintWriter(sw));
+            String sign = sw.toString();
+            posts.add(new BBStoragePost(-1, meta, mesg, sign));
+        }
+
+        if (!this.boardNames.contains(bbName)) return;
+
+        long[] ts = null;
+        if (!store.isBoardClosed(bbName)) {
+            ts = hashes.postAll(bbName, posts);
+            long seq = hashes.sequence(bbName);
+            Set<String> metas = new HashSet<String>();
+            for (BBStoragePost p : posts) {
+                if (metas.add(p.meta)) subscriptions.posted(bbName, p.meta, seq);
+            }
+            // log the batch that was posted
+            if (log && n > 0) {
+                logoutput.println("post batch: " + ts[0] + ' ' + n + ' ' + posts.get(0).meta + " .. " + posts.get(n-1).meta);
+                if (logoutput.checkError()) {
+                    reopenLogoutput();
+                    logoutput.println("error: while posting batch " + posts.get(0).meta);
+                }
+            }
+        }
+        else {
+            System.err.println("Post attempted for closed board " + bbName);
+        }
+
+        // send the timestamps back to client
+        for (int i = 0; i < n; i++) {
+            out.println(ts == null ? -1 : ts[i]);
+        }
+        out.flush();
+    }
     private class RetrieveProcessor implements BBStorage.PostProcessor {
         final PrintWriter out;
         final MessageDigest md;
@@ -288,10 +372,15 @@ public class GenericBBS extends Protocol {
         String bbName = in.readLine();
 
         if (!this.boardNames.contains(bbName)) return;
-        Label lbl = LabelUtil.singleton().noComponents();
+
+        // if the signed hash of the posts is cached, there is no need to
+        // sign them again.
+        int version = hashes.version(bbName);
+        BoardHashes.Signed cached = null;
         MessageDigest md = null;
         if (signed) {
-            md = CryptoUtil.factory().messageDigest(lbl);
+            cached = hashes.signed(bbName, null, null, null);
+            md = CryptoUtil.factory().messageDigest(LabelUtil.singleton().noComponents());
         }
 
         // send the name
@@ -303,17 +392,7 @@ public class GenericBBS extends Protocol {
         // let the client know the list has finished.
         out.println("<END>");
         if (signed) {
-            // now output the hash and signature.
-            String hash = Util.constBytesToString(lbl, md.digest());
-            protocolOutputString(out, hash);
-            try {
-                PublicKeyMsg hashMsg = CryptoUtil.factory().publicKeyMsg(hash);
-                CryptoUtil.factory().signature(bbPrivateKey, hashMsg).toXML(LabelUtil.singleton().noComponents(), out);
-            }
-            catch (NullPointerException imposs) { }
-            catch (CryptoException e) {
-                throw new IOException(e.getMessage());
-            }
+            outputSigned(out, signed(bbName, null, null, null, version, cached, md));
         }
         out.flush();
 
@@ -330,10 +409,12 @@ public class GenericBBS extends Protocol {
         String toTime = in.readLine();
 
 
-        Label lbl = LabelUtil.singleton().noComponents();
+        int version = hashes.version(bbName);
+        BoardHashes.Signed cached = null;
         MessageDigest md = null;
         if (signed) {
-            md = CryptoUtil.factory().messageDigest(lbl);
+            cached = hashes.signed(bbName, metaCriteria, fromTime, toTime);
+            md = CryptoUtil.factory().messageDigest(LabelUtil.singleton().noComponents());
         }
 
 //        System.err.println("BBS read params " + ((end = System.currentTimeMillis()) - start)); start = end;
@@ -358,22 +439,57 @@ public class GenericBBS extends Protocol {
 
         if (signed) {
             // now output the hash and signature.
-            String hash = Util.constBytesToString(lbl, md.digest());
-            protocolOutputString(out, hash);
-            try {
-                PublicKeyMsg hashMsg = CryptoUtil.factory().publicKeyMsg(hash);
-                CryptoUtil.factory().signature(bbPrivateKey, hashMsg).toXML(LabelUtil.singleton().noComponents(), out);
-//                System.err.println("BBS hash " + ((end = System.currentTimeMillis()) - start)); start = end;
-            }
-            catch (NullPointerException imposs) { }
-            catch (CryptoException e) {
-                throw new IOException(e.getMessage());
-            }
+            outputSigned(out, signed(bbName, metaCriteria, fromTime, toTime, version, cached, md));
+//            System.err.println("BBS hash " + ((end = System.currentTimeMillis()) - start)); start = end;
         }
         out.flush();
 //        System.err.println("BBS finished" + ((end = System.currentTimeMillis()) - start)); start = end;
     }
 
+    // output the posts on a board with a meta that have sequence numbers
+    // after a cursor, followed by the new cursor: the sequence number of
+    // the last post to the board. A client that passes it on its next call
+    // gets only the posts made in between.
+    private void retrieve_since(BufferedReader in, PrintWriter out) throws IOException {
+        String bbName = in.readLine();
+        String metaCriteria = protocolInputString(in);
+        long since;
+        try {
+            since = Long.parseLong(in.readLine());
+        }
+        catch (NumberFormatException e) {
+            throw new IOException(e.getMessage());
+        }
+        if (!this.boardNames.contains(bbName)) return;
+
+        final long last = hashes.sequence(bbName);
+        if (since > last) {
+            // a cursor from before the storage lost posts: start over.
+            since = -1;
+        }
+
+        out.println(bbName);
+        final RetrieveProcessor pp = new RetrieveProcessor(out, null);
+        store.processPostsSince(new BBStorage.PostProcessor() {
+            public void processPost(BBStoragePost post) throws IOException {
+                // posts after last are left for the next call.
+                if (post.seq <= last) pp.processPost(post);
+            }
+        }, bbName, metaCriteria, since);
+        out.println("<END>");
+        out.println(last);
+        out.flush();
+    }
+
+    // keep the connection open, to notify the client of the posts to a
+    // board with metas that start with a prefix.
+    private boolean subscribe(BufferedReader in, PrintWriter out, Socket s) throws IOException {
+        String bbName = in.readLine();
+        String prefix = protocolInputString(in);
+        if (!this.boardNames.contains(bbName)) return false;
+        return subscriptions.subscribe(bbName, prefix, s, out, hashes.sequence(bbName));
+    }
+
     private void retrieve_hash(BufferedReader in, PrintWriter out) throws IOException {
         // read board name and gather all posts on it
         String bbName = in.readLine();
@@ -381,29 +497,114 @@ public class GenericBBS extends Protocol {
         String fromTime = in.readLine();
         String toTime = in.readLine();
 
-        String hash = computeHash(bbName, metaCriteria, fromTime, toTime);
+        int version = hashes.version(bbName);
+        BoardHashes.Signed cached = hashes.signed(bbName, metaCriteria, fromTime, toTime);
+        if (cached == null) {
+            String hash = computeHash(bbName, metaCriteria, fromTime, toTime);
+            cached = new BoardHashes.Signed(hash, signatureXML(hash));
+            hashes.putSigned(bbName, metaCriteria, fromTime, toTime, version, cached);
+        }
+        outputSigned(out, cached);
+        out.flush();
 
-        protocolOutputString(out, hash);
+    }
+
+    /**
+     * @return the signed hash of the posts matching a query, computed from
+     * md, which has digested the posts that were sent. That is cached, if
+     * it has the same hash; a post made after cached was looked up may have
+     * been sent too. Otherwise the hash is signed, and cached if no posts
+     * have been made since version.
+     */
+    private BoardHashes.Signed signed(String bbName, String metaCriteria, String fromTime, String toTime,
+                                      int version, BoardHashes.Signed cached, MessageDigest md) throws IOException {
+        String hash = Util.constBytesToString(LabelUtil.singleton().noComponents(), md.digest());
+        if (cached != null && cached.hash.equals(hash)) return cached;
+        BoardHashes.Signed s = new BoardHashes.Signed(hash, signatureXML(hash));
+        hashes.putSigned(bbName, metaCriteria, fromTime, toTime, version, s);
+        return s;
+    }
+
+    private void outputSigned(PrintWriter out, BoardHashes.Signed s) throws IOException {
+        protocolOutputString(out, s.hash);
+        out.print(s.signature);
+    }
+
+    /**
+     * @return the XML of the signature of this service on s.
+     */
+    private String signatureXML(String s) throws IOException {
+        StringWriter sw = new StringWriter();
         try {
-            PublicKeyMsg hashMsg = CryptoUtil.factory().publicKeyMsg(hash);
-            CryptoUtil.factory().signature(bbPrivateKey, hashMsg).toXML(LabelUtil.singleton().noComponents(), out);
+            PublicKeyMsg msg = CryptoUtil.factory().publicKeyMsg(s);
+            CryptoUtil.factory().signature(bbPrivateKey, msg).toXML(LabelUtil.singleton().noComponents(), new PrintWriter(sw));
         }
         catch (NullPointerException imposs) { }
         catch (CryptoException e) {
             throw new IOException(e.getMessage());
         }
-        out.flush();
-
+        return sw.toString();
     }
+
     private String computeHash(String bbName, String metaCriteria, String fromTime, String toTime) throws IOException {
+        return hashes.hash(bbName, metaCriteria, fromTime, toTime);
+    }
+
+    // output the Merkle root of the posts on a board with a meta,
+    // made before a time, with a signature.
+    private void retrieve_root(BufferedReader in, PrintWriter out) throws IOException {
+        String bbName = in.readLine();
+        String meta = protocolInputString(in);
+        String toTime = in.readLine();
+        if (!this.boardNames.contains(bbName)) return;
+
+        Long to = null;
+        if (toTime != null && toTime.length() > 0) {
+            try {
+                to = Long.valueOf(toTime);
+            }
+            catch (NumberFormatException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
         Label lbl = LabelUtil.singleton().noComponents();
-        MessageDigest md = CryptoUtil.factory().messageDigest(lbl);
-        RetrieveProcessor pp = new RetrieveProcessor(null, md);
-        store.processPosts(pp, bbName, metaCriteria, fromTime, toTime);
+        BoardHashes.Root root = hashes.root(bbName, meta, to);
+        String rootString = Util.constBytesToString(lbl, root.hash);
+
+        out.println(root.size);
+        protocolOutputString(out, rootString);
+        out.print(signatureXML(MerkleTree.rootStatement(bbName, meta, root.size, rootString)));
+        out.flush();
+    }
 
-        String hash = Util.constBytesToString(lbl, md.digest());
+    // output the proof that a post is in the Merkle tree of a given size
+    // over the posts on a board with a meta: the number of hashes, or -1
+    // if there is no such post, followed by the hashes.
+    private void retrieve_proof(BufferedReader in, PrintWriter out) throws IOException {
+        String bbName = in.readLine();
+        String meta = protocolInputString(in);
+        int size, index;
+        try {
+            size = Integer.parseInt(in.readLine());
+            index = Integer.parseInt(in.readLine());
+        }
+        catch (NumberFormatException e) {
+            throw new IOException(e.getMessage());
+        }
+        if (!this.boardNames.contains(bbName)) return;
 
-        return hash;
+        Label lbl = LabelUtil.singleton().noComponents();
+        byte[][] proof = hashes.inclusionProof(bbName, meta, index, size);
+        if (proof == null) {
+            out.println(-1);
+        }
+        else {
+            out.println(proof.length);
+            for (int i = 0; i < proof.length; i++) {
+                out.println(Util.constBytesToString(lbl, proof[i]));
+            }
+        }
+        out.flush();
     }
     private void requestParticipation(BufferedReader in, PrintWriter out) throws IOException {
         Label lbl = LabelUtil.singleton().noComponents();
@@ -558,6 +759,14 @@ public class GenericBBS extends Protocol {
 
     private class ServiceHandle implements Runnable {
         private Socket s;
+        /**
+         * Whether the connection has been kept open for a subscription.
+         */
+        boolean kept = false;
+        /**
+         * Whether the connection is to wait for a further request.
+         */
+        boolean reuse = false;
         public ServiceHandle(Socket s) { this.s = s; }
         public void run() {
             try {
@@ -565,26 +774,25 @@ public class GenericBBS extends Protocol {
                 PrintWriter out = new PrintWriter(s.getOutputStream());
                 try {
                     String action = in.readLine();
+                    while ("KEEPALIVE".equals(action)) {
+                        keepAlive(in, out);
+                        // requests that have already arrived are handled
+                        // right away, and their responses sent in order.
+                        if (!in.ready()) {
+                            reuse = true;
+                            return;
+                        }
+                        action = in.readLine();
+                    }
                     if(action == null) return;
-
-                    if(action.equals("NEWBOARD"))                      newBoard(in,out);
-                    else if(action.equals("CLOSEBOARD"))               closeBoard(in,out);
-                    else if(action.equals("POST"))                     post(in,out);
-                    else if(action.equals("RETRIEVE_UNSIGNED"))        retrieve(in,out,false);
-                    else if(action.equals("RETRIEVE_SIGNED"))          retrieve(in,out,true);
-                    else if(action.equals("RETRIEVE_PARAMS_UNSIGNED")) retrieve_params(in,out,false);
-                    else if(action.equals("RETRIEVE_PARAMS_SIGNED"))   retrieve_params(in,out,true);
-                    else if(action.equals("RETRIEVE_HASH"))            retrieve_hash(in,out);
-                    else if(action.equals("REQUEST_PARTICIPATION"))    requestParticipation(in,out);
-                    else if(action.equals("CONFIRM_PARTICIPATION"))    confirmParticipation(in,out);
-                    else if(action.equals("HEARTBEAT"))                heartbeat(in,out);
-                    else if(action.equals("EXPERIMENT_RESULTS"))       experimentResults(in,out);
-                    else { System.err.println("Invalid Action Type: "+action); }
+                    kept = dispatch(action, in, out);
                 }
                 finally {
-                    in.close();
-                    out.close();
-                    s.close();
+                    if (!kept && !reuse) {
+                        in.close();
+                        out.close();
+                        s.close();
+                    }
                 }
             }
             catch (RuntimeException e) {
@@ -603,16 +811,83 @@ public class GenericBBS extends Protocol {
                 }
             }
         }
+
+        /**
+         * Handle a request.
+         * @return whether the connection has been kept open for a
+         * subscription.
+         */
+        private boolean dispatch(String action, BufferedReader in, PrintWriter out) throws IOException {
+            if(action.equals("NEWBOARD"))                      newBoard(in,out);
+            else if(action.equals("CLOSEBOARD"))               closeBoard(in,out);
+            else if(action.equals("POST"))                     post(in,out);
+            else if(action.equals("POST_BATCH"))               postBatch(in,out);
+            else if(action.equals("RETRIEVE_UNSIGNED"))        retrieve(in,out,false);
+            else if(action.equals("RETRIEVE_SIGNED"))          retrieve(in,out,true);
+            else if(action.equals("RETRIEVE_PARAMS_UNSIGNED")) retrieve_params(in,out,false);
+            else if(action.equals("RETRIEVE_PARAMS_SIGNED"))   retrieve_params(in,out,true);
+            else if(action.equals("RETRIEVE_SINCE"))           retrieve_since(in,out);
+            else if(action.equals("SUBSCRIBE"))                return subscribe(in,out,s);
+            else if(action.equals("RETRIEVE_HASH"))            retrieve_hash(in,out);
+            else if(action.equals("RETRIEVE_ROOT"))            retrieve_root(in,out);
+            else if(action.equals("RETRIEVE_PROOF"))           retrieve_proof(in,out);
+            else if(action.equals("REQUEST_PARTICIPATION"))    requestParticipation(in,out);
+            else if(action.equals("CONFIRM_PARTICIPATION"))    confirmParticipation(in,out);
+            else if(action.equals("HEARTBEAT"))                heartbeat(in,out);
+            else if(action.equals("EXPERIMENT_RESULTS"))       experimentResults(in,out);
+            else { System.err.println("Invalid Action Type: "+action); }
+            return false;
+        }
+
+        /**
+         * Handle a request that is framed as a protocol string, and send the
+         * response framed likewise, so that the connection stays in step for
+         * further requests, however the request is handled. A request that
+         * fails gets the part of the response written so far.
+         */
+        private void keepAlive(BufferedReader in, PrintWriter out) throws IOException {
+            String request = protocolInputString(in);
+            BufferedReader reqIn = new BufferedReader(new StringReader(request));
+            StringWriter response = new StringWriter();
+            PrintWriter respOut = new PrintWriter(response);
+            String action = reqIn.readLine();
+            try {
+                if (action == null || action.equals("KEEPALIVE") || action.equals("SUBSCRIBE")) {
+                    System.err.println("Invalid Action Type: "+action);
+                }
+                else {
+                    dispatch(action, reqIn, respOut);
+                }
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                if (log) {
+                    logoutput.println("error: " + e.getMessage());
+                    e.printStackTrace(logoutput);
+                }
+            }
+            respOut.flush();
+            protocolOutputString(out, response.toString());
+            out.flush();
+        }
     }
 }
 
 class BBStoragePost {
     public BBStoragePost(long timestamp, String meta, String msg, String sig) {
+        this(0, timestamp, meta, msg, sig);
+    }
+    public BBStoragePost(long seq, long timestamp, String meta, String msg, String sig) {
+        this.seq = seq;
         this.timestamp = timestamp;
         this.meta = meta;
         this.msg = msg;
         this.sig = sig;
     }
+    /**
+     * The sequence number of the post on its board, or 0 if it has none.
+     */
+    public long seq;
     public long timestamp;
     public String meta;
     public String msg;
@@ -0,0 +1,782 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.bboard.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Implements bulletin board storage as an append-only log per board.
+ *
+ * The posts of a board are appended to segment files in the directory
+ * "log" of the board. A segment holds records of the form
+ *     length (4 bytes), crc (4 bytes), payload (length bytes)
+ * where crc is the CRC-32 of the payload, and the payload holds the
+ * timestamp, meta, message and signature of a post. When a segment
+ * reaches SEGMENT_SIZE bytes, a new one is started. The records of a batch
+ * of posts are preceded by a header of the form
+ *     -n (4 bytes), size (4 bytes)
+ * where n is the number of records and size their total size in bytes.
+ * A batch is kept in a single segment, and is forced to disk once it has
+ * been written in full.
+ *
+ * An index of the posts is kept in memory: their timestamps and positions
+ * in the log, in the order they were posted, and for each meta the list of
+ * its posts. Posts get non-decreasing timestamps, so a time range is found
+ * by binary search. The index is checkpointed to the file "log/index"
+ * every CHECKPOINT_INTERVAL posts and when the board is closed. Opening a
+ * board reads the checkpoint and scans only the records appended after it;
+ * an incomplete record or batch at the end of the log, left by a crash
+ * during a post, is truncated. A damaged record before the last segment
+ * fails the opening of the board instead, as the sequence number of a post
+ * is its place in the log.
+ *
+ * Full segments are read through memory mappings; the segment being
+ * appended to is read with positional reads.
+ *
+ * The owner key, index and closed marker of a board are stored as by
+ * FileBBStorage. A board that has posts stored by FileBBStorage has them
+ * copied into its log when the board is first opened.
+ */
+class LogBBStorage extends FileBBStorage {
+    /**
+     * Size at which a segment is full, configured with the system property
+     * <code>civitas.bboard.server.segmentsize</code>.
+     */
+    static final long SEGMENT_SIZE = Math.min(Integer.MAX_VALUE,
+            Math.max(1 << 16, Long.getLong("civitas.bboard.server.segmentsize", 64L << 20).longValue()));
+
+    /**
+     * Number of posts after which the index of a board is checkpointed.
+     */
+    static final int CHECKPOINT_INTERVAL = 4096;
+
+    private static final String LOG_DIRNAME = "log";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILENAME = "index";
+    private static final String TEMP_FILE_PREFIX = "tmp_";
+
+    private static final int HEADER_SIZE = 8;
+    private static final int CHECKPOINT_VERSION = 1;
+
+    /**
+     * A position in the log is the number of its segment times 2^40, plus
+     * the offset within the segment.
+     */
+    private static final int SEGMENT_SHIFT = 40;
+
+    private final File root;
+
+    /**
+     * Open boards, by bbid.
+     */
+    private final Map<String, Board> boards = new HashMap<String, Board>();
+
+    LogBBStorage(File root, GenericBBS bbs) {
+        super(root, bbs);
+        this.root = root;
+    }
+
+    public long post(String bbid, String meta, String mesg, String sign) throws IOException {
+        Board b = board(bbid);
+        if (b == null) {
+            throw new IOException("No board " + bbid);
+        }
+        return b.append(System.currentTimeMillis(), meta, mesg, sign);
+    }
+
+    public long[] postAll(String bbid, List<BBStoragePost> posts) throws IOException {
+        Board b = board(bbid);
+        if (b == null) {
+            throw new IOException("No board " + bbid);
+        }
+        return b.appendAll(System.currentTimeMillis(), posts);
+    }
+
+    public void processPosts(PostProcessor pp, String bbid, String meta, String fromTime, String toTime) throws IOException {
+        Board b = board(bbid);
+        if (b == null) return;
+        b.processPosts(pp, meta, parseTime(fromTime, Long.MIN_VALUE), parseTime(toTime, Long.MAX_VALUE));
+    }
+
+    public void processPostsSince(PostProcessor pp, String bbid, String meta, long since) throws IOException {
+        Board b = board(bbid);
+        if (b == null) return;
+        b.processPostsSince(pp, meta, since);
+    }
+
+    public long lastSequence(String bbid) throws IOException {
+        Board b = board(bbid);
+        if (b == null) return 0;
+        return b.size();
+    }
+
+    public boolean keepsPostingOrder() {
+        return true;
+    }
+
+    public void closeBoard(String bbid) throws IOException {
+        super.closeBoard(bbid);
+        Board b = board(bbid);
+        if (b != null) b.sync();
+    }
+
+    private static long parseTime(String time, long dflt) {
+        if (time != null && time.length() > 0) {
+            try {
+                return Long.parseLong(time);
+            }
+            catch (NumberFormatException e) {
+            }
+        }
+        return dflt;
+    }
+
+    /**
+     * @return the open board bbid, opening it if need be, or null if there
+     * is no such board.
+     */
+    private Board board(String bbid) throws IOException {
+        synchronized (boards) {
+            Board b = boards.get(bbid);
+            if (b == null) {
+                File bboardRoot = new File(root, bbid);
+                if (!bboardRoot.isDirectory()) return null;
+                File logDir = new File(bboardRoot, LOG_DIRNAME);
+                boolean fresh = !logDir.exists();
+                logDir.mkdirs();
+                b = new Board(logDir);
+                if (fresh) {
+                    importPosts(bbid, b);
+                }
+                boards.put(bbid, b);
+            }
+            return b;
+        }
+    }
+
+    /**
+     * Copy the posts that FileBBStorage has stored for board bbid into its
+     * log.
+     */
+    private void importPosts(String bbid, final Board b) throws IOException {
+        super.processPosts(new PostProcessor() {
+            public void processPost(BBStoragePost p) throws IOException {
+                b.append(p.timestamp, p.meta, p.msg, p.sig);
+            }
+        }, bbid, null, null, null);
+        b.sync();
+    }
+
+    /**
+     * The posts of a board with meta, as indices into the entries of the
+     * board.
+     */
+    private static class EntryList {
+        int[] entries = new int[16];
+        int size = 0;
+
+        void add(int e) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, 2 * size);
+            }
+            entries[size++] = e;
+        }
+    }
+
+    private static class Board {
+        private final File dir;
+
+        // the index: entry i is the i'th post on the board, with sequence
+        // number i + 1 and timestamp times[i], stored at position
+        // positions[i], with meta metas.get(metaIds[i]).
+        private long[] times = new long[256];
+        private long[] positions = new long[256];
+        private int[] metaIds = new int[256];
+        private int count = 0;
+        private final List<String> metas = new ArrayList<String>();
+        private final Map<String, Integer> metaIdsByName = new HashMap<String, Integer>();
+        private final List<EntryList> metaEntries = new ArrayList<EntryList>();
+
+        /**
+         * Memory mappings of the full segments, by segment number; null
+         * until needed.
+         */
+        private final List<MappedByteBuffer> mapped = new ArrayList<MappedByteBuffer>();
+
+        private int activeSegment;
+        private FileChannel active;
+        private long activeSize;
+
+        private int sinceCheckpoint = 0;
+        private final CRC32 crc = new CRC32();
+
+        Board(File dir) throws IOException {
+            this.dir = dir;
+            long end = readCheckpoint();
+            recover(end);
+        }
+
+        synchronized long append(long t, String meta, String mesg, String sign) throws IOException {
+            if (count > 0 && t < times[count-1]) {
+                // keep timestamps in posting order, even if the clock
+                // goes back.
+                t = times[count-1];
+            }
+            byte[] payload = encode(t, meta, mesg, sign);
+            if (activeSize > 0 && activeSize + HEADER_SIZE + payload.length > SEGMENT_SIZE) {
+                nextSegment();
+            }
+            crc.reset();
+            crc.update(payload);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(payload.length).putInt((int)crc.getValue()).flip();
+            long pos = ((long)activeSegment << SEGMENT_SHIFT) | activeSize;
+            write(header, activeSize);
+            write(ByteBuffer.wrap(payload), activeSize + HEADER_SIZE);
+            activeSize += HEADER_SIZE + payload.length;
+
+            addEntry(t, pos, meta);
+            if (++sinceCheckpoint >= CHECKPOINT_INTERVAL) {
+                writeCheckpoint();
+            }
+            return t;
+        }
+
+        /**
+         * Append the posts as a batch. They are added to the index only
+         * once the batch is on disk.
+         */
+        synchronized long[] appendAll(long t, List<BBStoragePost> posts) throws IOException {
+            int n = posts.size();
+            long[] ts = new long[n];
+            if (n == 0) return ts;
+            if (count > 0 && t < times[count-1]) {
+                t = times[count-1];
+            }
+            byte[][] payloads = new byte[n][];
+            long size = 0;
+            for (int i = 0; i < n; i++) {
+                BBStoragePost p = posts.get(i);
+                payloads[i] = encode(t, p.meta, p.msg, p.sig);
+                size += HEADER_SIZE + payloads[i].length;
+            }
+            if (HEADER_SIZE + size > Integer.MAX_VALUE) {
+                throw new IOException("Batch of " + n + " posts too large");
+            }
+            if (activeSize > 0 && activeSize + HEADER_SIZE + size > SEGMENT_SIZE) {
+                nextSegment();
+            }
+            ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + (int)size);
+            buf.putInt(-n).putInt((int)size);
+            long[] pos = new long[n];
+            long offset = activeSize + HEADER_SIZE;
+            for (int i = 0; i < n; i++) {
+                crc.reset();
+                crc.update(payloads[i]);
+                buf.putInt(payloads[i].length).putInt((int)crc.getValue()).put(payloads[i]);
+                pos[i] = ((long)activeSegment << SEGMENT_SHIFT) | offset;
+                offset += HEADER_SIZE + payloads[i].length;
+            }
+            buf.flip();
+            write(buf, activeSize);
+            active.force(false);
+            activeSize = offset;
+
+            for (int i = 0; i < n; i++) {
+                addEntry(t, pos[i], posts.get(i).meta);
+                ts[i] = t;
+            }
+            sinceCheckpoint += n;
+            if (sinceCheckpoint >= CHECKPOINT_INTERVAL) {
+                writeCheckpoint();
+            }
+            return ts;
+        }
+
+        /**
+         * Call pp on the posts with meta (all posts if meta is null or
+         * empty) with from < timestamp < to, in posting order.
+         */
+        void processPosts(PostProcessor pp, String meta, long from, long to) throws IOException {
+            long[] ts;
+            long[] ps;
+            int[] es = null;
+            int n;
+            synchronized (this) {
+                ts = times;
+                ps = positions;
+                n = count;
+                if (meta != null && meta.length() > 0) {
+                    Integer id = metaIdsByName.get(meta);
+                    if (id == null) return;
+                    EntryList l = metaEntries.get(id.intValue());
+                    es = l.entries;
+                    n = l.size;
+                }
+            }
+            // the arrays are only ever replaced by longer copies, so
+            // the first n elements stay as they are.
+
+            // find the first post after from.
+            int lo = 0, hi = n;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ts[es == null ? mid : es[mid]] <= from) lo = mid + 1;
+                else hi = mid;
+            }
+            for (int i = lo; i < n; i++) {
+                int e = es == null ? i : es[i];
+                if (ts[e] >= to) break;
+                BBStoragePost p = read(ps[e]);
+                if (p != null) {
+                    p.seq = e + 1;
+                    pp.processPost(p);
+                }
+            }
+        }
+
+        /**
+         * Call pp on the posts with meta (all posts if meta is null or
+         * empty) with sequence numbers after since, in posting order.
+         */
+        void processPostsSince(PostProcessor pp, String meta, long since) throws IOException {
+            long[] ps;
+            int[] es = null;
+            int n;
+            synchronized (this) {
+                ps = positions;
+                n = count;
+                if (meta != null && meta.length() > 0) {
+                    Integer id = metaIdsByName.get(meta);
+                    if (id == null) return;
+                    EntryList l = metaEntries.get(id.intValue());
+                    es = l.entries;
+                    n = l.size;
+                }
+            }
+
+            // find the first entry after since, that is, the first
+            // entry e >= since.
+            int lo = 0, hi = n;
+            if (es == null) {
+                lo = (int)Math.min(Math.max(since, 0), n);
+            }
+            else {
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (es[mid] < since) lo = mid + 1;
+                    else hi = mid;
+                }
+            }
+            for (int i = lo; i < n; i++) {
+                int e = es == null ? i : es[i];
+                BBStoragePost p = read(ps[e]);
+                if (p != null) {
+                    p.seq = e + 1;
+                    pp.processPost(p);
+                }
+            }
+        }
+
+        synchronized int size() {
+            return count;
+        }
+
+        /**
+         * Force the log to disk, and checkpoint the index.
+         */
+        synchronized void sync() throws IOException {
+            active.force(false);
+            writeCheckpoint();
+        }
+
+        private void addEntry(long t, long pos, String meta) {
+            if (count == times.length) {
+                times = Arrays.copyOf(times, 2 * count);
+                positions = Arrays.copyOf(positions, 2 * count);
+                metaIds = Arrays.copyOf(metaIds, 2 * count);
+            }
+            String key = meta == null ? "" : meta;
+            Integer id = metaIdsByName.get(key);
+            if (id == null) {
+                id = Integer.valueOf(metas.size());
+                metas.add(key);
+                metaIdsByName.put(key, id);
+                metaEntries.add(new EntryList());
+            }
+            times[count] = t;
+            positions[count] = pos;
+            metaIds[count] = id.intValue();
+            metaEntries.get(id.intValue()).add(count);
+            count++;
+        }
+
+        private File segmentFile(int segment) {
+            StringBuffer sb = new StringBuffer(Integer.toString(segment));
+            while (sb.length() < 10) sb.insert(0, '0');
+            return new File(dir, sb.append(SEGMENT_SUFFIX).toString());
+        }
+
+        private void nextSegment() throws IOException {
+            active.force(false);
+            active.close();
+            activeSegment++;
+            openActive(0);
+        }
+
+        private void openActive(long size) throws IOException {
+            active = new RandomAccessFile(segmentFile(activeSegment), "rw").getChannel();
+            active.truncate(size);
+            activeSize = size;
+        }
+
+        private void write(ByteBuffer buf, long pos) throws IOException {
+            while (buf.hasRemaining()) {
+                pos += active.write(buf, pos);
+            }
+        }
+
+        /**
+         * @return the post stored at position pos, or null if its record
+         * is damaged.
+         */
+        private BBStoragePost read(long pos) throws IOException {
+            int segment = (int)(pos >>> SEGMENT_SHIFT);
+            long offset = pos & ((1L << SEGMENT_SHIFT) - 1);
+            ByteBuffer buf;
+            byte[] payload;
+            int storedCrc;
+            synchronized (this) {
+                if (segment == activeSegment) {
+                    // read the segment being appended to while holding the
+                    // lock, so that it is not closed meanwhile.
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    readFully(header, offset);
+                    header.flip();
+                    int length = header.getInt();
+                    storedCrc = header.getInt();
+                    if (length < 0 || offset + HEADER_SIZE + length > activeSize) return damaged(segment, offset);
+                    payload = new byte[length];
+                    readFully(ByteBuffer.wrap(payload), offset + HEADER_SIZE);
+                    return check(payload, storedCrc, segment, offset);
+                }
+                buf = mapping(segment);
+            }
+            buf.position((int)offset);
+            int length = buf.getInt();
+            storedCrc = buf.getInt();
+            if (length < 0 || length > buf.remaining()) return damaged(segment, offset);
+            payload = new byte[length];
+            buf.get(payload);
+            return check(payload, storedCrc, segment, offset);
+        }
+
+        private BBStoragePost check(byte[] payload, int storedCrc, int segment, long offset) {
+            CRC32 c = new CRC32();
+            c.update(payload);
+            if ((int)c.getValue() != storedCrc) return damaged(segment, offset);
+            return decode(payload);
+        }
+
+        private void readFully(ByteBuffer buf, long pos) throws IOException {
+            while (buf.hasRemaining()) {
+                int r = active.read(buf, pos);
+                if (r < 0) throw new EOFException();
+                pos += r;
+            }
+        }
+
+        private BBStoragePost damaged(int segment, long offset) {
+            System.err.println("Damaged record at " + offset + " of " + segmentFile(segment));
+            return null;
+        }
+
+        /**
+         * @return a read-only view of full segment number segment.
+         */
+        private ByteBuffer mapping(int segment) throws IOException {
+            while (mapped.size() <= segment) mapped.add(null);
+            MappedByteBuffer m = mapped.get(segment);
+            if (m == null) {
+                RandomAccessFile f = new RandomAccessFile(segmentFile(segment), "r");
+                try {
+                    m = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+                }
+                finally {
+                    // the mapping stays valid after the file is closed
+                    f.close();
+                }
+                mapped.set(segment, m);
+            }
+            return m.duplicate();
+        }
+
+        /**
+         * Scan the records from position end onwards, adding them to the
+         * index, and truncate the log after the last complete record.
+         * @throws IOException if a segment other than the last is damaged.
+         */
+        private void recover(long end) throws IOException {
+            int segment = (int)(end >>> SEGMENT_SHIFT);
+            long offset = end & ((1L << SEGMENT_SHIFT) - 1);
+            for (;;) {
+                File f = segmentFile(segment);
+                boolean last = !segmentFile(segment + 1).exists();
+                if (!f.exists()) {
+                    activeSegment = segment;
+                    openActive(0);
+                    return;
+                }
+                offset = scan(f, segment, offset);
+                if (last) {
+                    activeSegment = segment;
+                    if (offset < f.length()) {
+                        System.err.println("Truncating " + f + " at " + offset);
+                    }
+                    openActive(offset);
+                    return;
+                }
+                if (offset < f.length()) {
+                    // dropping the rest of the segment would give the posts
+                    // in later segments other sequence numbers.
+                    throw new IOException("Damaged record at " + offset + " of " + f);
+                }
+                segment++;
+                offset = 0;
+            }
+        }
+
+        /**
+         * Add the records of segment f from offset onwards to the index.
+         * @return the offset after the last intact record.
+         */
+        private long scan(File f, int segment, long offset) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+            try {
+                long length = f.length();
+                for (long skipped = 0; skipped < offset; ) {
+                    long k = in.skip(offset - skipped);
+                    if (k <= 0) return skipped;
+                    skipped += k;
+                }
+                CRC32 c = new CRC32();
+                while (offset + HEADER_SIZE <= length) {
+                    int len = in.readInt();
+                    int storedCrc = in.readInt();
+                    if (len >= 0) {
+                        if (offset + HEADER_SIZE + len > length) break;
+                        BBStoragePost p = readRecord(in, len, storedCrc, c);
+                        if (p == null) break;
+                        addEntry(p.timestamp, ((long)segment << SEGMENT_SHIFT) | offset, p.meta);
+                        offset += HEADER_SIZE + len;
+                        continue;
+                    }
+
+                    // a batch of -len records, of storedCrc bytes in all:
+                    // add all of them, or none.
+                    int n = -len;
+                    long size = storedCrc & 0xffffffffL;
+                    long end = offset + HEADER_SIZE + size;
+                    if (n <= 0 || end > length || (long)n * HEADER_SIZE > size) break;
+                    BBStoragePost[] ps = new BBStoragePost[n];
+                    long[] positions = new long[n];
+                    long pos = offset + HEADER_SIZE;
+                    int i = 0;
+                    for (; i < n && pos + HEADER_SIZE <= end; i++) {
+                        len = in.readInt();
+                        storedCrc = in.readInt();
+                        if (len < 0 || pos + HEADER_SIZE + len > end) break;
+                        ps[i] = readRecord(in, len, storedCrc, c);
+                        if (ps[i] == null) break;
+                        positions[i] = pos;
+                        pos += HEADER_SIZE + len;
+                    }
+                    if (i < n || pos != end) break;
+                    for (i = 0; i < n; i++) {
+                        addEntry(ps[i].timestamp, ((long)segment << SEGMENT_SHIFT) | positions[i], ps[i].meta);
+                    }
+                    offset = end;
+                }
+                return offset;
+            }
+            finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Read the payload of a record of len bytes from in.
+         * @return its post, or null if the record is damaged.
+         */
+        private BBStoragePost readRecord(DataInputStream in, int len, int storedCrc, CRC32 c) throws IOException {
+            byte[] payload = new byte[len];
+            in.readFully(payload);
+            c.reset();
+            c.update(payload);
+            if ((int)c.getValue() != storedCrc) return null;
+            return decode(payload);
+        }
+
+        /**
+         * Read the checkpointed index, if there is an intact one.
+         * @return the position in the log up to which the index is
+         * complete.
+         */
+        private long readCheckpoint() {
+            File f = new File(dir, CHECKPOINT_FILENAME);
+            if (!f.exists()) return 0;
+            try {
+                CheckedInputStream cin = new CheckedInputStream(new BufferedInputStream(new FileInputStream(f)), new CRC32());
+                DataInputStream in = new DataInputStream(cin);
+                try {
+                    if (in.readInt() != CHECKPOINT_VERSION) return 0;
+                    long end = in.readLong();
+                    // the counts may be damaged: they must fit in the file
+                    // before the checksum gives them away.
+                    int nMetas = in.readInt();
+                    if (nMetas < 0 || nMetas > f.length() / 4) return 0;
+                    String[] ms = new String[nMetas];
+                    for (int i = 0; i < nMetas; i++) {
+                        ms[i] = readString(in, f.length());
+                    }
+                    int n = in.readInt();
+                    if (n < 0 || n > f.length() / 20) return 0;
+                    long[] ts = new long[Math.max(256, n)];
+                    long[] ps = new long[ts.length];
+                    int[] ids = new int[ts.length];
+                    for (int i = 0; i < n; i++) {
+                        ts[i] = in.readLong();
+                        ps[i] = in.readLong();
+                        ids[i] = in.readInt();
+                        if (ids[i] < 0 || ids[i] >= nMetas) return 0;
+                    }
+                    long sum = cin.getChecksum().getValue();
+                    if (in.readLong() != sum) return 0;
+
+                    // the log must still extend to end.
+                    File seg = segmentFile((int)(end >>> SEGMENT_SHIFT));
+                    if (end != 0 && (!seg.exists() || seg.length() < (end & ((1L << SEGMENT_SHIFT) - 1)))) {
+                        return 0;
+                    }
+
+                    for (int i = 0; i < n; i++) {
+                        addEntry(ts[i], ps[i], ms[ids[i]]);
+                    }
+                    return end;
+                }
+                finally {
+                    in.close();
+                }
+            }
+            catch (IOException e) {
+                System.err.println("Ignoring checkpoint " + f + ": " + e.getMessage());
+                return 0;
+            }
+        }
+
+        private void writeCheckpoint() throws IOException {
+            File f = new File(dir, CHECKPOINT_FILENAME);
+            File tempFile = new File(dir, TEMP_FILE_PREFIX + CHECKPOINT_FILENAME);
+            FileOutputStream fos = new FileOutputStream(tempFile);
+            CheckedOutputStream cout = new CheckedOutputStream(new BufferedOutputStream(fos, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(cout);
+            try {
+                out.writeInt(CHECKPOINT_VERSION);
+                out.writeLong(((long)activeSegment << SEGMENT_SHIFT) | activeSize);
+                out.writeInt(metas.size());
+                for (String m : metas) {
+                    writeString(out, m);
+                }
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.writeLong(times[i]);
+                    out.writeLong(positions[i]);
+                    out.writeInt(metaIds[i]);
+                }
+                out.flush();
+                out.writeLong(cout.getChecksum().getValue());
+                out.flush();
+                fos.getFD().sync();
+            }
+            finally {
+                out.close();
+            }
+            // the checkpoint refers to records that must be on disk first.
+            active.force(false);
+            if (!tempFile.renameTo(f)) {
+                f.delete();
+                tempFile.renameTo(f);
+            }
+            sinceCheckpoint = 0;
+        }
+    }
+
+    private static byte[] encode(long t, String meta, String mesg, String sign) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64 + (mesg == null ? 0 : mesg.length()) + (sign == null ? 0 : sign.length()));
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeLong(t);
+        writeString(out, meta);
+        writeString(out, mesg);
+        writeString(out, sign);
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    /**
+     * @return the post encoded in payload, or null if it is malformed.
+     */
+    private static BBStoragePost decode(byte[] payload) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            long t = in.readLong();
+            String meta = readString(in);
+            String mesg = readString(in);
+            String sign = readString(in);
+            return new BBStoragePost(t, meta, mesg, sign);
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write s as its length and UTF-8 encoding, or as length -1 if s is
+     * null.
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bs = s.getBytes("UTF-8");
+        out.writeInt(bs.length);
+        out.write(bs);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return readString(in, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Read a string written by writeString, of at most max bytes.
+     */
+    private static String readString(DataInputStream in, long max) throws IOException {
+        int len = in.readInt();
+        if (len < 0) return null;
+        if (len > max) throw new IOException("Bad string length " + len);
+        byte[] bs = new byte[len];
+        in.readFully(bs);
+        return new String(bs, "UTF-8");
+    }
+}
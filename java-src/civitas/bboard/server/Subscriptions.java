@@ -0,0 +1,190 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.bboard.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Connections of clients that wait for posts to a board, with metas that
+ * start with some prefix.
+ *
+ * A subscribed connection is sent the sequence number of the last post to
+ * the board, and then, whenever posts that match are made, the sequence
+ * number of the last of them, a line each. The lines are written by a
+ * thread of their own, so that posting does not wait for subscribers; a
+ * subscriber that falls behind is sent only the latest sequence number.
+ *
+ * The following system properties apply:
+ * <ul>
+ * <li><code>civitas.bboard.server.maxsubscriptions</code>: the number of
+ * subscribed connections at once. Defaults to 1024.</li>
+ * <li><code>civitas.bboard.server.subscriptiontime</code>: the time in
+ * milliseconds after which a subscribed connection is closed, for the
+ * client to subscribe again if it still waits. Defaults to 600000.</li>
+ * </ul>
+ */
+class Subscriptions {
+    static final int MAX_SUBSCRIPTIONS = Math.max(0,
+            Integer.getInteger("civitas.bboard.server.maxsubscriptions", 1024).intValue());
+    static final long SUBSCRIPTION_TIME = Math.max(1,
+            Integer.getInteger("civitas.bboard.server.subscriptiontime", 600000).intValue());
+
+    /**
+     * Map from bulletin board ids to their subscribers.
+     */
+    private final Map<String, List<Subscriber>> boards = new HashMap<String, List<Subscriber>>();
+    private int count = 0;
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(daemon("bbs-notifier"));
+
+    /**
+     * Closes subscriptions whose time is up; this also unblocks the writer,
+     * if it is stuck on a subscriber that does not read.
+     */
+    private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, daemon("bbs-subscriptions"));
+
+    Subscriptions() {
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Subscribe connection s, which out writes to, to the posts on board
+     * bbid with metas that start with prefix, and send it seq, the
+     * sequence number of the last post to the board.
+     * @return false if there are too many subscriptions, in which case s is
+     * left alone.
+     */
+    boolean subscribe(String bbid, String prefix, Socket s, PrintWriter out, long seq) {
+        final Subscriber sub = new Subscriber(bbid, prefix == null ? "" : prefix, s, out);
+        synchronized (boards) {
+            if (count >= MAX_SUBSCRIPTIONS) return false;
+            List<Subscriber> l = boards.get(bbid);
+            if (l == null) {
+                l = new ArrayList<Subscriber>();
+                boards.put(bbid, l);
+            }
+            l.add(sub);
+            count++;
+        }
+        sub.expiry = timer.schedule(new Runnable() {
+            public void run() {
+                sub.close();
+            }
+        }, SUBSCRIPTION_TIME, TimeUnit.MILLISECONDS);
+        sub.post(seq);
+        return true;
+    }
+
+    /**
+     * Notify the subscribers that match of a post to board bbid with meta;
+     * seq is the sequence number of the post, or of a later one.
+     */
+    void posted(String bbid, String meta, long seq) {
+        List<Subscriber> matching = new ArrayList<Subscriber>();
+        synchronized (boards) {
+            List<Subscriber> l = boards.get(bbid);
+            if (l == null) return;
+            for (Subscriber sub : l) {
+                if (meta == null ? sub.prefix.length() == 0 : meta.startsWith(sub.prefix)) {
+                    matching.add(sub);
+                }
+            }
+        }
+        for (Subscriber sub : matching) {
+            sub.post(seq);
+        }
+    }
+
+    private void remove(Subscriber sub) {
+        synchronized (boards) {
+            List<Subscriber> l = boards.get(sub.bbid);
+            if (l != null && l.remove(sub)) {
+                count--;
+                if (l.isEmpty()) boards.remove(sub.bbid);
+            }
+        }
+    }
+
+    private class Subscriber implements Runnable {
+        final String bbid;
+        final String prefix;
+        final Socket s;
+        final PrintWriter out;
+        ScheduledFuture<?> expiry;
+
+        /**
+         * The latest sequence number to send, and the last one sent.
+         */
+        private long latest = -1;
+        private long sent = -1;
+        private boolean queued = false;
+        private boolean closed = false;
+
+        Subscriber(String bbid, String prefix, Socket s, PrintWriter out) {
+            this.bbid = bbid;
+            this.prefix = prefix;
+            this.s = s;
+            this.out = out;
+        }
+
+        void post(long seq) {
+            synchronized (this) {
+                if (closed) return;
+                if (seq > latest) latest = seq;
+                if (queued) return;
+                queued = true;
+            }
+            writer.execute(this);
+        }
+
+        public void run() {
+            long seq;
+            synchronized (this) {
+                queued = false;
+                if (closed || latest == sent) return;
+                seq = latest;
+            }
+            out.println(seq);
+            out.flush();
+            sent = seq;
+            if (out.checkError()) {
+                // the client has gone.
+                close();
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+            }
+            if (expiry != null) expiry.cancel(false);
+            remove(this);
+            try {
+                s.close();
+            }
+            catch (IOException ignore) { }
+        }
+    }
+
+    private static ThreadFactory daemon(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
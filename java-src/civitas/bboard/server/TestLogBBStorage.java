@@ -0,0 +1,304 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.bboard.server;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that LogBBStorage recovers its boards from the log after a crash:
+ * a record cut short at the end of the log, a damaged checkpoint, and a
+ * batch of posts cut short or damaged, which is dropped as a whole; and
+ * that it refuses to open a board with a damaged record in a full segment.
+ * The segments are made small, so that a few posts fill several of them.
+ *
+ * Run with a scratch directory as argument, which is deleted first.
+ */
+public class TestLogBBStorage {
+    private static final String BOARD = "board";
+
+    private static File root;
+    private static GenericBBS bbs;
+
+    public static void test(String s, boolean b) {
+        System.out.println(s + " ? " + (b ? "ok" : "oops !!!!!!!!!!!!!!!!!!!!!!!!!!!!"));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: TestLogBBStorage scratchdir");
+            System.exit(1);
+        }
+        System.setProperty("civitas.bboard.server.segmentsize", Integer.toString(1 << 16));
+        root = new File(args[0]);
+
+        System.out.println("= reopenTest =");
+        reopenTest();
+        System.out.println("= truncatedTest =");
+        truncatedTest();
+        System.out.println("= checkpointTest =");
+        checkpointTest();
+        System.out.println("= damagedSegmentTest =");
+        damagedSegmentTest();
+        System.out.println("= batchTest =");
+        batchTest();
+    }
+
+    /**
+     * @return a fresh storage with an empty board.
+     */
+    private static LogBBStorage fresh() throws IOException {
+        delete(root);
+        root.mkdirs();
+        bbs = new GenericBBS(root, (short)0, null, null, null, null);
+        LogBBStorage s = new LogBBStorage(root, bbs);
+        s.storeAcceptance(BOARD, null);
+        return s;
+    }
+
+    /**
+     * @return the storage as found after a restart.
+     */
+    private static LogBBStorage reopen() {
+        return new LogBBStorage(root, bbs);
+    }
+
+    private static String msg(int i, int size) {
+        StringBuffer sb = new StringBuffer("msg" + i + ":");
+        while (sb.length() < size) sb.append('x');
+        return sb.toString();
+    }
+
+    private static void post(LogBBStorage s, int from, int to, int size) throws IOException {
+        for (int i = from; i < to; i++) {
+            s.post(BOARD, "meta" + (i % 3), msg(i, size), "sig" + i);
+        }
+    }
+
+    private static long[] postAll(LogBBStorage s, int from, int to, int size) throws IOException {
+        List<BBStoragePost> l = new ArrayList<BBStoragePost>();
+        for (int i = from; i < to; i++) {
+            l.add(new BBStoragePost(-1, "meta" + (i % 3), msg(i, size), "sig" + i));
+        }
+        return s.postAll(BOARD, l);
+    }
+
+    private static List<BBStoragePost> posts(LogBBStorage s, String meta) throws IOException {
+        final List<BBStoragePost> l = new ArrayList<BBStoragePost>();
+        s.processPosts(new BBStorage.PostProcessor() {
+            public void processPost(BBStoragePost p) {
+                l.add(p);
+            }
+        }, BOARD, meta, null, null);
+        return l;
+    }
+
+    /**
+     * @return whether the posts are numbers from .. to - 1 of post, in
+     * order, with consecutive sequence numbers.
+     */
+    private static boolean arePosts(List<BBStoragePost> l, int from, int to, int size) {
+        if (l.size() != to - from) return false;
+        for (int i = from; i < to; i++) {
+            BBStoragePost p = l.get(i - from);
+            if (p.seq != i + 1 || !("meta" + (i % 3)).equals(p.meta) ||
+                    !msg(i, size).equals(p.msg) || !("sig" + i).equals(p.sig)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static File logDir() {
+        return new File(new File(root, BOARD), "log");
+    }
+
+    private static File[] segments() {
+        File[] fs = logDir().listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".log");
+            }
+        });
+        java.util.Arrays.sort(fs);
+        return fs;
+    }
+
+    static void reopenTest() throws IOException {
+        LogBBStorage s = fresh();
+        post(s, 0, 10, 100);
+        test("posts", arePosts(posts(s, null), 0, 10, 100));
+        s = reopen();
+        test("posts after reopening", arePosts(posts(s, null), 0, 10, 100));
+        test("last sequence after reopening", s.lastSequence(BOARD) == 10);
+        List<BBStoragePost> l = posts(s, "meta1");
+        test("posts with meta after reopening", l.size() == 3 && l.get(0).seq == 2 && l.get(2).seq == 8);
+        post(s, 10, 12, 100);
+        test("posts after reopening and posting", arePosts(posts(reopen(), null), 0, 12, 100));
+    }
+
+    static void truncatedTest() throws IOException {
+        LogBBStorage s = fresh();
+        post(s, 0, 5, 100);
+        File seg = segments()[0];
+        long length = seg.length();
+
+        // a crash in the middle of the last post.
+        truncate(seg, length - 10);
+        s = reopen();
+        test("record cut short is dropped", arePosts(posts(s, null), 0, 4, 100));
+        test("log truncated after the last intact record", seg.length() < length - 10);
+        post(s, 4, 6, 100);
+        test("posts after a record cut short", arePosts(posts(reopen(), null), 0, 6, 100));
+
+        // a crash in the middle of the header of the last post.
+        length = seg.length();
+        post(s, 6, 7, 100);
+        truncate(seg, length + 5);
+        s = reopen();
+        test("header cut short is dropped", arePosts(posts(s, null), 0, 6, 100));
+        test("log truncated after a header cut short", seg.length() == length);
+    }
+
+    static void checkpointTest() throws IOException {
+        LogBBStorage s = fresh();
+        post(s, 0, 5, 100);
+        // closing the board checkpoints the index.
+        s.closeBoard(BOARD);
+        File index = new File(logDir(), "index");
+        test("checkpoint written", index.exists());
+        post(s, 5, 8, 100);
+        test("posts after checkpoint", arePosts(posts(reopen(), null), 0, 8, 100));
+
+        // posts after the checkpoint, the last cut short.
+        File seg = segments()[0];
+        truncate(seg, seg.length() - 10);
+        s = reopen();
+        test("record after checkpoint cut short is dropped", arePosts(posts(s, null), 0, 7, 100));
+
+        // a checkpoint that fails its CRC is ignored, and the log scanned.
+        s.closeBoard(BOARD);
+        damage(index, index.length() / 2);
+        s = reopen();
+        test("damaged checkpoint ignored", arePosts(posts(s, null), 0, 7, 100));
+        test("meta index rebuilt without checkpoint", posts(s, "meta2").size() == 2);
+
+        // a checkpoint beyond the end of the log is ignored.
+        s.closeBoard(BOARD);
+        truncate(seg, seg.length() - 10);
+        s = reopen();
+        test("checkpoint beyond the log ignored", arePosts(posts(s, null), 0, 6, 100));
+
+        // a checkpoint with a damaged count of metas or posts is ignored.
+        s.closeBoard(BOARD);
+        damage(index, 12);
+        s = reopen();
+        test("checkpoint with damaged count of metas ignored", arePosts(posts(s, null), 0, 6, 100));
+        s.closeBoard(BOARD);
+        damage(index, index.length() - 8 - 6 * 20 - 4);
+        s = reopen();
+        test("checkpoint with damaged count of posts ignored", arePosts(posts(s, null), 0, 6, 100));
+        s.closeBoard(BOARD);
+        damage(index, 16);
+        s = reopen();
+        test("checkpoint with damaged meta ignored", arePosts(posts(s, null), 0, 6, 100));
+    }
+
+    static void damagedSegmentTest() throws IOException {
+        LogBBStorage s = fresh();
+        // about 16 posts fit in a segment.
+        post(s, 0, 40, 4000);
+        File[] segs = segments();
+        test("several segments", segs.length == 3);
+        test("posts over several segments", arePosts(posts(reopen(), null), 0, 40, 4000));
+
+        // a damaged record in a full segment fails the opening of the
+        // board, rather than renumbering the posts after it.
+        damage(segs[0], segs[0].length() / 2);
+        try {
+            posts(reopen(), null);
+            test("damaged full segment fails the opening", false);
+        }
+        catch (IOException e) {
+            test("damaged full segment fails the opening", true);
+        }
+        test("damaged segment left as it was", segments().length == 3 && segments()[0].length() == segs[0].length());
+    }
+
+    static void batchTest() throws IOException {
+        LogBBStorage s = fresh();
+        post(s, 0, 3, 100);
+        long[] ts = postAll(s, 3, 7, 100);
+        test("batch timestamps", ts.length == 4 && ts[0] == ts[3]);
+        test("batch posts after reopening", arePosts(posts(reopen(), null), 0, 7, 100));
+
+        // a crash in the middle of writing a batch drops all of it.
+        File seg = segments()[0];
+        long length = seg.length();
+        postAll(s, 7, 11, 100);
+        long batchLength = seg.length() - length;
+        truncate(seg, seg.length() - 10);
+        s = reopen();
+        test("batch cut short is dropped", arePosts(posts(s, null), 0, 7, 100));
+        test("log truncated before a batch cut short", seg.length() == length);
+
+        // as does a damaged record in it.
+        postAll(s, 7, 11, 100);
+        damage(seg, length + batchLength / 2);
+        s = reopen();
+        test("damaged batch is dropped", arePosts(posts(s, null), 0, 7, 100));
+
+        // posts after a checkpoint, in a batch.
+        s.closeBoard(BOARD);
+        postAll(s, 7, 11, 100);
+        post(s, 11, 12, 100);
+        s = reopen();
+        test("batch after checkpoint", arePosts(posts(s, null), 0, 12, 100));
+        test("batch meta index", posts(s, "meta1").size() == 4);
+
+        // a batch that does not fit in the rest of a segment starts the
+        // next one.
+        s = fresh();
+        post(s, 0, 10, 4000);
+        postAll(s, 10, 20, 4000);
+        test("batch starts a new segment", segments().length == 2);
+        test("batch in new segment after reopening", arePosts(posts(reopen(), null), 0, 20, 4000));
+    }
+
+    private static void truncate(File f, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(length);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private static void damage(File f, long pos) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0xff);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private static void delete(File f) {
+        File[] fs = f.listFiles();
+        if (fs != null) {
+            for (int i = 0; i < fs.length; i++) {
+                delete(fs[i]);
+            }
+        }
+        f.delete();
+    }
+}
@@ -43,7 +43,7 @@ class TransientBBStorage  implements BBStorage {
         if (isBoardClosed(bbid)) return -1;
         Board b = boards.get(bbid);
         if (b == null) return -1;
-        BBStoragePost p = new BBStoragePost(System.currentTimeMillis(), meta, mesg, sign);
+        BBStoragePost p = new BBStoragePost(b.allPosts.size() + 1, System.currentTimeMillis(), meta, mesg, sign);
         b.allPosts.add(p);
         List<BBStoragePost> metaList = b.metaIndex.get(meta);
         if (metaList == null) {
@@ -54,6 +54,28 @@ class TransientBBStorage  implements BBStorage {
         return p.timestamp;
     }
 
+    public long[] postAll(String bbid, List<BBStoragePost> posts) throws IOException {
+        long[] ts = new long[posts.size()];
+        Arrays.fill(ts, -1);
+        if (isBoardClosed(bbid)) return ts;
+        Board b = boards.get(bbid);
+        if (b == null) return ts;
+        long t = System.currentTimeMillis();
+        for (int i = 0; i < ts.length; i++) {
+            BBStoragePost q = posts.get(i);
+            BBStoragePost p = new BBStoragePost(b.allPosts.size() + 1, t, q.meta, q.msg, q.sig);
+            b.allPosts.add(p);
+            List<BBStoragePost> metaList = b.metaIndex.get(q.meta);
+            if (metaList == null) {
+                metaList = new ArrayList<BBStoragePost>(200);
+                b.metaIndex.put(q.meta, metaList);
+            }
+            metaList.add(p);
+            ts[i] = t;
+        }
+        return ts;
+    }
+
     public void processPosts(PostProcessor pp, String bbid, String meta, String fromTime, String toTime) throws IOException {
         long from = Long.MIN_VALUE;
         long to = Long.MAX_VALUE;
@@ -72,6 +94,36 @@ class TransientBBStorage  implements BBStorage {
             }
         }
     }
+    public void processPostsSince(PostProcessor pp, String bbid, String meta, long since) throws IOException {
+        Board b = boards.get(bbid);
+        if (b == null) return;
+        List<BBStoragePost> l = b.allPosts;
+        if (meta != null && meta.length() > 0) {
+            l = b.metaIndex.get(meta);
+        }
+        if (l == null) return;
+
+        // the lists are in order of sequence numbers: find the first post
+        // after since.
+        int n = l.size();
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (l.get(mid).seq <= since) lo = mid + 1;
+            else hi = mid;
+        }
+        for (int i = lo; i < n; i++) {
+            pp.processPost(l.get(i));
+        }
+    }
+    public long lastSequence(String bbid) throws IOException {
+        Board b = boards.get(bbid);
+        if (b == null) return 0;
+        return b.allPosts.size();
+    }
+    public boolean keepsPostingOrder() {
+        return true;
+    }
     public void storeAcceptance(String bbid, PublicKey ownerPublicKey) throws IOException {
         Board b = boards.get(bbid);
         if (b == null) {
@@ -99,6 +99,7 @@ class FileBasedDistDecryptCache implements DistDecryptCache {
                 PrintWriter fout = this.electionCache.getFilePrintWriter(cachename);
                 if (fout != null) {
                     fout.println(ciphertexts.length);
+                    CryptoUtil.factory().normalizeCiphertexts(LabelUtil.singleton().noComponents(), ciphertexts);
                     for (int i = 0; i < ciphertexts.length; i++) {
                         if (ciphertexts[i] != null) {
                             ciphertexts[i].toXML(LabelUtil.singleton().noComponents(),fout);
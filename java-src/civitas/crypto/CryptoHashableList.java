@@ -22,6 +22,19 @@ public class CryptoHashableList extends ArrayList<CryptoHashable> {
         return super.add(new CryptoHashable(x));
     }
 
+    /**
+     * Add the points of xs in order, putting them in affine form with a
+     * single field inversion.
+     */
+    public boolean addAll(ECPoint[] xs) {
+        byte[][] bs = PointBatch.encodeAll(xs);
+        ensureCapacity(size() + bs.length);
+        for (int i = 0; i < bs.length; i++) {
+            super.add(new CryptoHashable(bs[i]));
+        }
+        return bs.length > 0;
+    }
+
     public boolean add(BigInteger x) {
         return super.add(new CryptoHashable(x));
     }
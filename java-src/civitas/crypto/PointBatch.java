@@ -0,0 +1,93 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.crypto;
+
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECPoint;
+
+/**
+ * Batch normalization of elliptic curve points.
+ *
+ * Encoding, hashing or comparing a point requires it in affine form, and
+ * putting a projective point in affine form costs a field inversion, which
+ * is far more expensive than a field multiplication. With Montgomery's
+ * simultaneous inversion trick, n points are put in affine form with a
+ * single inversion and 3(n-1) multiplications. Code that encodes arrays of
+ * points, such as mixes and proof transcripts, should normalize the whole
+ * array first.
+ */
+public class PointBatch {
+    private PointBatch() { }
+
+    /**
+     * Replace every point of ps by the same point in affine form. Null
+     * entries, the point at infinity and points already in affine form are
+     * left as they are. The points need not all be on the same curve.
+     */
+    public static void normalizeAll(ECPoint[] ps) {
+        if (ps == null) return;
+        normalizeAll(ps, 0, ps.length);
+    }
+
+    /**
+     * Replace ps[off], ..., ps[off+len-1] by the same points in affine
+     * form.
+     */
+    public static void normalizeAll(ECPoint[] ps, int off, int len) {
+        // gather the points that need an inversion, curve by curve; in
+        // practice there is only one curve.
+        ECPoint[] todo = null;
+        int[] at = null;
+        boolean[] done = null;
+        for (int start = off; start < off + len; start++) {
+            ECPoint first = ps[start];
+            if (first == null || first.isInfinity() || first.isNormalized()) continue;
+            if (done != null && done[start - off]) continue;
+            if (todo == null) {
+                todo = new ECPoint[len];
+                at = new int[len];
+                done = new boolean[len];
+            }
+
+            ECCurve curve = first.getCurve();
+            int count = 0;
+            for (int i = start; i < off + len; i++) {
+                ECPoint p = ps[i];
+                if (p == null || done[i - off] || p.isInfinity() || p.isNormalized()) continue;
+                if (p.getCurve() != curve && !p.getCurve().equals(curve)) continue;
+                todo[count] = p;
+                at[count] = i;
+                done[i - off] = true;
+                count++;
+            }
+            if (count == 1) {
+                ps[at[0]] = todo[0].normalize();
+                continue;
+            }
+            curve.normalizeAll(todo, 0, count, null);
+            for (int i = 0; i < count; i++) {
+                ps[at[i]] = todo[i];
+            }
+        }
+    }
+
+    /**
+     * @return the compressed encodings of the points of ps, computed with a
+     * single field inversion per curve. Null entries encode as null.
+     */
+    public static byte[][] encodeAll(ECPoint[] ps) {
+        ECPoint[] normalized = ps.clone();
+        normalizeAll(normalized);
+        byte[][] ret = new byte[ps.length][];
+        for (int i = 0; i < ps.length; i++) {
+            if (normalized[i] != null) {
+                ret[i] = normalized[i].getEncoded(true);
+            }
+        }
+        return ret;
+    }
+}
@@ -11,21 +11,30 @@ import java.security.SecureRandom;
 
 import civitas.crypto.CryptoError;
 import civitas.util.CivitasBigInteger;
+import civitas.util.ModulusContext;
 
 class CryptoAlgs {
 	protected final static CivitasBigInteger ZERO = CivitasBigInteger.ZERO;
 	protected final static CivitasBigInteger ONE = CivitasBigInteger.ONE;
 	protected final static CivitasBigInteger TWO = CivitasBigInteger.valueOf(2);
 
-	// TODO: should we be requesting a specific RNG algorithm in the constructor call?
-	private static SecureRandom rng = new SecureRandom();
+	/**
+	 * Number of random bits drawn beyond the length of the modulus when
+	 * reducing random numbers; the statistical distance from uniform is
+	 * at most 2^-WIDE_REDUCTION_BITS.
+	 */
+	private final static int WIDE_REDUCTION_BITS = 128;
 
 	private CryptoAlgs() {
 		// No instantiation allowed
 	}
 
+	/**
+	 * @return The random number generator of the current thread.
+	 * @see ThreadRandom
+	 */
 	public static SecureRandom rng() {
-		return rng;
+		return ThreadRandom.get();
 	}
 
 	/**
@@ -119,9 +128,10 @@ class CryptoAlgs {
 		CivitasBigInteger p = sp.p;
 		CivitasBigInteger negONE = p.subtract(ONE); // -1 mod p
 		CivitasBigInteger twoK = p.subtract(ONE).divide(sp.q);  // (p-1)/q = 2k
+		ModulusContext ctx = p.modulusContext();
 		do {
 			g = randomElement(p);
-			g = g.modPow(twoK, p);
+			g = g.modPow(twoK, ctx);
 			reject = g.equals(ONE) || g.equals(negONE);
 		} while (reject);
 
@@ -147,15 +157,31 @@ class CryptoAlgs {
 	 * @return A random element from Z*_n, where n is prime, or equivalently from [1..n-1].
 	 */
 	protected static BigInteger randomElementDefault(BigInteger n) {
-		BigInteger r = null;
-		do {
-			r = new BigInteger(n.bitLength(), rng());
-		} while (r.equals(BigInteger.ZERO) || r.compareTo(n) >= 0); // while r >= n
-		// The guard is necessary because the BigInteger constructor returns
-		// a random element from [0..2^|n|-1], which is not distributed
-		// the same as [1..n-1].
+		return randomScalars(1, n)[0];
+	}
 
-		return r;
+	/**
+	 * @return count random elements from [1..n-1], for n > 2.
+	 *
+	 * Each element is a random number WIDE_REDUCTION_BITS bits longer than
+	 * n, reduced mod n-1, plus one, rather than a random number of the
+	 * length of n drawn until it falls in range: this draws a fixed number
+	 * of bits, with a single call to the random number generator for all
+	 * the elements.
+	 */
+	protected static BigInteger[] randomScalars(int count, BigInteger n) {
+		BigInteger nMinusOne = n.subtract(BigInteger.ONE);
+		int len = (n.bitLength() + WIDE_REDUCTION_BITS + 7) / 8;
+		byte[] bs = new byte[count * len];
+		rng().nextBytes(bs);
+
+		BigInteger[] rs = new BigInteger[count];
+		byte[] b = new byte[len];
+		for (int i = 0; i < count; i++) {
+			System.arraycopy(bs, i * len, b, 0, len);
+			rs[i] = new BigInteger(1, b).mod(nMinusOne).add(BigInteger.ONE);
+		}
+		return rs;
 	}
 
 	/**
@@ -178,7 +204,7 @@ class CryptoAlgs {
 	 * @return The Legendre symbol J_p(a):  1 if a \in QR_p, 0 if a mod p = 0, -1 otherwise.
 	 */
 	protected static int legendreSymbol(CivitasBigInteger a, CivitasBigInteger p, CivitasBigInteger q) {
-		CivitasBigInteger j = a.modPow(q, p);
+		CivitasBigInteger j = a.modPow(q, p.modulusContext());
 		if (j.equals(ONE)) {
 			return 1;
 		} else if (j.equals(p.subtract(ONE))) {
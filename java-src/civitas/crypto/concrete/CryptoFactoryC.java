@@ -30,6 +30,7 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.math.ec.ECCurve;
 import org.bouncycastle.math.ec.ECPoint;
 
+import civitas.common.CiphertextList;
 import civitas.common.Util;
 import civitas.crypto.*;
 import civitas.crypto.KeyPair;
@@ -46,8 +47,8 @@ public class CryptoFactoryC implements CryptoFactory {
     /*
      * The following constants define the algorithms and providers to use.
      */
-    private final String MESSAGE_DIGEST_ALG = "SHA-256";
-    private final String MESSAGE_DIGEST_PROVIDER = null; // use any provider
+    static final String MESSAGE_DIGEST_ALG = "SHA-256";
+    static final String MESSAGE_DIGEST_PROVIDER = null; // use any provider
 
     private final String SHARED_KEY_ALG = "AES";
     private final String SHARED_KEY_CIPHER_ALG = "AES"; //"AES/CBC/PKCS7Padding";
@@ -63,21 +64,6 @@ public class CryptoFactoryC implements CryptoFactory {
     private Map<String, KeyGenerator> sharedKeyGenerators = new HashMap<String, KeyGenerator>();
     private Map<String, KeyPairGenerator> publicKeyGenerators = new HashMap<String, KeyPairGenerator>();
     private SecretKeyFactory sharedKeyFactory;
-    private KeyFactory publicKeyFactory;
-
-    // count the number of operations
-    private static long numPublicKeyEncs = 0;
-    private static long numPublicKeyDecs = 0;
-    private static long numPublicKeySign = 0;
-    private static long numPublicKeyVerifySig = 0;
-    private static long numSharedKeyEncs = 0;
-    private static long numSharedKeyDecs = 0;
-    private static long numElGamalEncs = 0;
-    private static long numElGamalReencs = 0;
-    private static long numElGamalDecs = 0;
-    private static long numElGamalDecShare = 0;
-    private static long numElGamalSignedEncs = 0;
-    private static long numElGamalVerifies = 0;
 
     static {
         BouncyCastleProvider bc = new BouncyCastleProvider();
@@ -176,7 +162,8 @@ public class CryptoFactoryC implements CryptoFactory {
         sharedKeyFactory = skf;
 
         try {
-            publicKeyFactory = KeyFactory.getInstance(PUBLIC_KEY_ALG, PUBLIC_KEY_PROVIDER);
+            // each thread uses its own key factory; check that one can be made.
+            publicKeyFactory();
         }
         catch (NoSuchAlgorithmException e) {
             throw new CryptoError("Cannot find public key algorithm " + PUBLIC_KEY_ALG);
@@ -255,7 +242,7 @@ public class CryptoFactoryC implements CryptoFactory {
         // choose x in Z_q at random. This is the share of the private key.
         BigInteger x = CryptoAlgs.randomElementDefault(ps.params.getN());
         // the public part of the key is y
-        ECPoint y = ps.params.getG().multiply(x);
+        ECPoint y = FixedBaseCache.multiply(ps.params.getG(), x).normalize();
 
         ElGamalPublicKey pub = new ElGamalPublicKeyC(y, params);
         ElGamalPrivateKey priv = new ElGamalPrivateKeyC(x, params);
@@ -370,7 +357,7 @@ public class CryptoFactoryC implements CryptoFactory {
                 accum = accum.add(((ElGamalPublicKeyC)s.pubKey()).y);
             }
         }
-        return new ElGamalPublicKeyC(accum, params);
+        return new ElGamalPublicKeyC(accum.normalize(), params);
     }
 
     public ElGamalReencryptFactor generateElGamalReencryptFactor(ElGamalParameters params) {
@@ -382,8 +369,50 @@ public class CryptoFactoryC implements CryptoFactory {
         }
     }
 
+    /**
+     * Start precomputing re-encryption pads for key in the background.
+     * Factors from generateElGamalReencryptFactors for key then come with
+     * their pads, and encrypting or re-encrypting with them under key
+     * costs two point additions.
+     * @see ReencryptPadPool
+     */
+    public void precomputeReencryptFactors(ElGamalPublicKey key) {
+        try {
+            ReencryptPadPool.forKey((ElGamalPublicKeyC)key).start();
+        } catch (ClassCastException e) {
+            throw new CryptoError(e);
+        }
+    }
+
+    /**
+     * @return count fresh factors for encrypting or re-encrypting under key.
+     * They are taken from the precomputed pads for key while there are any,
+     * and drawn at random otherwise.
+     */
+    public ElGamalReencryptFactor[] generateElGamalReencryptFactors(Label lbl, ElGamalPublicKey key, int count) {
+        try {
+            ElGamalPublicKeyC k = (ElGamalPublicKeyC) key;
+            ElGamalParametersC ps = (ElGamalParametersC) key.getParams();
+            ElGamalReencryptFactor[] ret = new ElGamalReencryptFactor[Math.max(count, 0)];
+            ReencryptPadPool pool = ReencryptPadPool.peek(k);
+            ReencryptPadPool.Pad[] pads = pool == null ? new ReencryptPadPool.Pad[0] : pool.take(ret.length);
+            for (int i = 0; i < pads.length; i++) {
+                ret[i] = new ElGamalReencryptFactorC(pads[i].r, k.y, pads[i].gr, pads[i].yr);
+            }
+            if (pads.length < ret.length) {
+                BigInteger[] rs = CryptoAlgs.randomScalars(ret.length - pads.length, ps.params.getN());
+                for (int i = pads.length; i < ret.length; i++) {
+                    ret[i] = new ElGamalReencryptFactorC(rs[i - pads.length]);
+                }
+            }
+            return ret;
+        } catch (ClassCastException e) {
+            throw new CryptoError(e);
+        }
+    }
+
     public ElGamalCiphertext elGamalEncrypt(ElGamalPublicKey key, ElGamalMsg msg) {
-        return elGamalEncrypt(key, msg, generateElGamalReencryptFactor(key.getParams()));
+        return elGamalEncrypt(key, msg, generateElGamalReencryptFactors(null, key, 1)[0]);
     }
 
     public ElGamalCiphertext elGamalEncrypt(
@@ -391,22 +420,28 @@ public class CryptoFactoryC implements CryptoFactory {
         ElGamalMsg msg,
         ElGamalReencryptFactor encryptFactor)
     {
+        long start = CryptoMetrics.ELGAMAL_ENC.start();
         try {
-            numElGamalEncs++;
             ElGamalParametersC ps = (ElGamalParametersC) key.getParams();
             ElGamalPublicKeyC k = (ElGamalPublicKeyC) key;
-            BigInteger r = ((ElGamalReencryptFactorC) encryptFactor).r;
+            ElGamalReencryptFactorC f = (ElGamalReencryptFactorC) encryptFactor;
             ECPoint m = ((ElGamalMsgC) msg).pointValue();
-            ECPoint a = ps.params.getG().multiply(r);
-            ECPoint b = m.add(k.y.multiply(r));
+            if (f.hasPadFor(k.y)) {
+                return new ElGamalCiphertextC(f.gr, m.add(f.yr));
+            }
+            ECPoint a = FixedBaseCache.multiply(ps.params.getG(), f.r);
+            ECPoint b = m.add(FixedBaseCache.multiply(k.y, f.r));
             return new ElGamalCiphertextC(a, b);
         } catch (ClassCastException e) {
             throw new CryptoError(e);
         }
+        finally {
+            CryptoMetrics.ELGAMAL_ENC.stop(start);
+        }
     }
 
     public ElGamalCiphertext elGamalReencrypt(ElGamalPublicKey key, ElGamalCiphertext ciphertext) {
-        return elGamalReencrypt(key, ciphertext, generateElGamalReencryptFactor(key.getParams()));
+        return elGamalReencrypt(key, ciphertext, generateElGamalReencryptFactors(null, key, 1)[0]);
     }
 
     public ElGamalCiphertext elGamalReencrypt(
@@ -414,20 +449,24 @@ public class CryptoFactoryC implements CryptoFactory {
         ElGamalCiphertext ciphertext,
         ElGamalReencryptFactor factor)
     {
+        long start = CryptoMetrics.ELGAMAL_REENC.start();
         try {
-            numElGamalReencs++;
             ElGamalParametersC ps = (ElGamalParametersC) key.getParams();
             ElGamalPublicKeyC k = (ElGamalPublicKeyC) key;
             ElGamalCiphertextC c = (ElGamalCiphertextC) ciphertext;
-            ECPoint a = c.a;
-            ECPoint b = c.b;
-            BigInteger r = ((ElGamalReencryptFactorC) factor).r;
-            a = a.add(ps.params.getG().multiply(r));
-            b = b.add(k.y.multiply(r));
+            ElGamalReencryptFactorC f = (ElGamalReencryptFactorC) factor;
+            if (f.hasPadFor(k.y)) {
+                return new ElGamalCiphertextC(c.a.add(f.gr), c.b.add(f.yr));
+            }
+            ECPoint a = c.a.add(FixedBaseCache.multiply(ps.params.getG(), f.r));
+            ECPoint b = c.b.add(FixedBaseCache.multiply(k.y, f.r));
             return new ElGamalCiphertextC(a, b);
         } catch (ClassCastException e) {
             throw new CryptoError(e);
         }
+        finally {
+            CryptoMetrics.ELGAMAL_REENC.stop(start);
+        }
     }
 
 
@@ -443,7 +482,13 @@ public class CryptoFactoryC implements CryptoFactory {
     }
 
     private ElGamalProof1OfLC constructElGamalProof1OfL(ElGamalPublicKeyC key, ElGamalCiphertext[] ciphertexts, int L, int choice, ElGamalCiphertextC m, ElGamalReencryptFactorC factor) {
-        return ElGamalProof1OfLC.constructProof(key, ciphertexts, L, choice, m, factor);
+        long start = CryptoMetrics.PROOF_CONSTRUCT.start();
+        try {
+            return ElGamalProof1OfLC.constructProof(key, ciphertexts, L, choice, m, factor);
+        }
+        finally {
+            CryptoMetrics.PROOF_CONSTRUCT.stop(start);
+        }
     }
 
     /**
@@ -451,11 +496,17 @@ public class CryptoFactoryC implements CryptoFactory {
      * @throws CryptoException If m does not decode to a plaintext i such that 1 <= i <= L.
      */
     public int elGamal1OfLValue(ElGamalMsg m, int L, ElGamalParameters params) throws CryptoException {
-        ElGamalMsgC mc = (ElGamalMsgC)m;
-        ElGamalParametersC paramsc = (ElGamalParametersC) params;
-        // return the int value minus 1, since the well-known ciphertext list is
-        // (1, 2, 3, ...), and we want to return the index of the value.
-        return paramsc.bruteForceDecode(mc.pointValue(), L) - 1;
+        long start = CryptoMetrics.ELGAMAL_DECODE.start();
+        try {
+            ElGamalMsgC mc = (ElGamalMsgC)m;
+            ElGamalParametersC paramsc = (ElGamalParametersC) params;
+            // return the int value minus 1, since the well-known ciphertext list is
+            // (1, 2, 3, ...), and we want to return the index of the value.
+            return paramsc.bruteForceDecode(mc.pointValue(), L) - 1;
+        }
+        finally {
+            CryptoMetrics.ELGAMAL_DECODE.stop(start);
+        }
     }
     /**
      * Construct a well known ciphertext list. Needs to be coordinated with elGamal1OfLValue(ElGamalMsg)
@@ -502,12 +553,14 @@ public class CryptoFactoryC implements CryptoFactory {
     byte[] hash(CryptoHashableList l) {
         // Compute the hash by updating a message digest
         // with the byte representation of the big ints.
-        MessageDigest md = messageDigest(LabelUtil.singleton().noComponents());
+        MessageDigestC md = takePooledDigest(LabelUtil.singleton().noComponents());
         for (Iterator iter = l.iterator(); iter.hasNext();) {
             CryptoHashable h = (CryptoHashable)iter.next();
             md.update(h.bytes);
         }
-        return md.digest();
+        byte[] ret = md.digest();
+        givePooledDigest(md);
+        return ret;
     }
     BigInteger hash(CryptoHashable a) {
         return hash(a, null);
@@ -516,7 +569,7 @@ public class CryptoFactoryC implements CryptoFactory {
         return hash(a,b,null);
     }
     BigInteger hash(ECPoint a, ECPoint b) {
-        return hash(new CryptoHashable(a), new CryptoHashable(b), null);
+        return hashToDefaultBigInt(Transcript.start().point(a).point(b).digest());
     }
     BigInteger hash(CryptoHashable a, CryptoHashable b, CryptoHashable c) {
         return hash(a,b,c,null);
@@ -524,20 +577,17 @@ public class CryptoFactoryC implements CryptoFactory {
     BigInteger hash(CryptoHashable a, CryptoHashable b, CryptoHashable c, CryptoHashable d) {
         // Compute the hash by updating a message digest
         // with the byte representation of the big ints.
-        MessageDigest md = messageDigest(LabelUtil.singleton().noComponents());
+        MessageDigestC md = takePooledDigest(LabelUtil.singleton().noComponents());
         if (a != null) md.update(a.bytes);
         if (b != null) md.update(b.bytes);
         if (c != null) md.update(c.bytes);
         if (d != null) md.update(d.bytes);
-        return hashToDefaultBigInt(md.digest());
+        byte[] ret = md.digest();
+        givePooledDigest(md);
+        return hashToDefaultBigInt(ret);
     }
     BigInteger hash(ECPoint a, ECPoint b, ECPoint c, byte[] d) {
-        return hash(
-            new CryptoHashable(a),
-            new CryptoHashable(b),
-            new CryptoHashable(c),
-            new CryptoHashable(d)
-        );
+        return hashToDefaultBigInt(Transcript.start().point(a).point(b).point(c).bytes(d).digest());
     }
 
 
@@ -553,47 +603,104 @@ public class CryptoFactoryC implements CryptoFactory {
         ElGamalReencryptFactor r,
         byte[] additionalEnv)
     {
+        long start = CryptoMetrics.ELGAMAL_SIGNED_ENC.start();
         try {
-            numElGamalSignedEncs++;
             ElGamalParametersC ps = (ElGamalParametersC) key.getParams();
             ElGamalPublicKeyC k = (ElGamalPublicKeyC) key;
             ECPoint m = ((ElGamalMsgC) msg).pointValue();
             BigInteger rr = ((ElGamalReencryptFactorC)r).r;
             BigInteger s = CryptoAlgs.randomElementDefault(ps.params.getN());
-            ECPoint a = ps.params.getG().multiply(rr);
-            ECPoint b = m.add(k.y.multiply(rr));
+            ECPoint a = FixedBaseCache.multiply(ps.params.getG(), rr);
+            ECPoint b = m.add(FixedBaseCache.multiply(k.y, rr));
 
-            BigInteger c = hash(ps.params.getG().multiply(s), a, b, additionalEnv).mod(ps.params.getN()); // hash of (g^s,g^r,my^r) == (g^s, a, b)
+            BigInteger c = hash(FixedBaseCache.multiply(ps.params.getG(), s), a, b, additionalEnv).mod(ps.params.getN()); // hash of (g^s,g^r,my^r) == (g^s, a, b)
             BigInteger d = CivitasBigInteger.modAdd(s, CivitasBigInteger.modMultiply(c, rr, ps.params.getN()), ps.params.getN());
             return new ElGamalSignedCiphertextC(a, b, c, d);
         } catch (ClassCastException e) {
             throw new CryptoError(e);
         }
+        finally {
+            CryptoMetrics.ELGAMAL_SIGNED_ENC.stop(start);
+        }
     }
 
     public boolean elGamalVerify(ElGamalParameters params, ElGamalSignedCiphertext ciphertext) {
         return elGamalVerify(params, ciphertext, null);
     }
     public boolean elGamalVerify(ElGamalParameters params, ElGamalSignedCiphertext ciphertext, byte[] additionalEnv) {
+        long start = CryptoMetrics.ELGAMAL_VERIFY.start();
         try {
-            numElGamalVerifies++;
             ElGamalParametersC ps = (ElGamalParametersC) params;
             ElGamalSignedCiphertextC cc = (ElGamalSignedCiphertextC)ciphertext;
             // to verify, check that c == h(g^d * a^(-c), a, b)
-            ECPoint x = ps.params.getG().multiply(cc.d.mod(ps.params.getN())).add(cc.a.multiply(CivitasBigInteger.modNegate(cc.c, ps.params.getN())));
+            ECPoint x = MultiScalarMult.sumOfTwoMultiplies(ps.params.getG(), cc.d, cc.a, CivitasBigInteger.modNegate(cc.c, ps.params.getN()));
             BigInteger v = hash(x, cc.a, cc.b, additionalEnv).mod(ps.params.getN());
             return cc.c.equals(v);
         } catch (ClassCastException e) {
             throw new CryptoError(e);
         }
+        finally {
+            CryptoMetrics.ELGAMAL_VERIFY.stop(start);
+        }
+    }
+
+    public boolean[] elGamalVerifyBatch(Label lbl, ElGamalParameters params, ElGamalSignedCiphertext[] ciphertexts, byte[] additionalEnv) {
+        if (ciphertexts == null) return null;
+        byte[][] envs = new byte[ciphertexts.length][];
+        Arrays.fill(envs, additionalEnv);
+        return elGamalVerifyBatch(params, ciphertexts, envs);
+    }
+
+    /**
+     * Verify a number of signed ciphertexts at once. The result is the same
+     * as calling elGamalVerify(params, ciphertexts[i], additionalEnvs[i])
+     * for each i; a null ciphertext fails verification.
+     *
+     * The signed ciphertexts are in challenge form (a, b, c, d), and do not
+     * carry the commitment g^s, so each proof must still be hashed on its
+     * own. What can be shared is the fixed-base table for g, and the
+     * conversion of all the recomputed commitments to affine form, which
+     * is done with a single field inversion for the whole batch.
+     */
+    public boolean[] elGamalVerifyBatch(ElGamalParameters params, ElGamalSignedCiphertext[] ciphertexts, byte[][] additionalEnvs) {
+        if (ciphertexts == null) return null;
+        long start = CryptoMetrics.ELGAMAL_VERIFY.start();
+        try {
+            ElGamalParametersC ps = (ElGamalParametersC) params;
+            ECPoint g = ps.params.getG();
+            BigInteger n = ps.params.getN();
+
+            ECPoint[] xs = new ECPoint[ciphertexts.length];
+            for (int i = 0; i < ciphertexts.length; i++) {
+                ElGamalSignedCiphertextC cc = (ElGamalSignedCiphertextC)ciphertexts[i];
+                if (cc == null) continue;
+                // check that c == h(g^d * a^(-c), a, b)
+                xs[i] = MultiScalarMult.sumOfTwoMultiplies(g, cc.d, cc.a, CivitasBigInteger.modNegate(cc.c, n));
+            }
+            g.getCurve().normalizeAll(xs);
+
+            boolean[] ret = new boolean[ciphertexts.length];
+            for (int i = 0; i < ciphertexts.length; i++) {
+                if (xs[i] == null) continue;
+                ElGamalSignedCiphertextC cc = (ElGamalSignedCiphertextC)ciphertexts[i];
+                byte[] env = additionalEnvs == null ? null : additionalEnvs[i];
+                ret[i] = cc.c.equals(hash(xs[i], cc.a, cc.b, env).mod(n));
+            }
+            return ret;
+        } catch (ClassCastException e) {
+            throw new CryptoError(e);
+        }
+        finally {
+            CryptoMetrics.ELGAMAL_VERIFY.stop(start, ciphertexts.length);
+        }
     }
 
     public ElGamalMsg elGamalDecrypt(ElGamalPrivateKey key, ElGamalCiphertext ciphertext) throws CryptoException {
         return elGamalDecryptImpl(key, ciphertext, null);
     }
     private ElGamalMsg elGamalDecryptImpl(ElGamalPrivateKey key, ElGamalCiphertext ciphertext, byte[] additionalEnv) throws CryptoException {
+        long start = CryptoMetrics.ELGAMAL_DEC.start();
         try {
-            numElGamalDecs++;
             ElGamalPrivateKeyC k = (ElGamalPrivateKeyC) key;
             ElGamalParametersC ps = (ElGamalParametersC) key.getParams();
 
@@ -605,7 +712,7 @@ public class CryptoFactoryC implements CryptoFactory {
             ElGamalCiphertextC c = (ElGamalCiphertextC) ciphertext;
             ECPoint a = c.a;
             ECPoint b = c.b;
-            ECPoint m = b.subtract(a.multiply(k.x));
+            ECPoint m = b.subtract(MultiScalarMult.multiply(a, k.x));
             return new ElGamalMsgC(m);
         }
         catch (ClassCastException e) {
@@ -614,7 +721,9 @@ public class CryptoFactoryC implements CryptoFactory {
         catch (NullPointerException e) {
             throw new CryptoError(e);
         }
-
+        finally {
+            CryptoMetrics.ELGAMAL_DEC.stop(start);
+        }
     }
     public ElGamalMsg elGamalDecrypt(ElGamalPrivateKey key, ElGamalSignedCiphertext ciphertext, byte[] additionalEnv) throws CryptoException {
         return elGamalDecryptImpl(key, ciphertext, additionalEnv);
@@ -631,10 +740,11 @@ public class CryptoFactoryC implements CryptoFactory {
         }
         ElGamalParametersC params = (ElGamalParametersC)prms;
         BigInteger x = ((ElGamalPrivateKeyC)k).x;
+        long start = CryptoMetrics.PROOF_CONSTRUCT.start();
         try {
-            ECPoint v = params.params.getG().multiply(x);
+            ECPoint v = FixedBaseCache.multiply(params.params.getG(), x);
             BigInteger z = CryptoAlgs.randomElementDefault(params.params.getN());
-            ECPoint a = params.params.getG().multiply(z);
+            ECPoint a = FixedBaseCache.multiply(params.params.getG(), z);
             BigInteger c = hash(v, a).mod(params.params.getN()); // can take mod q without any ill effects.
             BigInteger r = CivitasBigInteger.modAdd(z, CivitasBigInteger.modMultiply(c, x, params.params.getN()), params.params.getN());
             return new ElGamalProofKnowDiscLogC(a,c,r,v);
@@ -643,6 +753,9 @@ public class CryptoFactoryC implements CryptoFactory {
             if (DEBUG) e.printStackTrace();
             return null;
         }
+        finally {
+            CryptoMetrics.PROOF_CONSTRUCT.stop(start);
+        }
     }
 
     public PETShare constructPETShare(ElGamalParameters prms, ElGamalCiphertext a, ElGamalCiphertext b) {
@@ -653,6 +766,7 @@ public class CryptoFactoryC implements CryptoFactory {
         ElGamalCiphertextC ac = (ElGamalCiphertextC)a;
         ElGamalCiphertextC bc = (ElGamalCiphertextC)b;
 
+        long start = CryptoMetrics.PET_SHARE.start();
         try {
             BigInteger z = CryptoAlgs.randomElementDefault(params.params.getN());
             return new PETShareC(ac, bc, z);
@@ -661,6 +775,9 @@ public class CryptoFactoryC implements CryptoFactory {
             if (DEBUG) e.printStackTrace();
             return  null;
         }
+        finally {
+            CryptoMetrics.PET_SHARE.stop(start);
+        }
     }
 
     public ElGamalMsg elGamalMsg(BigInteger m, ElGamalParameters params) throws CryptoException {
@@ -777,6 +894,31 @@ public class CryptoFactoryC implements CryptoFactory {
         return new ElGamalCiphertextC(d, e);
     }
 
+    /**
+     * Verify the PET decommitments of a teller, where decs[i] should be the
+     * decommitment of coms[i] for the PET of ciphertexts1[i] and
+     * ciphertexts2[i]. The result is the same as calling decs[i].verify(...)
+     * for each i, but the proofs are verified as a batch.
+     */
+    public boolean[] verifyPETDecommitments(Label lbl, PETDecommitment[] decs, PETCommitment[] coms, ElGamalParameters params,
+                                            ElGamalCiphertext[] ciphertexts1, ElGamalCiphertext[] ciphertexts2) {
+        if (decs == null) return null;
+        try {
+            ElGamalProofDiscLogEqualityC[] proofs = new ElGamalProofDiscLogEqualityC[decs.length];
+            for (int i = 0; i < decs.length; i++) {
+                PETDecommitmentC decom = (PETDecommitmentC)decs[i];
+                if (decom != null && ciphertexts1[i] != null && ciphertexts2[i] != null &&
+                        decom.isDecommitmentOf(coms[i], ciphertexts1[i], ciphertexts2[i])) {
+                    proofs[i] = (ElGamalProofDiscLogEqualityC)decom.proof;
+                }
+            }
+            return ElGamalProofDiscLogEqualityC.verifyBatch((ElGamalParametersC)params, proofs);
+        }
+        catch (RuntimeException e) {
+            throw new CryptoError(e);
+        }
+    }
+
     public boolean petResult(ElGamalMsg petResult) {
         // Pet result is true if the message == infinity
         if (petResult instanceof ElGamalMsgC) {
@@ -791,12 +933,12 @@ public class CryptoFactoryC implements CryptoFactory {
         if (c instanceof ElGamalCiphertextC &&
                 keyShare.privKey instanceof ElGamalPrivateKeyC &&
                 keyShare.privKey.getParams() instanceof ElGamalParametersC) {
+            long start = CryptoMetrics.ELGAMAL_DEC_SHARE.start();
             try {
-                numElGamalDecShare++;
                 ElGamalCiphertextC mc = (ElGamalCiphertextC)c;
                 ElGamalPrivateKeyC priv = (ElGamalPrivateKeyC)keyShare.privKey;
                 ElGamalParametersC params = (ElGamalParametersC)priv.getParams();
-                ECPoint ai = mc.a.multiply(priv.x);
+                ECPoint ai = MultiScalarMult.multiply(mc.a, priv.x);
                 return new ElGamalDecryptionShareC(
                     ai,
                     ElGamalProofDiscLogEqualityC.constructProof(params,
@@ -808,10 +950,36 @@ public class CryptoFactoryC implements CryptoFactory {
             catch (RuntimeException e) {
                 if (DEBUG) e.printStackTrace(System.err);
             }
+            finally {
+                CryptoMetrics.ELGAMAL_DEC_SHARE.stop(start);
+            }
         }
         return null;
     }
 
+    /**
+     * Verify the decryption shares of a teller, where shares[i] should be
+     * the share of ciphertexts[i] under key share K. The result is the same
+     * as calling shares[i].verify(ciphertexts[i], K) for each i, but the
+     * proofs are verified as a batch.
+     */
+    public boolean[] verifyDecryptionShares(Label lbl, ElGamalDecryptionShare[] shares, ElGamalCiphertext[] ciphertexts, ElGamalPublicKey K) {
+        if (shares == null) return null;
+        try {
+            ElGamalProofDiscLogEqualityC[] proofs = new ElGamalProofDiscLogEqualityC[shares.length];
+            for (int i = 0; i < shares.length; i++) {
+                ElGamalDecryptionShareC share = (ElGamalDecryptionShareC)shares[i];
+                if (share != null && share.isProofFor(ciphertexts[i], K)) {
+                    proofs[i] = share.proof;
+                }
+            }
+            return ElGamalProofDiscLogEqualityC.verifyBatch((ElGamalParametersC)K.getParams(), proofs);
+        }
+        catch (RuntimeException e) {
+            throw new CryptoError(e);
+        }
+    }
+
     public ElGamalDecryptionShare decryptionShareFromXML(Label lbl, Reader r) throws IllegalArgumentException, IOException {
         return ElGamalDecryptionShareC.fromXML(lbl, r);
     }
@@ -879,13 +1047,14 @@ public class CryptoFactoryC implements CryptoFactory {
         }
     }
     public Signature signature(PrivateKey k, Label lbl, byte[] bytes) {
+        long start = CryptoMetrics.PUBLIC_KEY_SIGN.start();
         try {
-            numPublicKeySign++;
-            java.security.Signature sig = java.security.Signature.getInstance(PUBLIC_KEY_SIGNATURE_ALG, PUBLIC_KEY_PROVIDER);
             PrivateKeyC kc = (PrivateKeyC)k;
-            sig.initSign(kc.k);
+            java.security.Signature sig = JcaPool.takeSigner(PUBLIC_KEY_SIGNATURE_ALG, PUBLIC_KEY_PROVIDER, kc.k);
             sig.update(bytes);
-            return new SignatureC(sig.sign());
+            SignatureC ret = new SignatureC(sig.sign());
+            JcaPool.giveSigner(sig, PUBLIC_KEY_SIGNATURE_ALG, PUBLIC_KEY_PROVIDER, kc.k);
+            return ret;
         }
         catch (InvalidKeyException e) {
             throw new CryptoError(e);
@@ -902,6 +1071,9 @@ public class CryptoFactoryC implements CryptoFactory {
         catch (RuntimeException e) {
             throw new CryptoError("Cannot sign", e);
         }
+        finally {
+            CryptoMetrics.PUBLIC_KEY_SIGN.stop(start);
+        }
     }
 
     public boolean publicKeyVerifySignature(PublicKey K, Signature s, PublicKeyMsg msg) {
@@ -919,14 +1091,15 @@ public class CryptoFactoryC implements CryptoFactory {
         return publicKeyVerifySignature(K, s, bytes);
     }
     public boolean publicKeyVerifySignature(PublicKey K, Signature s, byte[] bytes) {
+        long start = CryptoMetrics.PUBLIC_KEY_VERIFY_SIG.start();
         try {
-            numPublicKeyVerifySig++;
-            java.security.Signature sig = java.security.Signature.getInstance(PUBLIC_KEY_SIGNATURE_ALG, PUBLIC_KEY_PROVIDER);
             PublicKeyC Kc = (PublicKeyC)K;
             SignatureC sc = (SignatureC)s;
-            sig.initVerify(Kc.k);
+            java.security.Signature sig = JcaPool.takeVerifier(PUBLIC_KEY_SIGNATURE_ALG, PUBLIC_KEY_PROVIDER, Kc.k);
             sig.update(bytes);
-            return sig.verify(sc.signature);
+            boolean ret = sig.verify(sc.signature);
+            JcaPool.giveVerifier(sig, PUBLIC_KEY_SIGNATURE_ALG, PUBLIC_KEY_PROVIDER, Kc.k);
+            return ret;
         }
         catch (InvalidKeyException e) {
             throw new CryptoError(e);
@@ -943,6 +1116,9 @@ public class CryptoFactoryC implements CryptoFactory {
         catch (RuntimeException e) {
             throw new CryptoError("Cannot verify signature", e);
         }
+        finally {
+            CryptoMetrics.PUBLIC_KEY_VERIFY_SIG.stop(start);
+        }
     }
     public PublicKeyMsg publicKeyVerifySignatureMsg(PublicKey K, Signature s, PublicKeyMsg msg) {
         if (publicKeyVerifySignature(K, s, msg)) {
@@ -990,12 +1166,8 @@ public class CryptoFactoryC implements CryptoFactory {
 
     public MessageDigest messageDigest(Label lbl) {
         try {
-            if (MESSAGE_DIGEST_PROVIDER == null) {
-                return new MessageDigestC(lbl, java.security.MessageDigest.getInstance(MESSAGE_DIGEST_ALG));
-            }
-            else {
-                return new MessageDigestC(lbl, java.security.MessageDigest.getInstance(MESSAGE_DIGEST_ALG, MESSAGE_DIGEST_PROVIDER));
-            }
+            // the caller owns the digest, so it does not come from the pool.
+            return new MessageDigestC(lbl, JcaPool.freshDigest(MESSAGE_DIGEST_ALG, MESSAGE_DIGEST_PROVIDER));
         }
         catch (NoSuchAlgorithmException e) {
             throw new CryptoError(e);
@@ -1008,10 +1180,35 @@ public class CryptoFactoryC implements CryptoFactory {
         }
     }
 
+    /**
+     * Take a digest from the pool of this thread, for a hash computed and
+     * completed within a single method. It must be given back with
+     * givePooledDigest once the digest has been computed.
+     */
+    private MessageDigestC takePooledDigest(Label lbl) {
+        try {
+            return new MessageDigestC(lbl, JcaPool.takeDigest(MESSAGE_DIGEST_ALG, MESSAGE_DIGEST_PROVIDER));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new CryptoError(e);
+        }
+        catch (NoSuchProviderException e) {
+            throw new CryptoError("No provider " + MESSAGE_DIGEST_PROVIDER);
+        }
+        catch (RuntimeException e) {
+            throw new CryptoError("Cannot create message digest", e);
+        }
+    }
+    private void givePooledDigest(MessageDigestC md) {
+        JcaPool.giveDigest(md.md, MESSAGE_DIGEST_ALG, MESSAGE_DIGEST_PROVIDER);
+    }
+
     public byte[] messageDigest(Label lbl, byte[] a) {
-        MessageDigest md = messageDigest(lbl);
+        MessageDigestC md = takePooledDigest(lbl);
         md.update(a);
-        return md.digest();
+        byte[] ret = md.digest();
+        givePooledDigest(md);
+        return ret;
     }
     public byte[] messageDigest(Label lbl, Label lbl2, byte[] a, boolean constArray) {
         return messageDigest(lbl, a, constArray);
@@ -1021,10 +1218,12 @@ public class CryptoFactoryC implements CryptoFactory {
     }
 
     public byte[] messageDigest(Label lbl, byte[] a, int i) {
-        MessageDigest md = messageDigest(lbl);
+        MessageDigestC md = takePooledDigest(lbl);
         md.update(a);
         md.update(i);
-        return md.digest();
+        byte[] ret = md.digest();
+        givePooledDigest(md);
+        return ret;
     }
     public byte[] messageDigest(Label lbl, Label lbl2,  byte[] a, int i, boolean constArray) {
         return messageDigest(lbl, a, i, constArray);
@@ -1034,9 +1233,11 @@ public class CryptoFactoryC implements CryptoFactory {
     }
     public byte[] messageDigest(String s) {
         Label lbl = LabelUtil.singleton().noComponents();
-        MessageDigest md = messageDigest(lbl);
+        MessageDigestC md = takePooledDigest(lbl);
         md.update(s);
-        return md.digest();
+        byte[] ret = md.digest();
+        givePooledDigest(md);
+        return ret;
     }
 
     public int randomInt(int n) {
@@ -1048,6 +1249,7 @@ public class CryptoFactoryC implements CryptoFactory {
     public ElGamalProofDVR constructElGamalProofDVR(ElGamalPublicKey k, ElGamalPublicKey verifierKey,
             ElGamalCiphertext e, ElGamalCiphertext ePrime,
             ElGamalReencryptFactor er, ElGamalReencryptFactor erPrime) {
+        long start = CryptoMetrics.PROOF_CONSTRUCT.start();
         try {
             ElGamalParametersC ps = (ElGamalParametersC)k.getParams();
             BigInteger erPrimeInt = ((ElGamalReencryptFactorC)erPrime).r;
@@ -1061,9 +1263,13 @@ public class CryptoFactoryC implements CryptoFactory {
         catch (ClassCastException ex) {
             return null;
         }
+        finally {
+            CryptoMetrics.PROOF_CONSTRUCT.stop(start);
+        }
     }
 
     public ElGamalProofDVR constructFakeElGamalProofDVR(ElGamalPublicKey k, ElGamalPublicKey verifierKey, ElGamalPrivateKey verifierPrivKey, ElGamalCiphertext e, ElGamalCiphertext ePrime) {
+        long start = CryptoMetrics.PROOF_CONSTRUCT.start();
         try {
             return ElGamalProofDVRC.fakeProof((ElGamalCiphertextC)e, (ElGamalCiphertextC)ePrime,
                                               (ElGamalPublicKeyC)k, (ElGamalPublicKeyC)verifierKey,
@@ -1072,22 +1278,35 @@ public class CryptoFactoryC implements CryptoFactory {
         catch (ClassCastException ex) {
             return null;
         }
+        finally {
+            CryptoMetrics.PROOF_CONSTRUCT.stop(start);
+        }
     }
 
     public PublicKeyCiphertext publicKeyEncrypt(PublicKey key, PublicKeyMsg msg) {
-        numPublicKeyEncs++;
-        PublicKeyC keyc = (PublicKeyC)key;
-        PublicKeyMsgC msgc = (PublicKeyMsgC)msg;
-        byte[] encrypted = jseCrypt(PUBLIC_KEY_CIPHER_ALG, PUBLIC_KEY_PROVIDER, keyc.k, Cipher.ENCRYPT_MODE, msgc.toBytes());
-        return new PublicKeyCiphertextC(encrypted);
+        long start = CryptoMetrics.PUBLIC_KEY_ENC.start();
+        try {
+            PublicKeyC keyc = (PublicKeyC)key;
+            PublicKeyMsgC msgc = (PublicKeyMsgC)msg;
+            byte[] encrypted = jseCrypt(PUBLIC_KEY_CIPHER_ALG, PUBLIC_KEY_PROVIDER, keyc.k, Cipher.ENCRYPT_MODE, msgc.toBytes());
+            return new PublicKeyCiphertextC(encrypted);
+        }
+        finally {
+            CryptoMetrics.PUBLIC_KEY_ENC.stop(start);
+        }
     }
 
     public PublicKeyMsg publicKeyDecrypt(PrivateKey key, PublicKeyCiphertext ciphertext) throws CryptoException {
-        numPublicKeyDecs++;
-        PrivateKeyC keyc = (PrivateKeyC)key;
-        PublicKeyCiphertextC ciphertextc = (PublicKeyCiphertextC)ciphertext;
-        byte[] plaintext = jseCrypt(PUBLIC_KEY_CIPHER_ALG, PUBLIC_KEY_PROVIDER, keyc.k, Cipher.DECRYPT_MODE, ciphertextc.toBytes());
-        return new PublicKeyMsgC(plaintext);
+        long start = CryptoMetrics.PUBLIC_KEY_DEC.start();
+        try {
+            PrivateKeyC keyc = (PrivateKeyC)key;
+            PublicKeyCiphertextC ciphertextc = (PublicKeyCiphertextC)ciphertext;
+            byte[] plaintext = jseCrypt(PUBLIC_KEY_CIPHER_ALG, PUBLIC_KEY_PROVIDER, keyc.k, Cipher.DECRYPT_MODE, ciphertextc.toBytes());
+            return new PublicKeyMsgC(plaintext);
+        }
+        finally {
+            CryptoMetrics.PUBLIC_KEY_DEC.stop(start);
+        }
     }
 
     public SharedKey generateSharedKey(int keyLength) {
@@ -1096,27 +1315,37 @@ public class CryptoFactoryC implements CryptoFactory {
     }
 
     public SharedKeyCiphertext sharedKeyEncrypt(SharedKey key, SharedKeyMsg msg) {
-        numSharedKeyEncs++;
-        SharedKeyC keyc = (SharedKeyC)key;
-        SharedKeyMsgC msgc = (SharedKeyMsgC)msg;
-        byte[] encrypted = jseCrypt(SHARED_KEY_CIPHER_ALG, SHARED_KEY_PROVIDER, keyc.k, Cipher.ENCRYPT_MODE, msgc.toBytes());
-        return new SharedKeyCiphertextC(encrypted);
+        long start = CryptoMetrics.SHARED_KEY_ENC.start();
+        try {
+            SharedKeyC keyc = (SharedKeyC)key;
+            SharedKeyMsgC msgc = (SharedKeyMsgC)msg;
+            byte[] encrypted = jseCrypt(SHARED_KEY_CIPHER_ALG, SHARED_KEY_PROVIDER, keyc.k, Cipher.ENCRYPT_MODE, msgc.toBytes());
+            return new SharedKeyCiphertextC(encrypted);
+        }
+        finally {
+            CryptoMetrics.SHARED_KEY_ENC.stop(start);
+        }
     }
 
     public SharedKeyMsg sharedKeyDecrypt(SharedKey key, SharedKeyCiphertext ciphertext) throws CryptoException {
-        numSharedKeyDecs++;
-        SharedKeyC keyc = (SharedKeyC)key;
-        SharedKeyCiphertextC ciphertextc = (SharedKeyCiphertextC)ciphertext;
-        byte[] plaintext = jseCrypt(SHARED_KEY_CIPHER_ALG, SHARED_KEY_PROVIDER, keyc.k, Cipher.DECRYPT_MODE, ciphertextc.toBytes());
-        return new SharedKeyMsgC(plaintext);
+        long start = CryptoMetrics.SHARED_KEY_DEC.start();
+        try {
+            SharedKeyC keyc = (SharedKeyC)key;
+            SharedKeyCiphertextC ciphertextc = (SharedKeyCiphertextC)ciphertext;
+            byte[] plaintext = jseCrypt(SHARED_KEY_CIPHER_ALG, SHARED_KEY_PROVIDER, keyc.k, Cipher.DECRYPT_MODE, ciphertextc.toBytes());
+            return new SharedKeyMsgC(plaintext);
+        }
+        finally {
+            CryptoMetrics.SHARED_KEY_DEC.stop(start);
+        }
     }
 
     private byte[] jseCrypt(String alg, String provider, Key skey, int mode, byte[] input) {
 
-        // Instantiate the cipher
+        // Take an initialized cipher from the pool, or instantiate one
         Cipher cipher;
         try {
-            cipher = Cipher.getInstance(alg, provider);
+            cipher = JcaPool.takeCipher(alg, provider, skey, mode);
         }
         catch (NoSuchAlgorithmException e) {
             throw new CryptoError("Cannot find algorithm " + alg, e);
@@ -1127,16 +1356,12 @@ public class CryptoFactoryC implements CryptoFactory {
         catch (NoSuchProviderException e) {
             throw new CryptoError("Cannot find provider " + provider, e);
         }
-        catch (RuntimeException e) {
-            throw new CryptoError("Cannot create cipher", e);
-        }
-
-        try {
-            cipher.init(mode, skey);
-        }
         catch (InvalidKeyException e) {
             throw new CryptoError("Invalid key.  May need to install unlimited strength crypto policies.", e);
         }
+        catch (RuntimeException e) {
+            throw new CryptoError("Cannot create cipher", e);
+        }
 
         byte[] output;
         try {
@@ -1151,6 +1376,8 @@ public class CryptoFactoryC implements CryptoFactory {
         catch (RuntimeException e) {
             throw new CryptoError(e);
         }
+        // doFinal has reset the cipher to its initialized state
+        JcaPool.giveCipher(cipher, alg, provider, skey, mode);
         return output;
     }
     public byte[] sharedKeyToBytes(SecretKey k) {
@@ -1182,21 +1409,31 @@ public class CryptoFactoryC implements CryptoFactory {
     public java.security.PublicKey publicKeyFromBytes(byte[] bs) {
         KeySpec keySpec = publicKeyAlgPublicKeySpec(bs);
         try {
-            return publicKeyFactory.generatePublic(keySpec);
+            return publicKeyFactory().generatePublic(keySpec);
         }
         catch (InvalidKeySpecException e) {
             throw new CryptoError(e);
         }
+        catch (GeneralSecurityException e) {
+            throw new CryptoError("Cannot create key factory", e);
+        }
     }
 
     public java.security.PrivateKey privateKeyFromBytes(byte[] bs) {
         KeySpec keySpec = publicKeyAlgPrivateKeySpec(bs);
         try {
-            return publicKeyFactory.generatePrivate(keySpec);
+            return publicKeyFactory().generatePrivate(keySpec);
         }
         catch (InvalidKeySpecException e) {
             throw new CryptoError(e);
         }
+        catch (GeneralSecurityException e) {
+            throw new CryptoError("Cannot create key factory", e);
+        }
+    }
+
+    private KeyFactory publicKeyFactory() throws NoSuchAlgorithmException, NoSuchProviderException {
+        return JcaPool.keyFactory(PUBLIC_KEY_ALG, PUBLIC_KEY_PROVIDER);
     }
 
     public String freshNonceBase64(Label lbl, int bitlength) {
@@ -1219,6 +1456,14 @@ public class CryptoFactoryC implements CryptoFactory {
         return new SharedKeyMsgC(m);
     }
 
+    /**
+     * Put the ciphertexts in affine form with a single field inversion, so
+     * that encoding them one by one afterwards needs none.
+     */
+    public void normalizeCiphertexts(Label lbl, ElGamalCiphertext[] ciphertexts) {
+        ElGamalCiphertextC.normalizeAll(ciphertexts);
+    }
+
     public static String pointToString(ECPoint point) {
         return Base64.encodeBytes(point.getEncoded(true));
     }
@@ -1245,6 +1490,7 @@ public class CryptoFactoryC implements CryptoFactory {
             ElGamal1OfLReencryption encChoice, String context,
             ElGamalReencryptFactor encCapabilityFactor, ElGamalReencryptFactor encChoiceFactor)
     {
+        long start = CryptoMetrics.PROOF_CONSTRUCT.start();
         try {
             return new ProofVoteC((ElGamalParametersC)params,
                                   (ElGamalCiphertextC)encCapability,
@@ -1256,6 +1502,186 @@ public class CryptoFactoryC implements CryptoFactory {
         catch (ClassCastException e) {
             throw new CryptoError(e);
         }
+        finally {
+            CryptoMetrics.PROOF_CONSTRUCT.stop(start);
+        }
+    }
+
+    /**
+     * Verify the proofs of a number of votes, where vote i consists of
+     * encChoices[i], encCapabilities[i], proofs[i] and contexts[i]. The
+     * result is the same as checking, for each i, both the 1-out-of-L proof
+     * of encChoices[i] and the proof of vote proofs[i].
+     *
+     * Both kinds of proof are in challenge form, and do not carry their
+     * commitments, so each proof must still be hashed on its own. The
+     * commitments of all the proofs are recomputed first, using the
+     * fixed-base tables for g and the key, and are then put into affine form
+     * with a single field inversion for the whole block before hashing.
+     *
+     * The votes that verify remember it, so that verifying them again with
+     * the same arguments, one at a time, returns immediately.
+     */
+    public boolean[] verifyVotes(Label lbl, ElGamalPublicKey pubKey, CiphertextList ciphertexts, int L,
+                                 ElGamal1OfLReencryption[] encChoices, ElGamalCiphertext[] encCapabilities,
+                                 ProofVote[] proofs, String[] contexts)
+    {
+        if (encChoices == null || pubKey == null || ciphertexts == null) return null;
+        long start = CryptoMetrics.PROOF_VERIFY.start();
+        try {
+            ElGamalPublicKeyC key = (ElGamalPublicKeyC)pubKey;
+            ElGamalParametersC ps = (ElGamalParametersC)key.getParams();
+            ElGamalCiphertextC[] ms = ElGamalProof1OfLC.ciphertextArray(ciphertexts, L);
+
+            // the commitments of vote k are at offset k*perVote: first the
+            // 2L of the 1-out-of-L proof, then the 2 of the proof of vote.
+            int perVote = 2*L + 2;
+            ECPoint[] all = new ECPoint[encChoices.length * perVote];
+            boolean[] ret = new boolean[encChoices.length];
+            for (int k = 0; k < encChoices.length; k++) {
+                ElGamal1OfLReencryptionC encChoice = (ElGamal1OfLReencryptionC)encChoices[k];
+                ElGamalCiphertextC encCap = (ElGamalCiphertextC)encCapabilities[k];
+                ProofVoteC proof = (ProofVoteC)proofs[k];
+                if (encChoice == null || encChoice.m == null || encChoice.proof == null || encChoice.proof.L != L ||
+                        encCap == null || proof == null || contexts[k] == null) {
+                    continue;
+                }
+                ret[k] = true;
+                ECPoint[] abs = encChoice.proof.commitments(key, ms, encChoice.m);
+                ECPoint[] gs = proof.commitments(ps, encCap, encChoice.m);
+                System.arraycopy(abs, 0, all, k*perVote, 2*L);
+                System.arraycopy(gs, 0, all, k*perVote + 2*L, 2);
+            }
+            ps.params.getCurve().normalizeAll(all);
+
+            for (int k = 0; k < encChoices.length; k++) {
+                if (!ret[k]) continue;
+                ElGamal1OfLReencryptionC encChoice = (ElGamal1OfLReencryptionC)encChoices[k];
+                ECPoint[] abs = new ECPoint[2*L];
+                ECPoint[] gs = new ECPoint[2];
+                System.arraycopy(all, k*perVote, abs, 0, 2*L);
+                System.arraycopy(all, k*perVote + 2*L, gs, 0, 2);
+                ProofVoteC proof = (ProofVoteC)proofs[k];
+                ret[k] = encChoice.proof.checkCommitments(key, ms, encChoice.m, abs) &&
+                         proof.checkCommitments(ps, (ElGamalCiphertextC)encCapabilities[k], encChoice.m, contexts[k], gs);
+                if (ret[k]) {
+                    encChoice.setVerified(pubKey, ciphertexts, L);
+                    proof.setVerified(ps, encCapabilities[k], encChoice.m, contexts[k]);
+                }
+            }
+            return ret;
+        }
+        catch (ClassCastException e) {
+            throw new CryptoError(e);
+        }
+        finally {
+            CryptoMetrics.PROOF_VERIFY.stop(start, 2 * encChoices.length);
+        }
+    }
+
+    /*
+     * Bulk operations. Each of these is equivalent to calling the
+     * corresponding single-element operation for every index, in order, but
+     * spreads the work over the threads of ParallelCrypto. The result arrays
+     * are in the same order as the inputs.
+     */
+
+    /**
+     * @return ret[i] = elGamalReencrypt(key, ciphertexts[i], factors[i]),
+     * or null if ciphertexts[i] or factors[i] is null.
+     */
+    public ElGamalCiphertext[] reencryptAll(Label lbl, final ElGamalPublicKey key, final ElGamalCiphertext[] ciphertexts, final ElGamalReencryptFactor[] factors) {
+        if (ciphertexts == null || factors == null) return null;
+        final ElGamalCiphertext[] ret = new ElGamalCiphertext[ciphertexts.length];
+        ParallelCrypto.forRange(Math.min(ciphertexts.length, factors.length), 1, new ParallelCrypto.Body() {
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    if (ciphertexts[i] == null || factors[i] == null) continue;
+                    ret[i] = elGamalReencrypt(key, ciphertexts[i], factors[i]);
+                }
+            }
+        });
+        // the results of a mix are written out next.
+        ElGamalCiphertextC.normalizeAll(ret);
+        return ret;
+    }
+
+    /**
+     * @return ret[i] = elGamalEncrypt(key, msgs[i], factors[i]), or null if
+     * msgs[i] or factors[i] is null.
+     */
+    public ElGamalCiphertext[] encryptAll(Label lbl, final ElGamalPublicKey key, final ElGamalMsg[] msgs, final ElGamalReencryptFactor[] factors) {
+        if (msgs == null || factors == null) return null;
+        final ElGamalCiphertext[] ret = new ElGamalCiphertext[msgs.length];
+        ParallelCrypto.forRange(Math.min(msgs.length, factors.length), 1, new ParallelCrypto.Body() {
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    if (msgs[i] == null || factors[i] == null) continue;
+                    ret[i] = elGamalEncrypt(key, msgs[i], factors[i]);
+                }
+            }
+        });
+        ElGamalCiphertextC.normalizeAll(ret);
+        return ret;
+    }
+
+    /**
+     * @return ret[i] = constructPETShare(params, a, bs[i]).
+     */
+    public PETShare[] constructPETSharesAll(Label lbl, final ElGamalParameters params, final ElGamalCiphertext a, final ElGamalCiphertext[] bs) {
+        if (bs == null) return null;
+        final PETShare[] ret = new PETShare[bs.length];
+        ParallelCrypto.forRange(bs.length, 1, new ParallelCrypto.Body() {
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    ret[i] = constructPETShare(params, a, bs[i]);
+                    // the shares are saved before their commitments are
+                    // computed; compute the points here, in parallel.
+                    if (ret[i] != null) ((PETShareC)ret[i]).points();
+                }
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * @return ret[i] = constructDecryptionShare(lbl, lbl2, ciphertexts[i], keyShare),
+     * or null if ciphertexts[i] is null.
+     */
+    public ElGamalDecryptionShare[] decryptionSharesAll(final Label lbl, final Label lbl2, final ElGamalCiphertext[] ciphertexts, final ElGamalKeyPairShare keyShare) {
+        if (ciphertexts == null || keyShare == null) return null;
+        final ElGamalDecryptionShare[] ret = new ElGamalDecryptionShare[ciphertexts.length];
+        ParallelCrypto.forRange(ciphertexts.length, 1, new ParallelCrypto.Body() {
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    if (ciphertexts[i] == null) continue;
+                    ret[i] = constructDecryptionShare(lbl, lbl2, ciphertexts[i], keyShare);
+                }
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * @return the same as elGamalVerifyBatch(lbl, params, ciphertexts,
+     * additionalEnv), with the batch split over several threads.
+     */
+    public boolean[] verifyAll(Label lbl, final ElGamalParameters params, final ElGamalSignedCiphertext[] ciphertexts, final byte[] additionalEnv) {
+        if (ciphertexts == null) return null;
+        final boolean[] ret = new boolean[ciphertexts.length];
+        // each subrange is verified as a batch of its own, so keep them
+        // large enough for the shared normalization to pay off.
+        ParallelCrypto.forRange(ciphertexts.length, 16, new ParallelCrypto.Body() {
+            public void run(int from, int to) {
+                ElGamalSignedCiphertext[] cs = new ElGamalSignedCiphertext[to - from];
+                System.arraycopy(ciphertexts, from, cs, 0, cs.length);
+                byte[][] envs = new byte[cs.length][];
+                Arrays.fill(envs, additionalEnv);
+                boolean[] valid = elGamalVerifyBatch(params, cs, envs);
+                System.arraycopy(valid, 0, ret, from, valid.length);
+            }
+        });
+        return ret;
     }
 
     public ProofVote proofVoteFromXML(Label lbl, Reader r)
@@ -1264,17 +1690,17 @@ public class CryptoFactoryC implements CryptoFactory {
         return ProofVoteC.fromXML(lbl, r);
     }
 
-    public static long numPublicKeyEncs() { return numPublicKeyEncs; }
-    public static long numPublicKeyDecs() { return numPublicKeyDecs; }
-    public static long numSharedKeyEncs() { return numSharedKeyEncs; }
-    public static long numSharedKeyDecs() { return numSharedKeyDecs; }
-    public static long numElGamalEncs() { return numElGamalEncs; }
-    public static long numElGamalDecs() { return numElGamalDecs; }
-    public static long numElGamalDecShare() { return numElGamalDecShare; }
-    public static long numPublicKeySign() { return numPublicKeySign; }
-    public static long numPublicKeyVerifySig() { return numPublicKeyVerifySig; }
-    public static long numElGamalReencs() { return numElGamalReencs; }
-    public static long numElGamalSignedEncs() { return numElGamalSignedEncs; }
-    public static long numElGamalVerifies() { return numElGamalVerifies; }
+    public static long numPublicKeyEncs() { return CryptoMetrics.PUBLIC_KEY_ENC.count(); }
+    public static long numPublicKeyDecs() { return CryptoMetrics.PUBLIC_KEY_DEC.count(); }
+    public static long numSharedKeyEncs() { return CryptoMetrics.SHARED_KEY_ENC.count(); }
+    public static long numSharedKeyDecs() { return CryptoMetrics.SHARED_KEY_DEC.count(); }
+    public static long numElGamalEncs() { return CryptoMetrics.ELGAMAL_ENC.count(); }
+    public static long numElGamalDecs() { return CryptoMetrics.ELGAMAL_DEC.count(); }
+    public static long numElGamalDecShare() { return CryptoMetrics.ELGAMAL_DEC_SHARE.count(); }
+    public static long numPublicKeySign() { return CryptoMetrics.PUBLIC_KEY_SIGN.count(); }
+    public static long numPublicKeyVerifySig() { return CryptoMetrics.PUBLIC_KEY_VERIFY_SIG.count(); }
+    public static long numElGamalReencs() { return CryptoMetrics.ELGAMAL_REENC.count(); }
+    public static long numElGamalSignedEncs() { return CryptoMetrics.ELGAMAL_SIGNED_ENC.count(); }
+    public static long numElGamalVerifies() { return CryptoMetrics.ELGAMAL_VERIFY.count(); }
 
 }
\ No newline at end of file
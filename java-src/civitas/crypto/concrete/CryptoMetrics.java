@@ -0,0 +1,33 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.crypto.concrete;
+
+import civitas.util.Metrics;
+
+/**
+ * The timers for the operations of the concrete crypto implementation.
+ */
+class CryptoMetrics {
+    private CryptoMetrics() { }
+
+    static final Metrics.Timer ELGAMAL_ENC = Metrics.timer("elGamalEncrypt");
+    static final Metrics.Timer ELGAMAL_REENC = Metrics.timer("elGamalReencrypt");
+    static final Metrics.Timer ELGAMAL_SIGNED_ENC = Metrics.timer("elGamalSignedEncrypt");
+    static final Metrics.Timer ELGAMAL_VERIFY = Metrics.timer("elGamalVerify");
+    static final Metrics.Timer ELGAMAL_DEC = Metrics.timer("elGamalDecrypt");
+    static final Metrics.Timer ELGAMAL_DEC_SHARE = Metrics.timer("elGamalDecryptionShare");
+    static final Metrics.Timer ELGAMAL_DECODE = Metrics.timer("elGamalDecode");
+    static final Metrics.Timer PET_SHARE = Metrics.timer("petShare");
+    static final Metrics.Timer PROOF_CONSTRUCT = Metrics.timer("proofConstruct");
+    static final Metrics.Timer PROOF_VERIFY = Metrics.timer("proofVerify");
+    static final Metrics.Timer PUBLIC_KEY_ENC = Metrics.timer("publicKeyEncrypt");
+    static final Metrics.Timer PUBLIC_KEY_DEC = Metrics.timer("publicKeyDecrypt");
+    static final Metrics.Timer PUBLIC_KEY_SIGN = Metrics.timer("publicKeySign");
+    static final Metrics.Timer PUBLIC_KEY_VERIFY_SIG = Metrics.timer("publicKeyVerifySig");
+    static final Metrics.Timer SHARED_KEY_ENC = Metrics.timer("sharedKeyEncrypt");
+    static final Metrics.Timer SHARED_KEY_DEC = Metrics.timer("sharedKeyDecrypt");
+}
@@ -0,0 +1,110 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.crypto.concrete;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bouncycastle.crypto.params.ECDomainParameters;
+import org.bouncycastle.math.ec.ECPoint;
+
+/**
+ * A table for decoding small plaintexts i*G back to i.
+ *
+ * The table maps the compressed encodings of i*G to i, for 1 <= i <= SIZE.
+ * Plaintexts in that range decode with a single hash lookup. Larger
+ * plaintexts are decoded by baby-step/giant-step, using the table as the
+ * baby steps and SIZE*G as the giant step, which costs one lookup per SIZE
+ * candidate values.
+ *
+ * There is one table per set of domain parameters. It is built on first
+ * use and never modified afterwards, so it is shared by all threads. Its
+ * size can be configured with the system property
+ * <code>civitas.crypto.decode.tablesize</code>.
+ */
+class DiscreteLogTable {
+    private static final int SIZE = Math.max(1, Integer.getInteger("civitas.crypto.decode.tablesize", 4096).intValue());
+
+    /**
+     * Number of points put in affine form with a single field inversion
+     * while building the table.
+     */
+    private static final int CHUNK = 256;
+
+    private static final Map<ECDomainParameters, DiscreteLogTable> tables = new HashMap<ECDomainParameters, DiscreteLogTable>();
+
+    private final Map<ByteBuffer, Integer> table;
+
+    /**
+     * SIZE*G, the giant step.
+     */
+    private final ECPoint step;
+
+    private DiscreteLogTable(ECDomainParameters params) {
+        ECPoint g = params.getG();
+        this.table = new HashMap<ByteBuffer, Integer>(SIZE * 4 / 3 + 1);
+
+        ECPoint x = params.getCurve().getInfinity();
+        ECPoint[] chunk = new ECPoint[CHUNK];
+        for (int start = 1; start <= SIZE; start += CHUNK) {
+            int n = Math.min(CHUNK, SIZE - start + 1);
+            if (n < CHUNK) chunk = new ECPoint[n];
+            for (int j = 0; j < n; j++) {
+                x = x.add(g);
+                chunk[j] = x;
+            }
+            params.getCurve().normalizeAll(chunk);
+            for (int j = 0; j < n; j++) {
+                table.put(ByteBuffer.wrap(chunk[j].getEncoded(true)), Integer.valueOf(start + j));
+            }
+        }
+        this.step = x.normalize();
+    }
+
+    /**
+     * @return the table for params, building it if need be.
+     */
+    static DiscreteLogTable forParams(ECDomainParameters params) {
+        synchronized (tables) {
+            DiscreteLogTable t = tables.get(params);
+            if (t == null) {
+                t = new DiscreteLogTable(params);
+                tables.put(params, t);
+            }
+            return t;
+        }
+    }
+
+    /**
+     * @return i such that m = i*G and 1 <= i <= L, or 0 if there is no
+     * such i.
+     */
+    int decode(ECPoint m, int L) {
+        if (L < 1) return 0;
+        // i = j*SIZE + r, with 1 <= r <= SIZE
+        ECPoint y = m;
+        for (long base = 0; base < L; base += SIZE) {
+            if (!y.isInfinity()) {
+                Integer r = table.get(ByteBuffer.wrap(y.getEncoded(true)));
+                if (r != null) {
+                    long i = base + r.intValue();
+                    return i <= L ? (int)i : 0;
+                }
+            }
+            y = y.subtract(step);
+        }
+        return 0;
+    }
+
+    /**
+     * @return the number of entries in the table.
+     */
+    static int size() {
+        return SIZE;
+    }
+}
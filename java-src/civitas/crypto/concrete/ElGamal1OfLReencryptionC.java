@@ -18,6 +18,25 @@ public class ElGamal1OfLReencryptionC implements ElGamal1OfLReencryption {
     public final ElGamalCiphertextC m;
     public final ElGamalProof1OfLC proof;
 
+    /**
+     * The inputs for which the proof is known to verify, as found by
+     * CryptoFactoryC.verifyVotes; verify returns at once for the same
+     * inputs.
+     */
+    private volatile Verified verified;
+
+    private static class Verified {
+        final ElGamalPublicKey pubKey;
+        final CiphertextList ciphertexts;
+        final int L;
+
+        Verified(ElGamalPublicKey pubKey, CiphertextList ciphertexts, int L) {
+            this.pubKey = pubKey;
+            this.ciphertexts = ciphertexts;
+            this.L = L;
+        }
+    }
+
     public ElGamal1OfLReencryptionC(ElGamalCiphertextC m, ElGamalProof1OfLC proof) {
         this.m = m;
         this.proof = proof;
@@ -53,10 +72,19 @@ public class ElGamal1OfLReencryptionC implements ElGamal1OfLReencryption {
 
     public boolean verify(ElGamalPublicKey pubKey, CiphertextList ciphertexts, int L) {
         if (proof == null) return false;
+        Verified v = verified;
+        if (v != null && v.pubKey == pubKey && v.ciphertexts == ciphertexts && v.L == L) return true;
         // check the proof is consistent
         return proof.verify(pubKey, ciphertexts, L, m);
     }
 
+    /**
+     * Remember that the proof verifies for the given inputs.
+     */
+    void setVerified(ElGamalPublicKey pubKey, CiphertextList ciphertexts, int L) {
+        verified = new Verified(pubKey, ciphertexts, L);
+    }
+
     public boolean equals(ElGamal1OfLReencryption r) {
         if (r instanceof ElGamal1OfLReencryptionC) {
             ElGamal1OfLReencryptionC that = (ElGamal1OfLReencryptionC)r;
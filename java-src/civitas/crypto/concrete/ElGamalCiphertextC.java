@@ -14,16 +14,67 @@ import jif.lang.Label;
 import jif.lang.LabelUtil;
 import civitas.common.Util;
 import civitas.crypto.ElGamalCiphertext;
+import civitas.crypto.PointBatch;
 
 public class ElGamalCiphertextC implements ElGamalCiphertext {
     public final ECPoint a;
     public final ECPoint b;
 
+    /**
+     * a and b in affine form, once they have been needed, for encoding and
+     * comparing the ciphertext without a field inversion each time.
+     */
+    private volatile ECPoint normalA;
+    private volatile ECPoint normalB;
+
     public ElGamalCiphertextC(ECPoint a, ECPoint b) {
         this.a = a;
         this.b = b;
     }
 
+    ECPoint normalA() {
+        ECPoint p = normalA;
+        if (p == null && a != null) {
+            p = a.normalize();
+            normalA = p;
+        }
+        return p;
+    }
+
+    ECPoint normalB() {
+        ECPoint p = normalB;
+        if (p == null && b != null) {
+            p = b.normalize();
+            normalB = p;
+        }
+        return p;
+    }
+
+    /**
+     * Put the points of all the ciphertexts in affine form with a single
+     * field inversion, ahead of encoding or comparing them. Entries that
+     * are null or are not ElGamalCiphertextC are skipped.
+     */
+    public static void normalizeAll(ElGamalCiphertext[] cs) {
+        if (cs == null) return;
+        ECPoint[] ps = new ECPoint[2 * cs.length];
+        for (int i = 0; i < cs.length; i++) {
+            if (cs[i] instanceof ElGamalCiphertextC) {
+                ElGamalCiphertextC c = (ElGamalCiphertextC)cs[i];
+                if (c.normalA == null) ps[2*i] = c.a;
+                if (c.normalB == null) ps[2*i+1] = c.b;
+            }
+        }
+        PointBatch.normalizeAll(ps);
+        for (int i = 0; i < cs.length; i++) {
+            if (cs[i] instanceof ElGamalCiphertextC) {
+                ElGamalCiphertextC c = (ElGamalCiphertextC)cs[i];
+                if (ps[2*i] != null) c.normalA = ps[2*i];
+                if (ps[2*i+1] != null) c.normalB = ps[2*i+1];
+            }
+        }
+    }
+
     public String toXML() {
         StringWriter sb = new StringWriter();
         toXML(LabelUtil.singleton().noComponents(), new PrintWriter(sb));
@@ -34,10 +85,10 @@ public class ElGamalCiphertextC implements ElGamalCiphertext {
         s.print(OPENING_TAG);
         s.print('>');
         s.print("<a>");
-        if (a != null) Util.escapeString(CryptoFactoryC.pointToString(this.a), lbl, s);
+        if (a != null) Util.escapeString(CryptoFactoryC.pointToString(normalA()), lbl, s);
         s.print("</a>");
         s.print("<b>");
-        if (b != null) Util.escapeString(CryptoFactoryC.pointToString(this.b), lbl, s);
+        if (b != null) Util.escapeString(CryptoFactoryC.pointToString(normalB()), lbl, s);
         s.print("</b>");
         s.print("</");
         s.print(OPENING_TAG);
@@ -72,7 +123,7 @@ public class ElGamalCiphertextC implements ElGamalCiphertext {
         }
 
         ElGamalCiphertextC x = (ElGamalCiphertextC) o;
-        return a.equals(x.a) && b.equals(x.b);
+        return normalA().equals(x.normalA()) && normalB().equals(x.normalB());
     }
 
     public boolean equals(ElGamalCiphertext c) {
@@ -80,6 +131,6 @@ public class ElGamalCiphertextC implements ElGamalCiphertext {
     }
 
     public int hashCode() {
-        return a.hashCode() ^ b.hashCode();
+        return normalA().hashCode() ^ normalB().hashCode();
     }
 }
@@ -37,6 +37,14 @@ public class ElGamalDecryptionShareC implements ElGamalDecryptionShare {
      * @return
      */
     public boolean verify(ElGamalCiphertext c, ElGamalPublicKey K) {
+        return isProofFor(c, K) && proof.verify(K.getParams());
+    }
+
+    /**
+     * Check that the proof is about this share of ciphertext c, under
+     * key share K, without verifying the proof itself.
+     */
+    boolean isProofFor(ElGamalCiphertext c, ElGamalPublicKey K) {
         if (proof != null) {
             try {
                 ElGamalCiphertextC cipher = (ElGamalCiphertextC)c;
@@ -50,7 +58,7 @@ public class ElGamalDecryptionShareC implements ElGamalDecryptionShare {
                 //    proof.w == yi == public key and
                 if (proof.g1.equals(cipher.a) && proof.g2.equals(params.params.getG()) &&
                         proof.v.equals(ai) && proof.w.equals(KC.y)) {
-                    return proof.verify(params);
+                    return true;
                 }
                 else {
                     // failed verification
@@ -15,9 +15,7 @@ import jif.lang.LabelUtil;
 import org.bouncycastle.crypto.params.ECDomainParameters;
 import org.bouncycastle.jce.ECNamedCurveTable;
 import org.bouncycastle.jce.spec.ECParameterSpec;
-import org.bouncycastle.math.ec.ECMultiplier;
 import org.bouncycastle.math.ec.ECPoint;
-import org.bouncycastle.math.ec.FixedPointCombMultiplier;
 
 import civitas.common.Util;
 import civitas.crypto.CryptoError;
@@ -103,36 +101,20 @@ class ElGamalParametersC implements ElGamalParameters {
 			throw new CryptoException("Message is too large for parameters");
 		}
 
-		ECMultiplier mult = new FixedPointCombMultiplier();
-		return mult.multiply(params.getG(), p);
+		return FixedBaseCache.multiply(params.getG(), p);
 	}
 
 	/**
-	 * Attempt to decode a message by brute force.
-	 * @return If m does not decode to an integer i such that 1 <= i <= L.
+	 * Decode a message by looking it up in the shared table of small
+	 * multiples of G.
+	 * @see DiscreteLogTable
+	 * @throws CryptoException If m does not decode to an integer i such that 1 <= i <= L.
 	 */
 	public int bruteForceDecode(ECPoint m, int L) throws CryptoException {
-		// first, try doing this the nice way
-		try {
-			BigInteger c = decodeMessage(m);
-			int i = c.intValue();
-			if (1 <= i && i <= L) {
-				return i;
-			}
-		} catch (CryptoException c) {
-			// ignore and attempt brute force
+		int i = DiscreteLogTable.forParams(params).decode(m, L);
+		if (i < 1) {
+			throw new CryptoException("Brute force decoding failed");
 		}
-
-		// now try brute force
-		ECPoint g = params.getG();
-		ECPoint x = g;
-		for (int i = 1; i <= L; i++) {
-			if (x.equals(m)) {
-				return i;
-			}
-			x = x.add(g);
-		}
-
-		throw new CryptoException("Brute force decoding failed");
+		return i;
 	}
 }
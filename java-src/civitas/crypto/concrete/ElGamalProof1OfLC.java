@@ -15,7 +15,6 @@ import jif.lang.Label;
 import jif.lang.LabelUtil;
 import civitas.common.CiphertextList;
 import civitas.common.Util;
-import civitas.crypto.CryptoHashableList;
 import civitas.crypto.ElGamalCiphertext;
 import civitas.crypto.ElGamalProof1OfL;
 import civitas.crypto.ElGamalPublicKey;
@@ -41,8 +40,6 @@ public class ElGamalProof1OfLC implements ElGamalProof1OfL {
             int choice,
             ElGamalCiphertextC m,
             ElGamalReencryptFactorC factor) {
-        CryptoFactoryC factory = CryptoFactoryC.singleton();
-
         ElGamalParametersC ps = (ElGamalParametersC)key.params;
         ECPoint u = m.a;
         ECPoint v = m.b;
@@ -54,12 +51,8 @@ public class ElGamalProof1OfLC implements ElGamalProof1OfL {
         }
 
         // choose d1 .. dL, and r1 ... rL at random.
-        BigInteger[] ds = new BigInteger[L];
-        BigInteger[] rs = new BigInteger[L];
-        for (int i = 0; i < L; i++) {
-            ds[i] = CryptoAlgs.randomElementDefault(ps.params.getN());
-            rs[i] = CryptoAlgs.randomElementDefault(ps.params.getN());
-        }
+        BigInteger[] ds = CryptoAlgs.randomScalars(L, ps.params.getN());
+        BigInteger[] rs = CryptoAlgs.randomScalars(L, ps.params.getN());
 
         // Save for easy using
         ECPoint G = ps.params.getG();
@@ -69,20 +62,20 @@ public class ElGamalProof1OfLC implements ElGamalProof1OfL {
         ECPoint[] as = new ECPoint[L];
         ECPoint[] bs = new ECPoint[L];
         for (int i = 0; i < L; i++) {
-            as[i] = ms[i].a.subtract(u).multiply(ds[i]).add(G.multiply(rs[i]));
-            bs[i] = ms[i].b.subtract(v).multiply(ds[i]).add(key.y.multiply(rs[i]));
+            as[i] = MultiScalarMult.multiply(ms[i].a.subtract(u), ds[i]).add(FixedBaseCache.multiply(G, rs[i]));
+            bs[i] = MultiScalarMult.multiply(ms[i].b.subtract(v), ds[i]).add(FixedBaseCache.multiply(key.y, rs[i]));
         }
 
-        CryptoHashableList env = new CryptoHashableList(2 + 4*L);
-        env.add(u);
-        env.add(v);
+        ECPoint[] points = new ECPoint[2 + 4*L];
+        points[0] = u;
+        points[1] = v;
         for (int i = 0; i < L; i++) {
-            env.add(ms[i].a);
-            env.add(ms[i].b);
-            env.add(as[i]);
-            env.add(bs[i]);
+            points[2 + 4*i] = ms[i].a;
+            points[3 + 4*i] = ms[i].b;
+            points[4 + 4*i] = as[i];
+            points[5 + 4*i] = bs[i];
         }
-        BigInteger c = factory.hashToDefaultBigInt(factory.hash(env)).mod(N);
+        BigInteger c = Transcript.start().points(points).challenge(N);
         BigInteger w = CivitasBigInteger.modAdd(CivitasBigInteger.modMultiply(CivitasBigInteger.modNegate(r, N), ds[choice], N), rs[choice], N);
         BigInteger sum = BigInteger.ZERO;
         for (int i = 0; i < L; i++) {
@@ -110,38 +103,67 @@ public class ElGamalProof1OfLC implements ElGamalProof1OfL {
     }
     public boolean verify(ElGamalPublicKey pubKey, CiphertextList ciphertexts, int L, ElGamalCiphertext msg) {
         if (this.L != L) return false;
+        long start = CryptoMetrics.PROOF_VERIFY.start();
+        try {
+            return verifyImpl(pubKey, ciphertexts, L, msg);
+        }
+        finally {
+            CryptoMetrics.PROOF_VERIFY.stop(start);
+        }
+    }
+    private boolean verifyImpl(ElGamalPublicKey pubKey, CiphertextList ciphertexts, int L, ElGamalCiphertext msg) {
         ElGamalCiphertextC m = (ElGamalCiphertextC)msg;
-        ECPoint u = m.a;
-        ECPoint v = m.b;
         ElGamalPublicKeyC key = (ElGamalPublicKeyC)pubKey;
-        ElGamalParametersC ps = (ElGamalParametersC)key.params;
-        ElGamalCiphertextC[] ms = new ElGamalCiphertextC[L];
+        ElGamalCiphertextC[] ms = ciphertextArray(ciphertexts, L);
+        return checkCommitments(key, ms, m, commitments(key, ms, m));
+    }
 
+    static ElGamalCiphertextC[] ciphertextArray(CiphertextList ciphertexts, int L) {
+        ElGamalCiphertextC[] ms = new ElGamalCiphertextC[L];
         for (int i = 0; i < L; i++) {
             ms[i] = (ElGamalCiphertextC)ciphertexts.get(i);
         }
+        return ms;
+    }
 
-        CryptoFactoryC factory = CryptoFactoryC.singleton();
-        ECPoint[] as = new ECPoint[L];
-        ECPoint[] bs = new ECPoint[L];
+    /**
+     * Recompute the commitments of the proof that m is a reencryption of
+     * one of ms. The result holds a_i at index 2i and b_i at index 2i+1.
+     */
+    ECPoint[] commitments(ElGamalPublicKeyC key, ElGamalCiphertextC[] ms, ElGamalCiphertextC m) {
+        ECPoint u = m.a;
+        ECPoint v = m.b;
+        ElGamalParametersC ps = (ElGamalParametersC)key.params;
+        ECPoint[] abs = new ECPoint[2*L];
+        for (int i = 0; i < L; i++) {
+            abs[2*i] = MultiScalarMult.sumOfTwoMultiplies(ms[i].a.subtract(u), dvs[i], ps.params.getG(), rvs[i]);
+            abs[2*i+1] = MultiScalarMult.sumOfTwoMultiplies(ms[i].b.subtract(v), dvs[i], key.y, rvs[i]);
+        }
+        return abs;
+    }
+
+    /**
+     * Check the recomputed commitments against the challenge, i.e., that
+     * the d_i sum to the hash of the environment.
+     */
+    boolean checkCommitments(ElGamalPublicKeyC key, ElGamalCiphertextC[] ms, ElGamalCiphertextC m, ECPoint[] abs) {
+        ElGamalParametersC ps = (ElGamalParametersC)key.params;
         BigInteger sum = BigInteger.ZERO;
         for (int i = 0; i < L; i++) {
-            as[i] = (ms[i].a.subtract(u)).multiply(dvs[i]).add(ps.params.getG().multiply(rvs[i]));
-            bs[i] = (ms[i].b.subtract(v)).multiply(dvs[i]).add(key.y.multiply(rvs[i]));
             sum = CivitasBigInteger.modAdd(sum, dvs[i], ps.params.getN());
         }
 
         // construct the hash of the environment
-        CryptoHashableList env = new CryptoHashableList(2 + 4*L);
-        env.add(u);
-        env.add(v);
+        ECPoint[] points = new ECPoint[2 + 4*L];
+        points[0] = m.a;
+        points[1] = m.b;
         for (int i = 0; i < L; i++) {
-            env.add(ms[i].a);
-            env.add(ms[i].b);
-            env.add(as[i]);
-            env.add(bs[i]);
+            points[2 + 4*i] = ms[i].a;
+            points[3 + 4*i] = ms[i].b;
+            points[4 + 4*i] = abs[2*i];
+            points[5 + 4*i] = abs[2*i+1];
         }
-        BigInteger c = factory.hashToDefaultBigInt(factory.hash(env)).mod(ps.params.getN());
+        BigInteger c = Transcript.start().points(points).challenge(ps.params.getN());
         return sum.equals(c);
     }
     public String toXML() {
@@ -15,7 +15,6 @@ import jif.lang.Label;
 import jif.lang.LabelUtil;
 import civitas.common.Util;
 import civitas.crypto.CryptoError;
-import civitas.crypto.CryptoHashableList;
 import civitas.crypto.ElGamalCiphertext;
 import civitas.crypto.ElGamalProofDVR;
 import civitas.crypto.ElGamalPublicKey;
@@ -53,23 +52,16 @@ public class ElGamalProofDVRC implements ElGamalProofDVR {
         BigInteger N = ps.params.getN();
         ECPoint G = ps.params.getG();
 
-        BigInteger d = CryptoAlgs.randomElementDefault(N);
-        BigInteger w = CryptoAlgs.randomElementDefault(N);
-        BigInteger r = CryptoAlgs.randomElementDefault(N);
+        BigInteger[] rnd = CryptoAlgs.randomScalars(3, N);
+        BigInteger d = rnd[0];
+        BigInteger w = rnd[1];
+        BigInteger r = rnd[2];
         ECPoint h = key.y;
         ECPoint hv = verifierKey.y;
-        ECPoint a = G.multiply(d);
-        ECPoint b = h.multiply(d);
-        ECPoint s = G.multiply(w).add(hv.multiply(r));
-        CryptoHashableList l = new CryptoHashableList();
-        l.add(e.a);
-        l.add(e.b);
-        l.add(eprime.a);
-        l.add(eprime.b);
-        l.add(a);
-        l.add(b);
-        l.add(s);
-        BigInteger c = factory.hashToDefaultBigInt(factory.hash(l)).mod(N);
+        ECPoint a = FixedBaseCache.multiply(G, d);
+        ECPoint b = FixedBaseCache.multiply(h, d);
+        ECPoint s = FixedBaseCache.multiply(G, w).add(FixedBaseCache.multiply(hv, r));
+        BigInteger c = Transcript.start().points(new ECPoint[] { e.a, e.b, eprime.a, eprime.b, a, b, s }).challenge(N);
 
         BigInteger u = CivitasBigInteger.modAdd(
             d,
@@ -92,8 +84,6 @@ public class ElGamalProofDVRC implements ElGamalProofDVR {
         ElGamalPublicKeyC verifierKey,
         ElGamalPrivateKeyC verifierPrivKey)
     {
-        CryptoFactoryC factory = CryptoFactoryC.singleton();
-
         ElGamalParametersC ps = (ElGamalParametersC)key.getParams();
         BigInteger N = ps.params.getN();
         ECPoint G = ps.params.getG();
@@ -119,23 +109,16 @@ public class ElGamalProofDVRC implements ElGamalProofDVR {
          *     o r~ = (\beta - w~)/(z_v) (mod q)
          * (c~, w~, r~, u~) will verify as a proof for E~.
          */
-        BigInteger alpha = CryptoAlgs.randomElementDefault(N);
-        BigInteger beta = CryptoAlgs.randomElementDefault(N);
-        BigInteger ut = CryptoAlgs.randomElementDefault(N);
-
-        ECPoint at = G.multiply(ut).subtract(xt.subtract(x).multiply(alpha));
-        ECPoint bt = h.multiply(ut).subtract(yt.subtract(y).multiply(alpha));
-        ECPoint st = G.multiply(beta);
-
-        CryptoHashableList l = new CryptoHashableList();
-        l.add(e.a);
-        l.add(e.b);
-        l.add(et.a);
-        l.add(et.b);
-        l.add(at);
-        l.add(bt);
-        l.add(st);
-        BigInteger ct = factory.hashToDefaultBigInt(factory.hash(l)).mod(N);
+        BigInteger[] rnd = CryptoAlgs.randomScalars(3, N);
+        BigInteger alpha = rnd[0];
+        BigInteger beta = rnd[1];
+        BigInteger ut = rnd[2];
+
+        ECPoint at = FixedBaseCache.multiply(G, ut).subtract(MultiScalarMult.multiply(xt.subtract(x), alpha));
+        ECPoint bt = FixedBaseCache.multiply(h, ut).subtract(MultiScalarMult.multiply(yt.subtract(y), alpha));
+        ECPoint st = FixedBaseCache.multiply(G, beta);
+
+        BigInteger ct = Transcript.start().points(new ECPoint[] { e.a, e.b, et.a, et.b, at, bt, st }).challenge(N);
 
         BigInteger wt = CivitasBigInteger.modSubtract(alpha, ct, N);
         BigInteger rt = CivitasBigInteger.modDivide(CivitasBigInteger.modSubtract(beta, wt, N), zv, N);
@@ -144,8 +127,15 @@ public class ElGamalProofDVRC implements ElGamalProofDVR {
     }
 
     public boolean verify(ElGamalPublicKey K, ElGamalPublicKey verifierKey) {
-        CryptoFactoryC factory = CryptoFactoryC.singleton();
-
+        long start = CryptoMetrics.PROOF_VERIFY.start();
+        try {
+            return verifyImpl(K, verifierKey);
+        }
+        finally {
+            CryptoMetrics.PROOF_VERIFY.stop(start);
+        }
+    }
+    private boolean verifyImpl(ElGamalPublicKey K, ElGamalPublicKey verifierKey) {
         ElGamalParametersC ps = (ElGamalParametersC)K.getParams();
         BigInteger N = ps.params.getN();
         ECPoint G = ps.params.getG();
@@ -165,19 +155,12 @@ public class ElGamalProofDVRC implements ElGamalProofDVR {
          * c' = hash(E||a'||b'||s')
          */
 
-        ECPoint ap = G.multiply(u).subtract(xp.subtract(x).multiply(CivitasBigInteger.modAdd(c, w, N)));
-        ECPoint bp = h.multiply(u).subtract(yp.subtract(y).multiply(CivitasBigInteger.modAdd(c, w, N)));
-        ECPoint sp = G.multiply(w).add(hv.multiply(r));
-
-        CryptoHashableList l = new CryptoHashableList();
-        l.add(e.a);
-        l.add(e.b);
-        l.add(eprime.a);
-        l.add(eprime.b);
-        l.add(ap);
-        l.add(bp);
-        l.add(sp);
-        BigInteger cp = factory.hashToDefaultBigInt(factory.hash(l)).mod(N);
+        BigInteger negcw = CivitasBigInteger.modNegate(CivitasBigInteger.modAdd(c, w, N), N);
+        ECPoint ap = MultiScalarMult.sumOfTwoMultiplies(G, u, xp.subtract(x), negcw);
+        ECPoint bp = MultiScalarMult.sumOfTwoMultiplies(h, u, yp.subtract(y), negcw);
+        ECPoint sp = MultiScalarMult.sumOfTwoMultiplies(G, w, hv, r);
+
+        BigInteger cp = Transcript.start().points(new ECPoint[] { e.a, e.b, eprime.a, eprime.b, ap, bp, sp }).challenge(N);
 
         return cp.equals(c);
     }
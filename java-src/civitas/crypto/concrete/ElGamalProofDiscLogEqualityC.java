@@ -8,13 +8,14 @@ package civitas.crypto.concrete;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.bouncycastle.math.ec.ECPoint;
 
 import jif.lang.Label;
 import jif.lang.LabelUtil;
 import civitas.common.Util;
-import civitas.crypto.CryptoHashableList;
 import civitas.crypto.ElGamalParameters;
 import civitas.crypto.ElGamalProofDiscLogEquality;
 import civitas.util.CivitasBigInteger;
@@ -30,6 +31,12 @@ import civitas.util.CivitasBigInteger;
  * To verify, check that g_1^r = av^c (mod p) and g_2^r = bw^c (mod p).
  */
 public class ElGamalProofDiscLogEqualityC implements ElGamalProofDiscLogEquality {
+    /**
+     * Size of the random weights used in batch verification. A batch
+     * containing an invalid proof passes with probability at most
+     * 2^-BATCH_WEIGHT_BITS.
+     */
+    private static final int BATCH_WEIGHT_BITS = 128;
 
     public final ECPoint g1;
     public final ECPoint g2;
@@ -66,22 +73,44 @@ public class ElGamalProofDiscLogEqualityC implements ElGamalProofDiscLogEquality
         ECPoint g2,
         BigInteger x)
     {
-
-        CryptoFactoryC factory = CryptoFactoryC.singleton();
-
-        ECPoint v = g1.multiply(x);
-        ECPoint w = g2.multiply(x);
+        return constructProof(params, g1, g2, x, null, null);
+    }
+    /**
+     * Construct the proof for v = g1*x and w = g2*x, which the caller has
+     * already computed. If v or w is null, it is computed here.
+     */
+    public static ElGamalProofDiscLogEqualityC constructProof(
+        ElGamalParametersC params,
+        ECPoint g1,
+        ECPoint g2,
+        BigInteger x,
+        ECPoint v,
+        ECPoint w)
+    {
+        long start = CryptoMetrics.PROOF_CONSTRUCT.start();
+        try {
+            return constructProofImpl(params, g1, g2, x, v, w);
+        }
+        finally {
+            CryptoMetrics.PROOF_CONSTRUCT.stop(start);
+        }
+    }
+    private static ElGamalProofDiscLogEqualityC constructProofImpl(
+        ElGamalParametersC params,
+        ECPoint g1,
+        ECPoint g2,
+        BigInteger x,
+        ECPoint v,
+        ECPoint w)
+    {
+        if (v == null) v = FixedBaseCache.multiply(g1, x);
+        if (w == null) w = FixedBaseCache.multiply(g2, x);
 
         BigInteger z = CryptoAlgs.randomElementDefault(params.params.getN());
-        ECPoint a = g1.multiply(z);
-        ECPoint b = g2.multiply(z);
+        ECPoint a = FixedBaseCache.multiply(g1, z);
+        ECPoint b = FixedBaseCache.multiply(g2, z);
 
-        CryptoHashableList l = new CryptoHashableList();
-        l.add(v);
-        l.add(w);
-        l.add(a);
-        l.add(b);
-        BigInteger c = factory.hashToDefaultBigInt(factory.hash(l)).mod(params.params.getN());
+        BigInteger c = Transcript.start().points(new ECPoint[] { v, w, a, b }).challenge(params.params.getN());
 
         BigInteger cx = CivitasBigInteger.modMultiply(c, x, params.params.getN());
         BigInteger r = CivitasBigInteger.modAdd(z, cx, params.params.getN());
@@ -93,10 +122,19 @@ public class ElGamalProofDiscLogEqualityC implements ElGamalProofDiscLogEquality
     public boolean verify(ElGamalParameters prms) {
         if (!(prms instanceof ElGamalParametersC)) return false;
 
+        long start = CryptoMetrics.PROOF_VERIFY.start();
+        try {
+            return verifyImpl();
+        }
+        finally {
+            CryptoMetrics.PROOF_VERIFY.stop(start);
+        }
+    }
+    private boolean verifyImpl() {
         try {
             //To verify, check that g_1^r = av^c (mod p) and g_2^r = bw^c (mod p)
-            return g1.multiply(r).equals(a.add(v.multiply(c))) &&
-                   g2.multiply(r).equals(b.add(w.multiply(c)));
+            return MultiScalarMult.sumOfTwoMultiplies(g1, r, v, c.negate()).equals(a) &&
+                   MultiScalarMult.sumOfTwoMultiplies(g2, r, w, c.negate()).equals(b);
         }
         catch (NullPointerException e) {
             return false;
@@ -105,6 +143,83 @@ public class ElGamalProofDiscLogEqualityC implements ElGamalProofDiscLogEquality
             return false;
         }
     }
+
+    /**
+     * Verify a number of proofs at once. The result is the same as calling
+     * verify(params) on each proof; a null proof fails verification.
+     *
+     * Each proof i contributes its two equations, weighted by random
+     * alpha_i and beta_i, to a single check
+     *     sum_i alpha_i(r_i g1_i - a_i - c_i v_i) + beta_i(r_i g2_i - b_i - c_i w_i) = 0
+     * Terms with the same base (typically g, and the key of the teller that
+     * produced the proofs) are merged, and the sum is computed with one
+     * multi-scalar multiplication. Only if the combined check fails are the
+     * proofs verified one at a time, to find the invalid ones.
+     */
+    static boolean[] verifyBatch(ElGamalParametersC params, ElGamalProofDiscLogEqualityC[] proofs) {
+        long start = CryptoMetrics.PROOF_VERIFY.start();
+        try {
+            return verifyBatchImpl(params, proofs);
+        }
+        finally {
+            CryptoMetrics.PROOF_VERIFY.stop(start, proofs.length);
+        }
+    }
+    private static boolean[] verifyBatchImpl(ElGamalParametersC params, ElGamalProofDiscLogEqualityC[] proofs) {
+        boolean[] ret = new boolean[proofs.length];
+        BigInteger n = params.params.getN();
+        Map<ECPoint, BigInteger> terms = new LinkedHashMap<ECPoint, BigInteger>();
+        int count = 0;
+        for (int i = 0; i < proofs.length; i++) {
+            ElGamalProofDiscLogEqualityC p = proofs[i];
+            if (p == null || p.g1 == null || p.g2 == null || p.v == null || p.w == null ||
+                    p.a == null || p.b == null || p.c == null || p.r == null) {
+                continue;
+            }
+            ret[i] = true;
+            count++;
+            BigInteger alpha = new BigInteger(BATCH_WEIGHT_BITS, CryptoAlgs.rng());
+            BigInteger beta = new BigInteger(BATCH_WEIGHT_BITS, CryptoAlgs.rng());
+            addTerm(terms, p.g1, alpha.multiply(p.r), n);
+            addTerm(terms, p.a, alpha.negate(), n);
+            addTerm(terms, p.v, alpha.multiply(p.c).negate(), n);
+            addTerm(terms, p.g2, beta.multiply(p.r), n);
+            addTerm(terms, p.b, beta.negate(), n);
+            addTerm(terms, p.w, beta.multiply(p.c).negate(), n);
+        }
+        if (count == 0) return ret;
+
+        if (count > 1) {
+            // every base at infinity (e.g. the PET of a ciphertext with
+            // itself): the sum is infinity.
+            if (terms.isEmpty()) return ret;
+            ECPoint[] bases = new ECPoint[terms.size()];
+            BigInteger[] scalars = new BigInteger[terms.size()];
+            int j = 0;
+            for (Map.Entry<ECPoint, BigInteger> e : terms.entrySet()) {
+                bases[j] = e.getKey();
+                scalars[j] = e.getValue();
+                j++;
+            }
+            if (MultiScalarMult.sumOfMultiplies(bases, scalars).isInfinity()) {
+                return ret;
+            }
+        }
+
+        // at least one proof is invalid; find out which. These are already
+        // counted in the metrics as part of the batch.
+        for (int i = 0; i < proofs.length; i++) {
+            if (ret[i]) ret[i] = proofs[i].verifyImpl();
+        }
+        return ret;
+    }
+
+    private static void addTerm(Map<ECPoint, BigInteger> terms, ECPoint base, BigInteger k, BigInteger n) {
+        if (base.isInfinity()) return;
+        BigInteger old = terms.get(base);
+        terms.put(base, (old == null ? k : old.add(k)).mod(n));
+    }
+
     public String toXML() {
         StringWriter sb = new StringWriter();
         toXML(LabelUtil.singleton().noComponents(), new PrintWriter(sb));
@@ -45,11 +45,10 @@ public class ElGamalProofKnowDiscLogC implements ElGamalProofKnowDiscLog {
     public boolean verify(ElGamalParameters prms) {
         if (!(prms instanceof ElGamalParametersC)) return false;
         ElGamalParametersC params = (ElGamalParametersC)prms;
+        long start = CryptoMetrics.PROOF_VERIFY.start();
         try {
-            ECPoint u = params.params.getG().multiply(r);
-            ECPoint w = a.add(v.multiply(c));
-
-            return u.equals(w);
+            // check that g^r = a * v^c
+            return MultiScalarMult.sumOfTwoMultiplies(params.params.getG(), r, v, c.negate()).equals(a);
         }
         catch (NullPointerException e) {
             return false;
@@ -57,6 +56,9 @@ public class ElGamalProofKnowDiscLogC implements ElGamalProofKnowDiscLog {
         catch (ArithmeticException e) {
             return false;
         }
+        finally {
+            CryptoMetrics.PROOF_VERIFY.stop(start);
+        }
     }
     public String toXML() {
         StringWriter sb = new StringWriter();
@@ -80,7 +80,7 @@ public class ElGamalPublicKeyC extends ElGamalAbstractKey implements ElGamalPubl
         if (prf instanceof ElGamalPrivateKeyC) {
             ElGamalPrivateKeyC k = (ElGamalPrivateKeyC)prf;
             ElGamalParametersC param = (ElGamalParametersC)this.params;
-            return y.equals(param.params.getG().multiply(k.x));
+            return y.equals(FixedBaseCache.multiply(param.params.getG(), k.x));
         }
         return false;
     }
@@ -11,13 +11,38 @@ import java.math.BigInteger;
 
 import jif.lang.Label;
 import jif.lang.LabelUtil;
+
+import org.bouncycastle.math.ec.ECPoint;
+
 import civitas.common.Util;
 import civitas.crypto.ElGamalReencryptFactor;
 
 public class ElGamalReencryptFactorC implements ElGamalReencryptFactor {
     protected final BigInteger r;
+
+    /**
+     * The precomputed pad for r, if any: G*r and y*r for the key y. They
+     * are not part of the XML representation.
+     */
+    final ECPoint y;
+    final ECPoint gr;
+    final ECPoint yr;
+
     public ElGamalReencryptFactorC(BigInteger r) {
+        this(r, null, null, null);
+    }
+    ElGamalReencryptFactorC(BigInteger r, ECPoint y, ECPoint gr, ECPoint yr) {
         this.r = r;
+        this.y = y;
+        this.gr = gr;
+        this.yr = yr;
+    }
+
+    /**
+     * @return whether G*r and y*r have been precomputed for the key y.
+     */
+    boolean hasPadFor(ECPoint y) {
+        return this.y != null && (this.y == y || this.y.equals(y));
     }
     public String toXML() {
         StringWriter sb = new StringWriter();
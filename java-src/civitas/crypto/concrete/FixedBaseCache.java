@@ -0,0 +1,282 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.crypto.concrete;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bouncycastle.math.ec.ECPoint;
+
+/**
+ * A shared cache of fixed-base precomputation tables for elliptic curve
+ * scalar multiplication.
+ *
+ * Almost every scalar multiplication performed by the concrete crypto
+ * implementation uses one of a handful of bases: the generator G, the
+ * tabulation tellers' shared public key, and the public keys of whoever
+ * is currently being verified. For each such base P we keep a signed
+ * window table T[i][j] = (j+1) * 16^i * P, so that k*P costs at most one
+ * point addition per 4 bits of k, and no doublings at all.
+ *
+ * Tables are keyed by the compressed encoding of the base point. A base
+ * only gets a table once it has been used ADMIT_THRESHOLD times; the
+ * tables are evicted in least recently used order once the estimated size
+ * of the cache exceeds MAX_BYTES.
+ *
+ * The bounds can be configured with the system properties
+ * <code>civitas.crypto.fixedbase.maxbytes</code> and
+ * <code>civitas.crypto.fixedbase.threshold</code>.
+ */
+class FixedBaseCache {
+    /**
+     * Bits of the scalar consumed per table row.
+     */
+    private static final int WINDOW = 4;
+
+    /**
+     * Number of precomputed points per row. With signed digits in
+     * [-2^(WINDOW-1), 2^(WINDOW-1)] only the positive multiples are needed.
+     */
+    private static final int ROW_SIZE = 1 << (WINDOW - 1);
+
+    /**
+     * Rough estimate of the heap used by one affine point with a 256 bit
+     * field: two field elements, the point object and its bookkeeping.
+     */
+    private static final int BYTES_PER_POINT = 200;
+
+    private static final long MAX_BYTES = Long.getLong("civitas.crypto.fixedbase.maxbytes", 32L * 1024 * 1024).longValue();
+    private static final int ADMIT_THRESHOLD = Integer.getInteger("civitas.crypto.fixedbase.threshold", 8).intValue();
+
+    /**
+     * Upper bound on the number of bases whose uses we are counting, but
+     * which do not yet have a table.
+     */
+    private static final int MAX_CANDIDATES = 4096;
+
+    private static final FixedBaseCache singleton = new FixedBaseCache();
+
+    /**
+     * Tables, in access order.
+     */
+    private final LinkedHashMap<ByteBuffer, Table> tables = new LinkedHashMap<ByteBuffer, Table>(16, 0.75f, true);
+
+    /**
+     * Use counts for bases that do not yet have a table.
+     */
+    private final LinkedHashMap<ByteBuffer, int[]> candidates = new LinkedHashMap<ByteBuffer, int[]>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, int[]> eldest) {
+            return size() > MAX_CANDIDATES;
+        }
+    };
+
+    private long bytes = 0;
+
+    private FixedBaseCache() { }
+
+    /**
+     * @return k*p, using a precomputed table for p if there is one.
+     */
+    static ECPoint multiply(ECPoint p, BigInteger k) {
+        return singleton.multiplyImpl(p, k);
+    }
+
+    /**
+     * @return the estimated number of bytes used by the tables in the cache.
+     */
+    static long bytesInUse() {
+        synchronized (singleton) {
+            return singleton.bytes;
+        }
+    }
+
+    /**
+     * @return the number of tables in the cache.
+     */
+    static int size() {
+        synchronized (singleton) {
+            return singleton.tables.size();
+        }
+    }
+
+    /**
+     * Remove all tables and use counts.
+     */
+    static void clear() {
+        synchronized (singleton) {
+            singleton.tables.clear();
+            singleton.candidates.clear();
+            singleton.bytes = 0;
+        }
+    }
+
+    /**
+     * @return the table for p if there already is one, otherwise null. Unlike
+     * multiply, this does not count as a use of p.
+     */
+    static Table table(ECPoint p) {
+        if (p.isInfinity() || !p.isNormalized()) return null;
+        return singleton.lookup(ByteBuffer.wrap(p.getEncoded(true)));
+    }
+
+    private ECPoint multiplyImpl(ECPoint p, BigInteger k) {
+        BigInteger n = p.getCurve().getOrder();
+        // Points that are not in affine form are, in practice, intermediate
+        // results that are never seen twice. They bypass the cache to avoid
+        // paying a field inversion for the lookup key.
+        if (n == null || p.isInfinity() || !p.isNormalized()) {
+            return MultiScalarMult.multiply(p, k);
+        }
+
+        ByteBuffer key = ByteBuffer.wrap(p.getEncoded(true));
+        Table t = lookup(key);
+        if (t == null) {
+            if (!admit(key)) {
+                return MultiScalarMult.multiply(p, k);
+            }
+            t = new Table(p, n);
+            insert(key, t);
+        }
+        return t.multiply(k);
+    }
+
+    private synchronized Table lookup(ByteBuffer key) {
+        return tables.get(key);
+    }
+
+    /**
+     * Record a use of the base identified by key.
+     * @return true if the base should now get a table.
+     */
+    private synchronized boolean admit(ByteBuffer key) {
+        int[] count = candidates.get(key);
+        if (count == null) {
+            count = new int[1];
+            candidates.put(key, count);
+        }
+        if (++count[0] < ADMIT_THRESHOLD) {
+            return false;
+        }
+        candidates.remove(key);
+        return true;
+    }
+
+    private synchronized void insert(ByteBuffer key, Table t) {
+        if (t.bytes > MAX_BYTES) return;
+        Table old = tables.put(key, t);
+        if (old != null) {
+            // another thread built the same table concurrently.
+            bytes -= old.bytes;
+        }
+        bytes += t.bytes;
+        Iterator<Table> iter = tables.values().iterator();
+        while (bytes > MAX_BYTES && iter.hasNext()) {
+            Table eldest = iter.next();
+            iter.remove();
+            bytes -= eldest.bytes;
+        }
+    }
+
+    /**
+     * A signed window table for a single base point.
+     */
+    static class Table {
+        private final BigInteger n;
+        private final ECPoint infinity;
+
+        /**
+         * rows[i][j] = (j+1) * 2^(WINDOW*i) * P, in affine form. Null if
+         * the table is held by the secp256k1 backend instead.
+         */
+        private final ECPoint[][] rows;
+        private final Secp256k1.Table fast;
+
+        final long bytes;
+
+        Table(ECPoint p, BigInteger n) {
+            this.n = n;
+            this.infinity = p.getCurve().getInfinity();
+
+            // one extra row absorbs the carry out of the top digit.
+            int numRows = (n.bitLength() + WINDOW - 1) / WINDOW + 1;
+            ECPoint[] all = new ECPoint[numRows * ROW_SIZE];
+            ECPoint base = p;
+            for (int i = 0; i < numRows; i++) {
+                ECPoint x = base;
+                all[i * ROW_SIZE] = x;
+                for (int j = 1; j < ROW_SIZE; j++) {
+                    x = x.add(base);
+                    all[i * ROW_SIZE + j] = x;
+                }
+                base = base.timesPow2(WINDOW);
+            }
+
+            // put everything in affine form with a single field inversion,
+            // which makes every addition during multiply a mixed addition.
+            p.getCurve().normalizeAll(all);
+
+            if (Secp256k1.use(p.getCurve())) {
+                this.fast = new Secp256k1.Table(all, WINDOW, p.getCurve());
+                this.rows = null;
+            }
+            else {
+                this.fast = null;
+                this.rows = new ECPoint[numRows][ROW_SIZE];
+                for (int i = 0; i < numRows; i++) {
+                    System.arraycopy(all, i * ROW_SIZE, rows[i], 0, ROW_SIZE);
+                }
+            }
+            this.bytes = (long)all.length * BYTES_PER_POINT;
+        }
+
+        ECPoint multiply(BigInteger k) {
+            if (k.signum() < 0 || k.compareTo(n) >= 0) {
+                k = k.mod(n);
+            }
+            if (k.signum() == 0) {
+                return infinity;
+            }
+            if (fast != null) {
+                return fast.multiply(k);
+            }
+
+            // recode k into signed digits, least significant first.
+            byte[] bs = k.toByteArray();
+            ECPoint acc = infinity;
+            int carry = 0;
+            int row = 0;
+            for (int i = bs.length - 1; i >= 0; i--) {
+                for (int shift = 0; shift < 8; shift += WINDOW) {
+                    int d = ((bs[i] >> shift) & ((1 << WINDOW) - 1)) + carry;
+                    carry = 0;
+                    if (d > ROW_SIZE) {
+                        d -= 1 << WINDOW;
+                        carry = 1;
+                    }
+                    acc = addDigit(acc, row++, d);
+                }
+            }
+            if (carry != 0) {
+                acc = addDigit(acc, row, carry);
+            }
+            return acc;
+        }
+
+        private ECPoint addDigit(ECPoint acc, int row, int d) {
+            if (d > 0) {
+                return acc.add(rows[row][d - 1]);
+            }
+            if (d < 0) {
+                return acc.subtract(rows[row][-d - 1]);
+            }
+            return acc;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.crypto.concrete;
+
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Per-thread pools of JCA provider objects.
+ *
+ * Looking up an algorithm in the providers with getInstance is much more
+ * expensive than the operation itself for short inputs, so each thread
+ * keeps the objects it has used, keyed by algorithm and provider, and for
+ * ciphers and signatures also by key and mode.
+ *
+ * An object is taken out of the pool for the duration of an operation and
+ * given back when the operation succeeds, so nested or reentrant uses on a
+ * thread never share an object. An object whose operation failed is not
+ * given back, and is thus never reused in an unknown state. Objects are
+ * reset when taken: message digests explicitly, and ciphers and signatures
+ * by doFinal, sign and verify, which return them to their initialized
+ * state.
+ *
+ * Each thread keeps at most MAX_ENTRIES objects, evicting the least
+ * recently used.
+ */
+class JcaPool {
+    private static final int MAX_ENTRIES = 64;
+
+    private static final ThreadLocal<Map<Slot, Object>> pool = new ThreadLocal<Map<Slot, Object>>() {
+        protected Map<Slot, Object> initialValue() {
+            return new LinkedHashMap<Slot, Object>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<Slot, Object> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+        }
+    };
+
+    private static final int DIGEST = 0;
+    private static final int CIPHER = 1;
+    private static final int SIGN = 2;
+    private static final int VERIFY = 3;
+    private static final int KEY_FACTORY = 4;
+    private static final int DIGEST_PROTOTYPE = 5;
+
+    private JcaPool() { }
+
+    /**
+     * Take a message digest for alg from the pool, creating it if need be.
+     * A null provider means any provider.
+     */
+    static MessageDigest takeDigest(String alg, String provider) throws NoSuchAlgorithmException, NoSuchProviderException {
+        MessageDigest md = (MessageDigest)take(new Slot(DIGEST, alg, provider, null, 0));
+        if (md != null) {
+            md.reset();
+            return md;
+        }
+        return newDigest(alg, provider);
+    }
+
+    static void giveDigest(MessageDigest md, String alg, String provider) {
+        give(new Slot(DIGEST, alg, provider, null, 0), md);
+    }
+
+    /**
+     * @return a message digest for alg that the caller owns, cloned from
+     * a prototype kept by the thread where the digest supports it.
+     */
+    static MessageDigest freshDigest(String alg, String provider) throws NoSuchAlgorithmException, NoSuchProviderException {
+        Slot s = new Slot(DIGEST_PROTOTYPE, alg, provider, null, 0);
+        Map<Slot, Object> m = pool.get();
+        MessageDigest proto = (MessageDigest)m.get(s);
+        if (proto == null) {
+            proto = newDigest(alg, provider);
+            m.put(s, proto);
+        }
+        try {
+            return (MessageDigest)proto.clone();
+        }
+        catch (CloneNotSupportedException e) {
+            return newDigest(alg, provider);
+        }
+    }
+
+    /**
+     * Take a cipher for alg, initialized with key in mode, from the pool,
+     * creating and initializing it if need be.
+     */
+    static Cipher takeCipher(String alg, String provider, Key key, int mode)
+    throws NoSuchAlgorithmException, NoSuchPaddingException, NoSuchProviderException, InvalidKeyException {
+        Cipher c = (Cipher)take(new Slot(CIPHER, alg, provider, key, mode));
+        if (c != null) return c;
+        c = Cipher.getInstance(alg, provider);
+        c.init(mode, key);
+        return c;
+    }
+
+    static void giveCipher(Cipher c, String alg, String provider, Key key, int mode) {
+        give(new Slot(CIPHER, alg, provider, key, mode), c);
+    }
+
+    /**
+     * Take a signature for alg, initialized to sign with key, from the
+     * pool, creating and initializing it if need be.
+     */
+    static Signature takeSigner(String alg, String provider, PrivateKey key)
+    throws NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException {
+        Signature sig = (Signature)take(new Slot(SIGN, alg, provider, key, 0));
+        if (sig != null) return sig;
+        sig = Signature.getInstance(alg, provider);
+        sig.initSign(key);
+        return sig;
+    }
+
+    static void giveSigner(Signature sig, String alg, String provider, PrivateKey key) {
+        give(new Slot(SIGN, alg, provider, key, 0), sig);
+    }
+
+    /**
+     * Take a signature for alg, initialized to verify with key, from the
+     * pool, creating and initializing it if need be.
+     */
+    static Signature takeVerifier(String alg, String provider, PublicKey key)
+    throws NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException {
+        Signature sig = (Signature)take(new Slot(VERIFY, alg, provider, key, 0));
+        if (sig != null) return sig;
+        sig = Signature.getInstance(alg, provider);
+        sig.initVerify(key);
+        return sig;
+    }
+
+    static void giveVerifier(Signature sig, String alg, String provider, PublicKey key) {
+        give(new Slot(VERIFY, alg, provider, key, 0), sig);
+    }
+
+    /**
+     * @return the key factory for alg of this thread. Key factories keep no
+     * state between calls, so they are not taken out of the pool.
+     */
+    static KeyFactory keyFactory(String alg, String provider) throws NoSuchAlgorithmException, NoSuchProviderException {
+        Slot s = new Slot(KEY_FACTORY, alg, provider, null, 0);
+        Map<Slot, Object> m = pool.get();
+        KeyFactory kf = (KeyFactory)m.get(s);
+        if (kf == null) {
+            kf = KeyFactory.getInstance(alg, provider);
+            m.put(s, kf);
+        }
+        return kf;
+    }
+
+    private static MessageDigest newDigest(String alg, String provider) throws NoSuchAlgorithmException, NoSuchProviderException {
+        if (provider == null) {
+            return MessageDigest.getInstance(alg);
+        }
+        return MessageDigest.getInstance(alg, provider);
+    }
+
+    private static Object take(Slot s) {
+        return pool.get().remove(s);
+    }
+
+    private static void give(Slot s, Object o) {
+        pool.get().put(s, o);
+    }
+
+    private static class Slot {
+        private final int kind;
+        private final String alg;
+        private final String provider;
+        private final Key key;
+        private final int mode;
+
+        Slot(int kind, String alg, String provider, Key key, int mode) {
+            this.kind = kind;
+            this.alg = alg;
+            this.provider = provider;
+            this.key = key;
+            this.mode = mode;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Slot)) return false;
+            Slot that = (Slot)o;
+            return this.kind == that.kind && this.mode == that.mode
+                && this.alg.equals(that.alg)
+                && (this.provider == null ? that.provider == null : this.provider.equals(that.provider))
+                && (this.key == null ? that.key == null : this.key.equals(that.key));
+        }
+
+        public int hashCode() {
+            int h = kind * 31 + mode;
+            h = h * 31 + alg.hashCode();
+            if (provider != null) h = h * 31 + provider.hashCode();
+            if (key != null) h = h * 31 + key.hashCode();
+            return h;
+        }
+    }
+}
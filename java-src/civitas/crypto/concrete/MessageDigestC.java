@@ -18,7 +18,7 @@ public class MessageDigestC implements MessageDigest {
      */
     protected static final String CHARSET = "UTF-8";
 
-    private final java.security.MessageDigest md;
+    final java.security.MessageDigest md;
     private final Label civitas_crypto_MessageDigest_L;
 
     MessageDigestC(Label L, java.security.MessageDigest md) {
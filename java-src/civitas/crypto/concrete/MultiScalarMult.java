@@ -0,0 +1,216 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.crypto.concrete;
+
+import java.math.BigInteger;
+
+import org.bouncycastle.math.ec.ECAlgorithms;
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECPoint;
+
+/**
+ * Multi-scalar multiplication: computes k_1*P_1 + ... + k_n*P_n with
+ * considerably less work than n separate scalar multiplications.
+ *
+ * Terms whose base already has a table in the FixedBaseCache are computed
+ * with the table; this does not count as a use of the base, so bases that
+ * only ever occur in a single proof do not get tables built for them.
+ *
+ * The remaining terms are evaluated with one of two algorithms:
+ * <ul>
+ * <li>for fewer than PIPPENGER_THRESHOLD terms, interleaved wNAF
+ * (Straus/Shamir), where all terms share a single chain of doublings. This
+ * is what ECAlgorithms.sumOfMultiplies implements, and on curves with an
+ * efficient endomorphism, such as secp256k1, it also splits every scalar
+ * into two half-length scalars.</li>
+ * <li>for more terms, Pippenger's bucket method, which needs about
+ * n*b/c + 2^c*b/c additions for b-bit scalars and c-bit windows, and so
+ * becomes cheaper per term as n grows.</li>
+ * </ul>
+ *
+ * Single multiplications and interleaved wNAF go to the Secp256k1 backend
+ * instead of Bouncy Castle when it is enabled.
+ */
+class MultiScalarMult {
+    /**
+     * Number of terms from which the bucket method beats interleaved wNAF.
+     */
+    static final int PIPPENGER_THRESHOLD = 192;
+
+    private MultiScalarMult() { }
+
+    /**
+     * @return k*p.
+     */
+    static ECPoint multiply(ECPoint p, BigInteger k) {
+        if (Secp256k1.use(p.getCurve())) {
+            return Secp256k1.multiply(p, k);
+        }
+        return p.multiply(k);
+    }
+
+    /**
+     * @return a*p + b*q.
+     */
+    static ECPoint sumOfTwoMultiplies(ECPoint p, BigInteger a, ECPoint q, BigInteger b) {
+        return sumOfMultiplies(new ECPoint[] { p, q }, new BigInteger[] { a, b });
+    }
+
+    /**
+     * @return ks[0]*ps[0] + ... + ks[n-1]*ps[n-1]. The scalars may be
+     * negative, or larger than the order of the curve.
+     */
+    static ECPoint sumOfMultiplies(ECPoint[] ps, BigInteger[] ks) {
+        if (ps.length != ks.length || ps.length == 0) {
+            throw new IllegalArgumentException("Bad args");
+        }
+        ECCurve curve = ps[0].getCurve();
+        BigInteger n = curve.getOrder();
+        ECPoint acc = curve.getInfinity();
+
+        ECPoint[] vps = new ECPoint[ps.length];
+        BigInteger[] vks = new BigInteger[ps.length];
+        int count = 0;
+        for (int i = 0; i < ps.length; i++) {
+            BigInteger k = ks[i];
+            if (k.signum() < 0 || k.compareTo(n) >= 0) {
+                k = k.mod(n);
+            }
+            if (k.signum() == 0 || ps[i].isInfinity()) continue;
+
+            FixedBaseCache.Table t = FixedBaseCache.table(ps[i]);
+            if (t != null) {
+                acc = acc.add(t.multiply(k));
+            }
+            else {
+                vps[count] = ps[i];
+                vks[count] = k;
+                count++;
+            }
+        }
+
+        if (count == 0) {
+            return acc;
+        }
+        if (count == 1) {
+            return acc.add(multiply(vps[0], vks[0]));
+        }
+        if (count < PIPPENGER_THRESHOLD) {
+            if (Secp256k1.use(curve)) {
+                return acc.add(Secp256k1.sumOfMultiplies(vps, vks, count));
+            }
+            if (count < ps.length) {
+                ECPoint[] tps = new ECPoint[count];
+                BigInteger[] tks = new BigInteger[count];
+                System.arraycopy(vps, 0, tps, 0, count);
+                System.arraycopy(vks, 0, tks, 0, count);
+                vps = tps;
+                vks = tks;
+            }
+            return acc.add(ECAlgorithms.sumOfMultiplies(vps, vks));
+        }
+        return acc.add(pippenger(curve, vps, vks, count, n.bitLength()));
+    }
+
+    /**
+     * Pippenger's bucket method, with signed digits so that only
+     * 2^(c-1) buckets are needed per window. The scalars must be in
+     * [1, order), and the first count entries of ps and ks are used.
+     */
+    private static ECPoint pippenger(ECCurve curve, ECPoint[] ps, BigInteger[] ks, int count, int bits) {
+        int c = windowBits(count);
+        // one extra window absorbs the carry out of the top digit.
+        int numWindows = (bits + c - 1) / c + 1;
+
+        // put the bases in affine form with a single field inversion, so
+        // that adding a base to a bucket is a mixed addition.
+        ECPoint[] bases = new ECPoint[count];
+        System.arraycopy(ps, 0, bases, 0, count);
+        curve.normalizeAll(bases);
+
+        // recode every scalar into signed digits in [-2^(c-1), 2^(c-1)].
+        int[][] digits = new int[count][];
+        for (int i = 0; i < count; i++) {
+            digits[i] = signedDigits(ks[i], c, numWindows);
+        }
+
+        ECPoint infinity = curve.getInfinity();
+        ECPoint[] buckets = new ECPoint[1 << (c - 1)];
+        ECPoint acc = infinity;
+        for (int w = numWindows - 1; w >= 0; w--) {
+            if (w < numWindows - 1) {
+                acc = acc.timesPow2(c);
+            }
+            for (int j = 0; j < buckets.length; j++) {
+                buckets[j] = null;
+            }
+            for (int i = 0; i < count; i++) {
+                int d = digits[i][w];
+                if (d > 0) {
+                    buckets[d - 1] = buckets[d - 1] == null ? bases[i] : buckets[d - 1].add(bases[i]);
+                }
+                else if (d < 0) {
+                    buckets[-d - 1] = buckets[-d - 1] == null ? bases[i].negate() : buckets[-d - 1].subtract(bases[i]);
+                }
+            }
+
+            // sum_j (j+1)*buckets[j], as a sum of running sums.
+            ECPoint running = infinity;
+            ECPoint sum = infinity;
+            for (int j = buckets.length - 1; j >= 0; j--) {
+                if (buckets[j] != null) {
+                    running = running.add(buckets[j]);
+                }
+                sum = sum.add(running);
+            }
+            acc = acc.add(sum);
+        }
+        return acc;
+    }
+
+    /**
+     * A window size that roughly minimizes n*b/c + 2^c*b/c.
+     */
+    private static int windowBits(int count) {
+        int c = 32 - Integer.numberOfLeadingZeros(count) - 3;
+        return Math.max(4, Math.min(c, 16));
+    }
+
+    /**
+     * @return the signed base 2^c digits of k, least significant first.
+     */
+    private static int[] signedDigits(BigInteger k, int c, int numWindows) {
+        byte[] bs = k.toByteArray();
+        int[] ds = new int[numWindows];
+        int mask = (1 << c) - 1;
+        int carry = 0;
+        for (int w = 0; w < numWindows; w++) {
+            int d = bitsAt(bs, w * c, c, mask) + carry;
+            carry = 0;
+            if (d > (1 << (c - 1))) {
+                d -= 1 << c;
+                carry = 1;
+            }
+            ds[w] = d;
+        }
+        return ds;
+    }
+
+    /**
+     * @return the c bits of the big-endian two's complement number bs that
+     * start at bit position pos.
+     */
+    private static int bitsAt(byte[] bs, int pos, int c, int mask) {
+        int v = 0;
+        int byteIndex = bs.length - 1 - (pos >> 3);
+        // gather enough bytes to cover the window, least significant first.
+        for (int shift = 0, b = byteIndex; shift < c + 8 && b >= 0; shift += 8, b--) {
+            v |= (bs[b] & 0xff) << shift;
+        }
+        return (v >>> (pos & 7)) & mask;
+    }
+}
@@ -35,11 +35,19 @@ public class PETDecommitmentC implements PETDecommitment {
     }
 
     public boolean verify(PETCommitment c, ElGamalParameters params, ElGamalCiphertext ciphertext1, ElGamalCiphertext ciphertext2) {
+        return isDecommitmentOf(c, ciphertext1, ciphertext2) && proof.verify(params);
+    }
+
+    /**
+     * Check that this decommitment agrees with commitment c, and that the
+     * proof is about the PET of ciphertext1 and ciphertext2, without
+     * verifying the proof itself.
+     */
+    boolean isDecommitmentOf(PETCommitment c, ElGamalCiphertext ciphertext1, ElGamalCiphertext ciphertext2) {
         if (!(c instanceof PETCommitmentC)) {
             return false;
         }
         ElGamalProofDiscLogEqualityC prf = (ElGamalProofDiscLogEqualityC)proof;
-        ElGamalParametersC ps = (ElGamalParametersC)params;
         PETCommitmentC com = (PETCommitmentC)c;
         ElGamalCiphertextC m1 = (ElGamalCiphertextC)ciphertext1;
         ElGamalCiphertextC m2 = (ElGamalCiphertextC)ciphertext2;
@@ -53,7 +61,7 @@ public class PETDecommitmentC implements PETDecommitment {
         if (di == null || ei == null) return false;
         if (!d.equals(prf.g1) || !e.equals(prf.g2)) return false;
 
-        return com.hash.equals(factory.hash(di, ei)) && prf.verify(params);
+        return com.hash.equals(factory.hash(di, ei));
     }
 
 
@@ -23,10 +23,34 @@ class PETShareC implements PETShare {
 
     public final BigInteger exponent;
 
+    /**
+     * The points d = a1 - a2, e = b1 - b2, di = d*exponent and
+     * ei = e*exponent, in affine form, shared by the commitment, the
+     * decommitment and its proof. Computed when first needed, and saved
+     * with the share.
+     */
+    static final class Points {
+        final ECPoint d;
+        final ECPoint e;
+        final ECPoint di;
+        final ECPoint ei;
+        Points(ECPoint d, ECPoint e, ECPoint di, ECPoint ei) {
+            this.d = d;
+            this.e = e;
+            this.di = di;
+            this.ei = ei;
+        }
+    }
+    private volatile Points points;
+
     public PETShareC(ElGamalCiphertextC ciphertext1, ElGamalCiphertextC ciphertext2, BigInteger exponent) {
+        this(ciphertext1, ciphertext2, exponent, null);
+    }
+    PETShareC(ElGamalCiphertextC ciphertext1, ElGamalCiphertextC ciphertext2, BigInteger exponent, Points points) {
         this.ciphertext1 = ciphertext1;
         this.ciphertext2 = ciphertext2;
         this.exponent = exponent;
+        this.points = points;
     }
 
     public ElGamalCiphertext ciphertext1() {
@@ -36,20 +60,28 @@ class PETShareC implements PETShare {
         return ciphertext2;
     }
 
+    /**
+     * @return (d, e, di, ei), computing them if need be.
+     */
+    Points points() {
+        Points ps = points;
+        if (ps == null) {
+            ECPoint d = ciphertext1.a.subtract(ciphertext2.a);
+            ECPoint e = ciphertext1.b.subtract(ciphertext2.b);
+            ECPoint[] pts = { d, e, MultiScalarMult.multiply(d, exponent), MultiScalarMult.multiply(e, exponent) };
+            PointBatch.normalizeAll(pts);
+            ps = new Points(pts[0], pts[1], pts[2], pts[3]);
+            points = ps;
+        }
+        return ps;
+    }
+
     // return a hash of the ciphertexts and exponent
     public PETCommitment commitment(ElGamalParameters params) {
         try {
-            ElGamalParametersC ps = (ElGamalParametersC)params;
             CryptoFactoryC factory = CryptoFactoryC.singleton();
-
-            BigInteger zi = exponent;
-            ECPoint d = ciphertext1.a.subtract(ciphertext2.a);
-            ECPoint e = ciphertext1.b.subtract(ciphertext2.b);
-
-            ECPoint di = d.multiply(zi);
-            ECPoint ei = e.multiply(zi);
-
-            return new PETCommitmentC(factory.hash(di, ei));
+            Points ps = points();
+            return new PETCommitmentC(factory.hash(ps.di, ps.ei));
         }
         catch (ClassCastException e) {
             return null;
@@ -60,15 +92,8 @@ class PETShareC implements PETShare {
     public PETDecommitment decommitment(ElGamalParameters p) {
         try {
             ElGamalParametersC params = (ElGamalParametersC)p;
-
-            BigInteger zi = exponent;
-            ECPoint d = ciphertext1.a.subtract(ciphertext2.a);
-            ECPoint e = ciphertext1.b.subtract(ciphertext2.b);
-
-            ECPoint di = d.multiply(zi);
-            ECPoint ei = e.multiply(zi);
-
-            return new PETDecommitmentC(di, ei, decommitmentProof(params, d, e, zi));
+            Points ps = points();
+            return new PETDecommitmentC(ps.di, ps.ei, decommitmentProof(params, ps, exponent));
         }
         catch (ClassCastException e) {
             return null;
@@ -76,10 +101,9 @@ class PETShareC implements PETShare {
     }
 
     private static ElGamalProofDiscLogEquality decommitmentProof(ElGamalParametersC params,
-            ECPoint g1,
-            ECPoint g2,
+            Points ps,
             BigInteger x) {
-        return ElGamalProofDiscLogEqualityC.constructProof(params, g1, g2, x);
+        return ElGamalProofDiscLogEqualityC.constructProof(params, ps.d, ps.e, x, ps.di, ps.ei);
     }
 
     public void toXML(Label lbl, PrintWriter sb) {
@@ -95,6 +119,13 @@ class PETShareC implements PETShare {
             sb.append("<exponent>");
             Util.escapeString(CryptoFactoryC.defaultBigIntToString(this.exponent), lbl, sb);
             sb.append("</exponent>");
+            Points ps = points();
+            sb.append("<points>");
+            pointToXML(lbl, sb, "d", ps.d);
+            pointToXML(lbl, sb, "e", ps.e);
+            pointToXML(lbl, sb, "di", ps.di);
+            pointToXML(lbl, sb, "ei", ps.ei);
+            sb.append("</points>");
         }
         sb.append("</petShare>");
     }
@@ -110,9 +141,30 @@ class PETShareC implements PETShare {
 
         BigInteger exponent = CryptoFactoryC.stringToDefaultBigInt(Util.unescapeString(Util.readSimpleTag(lbl, r, "exponent")));
 
+        // shares saved by older versions do not have the points
+        Points points = null;
+        if (Util.isNextTag(lbl, r, "points")) {
+            Util.swallowTag(lbl, r, "points");
+            ECPoint d = pointFromXML(lbl, r, "d");
+            ECPoint e = pointFromXML(lbl, r, "e");
+            ECPoint di = pointFromXML(lbl, r, "di");
+            ECPoint ei = pointFromXML(lbl, r, "ei");
+            Util.swallowEndTag(lbl, r, "points");
+            points = new Points(d, e, di, ei);
+        }
+
         Util.swallowEndTag(lbl, r, "petShare");
 
-        return new PETShareC(ciphertext1, ciphertext2, exponent);
+        return new PETShareC(ciphertext1, ciphertext2, exponent, points);
+    }
+
+    private static void pointToXML(Label lbl, PrintWriter sb, String tag, ECPoint p) {
+        sb.append("<" + tag + ">");
+        Util.escapeString(CryptoFactoryC.pointToString(p), lbl, sb);
+        sb.append("</" + tag + ">");
+    }
+    private static ECPoint pointFromXML(Label lbl, Reader r, String tag) throws IOException {
+        return CryptoFactoryC.stringToPoint(Util.unescapeString(Util.readSimpleTag(lbl, r, tag)));
     }
 
 	public ElGamalCiphertext ciphertextA() {
@@ -0,0 +1,101 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.crypto.concrete;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A shared ForkJoin pool for the bulk operations of CryptoFactoryC.
+ *
+ * The work of a bulk operation is an index range [0, n), which is split
+ * recursively into subranges. Each subrange writes its results at its own
+ * indices, so the results are in the same order as the inputs no matter
+ * how the work was scheduled.
+ *
+ * The number of worker threads can be configured with the system property
+ * <code>civitas.crypto.parallelism</code>; it defaults to the number of
+ * available processors. With a parallelism of 1 all work is done on the
+ * calling thread.
+ */
+class ParallelCrypto {
+    static final int PARALLELISM = Math.max(1,
+            Integer.getInteger("civitas.crypto.parallelism", Runtime.getRuntime().availableProcessors()).intValue());
+
+    /**
+     * Number of subranges per worker thread; more than one evens out the
+     * load when the cost of the elements varies.
+     */
+    private static final int SPLITS_PER_THREAD = 4;
+
+    private static ForkJoinPool pool = null;
+
+    private ParallelCrypto() { }
+
+    /**
+     * The work to be done for a range of indices.
+     */
+    interface Body {
+        void run(int from, int to);
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(PARALLELISM);
+        }
+        return pool;
+    }
+
+    /**
+     * Run body over [0, n), in subranges of at least minChunk indices, and
+     * return once all of them are done. A RuntimeException or Error thrown
+     * by body is rethrown to the caller.
+     */
+    static void forRange(int n, int minChunk, Body body) {
+        if (n <= 0) return;
+        int chunk = Math.max(Math.max(1, minChunk), (n + PARALLELISM * SPLITS_PER_THREAD - 1) / (PARALLELISM * SPLITS_PER_THREAD));
+        if (PARALLELISM == 1 || n <= chunk) {
+            body.run(0, n);
+            return;
+        }
+        RangeTask t = new RangeTask(body, 0, n, chunk);
+        if (ForkJoinTask.inForkJoinPool()) {
+            // called from a bulk operation: fork within the current pool
+            // rather than block one of its workers.
+            t.invoke();
+        }
+        else {
+            pool().invoke(t);
+        }
+    }
+
+    private static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Body body;
+        private final int from;
+        private final int to;
+        private final int chunk;
+
+        RangeTask(Body body, int from, int to, int chunk) {
+            this.body = body;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+        }
+
+        protected void compute() {
+            if (to - from <= chunk) {
+                body.run(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RangeTask(body, from, mid, chunk), new RangeTask(body, mid, to, chunk));
+        }
+    }
+}
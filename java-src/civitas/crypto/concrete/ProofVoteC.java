@@ -16,7 +16,6 @@ import org.bouncycastle.math.ec.ECPoint;
 import jif.lang.Label;
 import jif.lang.LabelUtil;
 import civitas.common.Util;
-import civitas.crypto.CryptoHashableList;
 import civitas.crypto.ElGamalCiphertext;
 import civitas.crypto.ElGamalParameters;
 import civitas.crypto.ProofVote;
@@ -56,6 +55,27 @@ class ProofVoteC implements ProofVote {
     final BigInteger s1;
     final BigInteger s2;
 
+    /**
+     * The inputs for which this proof is known to verify, as found by
+     * CryptoFactoryC.verifyVotes; verify returns at once for the same
+     * inputs.
+     */
+    private volatile Verified verified;
+
+    private static class Verified {
+        final ElGamalParameters params;
+        final ElGamalCiphertext encCapability;
+        final ElGamalCiphertext encChoice;
+        final String context;
+
+        Verified(ElGamalParameters params, ElGamalCiphertext encCapability, ElGamalCiphertext encChoice, String context) {
+            this.params = params;
+            this.encCapability = encCapability;
+            this.encChoice = encChoice;
+            this.context = context;
+        }
+    }
+
     ProofVoteC(final BigInteger c, final BigInteger s1, final BigInteger s2) {
         this.c = c;
         this.s1 = s1;
@@ -67,22 +87,15 @@ class ProofVoteC implements ProofVote {
                String context,
                ElGamalReencryptFactorC alpha1, ElGamalReencryptFactorC alpha2)
                {
-        CryptoFactoryC factory = CryptoFactoryC.singleton();
-
         BigInteger N = params.params.getN();
         ECPoint G = params.params.getG();
 
-        BigInteger r1 = CryptoAlgs.randomElementDefault(N);
-        BigInteger r2 = CryptoAlgs.randomElementDefault(N);
+        BigInteger[] rs = CryptoAlgs.randomScalars(2, N);
+        BigInteger r1 = rs[0];
+        BigInteger r2 = rs[1];
 
-        CryptoHashableList E = proofEnv(params, encCapability, encChoice, context);
-        E.add(G.multiply(r1));
-        E.add(G.multiply(r2));
-        // System.err.println("Adding more");
-        // System.err.println("   " + G.modPow(r1, params.p));
-        // System.err.println("   " + G.modPow(r2, params.p));
-
-        c = factory.hashToDefaultBigInt(factory.hash(E)).mod(N);
+        c = challenge(params, encCapability, encChoice, context,
+                      new ECPoint[] { FixedBaseCache.multiply(G, r1), FixedBaseCache.multiply(G, r2) });
         s1 = CivitasBigInteger.modSubtract(r1, CivitasBigInteger.modMultiply(c, alpha1.r, N), N);
         s2 = CivitasBigInteger.modSubtract(r2, CivitasBigInteger.modMultiply(c, alpha2.r, N), N);
         // System.err.println(" c =  " + c);
@@ -90,67 +103,84 @@ class ProofVoteC implements ProofVote {
         // System.err.println(" s2=  " + s2);
     }
 
-    CryptoHashableList proofEnv(ElGamalParametersC params,
-                                  ElGamalCiphertextC encCapability, ElGamalCiphertextC encChoice,
-                                  String context)
-                                  {
+    /**
+     * Compute c = hash(E, gs[0], gs[1]), where E is the environment of the
+     * proof: the generator, the two ciphertexts and the hash of the context.
+     */
+    BigInteger challenge(ElGamalParametersC params,
+                         ElGamalCiphertextC encCapability, ElGamalCiphertextC encChoice,
+                         String context, ECPoint[] gs)
+                         {
         CryptoFactoryC factory = CryptoFactoryC.singleton();
-        CryptoHashableList E = new CryptoHashableList();
-        E.add(params.params.getG());
-        E.add(encCapability.a);
-        E.add(encCapability.b);
-        E.add(encChoice.a);
-        E.add(encChoice.b);
-        E.add(factory.hashToDefaultBigInt(
+        BigInteger contextHash = factory.hashToDefaultBigInt(
                 factory.messageDigest(
                     LabelUtil.singleton().noComponents(),
                     context.getBytes()
                     )
-                )
-            );
-
-        // System.err.println("Constructing proof env");
-        // System.err.println("   " + params.g);
-        // System.err.println("   " + encCapability.a);
-        // System.err.println("   " + encCapability.b);
-        // System.err.println("   " + encChoice.a);
-        // System.err.println("   " + encChoice.b);
-        // System.err.println("   " + factory.hashToBigInt(factory.messageDigest(context)));
-        return E;
+                );
+        return Transcript.start()
+            .point(params.params.getG())
+            .ciphertext(encCapability)
+            .ciphertext(encChoice)
+            .scalar(contextHash)
+            .points(gs)
+            .challenge(params.params.getN());
     }
 
     public boolean verify(ElGamalParameters params,
             ElGamalCiphertext encCapability, ElGamalCiphertext encChoice,
             String context)
     {
+        Verified v = verified;
+        if (v != null && v.params == params && v.encCapability == encCapability &&
+                v.encChoice == encChoice && v.context == context) {
+            return true;
+        }
+        long start = CryptoMetrics.PROOF_VERIFY.start();
         try {
-            CryptoFactoryC factory = CryptoFactoryC.singleton();
             ElGamalParametersC paramsC = (ElGamalParametersC)params;
             ElGamalCiphertextC encCapabilityC = (ElGamalCiphertextC)encCapability;
             ElGamalCiphertextC encChoiceC = (ElGamalCiphertextC)encChoice;
-            ECPoint a1 = encCapabilityC.a;
-            ECPoint a2 = encChoiceC.a;
-
-            ECPoint G = paramsC.params.getG();
-            BigInteger N = paramsC.params.getN();
-
-            CryptoHashableList E = proofEnv(paramsC, encCapabilityC, encChoiceC, context);
-            E.add(G.multiply(this.s1).add(a1.multiply(this.c)));
-            E.add(G.multiply(this.s2).add(a2.multiply(this.c)));
-            // System.err.println("Adding more");
-            // System.err.println("   " + G.multiply(this.s1).add(a1.multiply(this.c)));
-            // System.err.println("   " + G.multiply(this.s2).add(a2.multiply(this.c)));
-
-            // c =? hash(E, g^s1 * a1^c, g^s2 * a2^c)
-            BigInteger x = factory.hashToDefaultBigInt(factory.hash(E)).mod(N);
-            boolean ret = c.equals(x);
-            // System.err.println("ret is " + ret);
-            return ret;
+            return checkCommitments(paramsC, encCapabilityC, encChoiceC, context,
+                                    commitments(paramsC, encCapabilityC, encChoiceC));
         }
         catch (ClassCastException e) {
             e.printStackTrace();
             return false;
         }
+        finally {
+            CryptoMetrics.PROOF_VERIFY.stop(start);
+        }
+    }
+
+    /**
+     * Remember that this proof verifies for the given inputs.
+     */
+    void setVerified(ElGamalParameters params, ElGamalCiphertext encCapability, ElGamalCiphertext encChoice, String context) {
+        verified = new Verified(params, encCapability, encChoice, context);
+    }
+
+    /**
+     * Recompute the commitments g^s1 * a1^c and g^s2 * a2^c.
+     */
+    ECPoint[] commitments(ElGamalParametersC params, ElGamalCiphertextC encCapability, ElGamalCiphertextC encChoice) {
+        ECPoint G = params.params.getG();
+        return new ECPoint[] {
+            MultiScalarMult.sumOfTwoMultiplies(G, this.s1, encCapability.a, this.c),
+            MultiScalarMult.sumOfTwoMultiplies(G, this.s2, encChoice.a, this.c)
+        };
+    }
+
+    /**
+     * Check that c = hash(E, gs[0], gs[1]), where gs are the recomputed
+     * commitments.
+     */
+    boolean checkCommitments(ElGamalParametersC params,
+            ElGamalCiphertextC encCapability, ElGamalCiphertextC encChoice,
+            String context, ECPoint[] gs)
+    {
+        // c =? hash(E, g^s1 * a1^c, g^s2 * a2^c)
+        return c.equals(challenge(params, encCapability, encChoice, context, gs));
     }
 
     public String toXML() {
@@ -0,0 +1,302 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.crypto.concrete;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import jif.lang.LabelUtil;
+
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECPoint;
+
+import civitas.crypto.CryptoError;
+
+/**
+ * A pool of precomputed re-encryption pads (r, G*r, y*r) for an El Gamal
+ * public key y.
+ *
+ * Encrypting or re-encrypting with a pad costs two point additions
+ * instead of two scalar multiplications. A background thread fills the
+ * pool up to CAPACITY pads while the teller is otherwise idle, for
+ * example during the voting period, so that the mixes after the election
+ * closes do little more than additions.
+ *
+ * Each pad is removed from the pool when it is taken, and is never
+ * handed out twice. The capacity of the pools can be configured with the
+ * system property <code>civitas.crypto.pads.capacity</code>.
+ *
+ * If the system property <code>civitas.crypto.pads.dir</code> names a
+ * directory, the pads left in a pool are saved there when the VM exits,
+ * and loaded when the pool for the same key is next started. The file is
+ * deleted as it is loaded, so a pad is never used by two runs. Pads are
+ * re-encryption factors, and thus as secret as the mix information in
+ * the tabulation teller store: the directory must be protected as well.
+ */
+class ReencryptPadPool {
+    static final int CAPACITY = Math.max(0, Integer.getInteger("civitas.crypto.pads.capacity", 16384).intValue());
+    private static final String DIR = System.getProperty("civitas.crypto.pads.dir");
+
+    /**
+     * Number of pads computed at a time by the background thread, and put
+     * in affine form with a single field inversion.
+     */
+    private static final int BATCH = 64;
+
+    private static final Map<ECPoint, ReencryptPadPool> pools = new HashMap<ECPoint, ReencryptPadPool>();
+
+    /**
+     * A precomputed pad.
+     */
+    static class Pad {
+        final BigInteger r;
+        final ECPoint gr;
+        final ECPoint yr;
+        Pad(BigInteger r, ECPoint gr, ECPoint yr) {
+            this.r = r;
+            this.gr = gr;
+            this.yr = yr;
+        }
+    }
+
+    private final ElGamalPublicKeyC key;
+    private final ArrayDeque<Pad> pads = new ArrayDeque<Pad>();
+    private Thread filler = null;
+
+    private ReencryptPadPool(ElGamalPublicKeyC key) {
+        this.key = key;
+    }
+
+    /**
+     * @return the pool for key, or null if there is none.
+     */
+    static ReencryptPadPool peek(ElGamalPublicKeyC key) {
+        synchronized (pools) {
+            return pools.get(key.y);
+        }
+    }
+
+    /**
+     * @return the pool for key, creating it if need be.
+     */
+    static ReencryptPadPool forKey(ElGamalPublicKeyC key) {
+        synchronized (pools) {
+            ReencryptPadPool p = pools.get(key.y);
+            if (p == null) {
+                p = new ReencryptPadPool(key);
+                pools.put(key.y, p);
+            }
+            return p;
+        }
+    }
+
+    /**
+     * Start filling the pool in the background, if it is not already
+     * being filled.
+     */
+    synchronized void start() {
+        if (filler != null || CAPACITY == 0) return;
+        load();
+        filler = new Thread("civitas-reencrypt-pads") {
+            public void run() {
+                fill();
+            }
+        };
+        filler.setDaemon(true);
+        filler.setPriority(Thread.MIN_PRIORITY);
+        filler.start();
+        if (DIR != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    save();
+                }
+            });
+        }
+    }
+
+    /**
+     * Take up to n pads out of the pool.
+     * @return the pads taken; fewer than n if the pool did not have n.
+     */
+    synchronized Pad[] take(int n) {
+        Pad[] ret = new Pad[Math.max(0, Math.min(n, pads.size()))];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = pads.poll();
+        }
+        if (ret.length > 0) notifyAll();
+        return ret;
+    }
+
+    synchronized int size() {
+        return pads.size();
+    }
+
+    private void fill() {
+        ElGamalParametersC ps = (ElGamalParametersC)key.getParams();
+        ECPoint G = ps.params.getG();
+        ECCurve curve = ps.params.getCurve();
+        while (true) {
+            synchronized (this) {
+                while (pads.size() >= CAPACITY) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            BigInteger[] rs = CryptoAlgs.randomScalars(BATCH, ps.params.getN());
+            ECPoint[] points = new ECPoint[2 * BATCH];
+            for (int i = 0; i < BATCH; i++) {
+                points[2*i] = FixedBaseCache.multiply(G, rs[i]);
+                points[2*i+1] = FixedBaseCache.multiply(key.y, rs[i]);
+            }
+            curve.normalizeAll(points);
+
+            synchronized (this) {
+                for (int i = 0; i < BATCH && pads.size() < CAPACITY; i++) {
+                    pads.add(new Pad(rs[i], points[2*i], points[2*i+1]));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the file for the pads of key, named after the hash of key.
+     */
+    private File file() {
+        byte[] h = CryptoFactoryC.singleton().messageDigest(LabelUtil.singleton().noComponents(), key.y.getEncoded(true));
+        StringBuffer sb = new StringBuffer("pads-");
+        for (int i = 0; i < 16; i++) {
+            sb.append(Character.forDigit((h[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(h[i] & 0xf, 16));
+        }
+        return new File(DIR, sb.toString());
+    }
+
+    /**
+     * Load the pads saved by an earlier run, and delete the file. The file
+     * ends with a SHA-256 hash of its contents; if the hash does not match,
+     * none of the pads is used.
+     */
+    private void load() {
+        if (DIR == null) return;
+        File f = file();
+        if (!f.exists()) return;
+        ECCurve curve = ((ElGamalParametersC)key.getParams()).params.getCurve();
+        ArrayDeque<Pad> loaded = new ArrayDeque<Pad>();
+        DataInputStream in = null;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            in = new DataInputStream(new DigestInputStream(new BufferedInputStream(new FileInputStream(f)), md));
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                BigInteger r = new BigInteger(1, readBytes(in));
+                ECPoint gr = curve.decodePoint(readBytes(in));
+                ECPoint yr = curve.decodePoint(readBytes(in));
+                loaded.add(new Pad(r, gr, yr));
+            }
+            byte[] expected = md.digest();
+            byte[] hash = new byte[expected.length];
+            in.readFully(hash);
+            if (MessageDigest.isEqual(hash, expected)) {
+                while (!loaded.isEmpty() && pads.size() < CAPACITY) {
+                    pads.add(loaded.poll());
+                }
+            }
+        }
+        catch (IOException e) {
+            // a truncated file: the pads will be recomputed.
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new CryptoError(e);
+        }
+        catch (RuntimeException e) {
+            // a corrupt file: the pads will be recomputed.
+        }
+        finally {
+            if (in != null) {
+                try {
+                    in.close();
+                }
+                catch (IOException ignore) { }
+            }
+            if (!f.delete()) {
+                pads.clear();
+                throw new CryptoError("Cannot delete re-encryption pad file " + f);
+            }
+        }
+    }
+
+    /**
+     * Save the pads in the pool, emptying it. The file is readable and
+     * writable by its owner only.
+     */
+    private void save() {
+        Pad[] ps = take(Integer.MAX_VALUE);
+        if (ps.length == 0) return;
+        File f = file();
+        File tmp = new File(f.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            tmp.delete();
+            tmp.createNewFile();
+            tmp.setReadable(false, false);
+            tmp.setReadable(true, true);
+            tmp.setWritable(false, false);
+            tmp.setWritable(true, true);
+            out = new DataOutputStream(new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)), md));
+            out.writeInt(ps.length);
+            for (int i = 0; i < ps.length; i++) {
+                writeBytes(out, ps[i].r.toByteArray());
+                writeBytes(out, ps[i].gr.getEncoded(true));
+                writeBytes(out, ps[i].yr.getEncoded(true));
+            }
+            out.write(md.digest());
+            out.close();
+            out = null;
+            if (!tmp.renameTo(f)) tmp.delete();
+        }
+        catch (IOException e) {
+            tmp.delete();
+        }
+        catch (NoSuchAlgorithmException e) {
+            tmp.delete();
+        }
+        finally {
+            if (out != null) {
+                try {
+                    out.close();
+                }
+                catch (IOException ignore) { }
+                tmp.delete();
+            }
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int len = in.readUnsignedShort();
+        byte[] bs = new byte[len];
+        in.readFully(bs);
+        return bs;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bs) throws IOException {
+        out.writeShort(bs.length);
+        out.write(bs);
+    }
+}
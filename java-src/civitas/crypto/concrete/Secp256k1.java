@@ -0,0 +1,537 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.crypto.concrete;
+
+import java.math.BigInteger;
+
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECPoint;
+
+/**
+ * Scalar multiplication on secp256k1 without allocating per operation.
+ *
+ * Bouncy Castle allocates a new field element for every field operation,
+ * and a new point for every addition, which makes a scalar multiplication
+ * produce thousands of short-lived objects. This backend instead works on
+ * Jacobian points held in per-thread scratch space, with the field
+ * arithmetic of Secp256k1Field, and converts to and from ECPoint only at
+ * the boundaries.
+ *
+ * Variable-base multiplication uses the GLV endomorphism of secp256k1,
+ * lambda*(x, y) = (beta*x, y), to split every 256 bit scalar k into two
+ * scalars a, b of about 128 bits with k = a + b*lambda (mod n), and
+ * evaluates all the resulting terms with interleaved width-5 wNAF, so
+ * that they share a single chain of about 128 doublings.
+ *
+ * The backend is used only when the system property
+ * <code>civitas.crypto.ec.backend</code> is <code>secp256k1</code>, and
+ * only for points on secp256k1; everything else goes to Bouncy Castle.
+ */
+class Secp256k1 {
+    static final boolean ENABLED = "secp256k1".equals(System.getProperty("civitas.crypto.ec.backend", "bc"));
+
+    static final BigInteger N = new BigInteger("fffffffffffffffffffffffffffffffebaaedce6af48a03bbfd25e8cd0364141", 16);
+
+    static final BigInteger LAMBDA = new BigInteger("5363ad4cc05c30e0a5261c028812645a122e22ea20816678df02967c1b23bd72", 16);
+    private static final long[] BETA = Secp256k1Field.create();
+    static {
+        Secp256k1Field.setBigInteger(BETA, new BigInteger("7ae96a2b657c07106e64479eac3434e99cf0497512f58995c1396c28719501ee", 16));
+    }
+
+    /**
+     * The reduced basis of the lattice {(a, b) : a + b*lambda = 0 (mod n)},
+     * and the constants g_i = round(2^272 * v_i / n) used to find the
+     * closest lattice point to (k, 0).
+     */
+    private static final BigInteger V1A = new BigInteger("3086d221a7d46bcde86c90e49284eb15", 16);
+    private static final BigInteger V1B = new BigInteger("-e4437ed6010e88286f547fa90abfe4c3", 16);
+    private static final BigInteger V2A = new BigInteger("114ca50f7a8e2f3f657c1108d9d44cfd8", 16);
+    private static final BigInteger V2B = new BigInteger("3086d221a7d46bcde86c90e49284eb15", 16);
+    private static final BigInteger G1 = new BigInteger("3086d221a7d46bcde86c90e49284eb153dab", 16);
+    private static final BigInteger G2 = new BigInteger("e4437ed6010e88286f547fa90abfe4c42212", 16);
+    private static final int G_BITS = 272;
+
+    /**
+     * Width of the wNAF digits of the half-length scalars; each base gets
+     * a table of its 2^(WNAF_WIDTH-2) smallest odd multiples.
+     */
+    private static final int WNAF_WIDTH = 5;
+    private static final int WNAF_TABLE = 1 << (WNAF_WIDTH - 2);
+
+    /**
+     * Upper bound on the bit length of the half-length scalars, plus one
+     * for the carry out of the top wNAF digit.
+     */
+    private static final int WNAF_BITS = 136;
+
+    /**
+     * The last curve found to be secp256k1, so that the check is usually
+     * a reference comparison.
+     */
+    private static volatile ECCurve known = null;
+
+    private static final ThreadLocal<Context> context = new ThreadLocal<Context>() {
+        protected Context initialValue() {
+            return new Context();
+        }
+    };
+
+    private Secp256k1() { }
+
+    /**
+     * @return whether the backend is enabled and curve is secp256k1.
+     */
+    static boolean use(ECCurve curve) {
+        return ENABLED && supports(curve);
+    }
+
+    /**
+     * @return whether curve is secp256k1.
+     */
+    static boolean supports(ECCurve curve) {
+        if (curve == known) return true;
+        boolean ok = curve.getFieldSize() == 256
+            && curve.getField().getCharacteristic().equals(Secp256k1Field.P)
+            && curve.getA().isZero()
+            && curve.getB().toBigInteger().equals(BigInteger.valueOf(7))
+            && N.equals(curve.getOrder());
+        if (ok) known = curve;
+        return ok;
+    }
+
+    /**
+     * @return (a, b) such that k = a + b*lambda (mod n), with |a| and |b|
+     * of about 128 bits.
+     */
+    static BigInteger[] decompose(BigInteger k) {
+        BigInteger b1 = roundedShift(k.multiply(G1));
+        BigInteger b2 = roundedShift(k.multiply(G2));
+        BigInteger a = k.subtract(b1.multiply(V1A).add(b2.multiply(V2A)));
+        BigInteger b = b1.multiply(V1B).add(b2.multiply(V2B)).negate();
+        return new BigInteger[] { a, b };
+    }
+
+    private static BigInteger roundedShift(BigInteger x) {
+        boolean up = x.testBit(G_BITS - 1);
+        x = x.shiftRight(G_BITS);
+        return up ? x.add(BigInteger.ONE) : x;
+    }
+
+    /**
+     * @return k*p.
+     */
+    static ECPoint multiply(ECPoint p, BigInteger k) {
+        return sumOfMultiplies(new ECPoint[] { p }, new BigInteger[] { k }, 1);
+    }
+
+    /**
+     * @return ks[0]*ps[0] + ... + ks[count-1]*ps[count-1]. The scalars may
+     * be negative, or larger than the order of the curve.
+     */
+    static ECPoint sumOfMultiplies(ECPoint[] ps, BigInteger[] ks, int count) {
+        ECCurve curve = ps[0].getCurve();
+        Context c = context.get();
+        c.ensure(2 * count);
+
+        // the odd multiples of every base, in Jacobian coordinates.
+        int terms = 0;
+        for (int i = 0; i < count; i++) {
+            BigInteger k = ks[i];
+            if (k.signum() < 0 || k.compareTo(N) >= 0) {
+                k = k.mod(N);
+            }
+            if (k.signum() == 0 || ps[i].isInfinity()) continue;
+
+            BigInteger[] ab = decompose(k);
+            ECPoint p = ps[i].normalize();
+            int base = terms / 2 * WNAF_TABLE;
+            Secp256k1Field.setBigInteger(c.jx[base], p.getAffineXCoord().toBigInteger());
+            Secp256k1Field.setBigInteger(c.jy[base], p.getAffineYCoord().toBigInteger());
+            Secp256k1Field.setInt(c.jz[base], 1);
+            c.d.setTo(c.jx[base], c.jy[base], c.jz[base]);
+            c.d.dbl(c);
+            for (int j = 1; j < WNAF_TABLE; j++) {
+                Secp256k1Field.set(c.jx[base + j], c.jx[base + j - 1]);
+                Secp256k1Field.set(c.jy[base + j], c.jy[base + j - 1]);
+                Secp256k1Field.set(c.jz[base + j], c.jz[base + j - 1]);
+                add(c, c.jx[base + j], c.jy[base + j], c.jz[base + j], c.d);
+            }
+            c.sign[terms] = ab[0].signum();
+            c.sign[terms + 1] = ab[1].signum();
+            c.nafLength[terms] = wnaf(c, ab[0].abs(), c.naf[terms]);
+            c.nafLength[terms + 1] = wnaf(c, ab[1].abs(), c.naf[terms + 1]);
+            terms += 2;
+        }
+        if (terms == 0) {
+            return curve.getInfinity();
+        }
+
+        // put the tables in affine form with a single field inversion; the
+        // table of lambda*P is that of P with every x multiplied by beta.
+        normalizeAll(c, terms / 2);
+        for (int t = 0; t < terms; t += 2) {
+            for (int j = 0; j < WNAF_TABLE; j++) {
+                int i = t * WNAF_TABLE + j;
+                Secp256k1Field.mul(c.ax[i + WNAF_TABLE], c.ax[i], BETA);
+                Secp256k1Field.set(c.ay[i + WNAF_TABLE], c.ay[i]);
+            }
+        }
+
+        int bits = 0;
+        for (int t = 0; t < terms; t++) {
+            bits = Math.max(bits, c.nafLength[t]);
+        }
+        Jacobian acc = c.acc;
+        acc.infinity = true;
+        for (int i = bits - 1; i >= 0; i--) {
+            acc.dbl(c);
+            for (int t = 0; t < terms; t++) {
+                // digits past the length of a term are left over from
+                // earlier calls.
+                if (i >= c.nafLength[t]) continue;
+                int d = c.naf[t][i];
+                if (d == 0) continue;
+                int j = t * WNAF_TABLE + ((d < 0 ? -d : d) - 1) / 2;
+                acc.addAffine(c, c.ax[j], c.ay[j], (d < 0) == (c.sign[t] > 0));
+            }
+        }
+        return acc.toPoint(c, curve);
+    }
+
+    /**
+     * Put the odd multiples of the first count bases in c.ax, c.ay: the
+     * multiples of base i go to entries 2*i*WNAF_TABLE and up, leaving
+     * room for the table of lambda times the base.
+     */
+    private static void normalizeAll(Context c, int count) {
+        int m = count * WNAF_TABLE;
+        long[][] prefix = c.prefix;
+        Secp256k1Field.set(prefix[0], c.jz[0]);
+        for (int i = 1; i < m; i++) {
+            Secp256k1Field.mul(prefix[i], prefix[i - 1], c.jz[i]);
+        }
+        long[] inv = c.t[0];
+        long[] zinv = c.t[1];
+        long[] zinv2 = c.t[2];
+        Secp256k1Field.inv(inv, prefix[m - 1], c.invScratch);
+        for (int i = m - 1; i >= 0; i--) {
+            if (i > 0) {
+                Secp256k1Field.mul(zinv, inv, prefix[i - 1]);
+                Secp256k1Field.mul(inv, inv, c.jz[i]);
+            }
+            else {
+                Secp256k1Field.set(zinv, inv);
+            }
+            int o = 2 * (i / WNAF_TABLE) * WNAF_TABLE + i % WNAF_TABLE;
+            Secp256k1Field.sqr(zinv2, zinv);
+            Secp256k1Field.mul(c.ax[o], c.jx[i], zinv2);
+            Secp256k1Field.mul(zinv2, zinv2, zinv);
+            Secp256k1Field.mul(c.ay[o], c.jy[i], zinv2);
+        }
+    }
+
+    /**
+     * (x, y, z) += q, in Jacobian coordinates. Neither point may be the
+     * point at infinity.
+     */
+    private static void add(Context c, long[] x, long[] y, long[] z, Jacobian q) {
+        long[] z1z1 = c.t[0], z2z2 = c.t[1], u1 = c.t[2], u2 = c.t[3];
+        long[] s1 = c.t[4], s2 = c.t[5], h = c.t[6], r = c.t[7];
+        Secp256k1Field.sqr(z1z1, z);
+        Secp256k1Field.sqr(z2z2, q.z);
+        Secp256k1Field.mul(u1, x, z2z2);
+        Secp256k1Field.mul(u2, q.x, z1z1);
+        Secp256k1Field.mul(s1, y, q.z);
+        Secp256k1Field.mul(s1, s1, z2z2);
+        Secp256k1Field.mul(s2, q.y, z);
+        Secp256k1Field.mul(s2, s2, z1z1);
+        Secp256k1Field.sub(h, u2, u1);
+        Secp256k1Field.sub(r, s2, s1);
+        if (Secp256k1Field.isZero(h)) {
+            // the odd multiples of a point of prime order are all distinct
+            // from twice the point.
+            throw new IllegalStateException("Degenerate table entry");
+        }
+        long[] hh = c.t[0], hhh = c.t[1], v = c.t[3];
+        Secp256k1Field.sqr(hh, h);
+        Secp256k1Field.mul(hhh, h, hh);
+        Secp256k1Field.mul(v, u1, hh);
+        Secp256k1Field.mul(z, z, q.z);
+        Secp256k1Field.mul(z, z, h);
+        Secp256k1Field.sqr(x, r);
+        Secp256k1Field.sub(x, x, hhh);
+        Secp256k1Field.sub(x, x, v);
+        Secp256k1Field.sub(x, x, v);
+        Secp256k1Field.sub(v, v, x);
+        Secp256k1Field.mul(v, v, r);
+        Secp256k1Field.mul(s1, s1, hhh);
+        Secp256k1Field.sub(y, v, s1);
+    }
+
+    /**
+     * Write the width-5 wNAF digits of k into naf, least significant first.
+     * @return the number of digits.
+     */
+    private static int wnaf(Context c, BigInteger k, byte[] naf) {
+        int len = k.bitLength() + 1;
+        if (len > WNAF_BITS) {
+            throw new IllegalArgumentException("Scalar too large");
+        }
+        long[] w = c.words;
+        w[0] = k.longValue();
+        w[1] = k.shiftRight(64).longValue();
+        w[2] = k.shiftRight(128).longValue();
+        w[3] = 0;
+        for (int i = 0; i < len; i++) naf[i] = 0;
+
+        int carry = 0;
+        int bit = 0;
+        while (bit < len) {
+            if ((int)((w[bit >>> 6] >>> (bit & 63)) & 1) == carry) {
+                bit++;
+                continue;
+            }
+            int now = Math.min(WNAF_WIDTH, len - bit);
+            int d = bitsAt(w, bit, now) + carry;
+            carry = (d >> (WNAF_WIDTH - 1)) & 1;
+            d -= carry << WNAF_WIDTH;
+            naf[bit] = (byte)d;
+            bit += now;
+        }
+        return len;
+    }
+
+    private static int bitsAt(long[] w, int pos, int count) {
+        int i = pos >>> 6;
+        int s = pos & 63;
+        long v = w[i] >>> s;
+        if (s + count > 64) {
+            v |= w[i + 1] << (64 - s);
+        }
+        return (int)(v & ((1L << count) - 1));
+    }
+
+    /**
+     * A point in Jacobian coordinates, (X/Z^2, Y/Z^3), or the point at
+     * infinity.
+     */
+    static class Jacobian {
+        final long[] x = Secp256k1Field.create();
+        final long[] y = Secp256k1Field.create();
+        final long[] z = Secp256k1Field.create();
+        boolean infinity = true;
+
+        void setTo(long[] x, long[] y, long[] z) {
+            Secp256k1Field.set(this.x, x);
+            Secp256k1Field.set(this.y, y);
+            Secp256k1Field.set(this.z, z);
+            infinity = false;
+        }
+
+        /**
+         * this = 2*this, with the a = 0 doubling formulas (dbl-2009-l).
+         */
+        void dbl(Context c) {
+            if (infinity) return;
+            long[] a = c.t[0], b = c.t[1], cc = c.t[2], d = c.t[3], e = c.t[4], f = c.t[5];
+            Secp256k1Field.mul(z, z, y);
+            Secp256k1Field.add(z, z, z);
+            Secp256k1Field.sqr(a, x);
+            Secp256k1Field.sqr(b, y);
+            Secp256k1Field.sqr(cc, b);
+            Secp256k1Field.add(d, x, b);
+            Secp256k1Field.sqr(d, d);
+            Secp256k1Field.sub(d, d, a);
+            Secp256k1Field.sub(d, d, cc);
+            Secp256k1Field.add(d, d, d);
+            Secp256k1Field.mulInt(e, a, 3);
+            Secp256k1Field.sqr(f, e);
+            Secp256k1Field.sub(x, f, d);
+            Secp256k1Field.sub(x, x, d);
+            Secp256k1Field.sub(y, d, x);
+            Secp256k1Field.mul(y, y, e);
+            Secp256k1Field.mulInt(cc, cc, 8);
+            Secp256k1Field.sub(y, y, cc);
+        }
+
+        /**
+         * this += (ax, ay), or this -= (ax, ay) if negate, with a mixed
+         * Jacobian-affine addition.
+         */
+        void addAffine(Context c, long[] ax, long[] ay, boolean negate) {
+            if (infinity) {
+                Secp256k1Field.set(x, ax);
+                if (negate) Secp256k1Field.neg(y, ay);
+                else Secp256k1Field.set(y, ay);
+                Secp256k1Field.setInt(z, 1);
+                infinity = false;
+                return;
+            }
+            long[] z1z1 = c.t[0], u2 = c.t[1], s2 = c.t[2], h = c.t[3], r = c.t[4];
+            Secp256k1Field.sqr(z1z1, z);
+            Secp256k1Field.mul(u2, ax, z1z1);
+            Secp256k1Field.mul(s2, ay, z);
+            Secp256k1Field.mul(s2, s2, z1z1);
+            if (negate) Secp256k1Field.neg(s2, s2);
+            Secp256k1Field.sub(h, u2, x);
+            Secp256k1Field.sub(r, s2, y);
+            if (Secp256k1Field.isZero(h)) {
+                if (Secp256k1Field.isZero(r)) {
+                    dbl(c);
+                }
+                else {
+                    infinity = true;
+                }
+                return;
+            }
+            long[] hh = c.t[0], hhh = c.t[1], v = c.t[2], t = c.t[5];
+            Secp256k1Field.sqr(hh, h);
+            Secp256k1Field.mul(hhh, h, hh);
+            Secp256k1Field.mul(v, x, hh);
+            Secp256k1Field.mul(z, z, h);
+            Secp256k1Field.sqr(x, r);
+            Secp256k1Field.sub(x, x, hhh);
+            Secp256k1Field.sub(x, x, v);
+            Secp256k1Field.sub(x, x, v);
+            Secp256k1Field.sub(t, v, x);
+            Secp256k1Field.mul(t, t, r);
+            Secp256k1Field.mul(y, y, hhh);
+            Secp256k1Field.sub(y, t, y);
+        }
+
+        /**
+         * @return this point as an ECPoint on curve, in affine form.
+         */
+        ECPoint toPoint(Context c, ECCurve curve) {
+            if (infinity) {
+                return curve.getInfinity();
+            }
+            long[] zinv = c.t[0], zinv2 = c.t[1], ax = c.t[2], ay = c.t[3];
+            Secp256k1Field.inv(zinv, z, c.invScratch);
+            Secp256k1Field.sqr(zinv2, zinv);
+            Secp256k1Field.mul(ax, x, zinv2);
+            Secp256k1Field.mul(zinv2, zinv2, zinv);
+            Secp256k1Field.mul(ay, y, zinv2);
+            return curve.createPoint(Secp256k1Field.toBigInteger(ax), Secp256k1Field.toBigInteger(ay));
+        }
+    }
+
+    /**
+     * A signed window table for a single base point, as in FixedBaseCache,
+     * with the points held as field elements.
+     */
+    static class Table {
+        private final int window;
+        private final int rowSize;
+        private final long[][] xs;
+        private final long[][] ys;
+        private final ECCurve curve;
+
+        /**
+         * @param points the table, row by row, in affine form: the j-th
+         * entry of row i is (j+1) * 2^(window*i) * P.
+         */
+        Table(ECPoint[] points, int window, ECCurve curve) {
+            this.window = window;
+            this.rowSize = 1 << (window - 1);
+            this.curve = curve;
+            this.xs = new long[points.length][];
+            this.ys = new long[points.length][];
+            for (int i = 0; i < points.length; i++) {
+                xs[i] = Secp256k1Field.create();
+                ys[i] = Secp256k1Field.create();
+                Secp256k1Field.setBigInteger(xs[i], points[i].getAffineXCoord().toBigInteger());
+                Secp256k1Field.setBigInteger(ys[i], points[i].getAffineYCoord().toBigInteger());
+            }
+        }
+
+        /**
+         * @return k*P, for 0 < k < n.
+         */
+        ECPoint multiply(BigInteger k) {
+            Context c = context.get();
+            Jacobian acc = c.acc;
+            acc.infinity = true;
+
+            byte[] bs = k.toByteArray();
+            int carry = 0;
+            int row = 0;
+            for (int i = bs.length - 1; i >= 0; i--) {
+                for (int shift = 0; shift < 8; shift += window) {
+                    int d = ((bs[i] >> shift) & ((1 << window) - 1)) + carry;
+                    carry = 0;
+                    if (d > rowSize) {
+                        d -= 1 << window;
+                        carry = 1;
+                    }
+                    addDigit(c, row++, d);
+                }
+            }
+            if (carry != 0) {
+                addDigit(c, row, carry);
+            }
+            return acc.toPoint(c, curve);
+        }
+
+        private void addDigit(Context c, int row, int d) {
+            if (d > 0) {
+                c.acc.addAffine(c, xs[row * rowSize + d - 1], ys[row * rowSize + d - 1], false);
+            }
+            else if (d < 0) {
+                c.acc.addAffine(c, xs[row * rowSize - d - 1], ys[row * rowSize - d - 1], true);
+            }
+        }
+    }
+
+    /**
+     * The scratch space of a thread. The arrays for the tables grow to the
+     * largest number of terms seen, and are reused.
+     */
+    static class Context {
+        final long[][] t = new long[8][];
+        final long[][] invScratch = new long[12][];
+        final Jacobian acc = new Jacobian();
+        final Jacobian d = new Jacobian();
+        final long[] words = new long[4];
+
+        long[][] jx, jy, jz, prefix, ax, ay;
+        byte[][] naf;
+        int[] nafLength, sign;
+        private int terms = 0;
+
+        Context() {
+            for (int i = 0; i < t.length; i++) t[i] = Secp256k1Field.create();
+            for (int i = 0; i < invScratch.length; i++) invScratch[i] = Secp256k1Field.create();
+            ensure(2);
+        }
+
+        /**
+         * Make room for the given number of terms: half as many bases.
+         */
+        void ensure(int n) {
+            if (n <= terms) return;
+            n = Math.max(n, 2 * terms);
+            int bases = (n + 1) / 2 * WNAF_TABLE;
+            jx = fieldElements(bases);
+            jy = fieldElements(bases);
+            jz = fieldElements(bases);
+            prefix = fieldElements(bases);
+            ax = fieldElements(n * WNAF_TABLE);
+            ay = fieldElements(n * WNAF_TABLE);
+            naf = new byte[n][WNAF_BITS];
+            nafLength = new int[n];
+            sign = new int[n];
+            terms = n;
+        }
+
+        private static long[][] fieldElements(int n) {
+            long[][] ret = new long[n][];
+            for (int i = 0; i < n; i++) ret[i] = Secp256k1Field.create();
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.crypto.concrete;
+
+import java.math.BigInteger;
+
+/**
+ * Arithmetic in the field of secp256k1, GF(p) with p = 2^256 - 2^32 - 977,
+ * on field elements held in caller-provided arrays, without allocating.
+ *
+ * A field element is a long[10] of 26 bit limbs, least significant first,
+ * so that the products of two limbs and their column sums fit in a long.
+ * Every operation leaves its result weakly reduced: limbs 0..8 below 2^27
+ * and limb 9 below 2^22, which any operation accepts as input, but not
+ * necessarily below p. normalize puts a value in [0, p), and must be
+ * called before comparing or encoding it.
+ *
+ * The result array may be the same as any of the arguments.
+ */
+class Secp256k1Field {
+    static final BigInteger P = BigInteger.ONE.shiftLeft(256).subtract(BigInteger.valueOf(0x1000003D1L));
+
+    private static final long M = 0x3FFFFFFL;
+    private static final long M22 = 0x3FFFFFL;
+
+    /**
+     * 4p, as limbs that are each larger than any weakly reduced limb, so
+     * that 4p + a - b is non-negative limb by limb.
+     */
+    private static final long[] P4 = {
+        0x3FFFC2FL * 4, 0x3FFFFBFL * 4, M * 4, M * 4, M * 4,
+        M * 4, M * 4, M * 4, M * 4, M22 * 4
+    };
+
+    private Secp256k1Field() { }
+
+    static long[] create() {
+        return new long[10];
+    }
+
+    static void set(long[] r, long[] a) {
+        System.arraycopy(a, 0, r, 0, 10);
+    }
+
+    static void setInt(long[] r, int v) {
+        r[0] = v;
+        for (int i = 1; i < 10; i++) r[i] = 0;
+        reduce(r);
+    }
+
+    /**
+     * Set r to the 32 byte big-endian number at bs[off..off+32).
+     */
+    static void setBytes(long[] r, byte[] bs, int off) {
+        for (int i = 0; i < 10; i++) r[i] = 0;
+        for (int i = 0; i < 256; i += 8) {
+            long b = bs[off + 31 - (i >> 3)] & 0xff;
+            r[i / 26] |= (b << (i % 26)) & M;
+            if (i % 26 > 18) r[i / 26 + 1] |= b >>> (26 - i % 26);
+        }
+        reduce(r);
+    }
+
+    /**
+     * Write the normalized value of a as a 32 byte big-endian number at
+     * bs[off..off+32).
+     */
+    static void getBytes(long[] a, byte[] bs, int off) {
+        for (int i = 0; i < 32; i++) bs[off + i] = 0;
+        for (int i = 0; i < 256; i += 8) {
+            long v = a[i / 26] >>> (i % 26);
+            if (i % 26 > 18 && i / 26 < 9) v |= a[i / 26 + 1] << (26 - i % 26);
+            bs[off + 31 - (i >> 3)] = (byte)v;
+        }
+    }
+
+    static void setBigInteger(long[] r, BigInteger x) {
+        byte[] bs = new byte[32];
+        byte[] xs = x.mod(P).toByteArray();
+        int n = Math.min(xs.length, 32);
+        System.arraycopy(xs, xs.length - n, bs, 32 - n, n);
+        setBytes(r, bs, 0);
+    }
+
+    static BigInteger toBigInteger(long[] a) {
+        long[] t = create();
+        set(t, a);
+        normalize(t);
+        byte[] bs = new byte[32];
+        getBytes(t, bs, 0);
+        return new BigInteger(1, bs);
+    }
+
+    /**
+     * Weakly reduce r: propagate the carries once, fold the bits above
+     * 2^256 back in, using 2^256 = 0x1000003D1 (mod p), and propagate the
+     * carries out of the two limbs that the fold added to. The limbs must
+     * be non-negative and below 2^62.
+     */
+    static void reduce(long[] r) {
+        long r0 = r[0], r1 = r[1], r2 = r[2], r3 = r[3], r4 = r[4];
+        long r5 = r[5], r6 = r[6], r7 = r[7], r8 = r[8], r9 = r[9];
+        r1 += r0 >>> 26; r0 &= M;
+        r2 += r1 >>> 26; r1 &= M;
+        r3 += r2 >>> 26; r2 &= M;
+        r4 += r3 >>> 26; r3 &= M;
+        r5 += r4 >>> 26; r4 &= M;
+        r6 += r5 >>> 26; r5 &= M;
+        r7 += r6 >>> 26; r6 &= M;
+        r8 += r7 >>> 26; r7 &= M;
+        r9 += r8 >>> 26; r8 &= M;
+        long c = r9 >>> 22;
+        r9 &= M22;
+        r0 += c * 0x3D1L;
+        r1 += c << 6;
+        // c < 2^40, so the carry out of r1 is below 2^21.
+        r1 += r0 >>> 26; r0 &= M;
+        r2 += r1 >>> 26; r1 &= M;
+        r[0] = r0; r[1] = r1; r[2] = r2; r[3] = r3; r[4] = r4;
+        r[5] = r5; r[6] = r6; r[7] = r7; r[8] = r8; r[9] = r9;
+    }
+
+    /**
+     * Propagate all the carries, leaving every limb at most 26 bits, and
+     * limb 9 at most 22 bits.
+     */
+    private static void carry(long[] r) {
+        while (true) {
+            long c = 0;
+            for (int i = 0; i < 9; i++) {
+                r[i] += c;
+                c = r[i] >>> 26;
+                r[i] &= M;
+            }
+            r[9] += c;
+            c = r[9] >>> 22;
+            r[9] &= M22;
+            if (c == 0) return;
+            r[0] += c * 0x3D1L;
+            r[1] += c << 6;
+        }
+    }
+
+    /**
+     * Reduce r to its unique representative in [0, p).
+     */
+    static void normalize(long[] r) {
+        carry(r);
+        // r >= p iff r + 0x1000003D1 >= 2^256
+        long t0 = r[0] + 0x3D1L;
+        long t1 = r[1] + 0x40L + (t0 >>> 26);
+        t0 &= M;
+        long c = t1 >>> 26;
+        t1 &= M;
+        long t2 = r[2] + c; c = t2 >>> 26; t2 &= M;
+        long t3 = r[3] + c; c = t3 >>> 26; t3 &= M;
+        long t4 = r[4] + c; c = t4 >>> 26; t4 &= M;
+        long t5 = r[5] + c; c = t5 >>> 26; t5 &= M;
+        long t6 = r[6] + c; c = t6 >>> 26; t6 &= M;
+        long t7 = r[7] + c; c = t7 >>> 26; t7 &= M;
+        long t8 = r[8] + c; c = t8 >>> 26; t8 &= M;
+        long t9 = r[9] + c;
+        if ((t9 >>> 22) != 0) {
+            r[0] = t0; r[1] = t1; r[2] = t2; r[3] = t3; r[4] = t4;
+            r[5] = t5; r[6] = t6; r[7] = t7; r[8] = t8; r[9] = t9 & M22;
+        }
+    }
+
+    /**
+     * @return whether a = 0 (mod p). a is normalized as a side effect.
+     */
+    static boolean isZero(long[] a) {
+        normalize(a);
+        long z = 0;
+        for (int i = 0; i < 10; i++) z |= a[i];
+        return z == 0;
+    }
+
+    /**
+     * @return whether a = b (mod p), using t as scratch space.
+     */
+    static boolean equal(long[] a, long[] b, long[] t) {
+        sub(t, a, b);
+        return isZero(t);
+    }
+
+    static void add(long[] r, long[] a, long[] b) {
+        for (int i = 0; i < 10; i++) r[i] = a[i] + b[i];
+        reduce(r);
+    }
+
+    static void sub(long[] r, long[] a, long[] b) {
+        for (int i = 0; i < 10; i++) r[i] = a[i] + P4[i] - b[i];
+        reduce(r);
+    }
+
+    static void neg(long[] r, long[] a) {
+        for (int i = 0; i < 10; i++) r[i] = P4[i] - a[i];
+        reduce(r);
+    }
+
+    /**
+     * r = a*k, for 0 <= k < 2^24.
+     */
+    static void mulInt(long[] r, long[] a, int k) {
+        for (int i = 0; i < 10; i++) r[i] = a[i] * k;
+        reduce(r);
+    }
+
+    /**
+     * r = a*b. The body is unrolled: the columns of the 10x10 limb product
+     * are below 10 * 2^54, and after carrying, the limbs at 2^260 and
+     * above are folded back in.
+     */
+    static void mul(long[] r, long[] a, long[] b) {
+        long a0 = a[0], a1 = a[1], a2 = a[2], a3 = a[3], a4 = a[4], a5 = a[5], a6 = a[6], a7 = a[7], a8 = a[8], a9 = a[9];
+        long b0 = b[0], b1 = b[1], b2 = b[2], b3 = b[3], b4 = b[4], b5 = b[5], b6 = b[6], b7 = b[7], b8 = b[8], b9 = b[9];
+
+        // the 19 columns of the schoolbook product
+        long c0 = a0 * b0;
+        long c1 = a0 * b1 + a1 * b0;
+        long c2 = a0 * b2 + a1 * b1 + a2 * b0;
+        long c3 = a0 * b3 + a1 * b2 + a2 * b1 + a3 * b0;
+        long c4 = a0 * b4 + a1 * b3 + a2 * b2 + a3 * b1 + a4 * b0;
+        long c5 = a0 * b5 + a1 * b4 + a2 * b3 + a3 * b2 + a4 * b1 + a5 * b0;
+        long c6 = a0 * b6 + a1 * b5 + a2 * b4 + a3 * b3 + a4 * b2 + a5 * b1 + a6 * b0;
+        long c7 = a0 * b7 + a1 * b6 + a2 * b5 + a3 * b4 + a4 * b3 + a5 * b2 + a6 * b1 + a7 * b0;
+        long c8 = a0 * b8 + a1 * b7 + a2 * b6 + a3 * b5 + a4 * b4 + a5 * b3 + a6 * b2 + a7 * b1 + a8 * b0;
+        long c9 = a0 * b9 + a1 * b8 + a2 * b7 + a3 * b6 + a4 * b5 + a5 * b4 + a6 * b3 + a7 * b2 + a8 * b1 + a9 * b0;
+        long c10 = a1 * b9 + a2 * b8 + a3 * b7 + a4 * b6 + a5 * b5 + a6 * b4 + a7 * b3 + a8 * b2 + a9 * b1;
+        long c11 = a2 * b9 + a3 * b8 + a4 * b7 + a5 * b6 + a6 * b5 + a7 * b4 + a8 * b3 + a9 * b2;
+        long c12 = a3 * b9 + a4 * b8 + a5 * b7 + a6 * b6 + a7 * b5 + a8 * b4 + a9 * b3;
+        long c13 = a4 * b9 + a5 * b8 + a6 * b7 + a7 * b6 + a8 * b5 + a9 * b4;
+        long c14 = a5 * b9 + a6 * b8 + a7 * b7 + a8 * b6 + a9 * b5;
+        long c15 = a6 * b9 + a7 * b8 + a8 * b7 + a9 * b6;
+        long c16 = a7 * b9 + a8 * b8 + a9 * b7;
+        long c17 = a8 * b9 + a9 * b8;
+        long c18 = a9 * b9;
+        long c19;
+
+        // carry into 26 bit limbs
+        c1 += c0 >>> 26; c0 &= M;
+        c2 += c1 >>> 26; c1 &= M;
+        c3 += c2 >>> 26; c2 &= M;
+        c4 += c3 >>> 26; c3 &= M;
+        c5 += c4 >>> 26; c4 &= M;
+        c6 += c5 >>> 26; c5 &= M;
+        c7 += c6 >>> 26; c6 &= M;
+        c8 += c7 >>> 26; c7 &= M;
+        c9 += c8 >>> 26; c8 &= M;
+        c10 += c9 >>> 26; c9 &= M;
+        c11 += c10 >>> 26; c10 &= M;
+        c12 += c11 >>> 26; c11 &= M;
+        c13 += c12 >>> 26; c12 &= M;
+        c14 += c13 >>> 26; c13 &= M;
+        c15 += c14 >>> 26; c14 &= M;
+        c16 += c15 >>> 26; c15 &= M;
+        c17 += c16 >>> 26; c16 &= M;
+        c18 += c17 >>> 26; c17 &= M;
+        c19 = c18 >>> 26; c18 &= M;
+
+        // fold limbs 10..19: 2^260 = 2^36 + 0x3D10 (mod p)
+        c9 += c19 * 0x3D10L; c10 += c19 << 10;
+        c8 += c18 * 0x3D10L; c9 += c18 << 10;
+        c7 += c17 * 0x3D10L; c8 += c17 << 10;
+        c6 += c16 * 0x3D10L; c7 += c16 << 10;
+        c5 += c15 * 0x3D10L; c6 += c15 << 10;
+        c4 += c14 * 0x3D10L; c5 += c14 << 10;
+        c3 += c13 * 0x3D10L; c4 += c13 << 10;
+        c2 += c12 * 0x3D10L; c3 += c12 << 10;
+        c1 += c11 * 0x3D10L; c2 += c11 << 10;
+        c0 += c10 * 0x3D10L; c1 += c10 << 10;
+
+        r[0] = c0; r[1] = c1; r[2] = c2; r[3] = c3; r[4] = c4;
+        r[5] = c5; r[6] = c6; r[7] = c7; r[8] = c8; r[9] = c9;
+        reduce(r);
+    }
+
+    /**
+     * r = a^2, as mul but with the symmetric products computed once.
+     */
+    static void sqr(long[] r, long[] a) {
+        long a0 = a[0], a1 = a[1], a2 = a[2], a3 = a[3], a4 = a[4], a5 = a[5], a6 = a[6], a7 = a[7], a8 = a[8], a9 = a[9];
+
+        // the 19 columns of the schoolbook product
+        long c0 = a0 * a0;
+        long c1 = 2 * a0 * a1;
+        long c2 = 2 * a0 * a2 + a1 * a1;
+        long c3 = 2 * a0 * a3 + 2 * a1 * a2;
+        long c4 = 2 * a0 * a4 + 2 * a1 * a3 + a2 * a2;
+        long c5 = 2 * a0 * a5 + 2 * a1 * a4 + 2 * a2 * a3;
+        long c6 = 2 * a0 * a6 + 2 * a1 * a5 + 2 * a2 * a4 + a3 * a3;
+        long c7 = 2 * a0 * a7 + 2 * a1 * a6 + 2 * a2 * a5 + 2 * a3 * a4;
+        long c8 = 2 * a0 * a8 + 2 * a1 * a7 + 2 * a2 * a6 + 2 * a3 * a5 + a4 * a4;
+        long c9 = 2 * a0 * a9 + 2 * a1 * a8 + 2 * a2 * a7 + 2 * a3 * a6 + 2 * a4 * a5;
+        long c10 = 2 * a1 * a9 + 2 * a2 * a8 + 2 * a3 * a7 + 2 * a4 * a6 + a5 * a5;
+        long c11 = 2 * a2 * a9 + 2 * a3 * a8 + 2 * a4 * a7 + 2 * a5 * a6;
+        long c12 = 2 * a3 * a9 + 2 * a4 * a8 + 2 * a5 * a7 + a6 * a6;
+        long c13 = 2 * a4 * a9 + 2 * a5 * a8 + 2 * a6 * a7;
+        long c14 = 2 * a5 * a9 + 2 * a6 * a8 + a7 * a7;
+        long c15 = 2 * a6 * a9 + 2 * a7 * a8;
+        long c16 = 2 * a7 * a9 + a8 * a8;
+        long c17 = 2 * a8 * a9;
+        long c18 = a9 * a9;
+        long c19;
+
+        // carry into 26 bit limbs
+        c1 += c0 >>> 26; c0 &= M;
+        c2 += c1 >>> 26; c1 &= M;
+        c3 += c2 >>> 26; c2 &= M;
+        c4 += c3 >>> 26; c3 &= M;
+        c5 += c4 >>> 26; c4 &= M;
+        c6 += c5 >>> 26; c5 &= M;
+        c7 += c6 >>> 26; c6 &= M;
+        c8 += c7 >>> 26; c7 &= M;
+        c9 += c8 >>> 26; c8 &= M;
+        c10 += c9 >>> 26; c9 &= M;
+        c11 += c10 >>> 26; c10 &= M;
+        c12 += c11 >>> 26; c11 &= M;
+        c13 += c12 >>> 26; c12 &= M;
+        c14 += c13 >>> 26; c13 &= M;
+        c15 += c14 >>> 26; c14 &= M;
+        c16 += c15 >>> 26; c15 &= M;
+        c17 += c16 >>> 26; c16 &= M;
+        c18 += c17 >>> 26; c17 &= M;
+        c19 = c18 >>> 26; c18 &= M;
+
+        // fold limbs 10..19: 2^260 = 2^36 + 0x3D10 (mod p)
+        c9 += c19 * 0x3D10L; c10 += c19 << 10;
+        c8 += c18 * 0x3D10L; c9 += c18 << 10;
+        c7 += c17 * 0x3D10L; c8 += c17 << 10;
+        c6 += c16 * 0x3D10L; c7 += c16 << 10;
+        c5 += c15 * 0x3D10L; c6 += c15 << 10;
+        c4 += c14 * 0x3D10L; c5 += c14 << 10;
+        c3 += c13 * 0x3D10L; c4 += c13 << 10;
+        c2 += c12 * 0x3D10L; c3 += c12 << 10;
+        c1 += c11 * 0x3D10L; c2 += c11 << 10;
+        c0 += c10 * 0x3D10L; c1 += c10 << 10;
+
+        r[0] = c0; r[1] = c1; r[2] = c2; r[3] = c3; r[4] = c4;
+        r[5] = c5; r[6] = c6; r[7] = c7; r[8] = c8; r[9] = c9;
+        reduce(r);
+    }
+
+    /**
+     * r = a^(2^n).
+     */
+    static void sqrN(long[] r, long[] a, int n) {
+        sqr(r, a);
+        for (int i = 1; i < n; i++) sqr(r, r);
+    }
+
+    /**
+     * r = 1/a = a^(p-2), using t as scratch space: 255 squarings and 15
+     * multiplications. The inverse of 0 is 0.
+     */
+    static void inv(long[] r, long[] a, long[][] t) {
+        long[] x2 = t[0], x3 = t[1], x6 = t[2], x9 = t[3], x11 = t[4], x22 = t[5];
+        long[] x44 = t[6], x88 = t[7], x176 = t[8], x220 = t[9], x223 = t[10], t1 = t[11];
+
+        sqr(x2, a); mul(x2, x2, a);
+        sqr(x3, x2); mul(x3, x3, a);
+        sqrN(x6, x3, 3); mul(x6, x6, x3);
+        sqrN(x9, x6, 3); mul(x9, x9, x3);
+        sqrN(x11, x9, 2); mul(x11, x11, x2);
+        sqrN(x22, x11, 11); mul(x22, x22, x11);
+        sqrN(x44, x22, 22); mul(x44, x44, x22);
+        sqrN(x88, x44, 44); mul(x88, x88, x44);
+        sqrN(x176, x88, 88); mul(x176, x176, x88);
+        sqrN(x220, x176, 44); mul(x220, x220, x44);
+        sqrN(x223, x220, 3); mul(x223, x223, x3);
+
+        // the exponent is p-2 = (2^223 - 1) * 2^33 + 2^32 - 979
+        sqrN(t1, x223, 23); mul(t1, t1, x22);
+        sqrN(t1, t1, 5); mul(t1, t1, a);
+        sqrN(t1, t1, 3); mul(t1, t1, x2);
+        sqrN(t1, t1, 2); mul(r, t1, a);
+    }
+}
@@ -10,6 +10,9 @@ import java.io.*;
 import java.math.BigInteger;
 import java.security.Provider;
 import java.security.Security;
+import java.util.Arrays;
+
+import org.bouncycastle.math.ec.ECPoint;
 
 import jif.lang.Label;
 import jif.lang.LabelUtil;
@@ -18,6 +21,8 @@ import civitas.common.VerifiableVote;
 import civitas.common.VoterSubmission;
 import civitas.crypto.*;
 import civitas.util.CivitasBigInteger;
+import civitas.util.ModulusContext;
+import civitas.util.Metrics;
 
 //import java.io.*;
 
@@ -124,6 +129,30 @@ public class Test {
 //      // showProviderServices();
         System.out.println("= egHomoTest =");
         egHomoTest();
+        System.out.println("= fixedBaseTest =");
+        fixedBaseTest();
+        System.out.println("= msmTest =");
+        msmTest();
+        System.out.println("= decodeTest =");
+        decodeTest();
+        System.out.println("= bulkTest =");
+        bulkTest();
+        System.out.println("= metricsTest =");
+        metricsTest();
+        System.out.println("= jcaPoolTest =");
+        jcaPoolTest();
+        System.out.println("= randomTest =");
+        randomTest();
+        System.out.println("= padTest =");
+        padTest();
+        System.out.println("= secp256k1Test =");
+        secp256k1Test();
+        System.out.println("= pointBatchTest =");
+        pointBatchTest();
+        System.out.println("= transcriptTest =");
+        transcriptTest();
+        System.out.println("= modulusContextTest =");
+        modulusContextTest();
 //      dvrTest();
 //        oneOfLTest();
 //        proofVoteTest();
@@ -517,6 +546,28 @@ public class Test {
             e.printStackTrace();
         }
         test("distributed decryption", m2.equals(m));
+
+        // batch verification of the shares of one teller
+        final int NUM_CIPHERTEXTS = 5;
+        ElGamalCiphertext[] cs = new ElGamalCiphertext[NUM_CIPHERTEXTS];
+        ElGamalDecryptionShare[] tellerDecs = new ElGamalDecryptionShare[NUM_CIPHERTEXTS];
+        for (int i = 0; i < NUM_CIPHERTEXTS; i++) {
+            cs[i] = f.elGamalEncrypt(sharedPubKey, f.generateVoteCapabilityShare(ps));
+            tellerDecs[i] = f.constructDecryptionShare(lbl, lbl, cs[i], tellerShares[0]);
+        }
+        boolean[] valid = f.verifyDecryptionShares(lbl, tellerDecs, cs, tellerPubShares[0].pubKey());
+        boolean allValid = true;
+        for (int i = 0; i < NUM_CIPHERTEXTS; i++) allValid &= valid[i];
+        test("batch verify decryption shares", allValid);
+
+        ElGamalProofDiscLogEqualityC prf = ((ElGamalDecryptionShareC)tellerDecs[2]).proof;
+        tellerDecs[2] = new ElGamalDecryptionShareC(prf.v,
+            new ElGamalProofDiscLogEqualityC(prf.g1, prf.g2, prf.a, prf.v, prf.w, prf.b, prf.c, prf.r.add(BigInteger.ONE)));
+        tellerDecs[4] = null;
+        valid = f.verifyDecryptionShares(lbl, tellerDecs, cs, tellerPubShares[0].pubKey());
+        test("batch verify finds bad decryption shares", valid[0] && valid[1] && !valid[2] && valid[3] && !valid[4]);
+        valid = f.verifyDecryptionShares(lbl, tellerDecs, cs, tellerPubShares[1].pubKey());
+        test("batch verify decryption shares under wrong key", !valid[0] && !valid[1] && !valid[3]);
     }
     public static void msgTest() {
         // ElGamalMsgC m;
@@ -625,6 +676,13 @@ public class Test {
 
           boolean b6 = f.elGamalVerify(ps, c5, f.messageDigest("wrongEnv"));
           test("Signature corrupted", !b6);
+
+          ElGamalSignedCiphertext[] batch = { c3, c4, c5, c5, null };
+          byte[][] envs = { null, null, addEnv, f.messageDigest("wrongEnv"), null };
+          boolean[] bs = f.elGamalVerifyBatch(ps, batch, envs);
+          test("Batch signature checks", bs[0] && !bs[1] && bs[2] && !bs[3] && !bs[4]);
+          boolean[] bs2 = f.elGamalVerifyBatch(LabelUtil.singleton().noComponents(), ps, new ElGamalSignedCiphertext[] { c5, c3 }, addEnv);
+          test("Batch signature checks with shared env", bs2[0] && !bs2[1]);
         } catch (CryptoException e) {
             System.out.println("oops: " + e);
         }
@@ -669,6 +727,44 @@ public class Test {
                 test("PET decommitments verify", petDecoms[i].verify(petComs[i], ps, c1, c2));
             }
 
+            // shares read back, with or without their points, commit to the same
+            PETShareC share = (PETShareC)petShares[0];
+            StringWriter sw = new StringWriter();
+            share.toXML(lbl, new PrintWriter(sw));
+            String xml = sw.toString();
+            String oldXml = xml.substring(0, xml.indexOf("<points>")) + "</petShare>";
+            try {
+                PETShare saved = PETShareC.fromXML(lbl, new BufferedReader(new StringReader(xml)));
+                PETShare old = PETShareC.fromXML(lbl, new BufferedReader(new StringReader(oldXml)));
+                test("saved PET share commits the same", ((PETCommitmentC)saved.commitment(ps)).hash.equals(((PETCommitmentC)petComs[0]).hash)
+                     && ((PETCommitmentC)old.commitment(ps)).hash.equals(((PETCommitmentC)petComs[0]).hash));
+                test("saved PET share decommitment verifies", saved.decommitment(ps).verify(petComs[0], ps, c1, c2));
+            }
+            catch (IOException e) {
+                System.out.println("oops: " + e);
+            }
+
+            ElGamalCiphertext[] cs1 = { c1, c1, c1 };
+            ElGamalCiphertext[] cs2 = { c2, c2, c2 };
+            boolean[] valid = f.verifyPETDecommitments(lbl, petDecoms, petComs, ps, cs1, cs2);
+            test("PET decommitments batch verify", valid[0] && valid[1] && valid[2]);
+            PETCommitment[] swapped = { petComs[1], petComs[0], petComs[2] };
+            valid = f.verifyPETDecommitments(lbl, petDecoms, swapped, ps, cs1, cs2);
+            test("PET decommitments batch verify with swapped commitments", !valid[0] && !valid[1] && valid[2]);
+
+            // a PET of a ciphertext with itself has its proofs entirely at infinity
+            PETDecommitment[] sameDecoms = new PETDecommitment[NUM_TELLERS];
+            PETCommitment[] sameComs = new PETCommitment[NUM_TELLERS];
+            for (int i = 0; i < NUM_TELLERS; i++) {
+                PETShare same = f.constructPETShare(ps, c1, c1);
+                sameComs[i] = same.commitment(ps);
+                sameDecoms[i] = same.decommitment(ps);
+            }
+            valid = f.verifyPETDecommitments(lbl, sameDecoms, sameComs, ps, cs1, cs1);
+            boolean agree = true;
+            for (int i = 0; i < NUM_TELLERS; i++) agree &= valid[i] == sameDecoms[i].verify(sameComs[i], ps, c1, c1);
+            test("PET decommitments of identical ciphertexts batch verify", agree);
+
             ElGamalCiphertext petResult = null;
             try {
                 petResult = f.combinePETShareDecommitments(lbl, petDecoms, ps);
@@ -687,6 +783,447 @@ public class Test {
         }
     }
 
+    /**
+     * Check the fixed-base tables against plain scalar multiplication.
+     */
+    private static void fixedBaseTest() {
+        ECPoint G = ps.params.getG();
+        BigInteger N = ps.params.getN();
+        BigInteger[] ks = {
+            BigInteger.ZERO, BigInteger.ONE, BigInteger.valueOf(8), BigInteger.valueOf(9),
+            N.subtract(BigInteger.ONE), N, N.add(BigInteger.ONE), BigInteger.ONE.negate(),
+            CryptoAlgs.randomElementDefault(N), CryptoAlgs.randomElementDefault(N)
+        };
+        boolean ok = true;
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < ks.length; i++) {
+                ok &= FixedBaseCache.multiply(G, ks[i]).equals(G.multiply(ks[i].mod(N)));
+            }
+        }
+        test("fixed base multiplication", ok);
+        test("fixed base table for G", FixedBaseCache.size() > 0 && FixedBaseCache.bytesInUse() > 0);
+    }
+
+    private static void msmTest() {
+        ECPoint G = ps.params.getG();
+        BigInteger N = ps.params.getN();
+        int[] sizes = { 1, 2, 3, 17, MultiScalarMult.PIPPENGER_THRESHOLD + 5 };
+        for (int s = 0; s < sizes.length; s++) {
+            int n = sizes[s];
+            ECPoint[] bases = new ECPoint[n];
+            BigInteger[] scalars = new BigInteger[n];
+            ECPoint expected = G.getCurve().getInfinity();
+            for (int i = 0; i < n; i++) {
+                // mix in the generator, which has a table, and some
+                // degenerate scalars.
+                bases[i] = i % 7 == 0 ? G : G.multiply(CryptoAlgs.randomElementDefault(N)).normalize();
+                scalars[i] = i % 5 == 1 ? BigInteger.ZERO
+                           : i % 5 == 2 ? CryptoAlgs.randomElementDefault(N).negate()
+                           : CryptoAlgs.randomElementDefault(N);
+                expected = expected.add(bases[i].multiply(scalars[i].mod(N)));
+            }
+            test("multi-scalar multiplication with " + n + " terms",
+                 MultiScalarMult.sumOfMultiplies(bases, scalars).equals(expected));
+        }
+    }
+
+    private static void decodeTest() {
+        ECPoint G = ps.params.getG();
+        int size = DiscreteLogTable.size();
+        int[] is = { 1, 2, size - 1, size, size + 1, 3 * size + 7 };
+        boolean ok = true;
+        for (int j = 0; j < is.length; j++) {
+            if (is[j] < 1) continue;
+            ECPoint m = G.multiply(BigInteger.valueOf(is[j]));
+            try {
+                ok &= ps.bruteForceDecode(m, is[j]) == is[j];
+                ok &= ps.bruteForceDecode(m, 4 * size) == is[j];
+            }
+            catch (CryptoException e) {
+                ok = false;
+            }
+        }
+        test("decode table", ok);
+
+        boolean failed = true;
+        try {
+            // out of range
+            ps.bruteForceDecode(G.multiply(BigInteger.valueOf(5)), 4);
+            failed = false;
+        }
+        catch (CryptoException e) { }
+        try {
+            ps.bruteForceDecode(G.getCurve().getInfinity(), 4);
+            failed = false;
+        }
+        catch (CryptoException e) { }
+        test("decode table rejects", failed);
+    }
+
+    private static void bulkTest() {
+        Label lbl = LabelUtil.singleton().noComponents();
+        ElGamalKeyPair pair = f.generateElGamalKeyPair(ps);
+        ElGamalPublicKey K = pair.publicKey();
+        ElGamalKeyPairShare share = f.generateKeyPairShare(ps);
+        final int N = 50;
+
+        ElGamalMsg[] ms = new ElGamalMsg[N];
+        ElGamalReencryptFactor[] rs = new ElGamalReencryptFactor[N];
+        ElGamalSignedCiphertext[] scs = new ElGamalSignedCiphertext[N];
+        for (int i = 0; i < N; i++) {
+            ms[i] = f.generateVoteCapabilityShare(ps);
+            rs[i] = f.generateElGamalReencryptFactor(ps);
+            scs[i] = f.elGamalSignedEncrypt(K, ms[i]);
+        }
+        ms[3] = null;
+        scs[7] = new ElGamalSignedCiphertextC(((ElGamalSignedCiphertextC)scs[7]).a, ((ElGamalSignedCiphertextC)scs[7]).b, BigInteger.ONE, BigInteger.ONE);
+
+        ElGamalCiphertext[] cs = f.encryptAll(lbl, K, ms, rs);
+        ElGamalCiphertext[] rcs = f.reencryptAll(lbl, K, cs, rs);
+        ElGamalDecryptionShare[] ds = f.decryptionSharesAll(lbl, lbl, cs, share);
+        PETShare[] pets = f.constructPETSharesAll(lbl, ps, cs[0], cs);
+        boolean[] valid = f.verifyAll(lbl, ps, scs, null);
+        boolean[] expected = f.elGamalVerifyBatch(lbl, ps, scs, null);
+
+        boolean ok = true;
+        for (int i = 0; i < N; i++) {
+            if (i == 3) {
+                ok &= cs[i] == null && rcs[i] == null && ds[i] == null && pets[i] == null;
+                continue;
+            }
+            ok &= cs[i].equals(f.elGamalEncrypt(K, ms[i], rs[i]));
+            ok &= rcs[i].equals(f.elGamalReencrypt(K, cs[i], rs[i]));
+            ok &= ds[i] != null && ds[i].verify(cs[i], share.pubKey);
+            ok &= pets[i] != null;
+        }
+        test("bulk operations", ok);
+        test("bulk verification", java.util.Arrays.equals(valid, expected) && !valid[7] && valid[8]);
+    }
+
+    private static void metricsTest() {
+        Metrics.Timer t = Metrics.timer("metricsTest" + System.nanoTime());
+        for (int i = 1; i <= 1000; i++) {
+            t.record(i * 1000L);
+        }
+        Metrics.Snapshot snap = t.snapshot();
+        // buckets are accurate to within 1/16 of the value
+        test("metrics count", snap.count == 1000 && snap.samples == 1000);
+        test("metrics p50", Math.abs(snap.percentile(0.50) - 500000) <= 500000 / 16);
+        test("metrics p99", Math.abs(snap.percentile(0.99) - 990000) <= 990000 / 16);
+        test("metrics max", snap.max == 1000000 && snap.percentile(1.0) <= snap.max);
+
+        long before = CryptoFactoryC.numElGamalEncs();
+        f.elGamalEncrypt(f.generateElGamalKeyPair(ps).publicKey(), f.generateVoteCapabilityShare(ps));
+        test("metrics count operations", CryptoFactoryC.numElGamalEncs() == before + 1);
+    }
+
+    private static void jcaPoolTest() {
+        try {
+            // pooled digests give the same hashes as fresh ones, also when
+            // a caller holds a digest across other hashes.
+            Label lbl = LabelUtil.singleton().noComponents();
+            byte[] expected = java.security.MessageDigest.getInstance("SHA-256").digest("abc".getBytes("UTF-8"));
+            civitas.crypto.MessageDigest md = f.messageDigest(lbl);
+            md.update("a");
+            byte[] inner = f.messageDigest("abc");
+            md.update("bc");
+            test("pooled digest", Arrays.equals(inner, expected));
+            test("owned digest", Arrays.equals(md.digest(), expected));
+            test("pooled digest reused", Arrays.equals(f.messageDigest("abc"), expected));
+
+            // ciphers and signatures are reused with the same key
+            SharedKey key = f.generateSharedKey(128);
+            SharedKey otherKey = f.generateSharedKey(128);
+            boolean ok = true;
+            for (int i = 0; i < 3; i++) {
+                SharedKeyMsg m = f.sharedKeyMsg("message " + i);
+                ok &= f.sharedKeyDecrypt(key, f.sharedKeyEncrypt(key, m)).toString().equals(m.toString());
+                ok &= f.sharedKeyDecrypt(otherKey, f.sharedKeyEncrypt(otherKey, m)).toString().equals(m.toString());
+            }
+            test("pooled shared key ciphers", ok);
+            try {
+                f.sharedKeyDecrypt(otherKey, f.sharedKeyEncrypt(key, f.sharedKeyMsg("wrong key")));
+            }
+            catch (CryptoError e) {
+                // expected: the padding is wrong
+            }
+            SharedKeyMsg m = f.sharedKeyMsg("after failure");
+            test("pooled shared key cipher after failure", f.sharedKeyDecrypt(otherKey, f.sharedKeyEncrypt(otherKey, m)).toString().equals(m.toString()));
+
+            KeyPair keyPair = f.generateKeyPair(1024);
+            PublicKeyMsg pm = f.publicKeyMsg("signed");
+            SignatureC sig1 = (SignatureC)f.signature(keyPair.privateKey, pm);
+            SignatureC sig2 = (SignatureC)f.signature(keyPair.privateKey, pm);
+            test("pooled signer", Arrays.equals(sig1.signature, sig2.signature));
+            test("pooled verifier rejects", !f.publicKeyVerifySignature(keyPair.publicKey, sig1, f.publicKeyMsg("other")));
+            test("pooled verifier accepts", f.publicKeyVerifySignature(keyPair.publicKey, sig1, pm));
+            test("pooled verifier accepts again", f.publicKeyVerifySignature(keyPair.publicKey, sig2, pm));
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            test("jcaPoolTest", false);
+        }
+    }
+
+    private static void randomTest() {
+        // all of [1..n-1], and nothing else
+        BigInteger[] rs = CryptoAlgs.randomScalars(1000, BigInteger.valueOf(5));
+        int[] seen = new int[5];
+        for (int i = 0; i < rs.length; i++) {
+            seen[rs[i].intValue() < 0 || rs[i].intValue() > 4 ? 0 : rs[i].intValue()]++;
+        }
+        test("random scalars in range", seen[0] == 0 && seen[1] > 0 && seen[2] > 0 && seen[3] > 0 && seen[4] > 0);
+
+        BigInteger N = ps.params.getN();
+        rs = CryptoAlgs.randomScalars(100, N);
+        boolean ok = true;
+        for (int i = 0; i < rs.length; i++) {
+            ok &= rs[i].signum() > 0 && rs[i].compareTo(N) < 0;
+            ok &= i == 0 || !rs[i].equals(rs[i-1]);
+        }
+        test("random scalars mod N", ok);
+
+        // each thread has its own generator
+        final java.security.SecureRandom[] other = new java.security.SecureRandom[1];
+        Thread t = new Thread() {
+            public void run() {
+                other[0] = CryptoAlgs.rng();
+            }
+        };
+        t.start();
+        try {
+            t.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        test("random per thread", other[0] != null && other[0] != CryptoAlgs.rng() && CryptoAlgs.rng() == CryptoAlgs.rng());
+    }
+
+    private static void padTest() {
+        ElGamalKeyPair kp = f.generateElGamalKeyPair(ps);
+        ElGamalPublicKeyC key = (ElGamalPublicKeyC)kp.publicKey();
+        f.precomputeReencryptFactors(key);
+        ReencryptPadPool pool = ReencryptPadPool.peek(key);
+        long deadline = System.currentTimeMillis() + 30000;
+        while (pool.size() < 10 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        test("pads precomputed", pool.size() >= 10);
+
+        ElGamalReencryptFactor[] factors = f.generateElGamalReencryptFactors(null, key, 10);
+        ElGamalMsg m = f.generateVoteCapabilityShare(ps);
+        ElGamalCiphertext c = f.elGamalEncrypt(key, m);
+        boolean ok = true;
+        for (int i = 0; i < factors.length; i++) {
+            ElGamalReencryptFactorC fi = (ElGamalReencryptFactorC)factors[i];
+            ElGamalReencryptFactorC plain = new ElGamalReencryptFactorC(fi.r);
+            ok &= fi.hasPadFor(key.y) && !plain.hasPadFor(key.y);
+            ok &= f.elGamalReencrypt(key, c, fi).equals(f.elGamalReencrypt(key, c, plain));
+            ok &= f.elGamalEncrypt(key, m, fi).equals(f.elGamalEncrypt(key, m, plain));
+            ok &= i == 0 || !fi.r.equals(((ElGamalReencryptFactorC)factors[i-1]).r);
+        }
+        test("pads re-encrypt as their factors", ok);
+
+        // a pad is only used with the key it was computed for
+        ElGamalPublicKeyC other = (ElGamalPublicKeyC)f.generateElGamalKeyPair(ps).publicKey();
+        ElGamalReencryptFactorC f0 = (ElGamalReencryptFactorC)factors[0];
+        test("pads not used with other keys", !f0.hasPadFor(other.y)
+             && f.elGamalReencrypt(other, c, f0).equals(f.elGamalReencrypt(other, c, new ElGamalReencryptFactorC(f0.r))));
+
+        // without a pool, factors are drawn at random
+        factors = f.generateElGamalReencryptFactors(null, other, 3);
+        test("factors without pads", factors.length == 3 && !((ElGamalReencryptFactorC)factors[0]).hasPadFor(other.y));
+    }
+
+    private static void secp256k1Test() {
+        ECPoint G = ps.params.getG();
+        BigInteger N = ps.params.getN();
+        BigInteger P = Secp256k1Field.P;
+        test("secp256k1 curve recognized", Secp256k1.supports(G.getCurve()));
+
+        long[] a = Secp256k1Field.create();
+        long[] b = Secp256k1Field.create();
+        long[] r = Secp256k1Field.create();
+        long[][] scratch = new long[12][10];
+        boolean ok = true;
+        for (int i = 0; i < 200; i++) {
+            BigInteger x = i == 0 ? P.subtract(BigInteger.ONE) : new BigInteger(256, CryptoAlgs.rng()).mod(P);
+            BigInteger y = i == 1 ? P.subtract(BigInteger.ONE) : new BigInteger(256, CryptoAlgs.rng()).mod(P);
+            Secp256k1Field.setBigInteger(a, x);
+            Secp256k1Field.setBigInteger(b, y);
+            Secp256k1Field.mul(r, a, b);
+            ok &= Secp256k1Field.toBigInteger(r).equals(x.multiply(y).mod(P));
+            Secp256k1Field.sqr(r, a);
+            ok &= Secp256k1Field.toBigInteger(r).equals(x.multiply(x).mod(P));
+            Secp256k1Field.add(r, a, b);
+            ok &= Secp256k1Field.toBigInteger(r).equals(x.add(y).mod(P));
+            Secp256k1Field.sub(r, a, b);
+            ok &= Secp256k1Field.toBigInteger(r).equals(x.subtract(y).mod(P));
+            if (x.signum() != 0) {
+                Secp256k1Field.inv(r, a, scratch);
+                ok &= Secp256k1Field.toBigInteger(r).equals(x.modInverse(P));
+            }
+        }
+        test("secp256k1 field arithmetic", ok);
+
+        ok = true;
+        for (int i = 0; i < 100; i++) {
+            BigInteger k = i == 0 ? N.subtract(BigInteger.ONE) : CryptoAlgs.randomElementDefault(N);
+            BigInteger[] ab = Secp256k1.decompose(k);
+            ok &= ab[0].add(ab[1].multiply(Secp256k1.LAMBDA)).mod(N).equals(k);
+            ok &= ab[0].bitLength() <= 129 && ab[1].bitLength() <= 129;
+        }
+        test("secp256k1 scalar decomposition", ok);
+
+        ECPoint p = G.multiply(CryptoAlgs.randomElementDefault(N)).normalize();
+        BigInteger[] ks = { BigInteger.ZERO, BigInteger.ONE, BigInteger.valueOf(2), N.subtract(BigInteger.ONE), N,
+                            N.add(BigInteger.ONE), BigInteger.valueOf(-3), CryptoAlgs.randomElementDefault(N) };
+        ok = true;
+        for (int i = 0; i < ks.length; i++) {
+            ok &= Secp256k1.multiply(p, ks[i]).equals(p.multiply(ks[i].mod(N)));
+            ok &= Secp256k1.multiply(G.twice(), ks[i]).equals(G.twice().multiply(ks[i].mod(N)));
+        }
+        ok &= Secp256k1.multiply(G.getCurve().getInfinity(), BigInteger.ONE).isInfinity();
+        test("secp256k1 multiply", ok);
+
+        ECPoint[] bases = { p, p.negate(), G, p, G.twice() };
+        BigInteger k = CryptoAlgs.randomElementDefault(N);
+        BigInteger[] scalars = { k, k, CryptoAlgs.randomElementDefault(N), k, N.subtract(BigInteger.ONE) };
+        ECPoint expected = G.getCurve().getInfinity();
+        for (int i = 0; i < bases.length; i++) {
+            expected = expected.add(bases[i].multiply(scalars[i]));
+        }
+        test("secp256k1 sum of multiplies", Secp256k1.sumOfMultiplies(bases, scalars, bases.length).equals(expected)
+             && Secp256k1.sumOfMultiplies(bases, scalars, 2).isInfinity());
+
+        ECPoint[] all = new ECPoint[8 * 66];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = p.multiply(BigInteger.valueOf(i % 8 + 1).shiftLeft(4 * (i / 8)));
+        }
+        G.getCurve().normalizeAll(all);
+        Secp256k1.Table t = new Secp256k1.Table(all, 4, G.getCurve());
+        ok = true;
+        for (int i = 0; i < 20; i++) {
+            BigInteger x = i == 0 ? N.subtract(BigInteger.ONE) : i == 1 ? BigInteger.ONE : CryptoAlgs.randomElementDefault(N);
+            ok &= t.multiply(x).equals(p.multiply(x));
+        }
+        test("secp256k1 fixed-base table", ok);
+    }
+
+    private static void pointBatchTest() {
+        ECPoint G = ps.params.getG();
+        BigInteger N = ps.params.getN();
+        // sums of points are left in projective form
+        ECPoint[] points = new ECPoint[20];
+        ECPoint[] expected = new ECPoint[points.length];
+        for (int i = 0; i < points.length; i++) {
+            ECPoint p = G.multiply(CryptoAlgs.randomElementDefault(N));
+            points[i] = i == 3 ? null : i == 5 ? G.getCurve().getInfinity() : p.add(G).add(G);
+            expected[i] = points[i];
+        }
+        byte[][] encoded = PointBatch.encodeAll(points);
+        PointBatch.normalizeAll(points);
+        boolean ok = true;
+        for (int i = 0; i < points.length; i++) {
+            if (expected[i] == null) {
+                ok &= points[i] == null && encoded[i] == null;
+                continue;
+            }
+            ok &= points[i].isNormalized() && points[i].equals(expected[i]);
+            ok &= Arrays.equals(encoded[i], expected[i].getEncoded(true));
+        }
+        test("batch normalization", ok);
+
+        CryptoHashableList one = new CryptoHashableList();
+        CryptoHashableList all = new CryptoHashableList();
+        ECPoint[] some = { expected[0], expected[1], expected[2] };
+        for (int i = 0; i < some.length; i++) {
+            one.add(some[i]);
+        }
+        all.addAll(some);
+        test("batch hashing", Arrays.equals(f.hash(one), f.hash(all)));
+
+        ElGamalCiphertext[] cs = new ElGamalCiphertext[5];
+        String[] xml = new String[cs.length];
+        for (int i = 0; i < cs.length; i++) {
+            cs[i] = new ElGamalCiphertextC(expected[2*i], expected[2*i+6]);
+            xml[i] = ((ElGamalCiphertextC)cs[i]).toXML();
+            cs[i] = new ElGamalCiphertextC(expected[2*i], expected[2*i+6]);
+        }
+        f.normalizeCiphertexts(LabelUtil.singleton().noComponents(), cs);
+        ok = true;
+        for (int i = 0; i < cs.length; i++) {
+            ok &= ((ElGamalCiphertextC)cs[i]).toXML().equals(xml[i]);
+            ok &= cs[i].equals(new ElGamalCiphertextC(expected[2*i], expected[2*i+6]));
+        }
+        test("batch normalized ciphertexts encode the same", ok);
+    }
+
+    private static void transcriptTest() {
+        ECPoint G = ps.params.getG();
+        BigInteger N = ps.params.getN();
+        ECPoint[] points = new ECPoint[6];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = G.multiply(CryptoAlgs.randomElementDefault(N)).add(G);
+        }
+        points[4] = G.getCurve().getInfinity();
+        BigInteger x = CryptoAlgs.randomElementDefault(N);
+        byte[] bs = "transcript".getBytes();
+
+        CryptoHashableList l = new CryptoHashableList();
+        l.add(points[0]);
+        l.add(x);
+        l.add((byte[])null);
+        l.add(bs);
+        l.addAll(points);
+        l.add(BigInteger.valueOf(-1));
+        byte[] expected = f.hash(l);
+
+        CryptoHashableList all = new CryptoHashableList();
+        all.addAll(points);
+        CryptoHashableList pair = new CryptoHashableList();
+        pair.add(points[1]);
+        pair.add(points[2]);
+
+        Transcript t = Transcript.start().point(points[0]).scalar(x).bytes(null).bytes(bs);
+        // a transcript started while another is in progress
+        Transcript u = Transcript.start().points(points);
+        t.points(points);
+        test("nested transcript", Arrays.equals(u.digest(), f.hash(all)));
+        t.scalar(BigInteger.valueOf(-1));
+        test("transcript hashing", Arrays.equals(t.digest(), expected));
+        test("transcript reused", Arrays.equals(Transcript.start().point(points[1]).point(points[2]).digest(), f.hash(pair)));
+        ElGamalCiphertextC c = new ElGamalCiphertextC(points[1], points[2]);
+        test("transcript ciphertext", Arrays.equals(Transcript.start().ciphertext(c).digest(), f.hash(pair)));
+        test("transcript challenge", Transcript.start().point(points[1]).point(points[2]).challenge(N).equals(f.hashToDefaultBigInt(f.hash(pair)).mod(N)));
+    }
+
+    private static void modulusContextTest() {
+        java.util.Random r = new java.util.Random(1);
+        BigInteger p = BigInteger.probablePrime(1024, r);
+        ModulusContext ctx = ModulusContext.forModulus(p);
+        BigInteger g = new BigInteger(1030, r);
+        BigInteger h = new BigInteger(1020, r);
+        ModulusContext.FixedBase fb = ctx.fixedBase(g, 160);
+        boolean ok = true;
+        for (int i = 0; i < 20; i++) {
+            BigInteger a = i == 0 ? BigInteger.ZERO : new BigInteger(i % 2 == 0 ? 160 : 1100, r);
+            BigInteger b = i == 1 ? BigInteger.valueOf(-5) : new BigInteger(160, r);
+            ok &= ctx.modPow(g, a).equals(g.modPow(a, p));
+            ok &= ctx.modPow2(g, a, h, b).equals(g.modPow(a, p).multiply(h.modPow(b, p)).mod(p));
+            ok &= fb.pow(a).equals(g.modPow(a, p));
+            ok &= ctx.modMultiply(g.add(a), h).equals(g.add(a).multiply(h).mod(p));
+            ok &= ctx.modDivide(g, h.add(a)).equals(g.multiply(h.add(a).modInverse(p)).mod(p));
+        }
+        test("modulus context" + (ctx.isNative() ? " (native)" : ""), ok);
+    }
+
     private static void performance() {
         Label lbl = LabelUtil.singleton().noComponents();
         ElGamalParametersC[] ps = new ElGamalParametersC[1];
@@ -782,6 +1319,27 @@ public class Test {
         System.err.println(vv.proofVote.verify(ps, vv.encCapability, vv.encChoice.getCiphertext(), vv.context));
 
         test("vv verifies", vv.verify(K, cipherList, L));
+
+        // batch verification; the second vote has the wrong context, and the
+        // third has the choice of another vote.
+        ElGamalReencryptFactor factorChoice2 = f.generateElGamalReencryptFactor(K.getParams());
+        ElGamal1OfLReencryption encChoice2 = f.elGamal1OfLReencrypt(LabelUtil.singleton().noComponents(),
+                                                                K, ciphertexts, L, 0, factorChoice2);
+        ProofVote proofVote2 = f.constructProofVote(ps, encCapability, encChoice2, context, factorCap, factorChoice2);
+        ElGamal1OfLReencryption[] encChoices = { encChoice, encChoice, encChoice2, encChoice2, null };
+        ElGamalCiphertext[] encCaps = { encCapability, encCapability, encCapability, encCapability, encCapability };
+        ProofVote[] proofs = { proofVote, proofVote, proofVote, proofVote2, proofVote2 };
+        String[] contexts = { context, "wrong", context, context, context };
+        boolean[] valid = f.verifyVotes(LabelUtil.singleton().noComponents(), K, cipherList, L, encChoices, encCaps, proofs, contexts);
+        test("batch verify votes", valid[0] && !valid[1] && !valid[2] && valid[3] && !valid[4]);
+        valid = f.verifyVotes(LabelUtil.singleton().noComponents(), K, cipherList, L-1, encChoices, encCaps, proofs, contexts);
+        test("batch verify votes with wrong L", !valid[0] && !valid[3]);
+
+        // the votes that verified remember it, but only for the same inputs.
+        VerifiableVote vv2 = new VerifiableVote().civitas$common$VerifiableVote$(context, encChoice2, encCapability, proofVote2);
+        test("batch verified vote verifies", vv2.verify(K, cipherList, L));
+        test("batch verified vote with wrong L", !encChoice2.verify(K, cipherList, L-1));
+        test("batch verified vote with wrong context", !proofVote2.verify(ps, encCapability, encChoice2.getCiphertext(), "wrong"));
     }
 
     public static void xmlTest() throws IllegalArgumentException, IOException, CryptoException {
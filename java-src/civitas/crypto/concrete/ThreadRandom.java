@@ -0,0 +1,160 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.crypto.concrete;
+
+import java.io.UnsupportedEncodingException;
+import java.security.SecureRandom;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.prng.EntropySource;
+import org.bouncycastle.crypto.prng.EntropySourceProvider;
+import org.bouncycastle.crypto.prng.SP800SecureRandomBuilder;
+
+import civitas.crypto.CryptoError;
+
+/**
+ * Per-thread random number generators.
+ *
+ * Each thread has its own HMAC-DRBG (NIST SP 800-90A, with SHA-256), so
+ * that threads drawing random numbers do not contend for a single
+ * SecureRandom. The DRBG of a thread is seeded once, when the thread
+ * first draws a random number, from a master SecureRandom, and reseeds
+ * itself from the master as required by SP 800-90A.
+ *
+ * If the system property <code>civitas.crypto.rng.seed</code> is set, the
+ * generators are deterministic instead: the DRBG of the k-th thread to
+ * draw a random number is seeded with SHA-256(seed || k). Runs that draw
+ * random numbers from the same threads in the same order then draw the
+ * same numbers, which makes benchmarks reproducible. Since the order in
+ * which worker threads first draw depends on scheduling, only single
+ * threaded runs are reproducible in general. This mode must never be
+ * used in an election.
+ */
+class ThreadRandom {
+    static final String SEED = System.getProperty("civitas.crypto.rng.seed");
+
+    /**
+     * Security strength of the DRBGs, in bits.
+     */
+    private static final int STRENGTH = 256;
+
+    private static final byte[] PERSONALIZATION = bytes("civitas.crypto.concrete.ThreadRandom");
+
+    private static final SecureRandom master = SEED == null ? new SecureRandom() : null;
+
+    /**
+     * Number of DRBGs created so far.
+     */
+    private static long streams = 0;
+
+    private static final ThreadLocal<SecureRandom> rng = new ThreadLocal<SecureRandom>() {
+        protected SecureRandom initialValue() {
+            return newDrbg(nextStream());
+        }
+    };
+
+    private ThreadRandom() { }
+
+    /**
+     * @return the random number generator of the current thread. It must
+     * not be handed to other threads.
+     */
+    static SecureRandom get() {
+        return rng.get();
+    }
+
+    private static synchronized long nextStream() {
+        return streams++;
+    }
+
+    private static SecureRandom newDrbg(long stream) {
+        EntropySourceProvider entropy = SEED == null ? masterEntropy() : seededEntropy(stream);
+        byte[] nonce = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            nonce[i] = (byte)(stream >>> (8 * i));
+        }
+        long t = SEED == null ? System.nanoTime() : 0;
+        for (int i = 0; i < 8; i++) {
+            nonce[8 + i] = (byte)(t >>> (8 * i));
+        }
+        return new SP800SecureRandomBuilder(entropy)
+            .setPersonalizationString(PERSONALIZATION)
+            .setSecurityStrength(STRENGTH)
+            .setEntropyBitsRequired(STRENGTH)
+            .buildHMAC(new HMac(new SHA256Digest()), nonce, false);
+    }
+
+    /**
+     * Entropy drawn from the master SecureRandom.
+     */
+    private static EntropySourceProvider masterEntropy() {
+        return new EntropySourceProvider() {
+            public EntropySource get(final int bitsRequired) {
+                return new EntropySource() {
+                    public boolean isPredictionResistant() {
+                        return false;
+                    }
+                    public byte[] getEntropy() {
+                        byte[] bs = new byte[(bitsRequired + 7) / 8];
+                        synchronized (master) {
+                            master.nextBytes(bs);
+                        }
+                        return bs;
+                    }
+                    public int entropySize() {
+                        return bitsRequired;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Deterministic "entropy" for the given stream: SHA-256(seed || stream
+     * || counter), where the counter is incremented on each reseed.
+     */
+    private static EntropySourceProvider seededEntropy(final long stream) {
+        final byte[] seed = bytes(SEED);
+        return new EntropySourceProvider() {
+            public EntropySource get(final int bitsRequired) {
+                return new EntropySource() {
+                    private long counter = 0;
+                    public boolean isPredictionResistant() {
+                        return false;
+                    }
+                    public byte[] getEntropy() {
+                        byte[] bs = new byte[(bitsRequired + 7) / 8];
+                        byte[] block = new byte[32];
+                        for (int off = 0; off < bs.length; off += block.length) {
+                            SHA256Digest d = new SHA256Digest();
+                            d.update(seed, 0, seed.length);
+                            for (int i = 0; i < 8; i++) d.update((byte)(stream >>> (8 * i)));
+                            for (int i = 0; i < 8; i++) d.update((byte)(counter >>> (8 * i)));
+                            d.doFinal(block, 0);
+                            counter++;
+                            System.arraycopy(block, 0, bs, off, Math.min(block.length, bs.length - off));
+                        }
+                        return bs;
+                    }
+                    public int entropySize() {
+                        return bitsRequired;
+                    }
+                };
+            }
+        };
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new CryptoError("Character set UTF-8 is not supported by this VM");
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.crypto.concrete;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+
+import org.bouncycastle.math.ec.ECFieldElement;
+import org.bouncycastle.math.ec.ECPoint;
+
+import civitas.crypto.CryptoError;
+import civitas.crypto.PointBatch;
+
+/**
+ * The hash of a Fiat-Shamir transcript, computed as its elements are
+ * written.
+ *
+ * Elements are fed straight into a pooled message digest: points as their
+ * compressed encodings, written through a per-thread buffer, scalars as
+ * their two's complement encodings, and byte strings as they are. The
+ * result is byte for byte the hash that CryptoFactoryC.hash computes for a
+ * CryptoHashableList of the same elements, so proofs hashed either way
+ * verify either way.
+ *
+ * A transcript belongs to the thread that started it, and is finished by
+ * digest or challenge, after which it must not be used. Each thread reuses
+ * a single transcript; a transcript started while another is in progress
+ * on the same thread gets its own.
+ */
+class Transcript {
+    private static final ThreadLocal<Transcript> transcripts = new ThreadLocal<Transcript>() {
+        protected Transcript initialValue() {
+            return new Transcript();
+        }
+    };
+
+    /**
+     * Room for the compressed encoding of a point with a 256 bit field;
+     * grown for larger fields.
+     */
+    private byte[] buf = new byte[33];
+
+    /**
+     * Scratch space for normalizing arrays of points.
+     */
+    private ECPoint[] scratch = new ECPoint[16];
+
+    private MessageDigest md;
+    private boolean inUse = false;
+
+    private Transcript() { }
+
+    /**
+     * @return an empty transcript.
+     */
+    static Transcript start() {
+        Transcript t = transcripts.get();
+        if (t.inUse) {
+            // nested in another transcript, or left unfinished by an
+            // exception: either way, leave it alone.
+            t = new Transcript();
+            transcripts.set(t);
+        }
+        try {
+            t.md = JcaPool.takeDigest(CryptoFactoryC.MESSAGE_DIGEST_ALG, CryptoFactoryC.MESSAGE_DIGEST_PROVIDER);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new CryptoError(e);
+        }
+        catch (NoSuchProviderException e) {
+            throw new CryptoError("No provider " + CryptoFactoryC.MESSAGE_DIGEST_PROVIDER);
+        }
+        t.inUse = true;
+        return t;
+    }
+
+    /**
+     * Append the compressed encoding of p, as ECPoint.getEncoded(true).
+     */
+    Transcript point(ECPoint p) {
+        if (p.isInfinity()) {
+            md.update((byte)0);
+            return this;
+        }
+        p = p.normalize();
+        ECFieldElement x = p.getAffineXCoord();
+        int len = x.getEncodedLength();
+        if (buf.length < len + 1) {
+            buf = new byte[len + 1];
+        }
+        buf[0] = (byte)(p.getAffineYCoord().testBitZero() ? 0x03 : 0x02);
+        x.encodeTo(buf, 1);
+        md.update(buf, 0, len + 1);
+        return this;
+    }
+
+    /**
+     * Append the points of ps in order, putting them in affine form with a
+     * single field inversion.
+     */
+    Transcript points(ECPoint[] ps) {
+        if (scratch.length < ps.length) {
+            scratch = new ECPoint[Math.max(ps.length, 2 * scratch.length)];
+        }
+        System.arraycopy(ps, 0, scratch, 0, ps.length);
+        PointBatch.normalizeAll(scratch, 0, ps.length);
+        for (int i = 0; i < ps.length; i++) {
+            point(scratch[i]);
+            scratch[i] = null;
+        }
+        return this;
+    }
+
+    /**
+     * Append a and b of c, using the affine forms c has cached.
+     */
+    Transcript ciphertext(ElGamalCiphertextC c) {
+        return point(c.normalA()).point(c.normalB());
+    }
+
+    /**
+     * Append the two's complement encoding of i, as BigInteger.toByteArray.
+     */
+    Transcript scalar(BigInteger i) {
+        md.update(i.toByteArray());
+        return this;
+    }
+
+    /**
+     * Append bs, if it is not null.
+     */
+    Transcript bytes(byte[] bs) {
+        if (bs != null) md.update(bs);
+        return this;
+    }
+
+    /**
+     * Finish the transcript.
+     * @return the hash of everything appended.
+     */
+    byte[] digest() {
+        byte[] ret = md.digest();
+        JcaPool.giveDigest(md, CryptoFactoryC.MESSAGE_DIGEST_ALG, CryptoFactoryC.MESSAGE_DIGEST_PROVIDER);
+        md = null;
+        inUse = false;
+        return ret;
+    }
+
+    /**
+     * Finish the transcript.
+     * @return the hash of everything appended, as a non-negative integer
+     * reduced mod n.
+     */
+    BigInteger challenge(BigInteger n) {
+        return new BigInteger(1, digest()).mod(n);
+    }
+}
@@ -19,6 +19,7 @@ import civitas.crypto.PrivateKey;
 import civitas.crypto.PublicKey;
 import civitas.crypto.concrete.CryptoFactoryC;
 import civitas.util.CivitasBigInteger;
+import civitas.util.Metrics;
 
 /**
  * Implementation of a registration teller. Invoking main appropriately will
@@ -120,6 +121,8 @@ public class RegTeller {
                         out.println("numPublicKeyDecs : " + CryptoFactoryC.numPublicKeyDecs());
                         out.println("numPublicKeySign : " + CryptoFactoryC.numPublicKeySign());
                         out.println("numPublicKeyVerifySig : " + CryptoFactoryC.numPublicKeyVerifySig());
+                        // counts and latency percentiles of each operation
+                        Metrics.report(out);
                         out.println("<END>");
                     }
                     else if (cmd.equalsIgnoreCase("HEARTBEAT")) {
@@ -21,6 +21,7 @@ import civitas.crypto.PrivateKey;
 import civitas.crypto.PublicKey;
 import civitas.crypto.concrete.CryptoFactoryC;
 import civitas.util.CivitasBigInteger;
+import civitas.util.Metrics;
 
 /**
  * Implementation of a tabulation teller. Invoking main appropriately will
@@ -151,6 +152,8 @@ public class ThreadAwareTabTeller {
                         out.println("numPublicKeyDecs : " + CryptoFactoryC.numPublicKeyDecs());
                         out.println("numPublicKeySign : " + CryptoFactoryC.numPublicKeySign());
                         out.println("numPublicKeyVerifySig : " + CryptoFactoryC.numPublicKeyVerifySig());
+                        // counts and latency percentiles of each operation
+                        Metrics.report(out);
 
                         out.println("<END>");
                     }
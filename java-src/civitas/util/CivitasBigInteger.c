@@ -11,9 +11,11 @@
 #include <stdlib.h>
 #include <stdio.h>
 #include <wchar.h>
+#include <stdint.h>
 #include <gmp.h>
 #include "jni.h"
 #include "civitas_util_CivitasBigInteger.h"
+#include "civitas_util_ModulusContext.h"
 
 /******** prototypes */
 
@@ -248,4 +250,466 @@ void convert_mp2j(JNIEnv* env, mpz_t mvalue, jbyteArray* jvalue)
         // a copy of the elements in array
 }
 
+/******************************
+ *****Modulus contexts*********
+ ******************************/
+
+/*
+ * The state of civitas.util.ModulusContext for an odd modulus p of n limbs.
+ * Values are kept as n limbs in Montgomery form, x*R mod p where
+ * R = 2^(n*GMP_NUMB_BITS), so that a modular multiplication is a plain
+ * multiplication followed by a Montgomery reduction, with no division.
+ * A context is read only once created, and may be shared by threads.
+ */
+typedef struct {
+        mp_size_t n;
+        mp_limb_t *p;
+        mp_limb_t pinv;  /* -p^(-1) mod 2^GMP_NUMB_BITS */
+        mp_limb_t *one;  /* R mod p, that is 1 in Montgomery form */
+        mp_limb_t *r2;   /* R^2 mod p, to convert into Montgomery form */
+        mpz_t mod;
+} modctx;
+
+/*
+ * A fixed-base table: entry (i, j) is g^(j * 2^(w*i)) in Montgomery form,
+ * for 0 < j < 2^w and 0 <= i < windows.
+ */
+typedef struct {
+        int w;
+        int windows;
+        mp_limb_t *table;
+} fixedbase;
+
+#define FIXED_BASE_WINDOW civitas_util_ModulusContext_FIXED_BASE_WINDOW
+#define POW_WINDOW 5
+#define POW2_WINDOW 4
+
+/******** mont_redc() */
+/*
+ * rp = tp * R^(-1) mod p, for tp < p*R, of 2n limbs; tp is destroyed.
+ * Each step clears the lowest limb of tp by adding a multiple of p, and
+ * keeps the carry in the cleared limb, to be added in at the end.
+ */
+static void mont_redc(const modctx* ctx, mp_limb_t* rp, mp_limb_t* tp)
+{
+        mp_size_t n = ctx->n;
+        mp_size_t i;
+        mp_limb_t cy;
+
+        for (i = 0; i < n; i++) {
+                mp_limb_t q = tp[i] * ctx->pinv;
+                tp[i] = mpn_addmul_1(tp + i, ctx->p, n, q);
+        }
+        cy = mpn_add_n(rp, tp + n, tp, n);
+        if (cy != 0 || mpn_cmp(rp, ctx->p, n) >= 0) {
+                mpn_sub_n(rp, rp, ctx->p, n);
+        }
+}
+
+/******** mont_mul() */
+/*
+ * rp = ap * bp * R^(-1) mod p, using the scratch space tp of 2n limbs.
+ * rp may be ap or bp.
+ */
+static void mont_mul(const modctx* ctx, mp_limb_t* rp, const mp_limb_t* ap, const mp_limb_t* bp, mp_limb_t* tp)
+{
+        if (ap == bp) {
+                mpn_sqr(tp, ap, ctx->n);
+        }
+        else {
+                mpn_mul_n(tp, ap, bp, ctx->n);
+        }
+        mont_redc(ctx, rp, tp);
+}
+
+/******** to_limbs() */
+/*
+ * Reduce x mod p, and store it in n limbs at rp.
+ */
+static void to_limbs(const modctx* ctx, mp_limb_t* rp, mpz_t x)
+{
+        size_t count = 0;
+        mpz_mod(x, x, ctx->mod);
+        mpn_zero(rp, ctx->n);
+        mpz_export(rp, &count, -1, sizeof(mp_limb_t), 0, 0, x);
+}
+
+/******** from_limbs() */
+static void from_limbs(const modctx* ctx, mpz_t x, const mp_limb_t* ap)
+{
+        mpz_import(x, ctx->n, -1, sizeof(mp_limb_t), 0, 0, ap);
+}
+
+/******** to_mont() */
+/*
+ * Convert the Java value jx, with 0 <= jx < p, into Montgomery form at rp.
+ */
+static void to_mont(JNIEnv* env, const modctx* ctx, mp_limb_t* rp, jbyteArray jx, mp_limb_t* tp)
+{
+        mpz_t x;
+        convert_j2mp(env, jx, &x);
+        to_limbs(ctx, rp, x);
+        mpz_clear(x);
+        mont_mul(ctx, rp, rp, ctx->r2, tp);
+}
+
+/******** from_mont() */
+/*
+ * Convert ap out of Montgomery form into a Java value.
+ */
+static jbyteArray from_mont(JNIEnv* env, const modctx* ctx, const mp_limb_t* ap, mp_limb_t* tp)
+{
+        mpz_t x;
+        jbyteArray jresult;
+        mp_limb_t* rp = tp + 2 * ctx->n;
+
+        mpn_copyi(tp, ap, ctx->n);
+        mpn_zero(tp + ctx->n, ctx->n);
+        mont_redc(ctx, rp, tp);
+
+        mpz_init(x);
+        from_limbs(ctx, x, rp);
+        convert_mp2j(env, x, &jresult);
+        mpz_clear(x);
+        return jresult;
+}
+
+/******** window() */
+/*
+ * @return bits [pos, pos+w) of e, the bit at pos being the least significant.
+ */
+static int window(mpz_t e, mp_bitcnt_t pos, int w)
+{
+        int d = 0;
+        int b;
+        for (b = w - 1; b >= 0; b--) {
+                d = (d << 1) | mpz_tstbit(e, pos + b);
+        }
+        return d;
+}
+
+/******** mont_powers() */
+/*
+ * table[j] = base^j for 0 <= j < 2^w, in Montgomery form.
+ */
+static void mont_powers(const modctx* ctx, mp_limb_t* table, const mp_limb_t* base, int w, mp_limb_t* tp)
+{
+        mp_size_t n = ctx->n;
+        int j;
+        mpn_copyi(table, ctx->one, n);
+        mpn_copyi(table + n, base, n);
+        for (j = 2; j < (1 << w); j++) {
+                mont_mul(ctx, table + j * n, table + (j - 1) * n, base, tp);
+        }
+}
+
+/******** mont_pow() */
+/*
+ * rp = base^e in Montgomery form, with fixed windows of POW_WINDOW bits,
+ * for e >= 0.
+ */
+static void mont_pow(const modctx* ctx, mp_limb_t* rp, const mp_limb_t* base, mpz_t e, mp_limb_t* tp)
+{
+        mp_size_t n = ctx->n;
+        mp_limb_t* table = malloc((1 << POW_WINDOW) * n * sizeof(mp_limb_t));
+        size_t bits = mpz_sgn(e) == 0 ? 0 : mpz_sizeinbase(e, 2);
+        long windows = (bits + POW_WINDOW - 1) / POW_WINDOW;
+        long i;
+        int s;
+
+        mont_powers(ctx, table, base, POW_WINDOW, tp);
+        mpn_copyi(rp, ctx->one, n);
+        for (i = windows - 1; i >= 0; i--) {
+                int d = window(e, i * POW_WINDOW, POW_WINDOW);
+                if (i != windows - 1) {
+                        for (s = 0; s < POW_WINDOW; s++) {
+                                mont_mul(ctx, rp, rp, rp, tp);
+                        }
+                }
+                if (d != 0) {
+                        mont_mul(ctx, rp, rp, table + d * n, tp);
+                }
+        }
+        free(table);
+}
+
+/******** nativeCreate() */
+/*
+ * Class:     civitas_util_ModulusContext
+ * Method:    nativeCreate
+ * Signature: ([B)J
+ *
+ * Create the context for the odd modulus p.
+ * @return the context, or 0 if memory could not be allocated.
+ */
+JNIEXPORT jlong JNICALL Java_civitas_util_ModulusContext_nativeCreate
+  (JNIEnv *env, jclass cls, jbyteArray jmod) {
+        modctx* ctx;
+        mpz_t r;
+        mp_limb_t inv;
+        int i;
+
+        ctx = malloc(sizeof(modctx));
+        if (ctx == NULL) return 0;
+        convert_j2mp(env, jmod, &ctx->mod);
+        ctx->n = mpz_size(ctx->mod);
+        ctx->p = malloc(3 * ctx->n * sizeof(mp_limb_t));
+        if (ctx->p == NULL) {
+                mpz_clear(ctx->mod);
+                free(ctx);
+                return 0;
+        }
+        ctx->one = ctx->p + ctx->n;
+        ctx->r2 = ctx->p + 2 * ctx->n;
+        mpn_zero(ctx->p, ctx->n);
+        mpz_export(ctx->p, NULL, -1, sizeof(mp_limb_t), 0, 0, ctx->mod);
+
+        /* Newton iteration for p^(-1) mod 2^GMP_NUMB_BITS: p*p = 1 mod 8,
+         * and each step doubles the number of correct bits. */
+        inv = ctx->p[0];
+        for (i = 0; i < 6; i++) {
+                inv *= 2 - ctx->p[0] * inv;
+        }
+        ctx->pinv = -inv;
+
+        mpz_init_set_ui(r, 1);
+        mpz_mul_2exp(r, r, ctx->n * GMP_NUMB_BITS);
+        to_limbs(ctx, ctx->one, r);
+        mpz_mul_2exp(r, r, ctx->n * GMP_NUMB_BITS);
+        to_limbs(ctx, ctx->r2, r);
+        mpz_clear(r);
+
+        return (jlong)(intptr_t)ctx;
+}
+
+/******** nativeModPow() */
+/*
+ * Class:     civitas_util_ModulusContext
+ * Method:    nativeModPow
+ * Signature: (J[B[B)[B
+ *
+ * calculate (base ^ exponent) % p, for 0 <= base < p and exponent >= 0.
+ */
+JNIEXPORT jbyteArray JNICALL Java_civitas_util_ModulusContext_nativeModPow
+  (JNIEnv *env, jclass cls, jlong jctx, jbyteArray jbase, jbyteArray jexp) {
+        const modctx* ctx = (const modctx*)(intptr_t)jctx;
+        mp_size_t n = ctx->n;
+        mp_limb_t* tp = malloc(5 * n * sizeof(mp_limb_t));
+        mp_limb_t* base = tp + 3 * n;
+        mp_limb_t* r = tp + 4 * n;
+        mpz_t e;
+        jbyteArray jresult;
+
+        to_mont(env, ctx, base, jbase, tp);
+        convert_j2mp(env, jexp, &e);
+        mont_pow(ctx, r, base, e, tp);
+        jresult = from_mont(env, ctx, r, tp);
+
+        mpz_clear(e);
+        free(tp);
+        return jresult;
+}
+
+/******** nativeModPow2() */
+/*
+ * Class:     civitas_util_ModulusContext
+ * Method:    nativeModPow2
+ * Signature: (J[B[B[B[B)[B
+ *
+ * calculate (g ^ a) * (h ^ b) % p, for 0 <= g, h < p and a, b >= 0. The
+ * exponents are scanned together, in windows of POW2_WINDOW bits, so that
+ * the squarings are shared.
+ */
+JNIEXPORT jbyteArray JNICALL Java_civitas_util_ModulusContext_nativeModPow2
+  (JNIEnv *env, jclass cls, jlong jctx, jbyteArray jg, jbyteArray ja, jbyteArray jh, jbyteArray jb) {
+        const modctx* ctx = (const modctx*)(intptr_t)jctx;
+        mp_size_t n = ctx->n;
+        int size = 1 << POW2_WINDOW;
+        mp_limb_t* tp = malloc((5 + 2 * size) * n * sizeof(mp_limb_t));
+        mp_limb_t* base = tp + 3 * n;
+        mp_limb_t* r = tp + 4 * n;
+        mp_limb_t* gs = tp + 5 * n;
+        mp_limb_t* hs = gs + size * n;
+        mpz_t a;
+        mpz_t b;
+        size_t abits;
+        size_t bbits;
+        long windows;
+        long i;
+        int s;
+        jbyteArray jresult;
+
+        to_mont(env, ctx, base, jg, tp);
+        mont_powers(ctx, gs, base, POW2_WINDOW, tp);
+        to_mont(env, ctx, base, jh, tp);
+        mont_powers(ctx, hs, base, POW2_WINDOW, tp);
+        convert_j2mp(env, ja, &a);
+        convert_j2mp(env, jb, &b);
+
+        abits = mpz_sgn(a) == 0 ? 0 : mpz_sizeinbase(a, 2);
+        bbits = mpz_sgn(b) == 0 ? 0 : mpz_sizeinbase(b, 2);
+        windows = ((abits > bbits ? abits : bbits) + POW2_WINDOW - 1) / POW2_WINDOW;
+        mpn_copyi(r, ctx->one, n);
+        for (i = windows - 1; i >= 0; i--) {
+                int da = window(a, i * POW2_WINDOW, POW2_WINDOW);
+                int db = window(b, i * POW2_WINDOW, POW2_WINDOW);
+                if (i != windows - 1) {
+                        for (s = 0; s < POW2_WINDOW; s++) {
+                                mont_mul(ctx, r, r, r, tp);
+                        }
+                }
+                if (da != 0) mont_mul(ctx, r, r, gs + da * n, tp);
+                if (db != 0) mont_mul(ctx, r, r, hs + db * n, tp);
+        }
+        jresult = from_mont(env, ctx, r, tp);
+
+        mpz_clear(a);
+        mpz_clear(b);
+        free(tp);
+        return jresult;
+}
+
+/******** nativeModMultiply() */
+/*
+ * Class:     civitas_util_ModulusContext
+ * Method:    nativeModMultiply
+ * Signature: (J[B[B)[B
+ *
+ * calculate (x * y) % p, for 0 <= x, y < p. Converting into and out of
+ * Montgomery form would cost two more multiplications than it saves, so
+ * this is a plain multiplication and division.
+ */
+JNIEXPORT jbyteArray JNICALL Java_civitas_util_ModulusContext_nativeModMultiply
+  (JNIEnv *env, jclass cls, jlong jctx, jbyteArray jx, jbyteArray jy) {
+        const modctx* ctx = (const modctx*)(intptr_t)jctx;
+        mpz_t mx;
+        mpz_t my;
+        jbyteArray jresult;
+
+        convert_j2mp(env, jx, &mx);
+        convert_j2mp(env, jy, &my);
+
+        mpz_mul(mx, mx, my);
+        mpz_mod(mx, mx, ctx->mod);
+
+        convert_mp2j(env, mx, &jresult);
+
+        mpz_clear(mx);
+        mpz_clear(my);
+        return jresult;
+}
+
+/******** nativeModDivide() */
+/*
+ * Class:     civitas_util_ModulusContext
+ * Method:    nativeModDivide
+ * Signature: (J[B[B)[B
+ *
+ * calculate (x * y^(-1)) % p, for 0 <= x, y < p.
+ */
+JNIEXPORT jbyteArray JNICALL Java_civitas_util_ModulusContext_nativeModDivide
+  (JNIEnv *env, jclass cls, jlong jctx, jbyteArray jx, jbyteArray jy) {
+        const modctx* ctx = (const modctx*)(intptr_t)jctx;
+        mpz_t mx;
+        mpz_t my;
+        jbyteArray jresult;
+
+        convert_j2mp(env, jx, &mx);
+        convert_j2mp(env, jy, &my);
+
+        mpz_invert(my, my, ctx->mod);
+        mpz_mul(mx, mx, my);
+        mpz_mod(mx, mx, ctx->mod);
+
+        convert_mp2j(env, mx, &jresult);
+
+        mpz_clear(mx);
+        mpz_clear(my);
+        return jresult;
+}
+
+/******** nativeFixedBaseCreate() */
+/*
+ * Class:     civitas_util_ModulusContext
+ * Method:    nativeFixedBaseCreate
+ * Signature: (J[BI)J
+ *
+ * Create the fixed-base table of g, for 0 <= g < p and exponents of up to
+ * bits bits.
+ * @return the table, or 0 if memory could not be allocated.
+ */
+JNIEXPORT jlong JNICALL Java_civitas_util_ModulusContext_nativeFixedBaseCreate
+  (JNIEnv *env, jclass cls, jlong jctx, jbyteArray jg, jint bits) {
+        const modctx* ctx = (const modctx*)(intptr_t)jctx;
+        mp_size_t n = ctx->n;
+        int size = (1 << FIXED_BASE_WINDOW) - 1;
+        fixedbase* fb;
+        mp_limb_t* tp;
+        mp_limb_t* cur;
+        int i;
+        int j;
+
+        fb = malloc(sizeof(fixedbase));
+        if (fb == NULL) return 0;
+        fb->w = FIXED_BASE_WINDOW;
+        fb->windows = (bits + FIXED_BASE_WINDOW - 1) / FIXED_BASE_WINDOW;
+        fb->table = malloc((size_t)fb->windows * size * n * sizeof(mp_limb_t));
+        tp = malloc(4 * n * sizeof(mp_limb_t));
+        if (fb->table == NULL || tp == NULL) {
+                free(fb->table);
+                free(tp);
+                free(fb);
+                return 0;
+        }
+        cur = tp + 3 * n;
+
+        to_mont(env, ctx, cur, jg, tp);
+        for (i = 0; i < fb->windows; i++) {
+                mp_limb_t* row = fb->table + (size_t)i * size * n;
+                mpn_copyi(row, cur, n);
+                for (j = 1; j < size; j++) {
+                        mont_mul(ctx, row + j * n, row + (j - 1) * n, cur, tp);
+                }
+                mont_mul(ctx, cur, row + (size - 1) * n, cur, tp);
+        }
+        free(tp);
+        return (jlong)(intptr_t)fb;
+}
+
+/******** nativeFixedBasePow() */
+/*
+ * Class:     civitas_util_ModulusContext
+ * Method:    nativeFixedBasePow
+ * Signature: (JJ[B)[B
+ *
+ * calculate (g ^ e) % p for the base g of the table, and 0 <= e < 2^bits:
+ * the product of one table entry per window of e, with no squarings.
+ */
+JNIEXPORT jbyteArray JNICALL Java_civitas_util_ModulusContext_nativeFixedBasePow
+  (JNIEnv *env, jclass cls, jlong jctx, jlong jtable, jbyteArray jexp) {
+        const modctx* ctx = (const modctx*)(intptr_t)jctx;
+        const fixedbase* fb = (const fixedbase*)(intptr_t)jtable;
+        mp_size_t n = ctx->n;
+        int size = (1 << fb->w) - 1;
+        mp_limb_t* tp = malloc(4 * n * sizeof(mp_limb_t));
+        mp_limb_t* r = tp + 3 * n;
+        mpz_t e;
+        int i;
+        jbyteArray jresult;
+
+        convert_j2mp(env, jexp, &e);
+        mpn_copyi(r, ctx->one, n);
+        for (i = 0; i < fb->windows; i++) {
+                int d = window(e, (mp_bitcnt_t)i * fb->w, fb->w);
+                if (d != 0) {
+                        mont_mul(ctx, r, r, fb->table + ((size_t)i * size + d - 1) * n, tp);
+                }
+        }
+        jresult = from_mont(env, ctx, r, tp);
+
+        mpz_clear(e);
+        free(tp);
+        return jresult;
+}
+
 /******** eof */
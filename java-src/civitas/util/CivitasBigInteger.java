@@ -17,15 +17,22 @@ public class CivitasBigInteger {
     private static final boolean USE_NATIVE = true;
     private static final boolean DEBUG = false;
 
-    private static long numModPows = 0;
+    static final Metrics.Timer MOD_POW = Metrics.timer("modPow");
     public static long numModPows() {
-        return numModPows;
+        return MOD_POW.count();
     }
 
     static {
         _nativeOk = USE_NATIVE && loadLibrary();
     }
 
+    /**
+     * @return whether the native library was loaded.
+     */
+    static boolean nativeOk() {
+        return _nativeOk;
+    }
+
     private final BigInteger i;
 
     public static final CivitasBigInteger ZERO = CivitasBigInteger.valueOf(0);
@@ -121,11 +128,29 @@ public class CivitasBigInteger {
         return i.compareTo(n.i);
     }
     public CivitasBigInteger modPow(CivitasBigInteger x, CivitasBigInteger p) {
-        numModPows++; // record the number of modPows called.
-        if (_nativeOk)
-            return new CivitasBigInteger(nativeModPow(toByteArray(), x.toByteArray(), p.toByteArray()));
-        else
-            return new CivitasBigInteger(this.i.modPow(x.i, p.i));
+        long start = MOD_POW.start(); // record the number and duration of modPows called.
+        try {
+            if (_nativeOk)
+                return new CivitasBigInteger(nativeModPow(toByteArray(), x.toByteArray(), p.toByteArray()));
+            else
+                return new CivitasBigInteger(this.i.modPow(x.i, p.i));
+        }
+        finally {
+            MOD_POW.stop(start);
+        }
+    }
+    /**
+     * Calculate (this ^ x) % p, using the precomputed state of the context
+     * for p.
+     */
+    public CivitasBigInteger modPow(CivitasBigInteger x, ModulusContext p) {
+        return new CivitasBigInteger(p.modPow(this.i, x.i));
+    }
+    /**
+     * @return the context for this modulus.
+     */
+    public ModulusContext modulusContext() {
+        return ModulusContext.forModulus(this.i);
     }
     public boolean isProbablePrime(int certainty) {
         return i.isProbablePrime(certainty);
@@ -0,0 +1,216 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.util;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A registry of operation counts and latency histograms, used to report
+ * the cost of an election in experiments.
+ *
+ * Each Timer keeps a striped count of the operations performed, and a
+ * histogram of their latencies with logarithmic buckets: every power of
+ * two is split into SUB_BUCKETS linear buckets, so a recorded latency is
+ * known to within 1/SUB_BUCKETS of its value, from nanoseconds up to
+ * hours, in a fixed number of buckets. Recording is lock free, and costs
+ * two counter increments and a call to System.nanoTime.
+ */
+public class Metrics {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int NUM_BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private static final Map<String, Timer> timers = new TreeMap<String, Timer>();
+
+    private Metrics() { }
+
+    /**
+     * @return the timer called name, creating it if need be.
+     */
+    public static Timer timer(String name) {
+        synchronized (timers) {
+            Timer t = timers.get(name);
+            if (t == null) {
+                t = new Timer(name);
+                timers.put(name, t);
+            }
+            return t;
+        }
+    }
+
+    /**
+     * @return a snapshot of every timer, in order of name.
+     */
+    public static List<Snapshot> snapshot() {
+        List<Timer> ts;
+        synchronized (timers) {
+            ts = new ArrayList<Timer>(timers.values());
+        }
+        List<Snapshot> ret = new ArrayList<Snapshot>(ts.size());
+        for (Timer t : ts) {
+            ret.add(t.snapshot());
+        }
+        return ret;
+    }
+
+    /**
+     * Print the count and the latency percentiles of every timer that has
+     * been used, one per line, in the "name : value" format of the
+     * EXPERIMENT_RESULTS admin command.
+     */
+    public static void report(PrintStream out) {
+        for (Snapshot s : snapshot()) {
+            if (s.count == 0 && s.samples == 0) continue;
+            out.println(s.name + " : count=" + s.count
+                        + " p50=" + micros(s.percentile(0.50))
+                        + " p99=" + micros(s.percentile(0.99))
+                        + " p999=" + micros(s.percentile(0.999))
+                        + " max=" + micros(s.max));
+        }
+    }
+
+    private static String micros(long nanos) {
+        return (nanos / 1000) + "." + ((nanos / 100) % 10) + "us";
+    }
+
+    static int bucketOf(long v) {
+        if (v < SUB_BUCKETS) return (int)Math.max(v, 0);
+        int e = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int)(v >>> (e - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (e - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the midpoint of the range of values that fall in bucket b.
+     */
+    static long valueOf(int b) {
+        if (b < SUB_BUCKETS) return b;
+        int e = b / SUB_BUCKETS + SUB_BITS - 1;
+        long lower = ((long)(SUB_BUCKETS + b % SUB_BUCKETS)) << (e - SUB_BITS);
+        return lower + ((1L << (e - SUB_BITS)) >> 1);
+    }
+
+    /**
+     * Counts operations, and records their latencies.
+     */
+    public static class Timer {
+        public final String name;
+        private final LongAdder count = new LongAdder();
+        private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+        private volatile long max = 0;
+
+        Timer(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return a start time to pass to stop.
+         */
+        public long start() {
+            return System.nanoTime();
+        }
+
+        /**
+         * Record one operation that began at start.
+         */
+        public void stop(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        /**
+         * Record one operation that took the given number of nanoseconds.
+         */
+        public void record(long nanos) {
+            count.increment();
+            sample(nanos);
+        }
+
+        /**
+         * Record n operations performed together, beginning at start. The
+         * latency recorded is the time per operation.
+         */
+        public void stop(long start, int n) {
+            if (n <= 0) return;
+            count.add(n);
+            sample((System.nanoTime() - start) / n);
+        }
+
+        /**
+         * Record an operation without timing it.
+         */
+        public void increment() {
+            count.increment();
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        private void sample(long nanos) {
+            buckets.incrementAndGet(bucketOf(nanos));
+            if (nanos > max) {
+                synchronized (this) {
+                    if (nanos > max) max = nanos;
+                }
+            }
+        }
+
+        public Snapshot snapshot() {
+            long[] bs = new long[NUM_BUCKETS];
+            for (int i = 0; i < bs.length; i++) {
+                bs[i] = buckets.get(i);
+            }
+            return new Snapshot(name, count.sum(), bs, max);
+        }
+    }
+
+    /**
+     * An immutable copy of the state of a Timer. The percentiles are all
+     * computed from the same copy of the histogram.
+     */
+    public static class Snapshot {
+        public final String name;
+        public final long count;
+        public final long samples;
+        public final long max;
+        private final long[] buckets;
+
+        Snapshot(String name, long count, long[] buckets, long max) {
+            this.name = name;
+            this.count = count;
+            this.buckets = buckets;
+            long n = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                n += buckets[i];
+            }
+            this.samples = n;
+            this.max = max;
+        }
+
+        /**
+         * @return the latency in nanoseconds below which a fraction q of the
+         * samples fall, or 0 if there are no samples.
+         */
+        public long percentile(double q) {
+            if (samples == 0) return 0;
+            long rank = (long)Math.ceil(q * samples);
+            if (rank < 1) rank = 1;
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) return Math.min(valueOf(i), max);
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * This file is part of the Civitas software distribution.
+ * Copyright (c) 2007-2008, Civitas project group, Cornell University.
+ * See the LICENSE file accompanying this distribution for further license
+ * and copyright information.
+ */
+package civitas.util;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Arithmetic modulo a fixed modulus p, such as the prime of a finite field
+ * El Gamal parameter set.
+ *
+ * The native methods of CivitasBigInteger marshal the modulus on every
+ * call, and the native code sets up its state for the modulus from scratch
+ * each time. A context does so once. With the native library, the context
+ * keeps the modulus and its Montgomery constants in native memory, and
+ * computes in Montgomery form. Without it, or if p is even, the context
+ * computes in Java, keeping a Barrett reduction constant for p; single
+ * exponentiations then use BigInteger.modPow, which already works in
+ * Montgomery form internally.
+ *
+ * Besides single operations, a context computes g^a * h^b mod p with the
+ * squarings shared between the two exponents, and raises bases that are
+ * used over and over, such as a generator or a public key, with a
+ * precomputed table of powers that needs no squarings at all.
+ *
+ * Contexts and their tables are meant for the moduli and bases of parameter
+ * sets, of which there are few: they are cached, and never freed.
+ */
+public class ModulusContext {
+    private static final Map<BigInteger, ModulusContext> contexts = new HashMap<BigInteger, ModulusContext>();
+
+    /**
+     * Window width of the fixed-base tables: the table for exponents of n
+     * bits holds (2^W - 1) * n / W powers, and an exponentiation takes n / W
+     * multiplications.
+     */
+    static final int FIXED_BASE_WINDOW = 4;
+
+    private final BigInteger p;
+
+    /** Barrett constant floor(2^(2k) / p), where p has k bits. */
+    private final BigInteger mu;
+    private final int k;
+
+    /** The native context, or 0 if arithmetic is done in Java. */
+    private final long handle;
+
+    private final Map<BigInteger, FixedBase> fixedBases = new HashMap<BigInteger, FixedBase>();
+
+    private ModulusContext(BigInteger p) {
+        this.p = p;
+        this.k = p.bitLength();
+        this.mu = BigInteger.ONE.shiftLeft(2 * k).divide(p);
+        long h = 0;
+        if (CivitasBigInteger.nativeOk() && p.testBit(0)) {
+            try {
+                h = nativeCreate(p.toByteArray());
+            }
+            catch (UnsatisfiedLinkError e) {
+                // a native library that predates contexts
+                h = 0;
+            }
+        }
+        this.handle = h;
+    }
+
+    /**
+     * @return the context for modulus p, which must be greater than one.
+     */
+    public static ModulusContext forModulus(BigInteger p) {
+        if (p == null || p.compareTo(BigInteger.ONE) <= 0) {
+            throw new ArithmeticException("Modulus not greater than one");
+        }
+        synchronized (contexts) {
+            ModulusContext c = contexts.get(p);
+            if (c == null) {
+                c = new ModulusContext(p);
+                contexts.put(p, c);
+            }
+            return c;
+        }
+    }
+
+    public BigInteger modulus() {
+        return p;
+    }
+
+    /**
+     * @return whether arithmetic is done by the native library.
+     */
+    public boolean isNative() {
+        return handle != 0;
+    }
+
+    /**
+     * @return base^exponent mod p.
+     */
+    public BigInteger modPow(BigInteger base, BigInteger exponent) {
+        long start = CivitasBigInteger.MOD_POW.start();
+        try {
+            if (exponent.signum() < 0) {
+                base = base.modInverse(p);
+                exponent = exponent.negate();
+            }
+            if (handle != 0) {
+                return new BigInteger(nativeModPow(handle, reduce(base).toByteArray(), exponent.toByteArray()));
+            }
+            return base.modPow(exponent, p);
+        }
+        finally {
+            CivitasBigInteger.MOD_POW.stop(start);
+        }
+    }
+
+    /**
+     * @return g^a * h^b mod p.
+     */
+    public BigInteger modPow2(BigInteger g, BigInteger a, BigInteger h, BigInteger b) {
+        if (a.signum() < 0) {
+            g = g.modInverse(p);
+            a = a.negate();
+        }
+        if (b.signum() < 0) {
+            h = h.modInverse(p);
+            b = b.negate();
+        }
+        if (handle == 0) {
+            return modMultiply(modPow(g, a), modPow(h, b));
+        }
+        long start = CivitasBigInteger.MOD_POW.start();
+        try {
+            return new BigInteger(nativeModPow2(handle,
+                                                reduce(g).toByteArray(), a.toByteArray(),
+                                                reduce(h).toByteArray(), b.toByteArray()));
+        }
+        finally {
+            CivitasBigInteger.MOD_POW.stop(start);
+        }
+    }
+
+    /**
+     * @return x * y mod p.
+     */
+    public BigInteger modMultiply(BigInteger x, BigInteger y) {
+        x = reduce(x);
+        y = reduce(y);
+        if (handle != 0) {
+            return new BigInteger(nativeModMultiply(handle, x.toByteArray(), y.toByteArray()));
+        }
+        return barrett(x.multiply(y));
+    }
+
+    /**
+     * @return x * y^(-1) mod p.
+     */
+    public BigInteger modDivide(BigInteger x, BigInteger y) {
+        x = reduce(x);
+        y = reduce(y);
+        if (handle != 0) {
+            return new BigInteger(nativeModDivide(handle, x.toByteArray(), y.toByteArray()));
+        }
+        return barrett(x.multiply(y.modInverse(p)));
+    }
+
+    /**
+     * @return the fixed-base table for g, for exponents of up to bits bits.
+     * Larger exponents are still handled, by plain exponentiation.
+     */
+    public FixedBase fixedBase(BigInteger g, int bits) {
+        g = reduce(g);
+        synchronized (fixedBases) {
+            FixedBase fb = fixedBases.get(g);
+            if (fb == null || fb.bits < bits) {
+                fb = new FixedBase(g, bits);
+                fixedBases.put(g, fb);
+            }
+            return fb;
+        }
+    }
+
+    /**
+     * Powers g^(j * 2^(W*i)) of a base g, for 0 < j < 2^W and
+     * 0 <= i < bits / W, where W is FIXED_BASE_WINDOW. An exponent is
+     * split into windows of W bits, and g raised to it is the product of
+     * one table entry per window.
+     */
+    public class FixedBase {
+        final BigInteger g;
+        final int bits;
+        private final BigInteger[][] table;
+        private final long tableHandle;
+
+        FixedBase(BigInteger g, int bits) {
+            int windows = (bits + FIXED_BASE_WINDOW - 1) / FIXED_BASE_WINDOW;
+            this.g = g;
+            this.bits = windows * FIXED_BASE_WINDOW;
+            this.tableHandle = handle != 0 ? nativeFixedBaseCreate(handle, g.toByteArray(), this.bits) : 0;
+            if (tableHandle != 0) {
+                this.table = null;
+                return;
+            }
+            this.table = new BigInteger[windows][(1 << FIXED_BASE_WINDOW) - 1];
+            BigInteger cur = g;
+            for (int i = 0; i < windows; i++) {
+                table[i][0] = cur;
+                for (int j = 1; j < table[i].length; j++) {
+                    table[i][j] = barrett(table[i][j-1].multiply(cur));
+                }
+                cur = barrett(table[i][table[i].length - 1].multiply(cur));
+            }
+        }
+
+        /**
+         * @return g^e mod p.
+         */
+        public BigInteger pow(BigInteger e) {
+            if (e.signum() < 0 || e.bitLength() > bits) {
+                return modPow(g, e);
+            }
+            long start = CivitasBigInteger.MOD_POW.start();
+            try {
+                if (tableHandle != 0) {
+                    return new BigInteger(nativeFixedBasePow(handle, tableHandle, e.toByteArray()));
+                }
+                BigInteger acc = null;
+                for (int i = 0; i < table.length; i++) {
+                    int d = 0;
+                    for (int b = FIXED_BASE_WINDOW - 1; b >= 0; b--) {
+                        d = (d << 1) | (e.testBit(i * FIXED_BASE_WINDOW + b) ? 1 : 0);
+                    }
+                    if (d == 0) continue;
+                    acc = acc == null ? table[i][d-1] : barrett(acc.multiply(table[i][d-1]));
+                }
+                return acc == null ? BigInteger.ONE : acc;
+            }
+            finally {
+                CivitasBigInteger.MOD_POW.stop(start);
+            }
+        }
+    }
+
+    /**
+     * @return x mod p.
+     */
+    private BigInteger reduce(BigInteger x) {
+        if (x.signum() < 0 || x.compareTo(p) >= 0) return x.mod(p);
+        return x;
+    }
+
+    /**
+     * @return z mod p, for 0 <= z < p^2, by Barrett reduction.
+     */
+    private BigInteger barrett(BigInteger z) {
+        BigInteger q = z.shiftRight(k - 1).multiply(mu).shiftRight(k + 1);
+        BigInteger r = z.subtract(q.multiply(p));
+        while (r.compareTo(p) >= 0) {
+            r = r.subtract(p);
+        }
+        return r;
+    }
+
+    /**
+     * Create the native context for the odd modulus p.
+     * @return the handle of the context, or 0 if it could not be created.
+     */
+    private static native long nativeCreate(byte p[]);
+
+    /**
+     * Calculate (base ^ exponent) % p, for 0 <= base < p and exponent >= 0.
+     * All values are big endian twos complement representations.
+     */
+    private static native byte[] nativeModPow(long ctx, byte base[], byte exponent[]);
+
+    /**
+     * Calculate (g ^ a) * (h ^ b) % p, for 0 <= g, h < p and a, b >= 0.
+     */
+    private static native byte[] nativeModPow2(long ctx, byte g[], byte a[], byte h[], byte b[]);
+
+    /**
+     * Calculate (x * y) % p, for 0 <= x, y < p.
+     */
+    private static native byte[] nativeModMultiply(long ctx, byte x[], byte y[]);
+
+    /**
+     * Calculate (x * y^(-1)) % p, for 0 <= x, y < p.
+     */
+    private static native byte[] nativeModDivide(long ctx, byte x[], byte y[]);
+
+    /**
+     * Create the fixed-base table of g, for 0 <= g < p and exponents of up
+     * to bits bits; bits is a multiple of FIXED_BASE_WINDOW.
+     * @return the handle of the table.
+     */
+    private static native long nativeFixedBaseCreate(long ctx, byte g[], int bits);
+
+    /**
+     * Calculate (g ^ e) % p, for the base g of the table, and
+     * 0 <= e < 2^bits.
+     */
+    private static native byte[] nativeFixedBasePow(long ctx, long table, byte e[]);
+}